@@ -0,0 +1,385 @@
+/**************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PhyloWidget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.andrewberman.sortedlist;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * A uniform grid over a set of ItemI ranges, bulk-loaded in one pass with a
+ * counting sort. Rectangle and nearest-point queries only touch the cells
+ * around the query, and neither the queries nor a rebuild of the same size
+ * allocate anything.
+ * <p>
+ * The grid stores a snapshot of each range's cell coverage, so it should be
+ * rebuilt (by calling build() again) whenever the ranges move.
+ *
+ * @author Greg
+ */
+public final class XYRangeGrid
+{
+	/**
+	 * Roughly how many ranges we aim to put into each cell.
+	 */
+	static final int ITEMS_PER_CELL = 2;
+
+	/**
+	 * Ranges spanning more than this many cells along one axis are stored in
+	 * a separate "big" list that every query checks, to keep a few huge
+	 * ranges from bloating the grid.
+	 */
+	static final int MAX_SPAN = 16;
+
+	private ItemI[] items = new ItemI[0];
+	private int count;
+
+	private int[] bigItems = new int[0];
+	private int numBig;
+
+	private float minX, minY, cellW, cellH;
+	private int cols, rows;
+
+	/**
+	 * Cell c holds the item indices cellItems[cellStart[c]] up to (but not
+	 * including) cellItems[cellStart[c+1]].
+	 */
+	private int[] cellStart = new int[1];
+	private int[] cellItems = new int[0];
+
+	/**
+	 * Per-item stamps, so an item spanning several cells is reported once.
+	 */
+	private int[] stamps = new int[0];
+	private int stamp;
+
+	public XYRangeGrid()
+	{
+	}
+
+	public synchronized void clear()
+	{
+		for (int i = 0; i < count; i++)
+			items[i] = null;
+		count = 0;
+		numBig = 0;
+		cols = rows = 0;
+	}
+
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 * Rebuilds the grid from the first n ranges in the given array.
+	 */
+	public synchronized void build(ItemI[] src, int n)
+	{
+		if (items.length < n)
+		{
+			items = new ItemI[n];
+			stamps = new int[n];
+			bigItems = new int[n];
+		}
+		for (int i = n; i < count; i++)
+			items[i] = null;
+		count = n;
+		numBig = 0;
+		if (n == 0)
+		{
+			cols = rows = 0;
+			return;
+		}
+
+		/*
+		 * Find the overall bounds of the ranges.
+		 */
+		float loX = Float.MAX_VALUE, loY = Float.MAX_VALUE;
+		float hiX = -Float.MAX_VALUE, hiY = -Float.MAX_VALUE;
+		for (int i = 0; i < n; i++)
+		{
+			ItemI it = src[i];
+			items[i] = it;
+			loX = Math.min(loX, it.get(ItemI.LO_X));
+			hiX = Math.max(hiX, it.get(ItemI.HI_X));
+			loY = Math.min(loY, it.get(ItemI.LO_Y));
+			hiY = Math.max(hiY, it.get(ItemI.HI_Y));
+		}
+		float w = Math.max(hiX - loX, 1e-6f);
+		float h = Math.max(hiY - loY, 1e-6f);
+
+		/*
+		 * Pick a grid resolution that keeps the cells roughly square.
+		 */
+		int numCells = Math.max(1, n / ITEMS_PER_CELL);
+		cols = (int) Math.ceil(Math.sqrt(numCells * w / h));
+		cols = Math.max(1, Math.min(cols, numCells));
+		rows = Math.max(1, (numCells + cols - 1) / cols);
+		minX = loX;
+		minY = loY;
+		cellW = w / cols;
+		cellH = h / rows;
+
+		int totalCells = cols * rows;
+		if (cellStart.length < totalCells + 1)
+			cellStart = new int[totalCells + 1];
+		for (int c = 0; c <= totalCells; c++)
+			cellStart[c] = 0;
+
+		/*
+		 * Counting pass: how many entries land in each cell.
+		 */
+		int entries = 0;
+		for (int i = 0; i < n; i++)
+		{
+			ItemI it = items[i];
+			int c0 = col(it.get(ItemI.LO_X)), c1 = col(it.get(ItemI.HI_X));
+			int r0 = row(it.get(ItemI.LO_Y)), r1 = row(it.get(ItemI.HI_Y));
+			if (c1 - c0 >= MAX_SPAN || r1 - r0 >= MAX_SPAN)
+			{
+				bigItems[numBig++] = i;
+				continue;
+			}
+			for (int r = r0; r <= r1; r++)
+			{
+				for (int c = c0; c <= c1; c++)
+				{
+					cellStart[r * cols + c + 1]++;
+					entries++;
+				}
+			}
+		}
+		for (int c = 0; c < totalCells; c++)
+			cellStart[c + 1] += cellStart[c];
+
+		/*
+		 * Filling pass. We temporarily use the stamps array as the per-cell
+		 * write cursor, so make sure it's large enough.
+		 */
+		if (cellItems.length < entries)
+			cellItems = new int[entries];
+		if (stamps.length < totalCells)
+			stamps = new int[Math.max(totalCells, items.length)];
+		for (int c = 0; c < totalCells; c++)
+			stamps[c] = cellStart[c];
+		for (int i = 0; i < n; i++)
+		{
+			ItemI it = items[i];
+			int c0 = col(it.get(ItemI.LO_X)), c1 = col(it.get(ItemI.HI_X));
+			int r0 = row(it.get(ItemI.LO_Y)), r1 = row(it.get(ItemI.HI_Y));
+			if (c1 - c0 >= MAX_SPAN || r1 - r0 >= MAX_SPAN)
+				continue;
+			for (int r = r0; r <= r1; r++)
+			{
+				for (int c = c0; c <= c1; c++)
+				{
+					int cell = r * cols + c;
+					cellItems[stamps[cell]++] = i;
+				}
+			}
+		}
+		for (int i = 0; i < stamps.length; i++)
+			stamps[i] = 0;
+		stamp = 0;
+	}
+
+	private int col(float x)
+	{
+		int c = (int) ((x - minX) / cellW);
+		if (c < 0)
+			return 0;
+		if (c >= cols)
+			return cols - 1;
+		return c;
+	}
+
+	private int row(float y)
+	{
+		int r = (int) ((y - minY) / cellH);
+		if (r < 0)
+			return 0;
+		if (r >= rows)
+			return rows - 1;
+		return r;
+	}
+
+	private void nextStamp()
+	{
+		stamp++;
+		if (stamp == Integer.MAX_VALUE)
+		{
+			for (int i = 0; i < stamps.length; i++)
+				stamps[i] = 0;
+			stamp = 1;
+		}
+	}
+
+	public void getInRange(ArrayList list, Rectangle2D.Float rect)
+	{
+		getInRange(list, rect.x, rect.x + rect.width, rect.y, rect.y + rect.height);
+	}
+
+	/**
+	 * Adds every range intersecting the given rectangle to the list.
+	 */
+	public synchronized void getInRange(ArrayList list, float left, float right, float top, float bottom)
+	{
+		if (count == 0)
+			return;
+		nextStamp();
+		for (int i = 0; i < numBig; i++)
+		{
+			int idx = bigItems[i];
+			if (intersects(items[idx], left, right, top, bottom))
+				list.add(items[idx]);
+		}
+		if (right < minX || bottom < minY || left > minX + cellW * cols || top > minY + cellH * rows)
+			return;
+		int c0 = col(left), c1 = col(right);
+		int r0 = row(top), r1 = row(bottom);
+		for (int r = r0; r <= r1; r++)
+		{
+			for (int c = c0; c <= c1; c++)
+			{
+				int cell = r * cols + c;
+				for (int j = cellStart[cell]; j < cellStart[cell + 1]; j++)
+				{
+					int idx = cellItems[j];
+					if (stamps[idx] == stamp)
+						continue;
+					stamps[idx] = stamp;
+					if (intersects(items[idx], left, right, top, bottom))
+						list.add(items[idx]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the range closest to the given point (a distance of zero if the
+	 * point lies inside it), or null if nothing lies within maxDist.
+	 */
+	public synchronized ItemI getNearest(float x, float y, float maxDist)
+	{
+		if (count == 0)
+			return null;
+		nextStamp();
+		ItemI best = null;
+		float bestDist = maxDist;
+		for (int i = 0; i < numBig; i++)
+		{
+			ItemI it = items[bigItems[i]];
+			float d = distance(it, x, y);
+			if (d <= bestDist)
+			{
+				best = it;
+				bestDist = d;
+			}
+		}
+		/*
+		 * Search outwards in rings of cells until the ring is further away
+		 * than our best hit so far.
+		 */
+		int cx = col(x), cy = row(y);
+		int maxRing = Math.max(cols, rows);
+		for (int ring = 0; ring <= maxRing; ring++)
+		{
+			float ringDist = (ring - 1) * Math.min(cellW, cellH);
+			if (ring > 0 && ringDist > bestDist)
+				break;
+			for (int r = cy - ring; r <= cy + ring; r++)
+			{
+				if (r < 0 || r >= rows)
+					continue;
+				boolean edgeRow = (r == cy - ring || r == cy + ring);
+				for (int c = cx - ring; c <= cx + ring; c += (edgeRow ? 1 : 2 * ring))
+				{
+					if (c >= 0 && c < cols)
+					{
+						int cell = r * cols + c;
+						for (int j = cellStart[cell]; j < cellStart[cell + 1]; j++)
+						{
+							int idx = cellItems[j];
+							if (stamps[idx] == stamp)
+								continue;
+							stamps[idx] = stamp;
+							float d = distance(items[idx], x, y);
+							if (d <= bestDist)
+							{
+								best = items[idx];
+								bestDist = d;
+							}
+						}
+					}
+					if (ring == 0)
+						break;
+				}
+			}
+		}
+		return best;
+	}
+
+	static final boolean intersects(ItemI it, float left, float right, float top, float bottom)
+	{
+		return it.get(ItemI.LO_X) <= right && it.get(ItemI.HI_X) >= left && it.get(ItemI.LO_Y) <= bottom
+				&& it.get(ItemI.HI_Y) >= top;
+	}
+
+	static final float distance(ItemI it, float x, float y)
+	{
+		float dx = Math.max(Math.max(it.get(ItemI.LO_X) - x, 0), x - it.get(ItemI.HI_X));
+		float dy = Math.max(Math.max(it.get(ItemI.LO_Y) - y, 0), y - it.get(ItemI.HI_Y));
+		return (float) Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * Main method, for testing purposes.
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args)
+	{
+		XYRangeGrid grid = new XYRangeGrid();
+		Random random = new Random();
+		int n = 200000;
+		XYRange[] ranges = new XYRange[n];
+		for (int i = 0; i < n; i++)
+		{
+			float x = random.nextFloat() * 1000;
+			float y = random.nextFloat() * 1000;
+			ranges[i] = new XYRange(null, x, x + random.nextFloat(), y, y + random.nextFloat());
+		}
+		long t = System.nanoTime();
+		grid.build(ranges, n);
+		System.out.println("Build: " + (System.nanoTime() - t) / 1000 + "us");
+
+		ArrayList hits = new ArrayList();
+		t = System.nanoTime();
+		for (int i = 0; i < 1000; i++)
+		{
+			hits.clear();
+			float x = random.nextFloat() * 1000;
+			float y = random.nextFloat() * 1000;
+			grid.getInRange(hits, x - 5, x + 5, y - 5, y + 5);
+			grid.getNearest(x, y, 10);
+		}
+		System.out.println("Query: " + (System.nanoTime() - t) / 1000000 + "us avg");
+	}
+}
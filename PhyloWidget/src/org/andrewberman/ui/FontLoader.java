@@ -39,10 +39,13 @@ public class FontLoader
 	public FontLoader(PApplet p)
 	{
 		this.p = p;
-		pfont = p.loadFont("BitstreamVeraSans-Roman-36.vlw");
 		try
 		{
-			InputStream in = p.createInput("vera.ttf");
+			if (p != null)
+				pfont = p.loadFont("BitstreamVeraSans-Roman-36.vlw");
+			else
+				pfont = new PFont(createInput("BitstreamVeraSans-Roman-36.vlw"));
+			InputStream in = (p != null) ? p.createInput("vera.ttf") : createInput("vera.ttf");
 			font = Font.createFont(Font.TRUETYPE_FONT, in);
 			in.close();
 			pfont.setFont(font);
@@ -55,6 +58,20 @@ public class FontLoader
 		}
 	}
 	
+	/*
+	 * Without an applet (when rendering offscreen), the fonts come straight
+	 * off the classpath, where the build puts the contents of the data folder.
+	 */
+	private static InputStream createInput(String name) throws IOException
+	{
+		InputStream in = FontLoader.class.getResourceAsStream("/" + name);
+		if (in == null)
+			in = FontLoader.class.getResourceAsStream("/data/" + name);
+		if (in == null)
+			throw new IOException("Couldn't find " + name + " on the classpath");
+		return in;
+	}
+
 	public void setFont(String fontName)
 	{
 		// Create a HashMap of TextAttributes which we'll use to create the font.
@@ -0,0 +1,156 @@
+/**************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PhyloWidget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.andrewberman.ui;
+
+import java.awt.Font;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import processing.core.PFont;
+
+/**
+ * Caches the widths of strings drawn with a given <code>PFont</code>, so that
+ * the same labels aren't measured character by character over and over.
+ * <p>
+ * Two levels of caching are used: a table of glyph advances for the font,
+ * filled in lazily one 256-character page at a time, and a map from each
+ * measured string to its width. All widths are stored for a font size of 1,
+ * so callers just multiply by the size they need.
+ * <p>
+ * Both caches are thrown away whenever a different font is passed in. Strings
+ * that stop being asked for (e.g. because a label was edited) are purged by
+ * calling <code>beginPass()</code> and <code>endPass()</code> around each
+ * full round of measurements.
+ *
+ * @author Greg
+ */
+public class TextWidthCache
+{
+	private PFont pfont;
+	private Font font;
+
+	private float[][] glyphPages = new float[256][];
+
+	private HashMap<String, Entry> widths = new HashMap<String, Entry>();
+	private int pass;
+	private int usedThisPass;
+
+	/**
+	 * Returns the width of the given string, at a font size of 1.
+	 */
+	public synchronized float getWidth(PFont pf, String text)
+	{
+		if (pf != pfont || pf.getFont() != font)
+			setFont(pf);
+		if (text == null)
+			return 0;
+		Entry e = widths.get(text);
+		if (e == null)
+		{
+			e = new Entry();
+			e.width = measure(text);
+			widths.put(text, e);
+		}
+		if (e.pass != pass)
+		{
+			e.pass = pass;
+			usedThisPass++;
+		}
+		return e.width;
+	}
+
+	/**
+	 * Returns the advance of a single character, at a font size of 1.
+	 */
+	public synchronized float getWidth(PFont pf, char c)
+	{
+		if (pf != pfont || pf.getFont() != font)
+			setFont(pf);
+		return glyphWidth(c);
+	}
+
+	public synchronized void beginPass()
+	{
+		pass++;
+		usedThisPass = 0;
+	}
+
+	/**
+	 * Drops any strings that weren't measured since the last call to
+	 * beginPass(), if they've started to outnumber the ones that were.
+	 */
+	public synchronized void endPass()
+	{
+		if (widths.size() <= usedThisPass * 2 + 64)
+			return;
+		Iterator<Entry> it = widths.values().iterator();
+		while (it.hasNext())
+		{
+			if (it.next().pass != pass)
+				it.remove();
+		}
+	}
+
+	public synchronized void clear()
+	{
+		pfont = null;
+		font = null;
+		glyphPages = new float[256][];
+		widths.clear();
+	}
+
+	private void setFont(PFont pf)
+	{
+		clear();
+		pfont = pf;
+		font = pf.getFont();
+	}
+
+	private float measure(String text)
+	{
+		float width = 0;
+		for (int i = 0; i < text.length(); i++)
+		{
+			width += glyphWidth(text.charAt(i));
+		}
+		return width;
+	}
+
+	private float glyphWidth(char c)
+	{
+		float[] page = glyphPages[c >> 8];
+		if (page == null)
+		{
+			page = new float[256];
+			int base = c & 0xff00;
+			for (int i = 0; i < 256; i++)
+			{
+				page[i] = pfont.width((char) (base + i));
+			}
+			glyphPages[c >> 8] = page;
+		}
+		return page[c & 0xff];
+	}
+
+	static class Entry
+	{
+		float width;
+		int pass;
+	}
+}
@@ -166,25 +166,28 @@ public class UIPlatform
 		{
 			return;
 		}
+		unregisterContext(getAppContext(app));
+	}
 
-		if (mainContext != null && mainContext.getApplet() == app)
+	/**
+	 * Unregisters and destroys a context. Contexts without an applet of their
+	 * own (for offscreen rendering) can only be unregistered this way.
+	 */
+	public synchronized void unregisterContext(UIContext c)
+	{
+		if (c == null)
+		{
+			return;
+		}
+
+		if (mainContext == c)
 		{
-			mainContext.destroy();
 			mainContext = null;
 		}
 
 		if (allContexts != null)
 		{
-			for (int i = 0; i < allContexts.size(); i++)
-			{
-				UIContext context = (UIContext) allContexts.get(i);
-				if (context.getApplet() == app)
-				{
-					context.destroy();
-					allContexts.remove(i);
-					break;
-				}
-			}
+			allContexts.remove(c);
 
 			if (mainContext == null)
 			{
@@ -196,6 +199,7 @@ public class UIPlatform
 				allContexts = null;
 			}
 		}
+		c.destroy();
 
 		if (getNumRegisteredApps() == 0)
 		{
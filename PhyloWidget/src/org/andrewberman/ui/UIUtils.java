@@ -312,33 +312,15 @@ public final class UIUtils
 	 */
 	public static float getTextWidth(PGraphics g, PFont font, float size, String text, boolean useNativeFonts)
 	{
-		if (isJava2D(g) && useNativeFonts)
-		{
-			FontMetrics fm = null;
-			while (fm == null)
-			{
-				try
-				{
-					fm = getMetrics(g, font.getFont(), size);
-				} catch (Exception e)
-				{
-					try
-					{
-						Thread.sleep(200);
-					} catch (InterruptedException e1)
-					{
-						e1.printStackTrace();
-					}
-				}
-			}
-
-			// return fm.stringWidth(text);
-		}
-		char[] chars = text.toCharArray();
+		/*
+		 * Note: we used to wait here for the native FontMetrics to become
+		 * available, but never actually used them. The widths always come from
+		 * the PFont's own glyph table.
+		 */
 		float width = 0;
-		for (int j = 0; j < chars.length; j++)
+		for (int j = 0; j < text.length(); j++)
 		{
-			width += font.width(chars[j]) * size;
+			width += font.width(text.charAt(j)) * size;
 		}
 		return width;
 	}
@@ -550,10 +532,14 @@ public final class UIUtils
 		float x4 = tPoint.x;
 		float y4 = tPoint.y;
 
-		float loX = PApplet.min(new float[] { x1, x2, x3, x4 });
-		float loY = PApplet.min(new float[] { y1, y2, y3, y4 });
-		float hiX = PApplet.max(new float[] { x1, x2, x3, x4 });
-		float hiY = PApplet.max(new float[] { y1, y2, y3, y4 });
+		/*
+		 * Not PApplet.min() and max(): offscreen rendering uses this too, and
+		 * PApplet can't be loaded without a display.
+		 */
+		float loX = Math.min(Math.min(x1, x2), Math.min(x3, x4));
+		float loY = Math.min(Math.min(y1, y2), Math.min(y3, y4));
+		float hiX = Math.max(Math.max(x1, x2), Math.max(x3, x4));
+		float hiY = Math.max(Math.max(y1, y2), Math.max(y3, y4));
 
 		rect.setFrameFromDiagonal(loX, loY, hiX, hiY);
 	}
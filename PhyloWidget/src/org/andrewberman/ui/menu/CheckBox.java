@@ -29,6 +29,7 @@ import java.text.DecimalFormat;
 
 import org.andrewberman.ui.Point;
 import org.andrewberman.ui.UIUtils;
+import org.andrewberman.ui.unsorted.MethodAndFieldSetter;
 
 import processing.core.PApplet;
 import processing.core.PFont;
@@ -128,6 +129,10 @@ public class CheckBox extends MenuItem
 			{
 				e.printStackTrace();
 			}
+			if (field != null)
+				MethodAndFieldSetter.fieldChanged(fieldObj, field.getName());
+			if (method != null)
+				MethodAndFieldSetter.fieldChanged(methodObj, method.getName());
 		}
 	}
 
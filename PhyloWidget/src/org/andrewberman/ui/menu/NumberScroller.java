@@ -28,6 +28,7 @@ import java.text.DecimalFormat;
 
 import org.andrewberman.ui.Point;
 import org.andrewberman.ui.UIUtils;
+import org.andrewberman.ui.unsorted.MethodAndFieldSetter;
 
 import processing.core.PApplet;
 import processing.core.PFont;
@@ -308,6 +309,7 @@ public class NumberScroller extends MenuItem
 					e2.printStackTrace();
 				}
 			}
+			MethodAndFieldSetter.fieldChanged(fieldObj, prop);
 		} else
 		{
 			setValue(defaultValue);
@@ -354,6 +356,7 @@ public class NumberScroller extends MenuItem
 
 				}
 			}
+			MethodAndFieldSetter.fieldChanged(fieldObj, field.getName());
 		}
 		updateString();
 	}
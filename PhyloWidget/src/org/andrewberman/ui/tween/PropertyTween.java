@@ -20,6 +20,8 @@ package org.andrewberman.ui.tween;
 
 import java.lang.reflect.Field;
 
+import org.andrewberman.ui.unsorted.MethodAndFieldSetter;
+
 public class PropertyTween extends Tween
 {
 	Object o;
@@ -61,6 +63,7 @@ public class PropertyTween extends Tween
 				field.setInt(o, (int)value);
 			else if (fieldClass == double.class)
 				field.setDouble(o,value);
+			MethodAndFieldSetter.fieldChanged(o, prop);
 		} catch (IllegalArgumentException e)
 		{
 			e.printStackTrace();
@@ -5,6 +5,8 @@ import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.andrewberman.ui.ifaces.FieldListener;
+
 public class MethodAndFieldSetter
 {
 
@@ -59,9 +61,20 @@ public class MethodAndFieldSetter
 					}
 				}
 			}
+			fieldChanged(o, f);
 		}
 	}
 
+	/**
+	 * Lets the object know that its field (or the setting its setter sets)
+	 * has been changed by reflection, if it wants to know.
+	 */
+	public static void fieldChanged(Object o, String name)
+	{
+		if (o instanceof FieldListener)
+			((FieldListener) o).fieldChanged(name);
+	}
+
 	private static void callMethod(Object o, String method, Object param)
 			throws Exception
 	{
@@ -134,6 +147,7 @@ public class MethodAndFieldSetter
 			f.setInt(o, Integer.parseInt(param));
 		else if (c == Double.TYPE)
 			f.setDouble(o, Double.parseDouble(param));
+		fieldChanged(o, field);
 	}
 
 	static String upperFirst(String s)
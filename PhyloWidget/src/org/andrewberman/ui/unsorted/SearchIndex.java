@@ -1,132 +1,489 @@
 package org.andrewberman.ui.unsorted;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
-
-import com.sun.corba.se.spi.orb.StringPair;
+import java.util.IdentityHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * A substring index over the (lower-cased) <code>toString()</code> of each
+ * item, for searching through node labels.
+ * <p>
+ * The labels are joined into a single char array, separated by zeroes, and a
+ * suffix array sorts every position in it by the text that follows. All the
+ * places a query occurs are then one contiguous range of the suffix array,
+ * found with two binary searches. Items are referred to by int ids
+ * throughout, so the whole index costs a few bytes per character of label.
+ * <p>
+ * The suffix array is built in one go, the first time it's needed after a
+ * batch of changes. Items added since then are kept in a short list that's
+ * searched directly, and removed items are just marked as dead, until there
+ * are enough of either to be worth rebuilding for.
+ * <p>
+ * Queries are plain substrings, except that a leading <code>^</code> only
+ * matches at the start of a label, and a query between slashes (e.g.
+ * <code>/^homo .*s$/</code>) is a case-insensitive regular expression.
+ */
 public class SearchIndex<T>
 {
-	HashMap<String, ArrayList<T>> map;
-	Collection<T> refList;
+	/*
+	 * The label of each item, by id. Ids of removed items are reused after a
+	 * rebuild.
+	 */
+	ArrayList<T> items = new ArrayList<T>();
+	ArrayList<String> labels = new ArrayList<String>();
+	IdentityHashMap<T, Integer> ids = new IdentityHashMap<T, Integer>();
+	ArrayList<Integer> freeIds = new ArrayList<Integer>();
+
+	/*
+	 * The built index: all the labels in the text, each followed by a zero;
+	 * where each id's label starts (-1 if it's not in the text); and the
+	 * suffix array over every non-zero position.
+	 */
+	char[] text = new char[0];
+	int[] starts = new int[0];
+	int[] idAt = new int[0];
+	int[] sa = new int[0];
 
-	int k = 3; // Word size.
+	/*
+	 * Changes since the index was built. Items removed while pending are
+	 * just dropped from isPending, and their ids aren't reused until the
+	 * next rebuild.
+	 */
+	BitSet dead = new BitSet();
+	int numDead;
+	ArrayList<Integer> pending = new ArrayList<Integer>();
+	BitSet isPending = new BitSet();
+
+	/*
+	 * Used to weed out duplicates while gathering results.
+	 */
+	BitSet seen = new BitSet();
 
 	public SearchIndex()
 	{
-		map = new HashMap<String, ArrayList<T>>();
 	}
 
-	public void add(T item)
+	public synchronized void add(T item)
+	{
+		Integer old = ids.get(item);
+		if (old != null)
+		{
+			/*
+			 * A pending item is searched by its label directly, so a new label
+			 * can just replace the old one.
+			 */
+			if (isPending.get(old))
+			{
+				labels.set(old, label(item));
+				return;
+			}
+			remove(item);
+		}
+		int id;
+		if (!freeIds.isEmpty())
+		{
+			id = freeIds.remove(freeIds.size() - 1);
+			items.set(id, item);
+			labels.set(id, label(item));
+		} else
+		{
+			id = items.size();
+			items.add(item);
+			labels.add(label(item));
+		}
+		ids.put(item, id);
+		pending.add(id);
+		isPending.set(id);
+	}
+
+	public synchronized void remove(T item)
 	{
-		insertRemove(item, true);
+		Integer id = ids.remove(item);
+		if (id == null)
+			return;
+		items.set(id, null);
+		labels.set(id, null);
+		if (isPending.get(id))
+			isPending.clear(id);
+		else
+			dead.set(id);
+		numDead++;
 	}
 
-	private void insertRemove(T item, boolean insertMe)
+	/**
+	 * Rebuilds the suffix array from scratch, folding in all the changes made
+	 * since the last build.
+	 */
+	public synchronized void rebuild()
 	{
-		String s = item.toString().toLowerCase();
-		if (s.length() < k)
+		int n = items.size();
+		int len = 0;
+		for (int i = 0; i < n; i++)
 		{
-			// Special case: string length is less than our word size.
+			String s = labels.get(i);
+			if (s != null)
+				len += s.length() + 1;
 		}
-		for (int i = 0; i < s.length(); i++)
+		text = new char[len];
+		starts = new int[n];
+		idAt = new int[len];
+		int pos = 0;
+		int numSuffixes = 0;
+		for (int i = 0; i < n; i++)
 		{
-			for (int j = 1; j <= k; j++)
+			String s = labels.get(i);
+			if (s == null)
 			{
-				if (i + j > s.length())
-					break;
-				String sub = s.substring(i, i + j);
-				ArrayList<T> list = map.get(sub);
-				if (list == null)
-				{
-					if (insertMe)
-					{
-						list = new ArrayList<T>();
-						map.put(sub, list);
-					} else
-					{
-						continue;
-					}
-				}
-				if (insertMe)
-				{
-					list.add(item);
-				} else
-				{
-					if (list.size() == 1)
-					{
-						map.remove(sub);
-					} else
-						list.remove(item);
-				}
+				starts[i] = -1;
+				continue;
 			}
+			starts[i] = pos;
+			s.getChars(0, s.length(), text, pos);
+			for (int j = 0; j <= s.length(); j++)
+				idAt[pos + j] = i;
+			pos += s.length();
+			numSuffixes += s.length();
+			text[pos++] = 0;
+		}
+		sa = new int[numSuffixes];
+		int k = 0;
+		for (int i = 0; i < len; i++)
+		{
+			if (text[i] != 0)
+				sa[k++] = i;
+		}
+		sort(sa, 0, numSuffixes, 0);
+
+		freeIds.clear();
+		for (int i = 0; i < n; i++)
+		{
+			if (labels.get(i) == null)
+				freeIds.add(i);
 		}
+		dead.clear();
+		numDead = 0;
+		pending.clear();
+		isPending.clear();
 	}
 
-	public void remove(T item)
+	public synchronized Collection<T> search(String query)
 	{
-		insertRemove(item, false);
+		ArrayList<T> matches = new ArrayList<T>();
+		Query q = Query.parse(query);
+		if (q == null)
+			return matches;
+		if (needsRebuild())
+			rebuild();
+
+		seen.clear();
+		if (q.regex != null)
+			searchRegex(q.regex, literalIn(q.text), matches);
+		else
+			searchSubstring(q.text, q.prefixOnly, matches);
+		return matches;
+	}
+
+	public synchronized int size()
+	{
+		return ids.size();
+	}
+
+	public String toString()
+	{
+		return "SearchIndex[" + size() + " items, " + text.length + " chars]";
+	}
+
+	private boolean needsRebuild()
+	{
+		int built = sa.length == 0 ? 0 : starts.length;
+		return (pending.size() + numDead) > 64 + built / 8;
+	}
+
+	static String label(Object item)
+	{
+		String s = item.toString();
+		if (s == null)
+			return "";
+		/*
+		 * The zero is our separator, so it can't appear in a label.
+		 */
+		return s.toLowerCase().replace('\0', ' ');
+	}
+
+	private void searchSubstring(String q, boolean prefixOnly, ArrayList<T> matches)
+	{
+		int lo = bound(q, false);
+		int hi = bound(q, true);
+		for (int i = lo; i < hi; i++)
+		{
+			int pos = sa[i];
+			int id = idAt[pos];
+			if (prefixOnly && starts[id] != pos)
+				continue;
+			hit(id, matches);
+		}
+		for (int i = 0; i < pending.size(); i++)
+		{
+			int id = pending.get(i);
+			if (!isPending.get(id))
+				continue;
+			String s = labels.get(id);
+			if (prefixOnly ? s.startsWith(q) : s.contains(q))
+				hit(id, matches);
+		}
 	}
 
-	public Collection<T> search(String query)
+	private void searchRegex(Pattern p, String literal, ArrayList<T> matches)
 	{
-		query = query.toLowerCase();
-		
-		HashSet<T> hits = new HashSet<T>();
-		
-		int ws = Math.min(query.length(), k);
-		for (int i = 0; i < query.length() - ws + 1; i++)
+		Matcher m = p.matcher("");
+		if (literal.length() >= 2)
+		{
+			/*
+			 * Only the labels containing the pattern's longest literal can
+			 * match it.
+			 */
+			int lo = bound(literal, false);
+			int hi = bound(literal, true);
+			for (int i = lo; i < hi; i++)
+			{
+				int id = idAt[sa[i]];
+				if (seen.get(id))
+					continue;
+				if (!dead.get(id) && m.reset(labels.get(id)).find())
+					hit(id, matches);
+				else
+					seen.set(id);
+			}
+		} else
 		{
-			String sub = query.substring(i, i + ws);
-			ArrayList<T> list = map.get(sub);
-			if (list != null)
+			for (int id = 0; id < starts.length; id++)
 			{
-				hits.addAll(list);
+				if (starts[id] != -1 && !dead.get(id) && m.reset(labels.get(id)).find())
+					hit(id, matches);
 			}
 		}
-		
-		ArrayList<T> matches = new ArrayList<T>();
-		for (T hit : hits)
+		for (int i = 0; i < pending.size(); i++)
 		{
-			String s = hit.toString().toLowerCase();
-			if (s.contains(query))
-				matches.add(hit);
+			int id = pending.get(i);
+			if (isPending.get(id) && m.reset(labels.get(id)).find())
+				hit(id, matches);
 		}
-		return matches;
 	}
 
-	public String toString()
+	private void hit(int id, ArrayList<T> matches)
+	{
+		if (dead.get(id) || seen.get(id))
+			return;
+		seen.set(id);
+		matches.add(items.get(id));
+	}
+
+	/*
+	 * The first suffix array index whose suffix starts with (if upper is
+	 * true: sorts after everything starting with) the query.
+	 */
+	private int bound(String q, boolean upper)
+	{
+		int lo = 0;
+		int hi = sa.length;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			int c = comparePrefix(sa[mid], q);
+			if (c < 0 || (upper && c == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/*
+	 * Compares the suffix at pos with the query, looking only as far as the
+	 * query's length: zero means the suffix starts with the query.
+	 */
+	private int comparePrefix(int pos, String q)
+	{
+		for (int i = 0; i < q.length(); i++)
+		{
+			char c = text[pos + i];
+			char d = q.charAt(i);
+			if (c != d)
+				return c - d;
+			if (c == 0)
+				break;
+		}
+		return 0;
+	}
+
+	/*
+	 * The longest run of plain characters in a regex that every match has to
+	 * contain, or "" if there isn't an obvious one.
+	 */
+	static String literalIn(String regex)
+	{
+		if (regex.indexOf('|') != -1 || regex.indexOf('(') != -1)
+			return "";
+		String best = "";
+		StringBuilder cur = new StringBuilder();
+		int depth = 0;
+		for (int i = 0; i < regex.length(); i++)
+		{
+			char c = regex.charAt(i);
+			boolean plain = depth == 0 && (Character.isLetterOrDigit(c) || c == ' ');
+			if (c == '[')
+				depth++;
+			else if (c == ']' && depth > 0)
+				depth--;
+			else if (c == '\\')
+			{
+				i++;
+				plain = false;
+			}
+			char next = (i + 1 < regex.length()) ? regex.charAt(i + 1) : 0;
+			if (plain && (next == '?' || next == '*' || next == '{'))
+				plain = false;
+			if (plain)
+				cur.append(Character.toLowerCase(c));
+			if (!plain || i == regex.length() - 1)
+			{
+				if (cur.length() > best.length())
+					best = cur.toString();
+				cur.setLength(0);
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * Sorts suffixes with a three-way radix quicksort (Bentley and
+	 * Sedgewick), comparing from the d'th character on. Suffixes end at the
+	 * zero after their label, so no comparison runs past one label.
+	 */
+	private void sort(int[] a, int lo, int hi, int d)
+	{
+		while (hi - lo > 1)
+		{
+			if (hi - lo < 16)
+			{
+				insertionSort(a, lo, hi, d);
+				return;
+			}
+			int v = text[a[lo + (hi - lo) / 2] + d];
+			int lt = lo, gt = hi - 1, i = lo;
+			while (i <= gt)
+			{
+				int t = text[a[i] + d];
+				if (t < v)
+					swap(a, lt++, i++);
+				else if (t > v)
+					swap(a, i, gt--);
+				else
+					i++;
+			}
+			sort(a, lo, lt, d);
+			sort(a, gt + 1, hi, d);
+			if (v == 0)
+				return;
+			/*
+			 * Carry on with the middle part, one character further in.
+			 */
+			lo = lt;
+			hi = gt + 1;
+			d++;
+		}
+	}
+
+	private void insertionSort(int[] a, int lo, int hi, int d)
 	{
-		return map.toString();
+		for (int i = lo + 1; i < hi; i++)
+		{
+			for (int j = i; j > lo && less(a[j], a[j - 1], d); j--)
+				swap(a, j, j - 1);
+		}
 	}
 
-	public static void main(String[] args)
+	private boolean less(int p, int q, int d)
 	{
-		SearchIndex<StrangePair> si = new SearchIndex<StrangePair>();
+		while (true)
+		{
+			char c = text[p + d];
+			char e = text[q + d];
+			if (c != e)
+				return c < e;
+			if (c == 0)
+				return false;
+			d++;
+		}
+	}
 
-		si.add(new StrangePair("Hello", "World!"));
-		si.add(new StrangePair("Hell no!", "Whirled!"));
-		si.add(new StrangePair("Lonely Hello, there!", "Get a life!"));
-		StrangePair p = new StrangePair("Greg Rocks!", "You got it.");
-		si.add(p);
-		System.out.println(si.search("o"));
+	private static void swap(int[] a, int i, int j)
+	{
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
 	}
 
-	static class StrangePair extends StringPair
+	/**
+	 * A parsed search query, which can also be tested against a single item
+	 * without going through the index.
+	 */
+	public static class Query
 	{
+		String text;
+		boolean prefixOnly;
+		Pattern regex;
+
+		/**
+		 * Returns null for the empty query (which matches nothing), and for a
+		 * regular expression that doesn't compile.
+		 */
+		public static Query parse(String query)
+		{
+			if (query.length() == 0)
+				return null;
+			Query q = new Query();
+			if (query.length() > 2 && query.startsWith("/") && query.endsWith("/"))
+			{
+				q.text = query.substring(1, query.length() - 1);
+				try
+				{
+					q.regex = Pattern.compile(q.text, Pattern.CASE_INSENSITIVE);
+				} catch (Exception e)
+				{
+					return null;
+				}
+			} else if (query.length() > 1 && query.charAt(0) == '^')
+			{
+				q.text = query.substring(1).toLowerCase();
+				q.prefixOnly = true;
+			} else
+				q.text = query.toLowerCase();
+			return q;
+		}
 
-		public StrangePair(String first, String second)
+		public boolean matches(Object item)
 		{
-			super(first, second);
+			String s = label(item);
+			if (regex != null)
+				return regex.matcher(s).find();
+			return prefixOnly ? s.startsWith(text) : s.contains(text);
 		}
 
-		public String toString()
+		/**
+		 * True if everything this query matches is also matched by the other
+		 * one, as when another character is typed onto the end of a search.
+		 */
+		public boolean narrows(Query other)
 		{
-			return getFirst();
+			if (other == null || regex != null || other.regex != null)
+				return false;
+			if (other.prefixOnly)
+				return prefixOnly && text.startsWith(other.text);
+			return text.contains(other.text);
 		}
 	}
 }
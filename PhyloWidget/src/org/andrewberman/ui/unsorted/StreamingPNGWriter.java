@@ -0,0 +1,186 @@
+/**************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PhyloWidget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.andrewberman.ui.unsorted;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an RGB PNG image to a stream a few rows at a time, so that the whole
+ * image never has to be held in memory. Call <code>writeRows()</code> with
+ * the image's rows in order from top to bottom, then <code>finish()</code>.
+ *
+ * @author Greg
+ */
+public class StreamingPNGWriter
+{
+	static final byte[] SIGNATURE = new byte[] { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+	private OutputStream out;
+	private int width;
+	private int height;
+	private int rowsWritten;
+
+	private Deflater def;
+	private DeflaterOutputStream deflater;
+	private byte[] curRow;
+
+	public StreamingPNGWriter(OutputStream out, int width, int height) throws IOException
+	{
+		this.out = out;
+		this.width = width;
+		this.height = height;
+		curRow = new byte[1 + width * 3];
+
+		out.write(SIGNATURE);
+		byte[] ihdr = new byte[13];
+		putInt(ihdr, 0, width);
+		putInt(ihdr, 4, height);
+		ihdr[8] = 8; // Bit depth.
+		ihdr[9] = 2; // Colour type: truecolour (RGB).
+		ihdr[10] = 0; // Compression: deflate.
+		ihdr[11] = 0; // Filter method: adaptive.
+		ihdr[12] = 0; // No interlace.
+		writeChunk("IHDR", ihdr, 0, ihdr.length);
+
+		def = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		deflater = new DeflaterOutputStream(new ChunkStream(), def, 1 << 16);
+	}
+
+	/**
+	 * Appends the given rows to the image.
+	 *
+	 * @param argb
+	 *            pixels in the same layout as BufferedImage.getRGB(), i.e.
+	 *            pixel (x,y) is at argb[offset + y*scansize + x].
+	 * @param offset
+	 * @param scansize
+	 * @param numRows
+	 */
+	public void writeRows(int[] argb, int offset, int scansize, int numRows) throws IOException
+	{
+		for (int y = 0; y < numRows; y++)
+		{
+			if (rowsWritten == height)
+				throw new IOException("Too many rows written to PNG");
+			/*
+			 * Use the "Sub" filter on every row: it's cheap and does well on the
+			 * large flat areas we usually render.
+			 */
+			curRow[0] = 1;
+			int base = offset + y * scansize;
+			int pr = 0, pg = 0, pb = 0;
+			for (int x = 0; x < width; x++)
+			{
+				int c = argb[base + x];
+				int r = (c >> 16) & 0xff;
+				int g = (c >> 8) & 0xff;
+				int b = c & 0xff;
+				int i = 1 + x * 3;
+				curRow[i] = (byte) (r - pr);
+				curRow[i + 1] = (byte) (g - pg);
+				curRow[i + 2] = (byte) (b - pb);
+				pr = r;
+				pg = g;
+				pb = b;
+			}
+			deflater.write(curRow, 0, curRow.length);
+			rowsWritten++;
+		}
+	}
+
+	/**
+	 * Flushes the compressed data and writes the end of the image. Doesn't
+	 * close the underlying stream.
+	 */
+	public void finish() throws IOException
+	{
+		if (rowsWritten != height)
+			throw new IOException("Only " + rowsWritten + " of " + height + " PNG rows were written");
+		deflater.finish();
+		deflater.flush();
+		def.end();
+		writeChunk("IEND", new byte[0], 0, 0);
+		out.flush();
+	}
+
+	private void writeChunk(String type, byte[] data, int off, int len) throws IOException
+	{
+		byte[] header = new byte[8];
+		putInt(header, 0, len);
+		for (int i = 0; i < 4; i++)
+			header[4 + i] = (byte) type.charAt(i);
+		CRC32 crc = new CRC32();
+		crc.update(header, 4, 4);
+		crc.update(data, off, len);
+		out.write(header);
+		out.write(data, off, len);
+		byte[] footer = new byte[4];
+		putInt(footer, 0, (int) crc.getValue());
+		out.write(footer);
+	}
+
+	private static void putInt(byte[] b, int off, int v)
+	{
+		b[off] = (byte) (v >>> 24);
+		b[off + 1] = (byte) (v >>> 16);
+		b[off + 2] = (byte) (v >>> 8);
+		b[off + 3] = (byte) v;
+	}
+
+	/**
+	 * Collects the compressed stream into IDAT chunks.
+	 */
+	class ChunkStream extends OutputStream
+	{
+		byte[] buf = new byte[1 << 16];
+		int count;
+
+		public void write(int b) throws IOException
+		{
+			if (count == buf.length)
+				flush();
+			buf[count++] = (byte) b;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			while (len > 0)
+			{
+				if (count == buf.length)
+					flush();
+				int n = Math.min(len, buf.length - count);
+				System.arraycopy(b, off, buf, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		public void flush() throws IOException
+		{
+			if (count > 0)
+				writeChunk("IDAT", buf, 0, count);
+			count = 0;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget;
+
+import org.phylowidget.ui.PhyloConfig;
+
+/**
+ * A context for rendering trees offscreen. It has a config, but no applet,
+ * UI, TreeManager, menus or event handling: creating a PApplet needs a
+ * display, so getPW() returns null here.
+ * <p>
+ * The config isn't created in init(), because PhyloConfig (like most of the
+ * rendering code) looks up its context through PWPlatform, which only finds
+ * the right one from a thread created by this context's createThread().
+ *
+ * @author Greg
+ */
+public class HeadlessContext extends PWContext
+{
+	public HeadlessContext()
+	{
+		super(null);
+	}
+
+	@Override
+	public void init()
+	{
+		/*
+		 * Nothing to set up: there's no UI to create.
+		 */
+	}
+
+	public void setConfig(PhyloConfig config)
+	{
+		this.config = config;
+	}
+
+	@Override
+	public void destroy()
+	{
+		if (config != null)
+			config.destroy();
+		config = null;
+	}
+}
@@ -7,7 +7,7 @@ import org.phylowidget.ui.PhyloUI;
 public class PWContext extends UIContext
 {
 
-	private PhyloConfig config;
+	protected PhyloConfig config;
 	private TreeManager trees;
 	private PhyloUI ui;
 	
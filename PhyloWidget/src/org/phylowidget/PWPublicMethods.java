@@ -64,33 +64,41 @@ public abstract class PWPublicMethods extends ExtendedPApplet implements Javascr
 		return getTree_obj().getAllNodes(getCurNode()).size();
 	}
 
+	/*
+	 * The whole-tree getters read from the tree's snapshot, so they don't wait
+	 * on (or hold up) edits.
+	 */
 	public int getLeafCount()
 	{
-		return getTree_obj().getNumEnclosedLeaves(getTree_obj().getRoot());
+		return getTree_obj().getSnapshot().getLeafCount();
 	}
 	public String[] getLeafNames()
 	{
-		List<PhyloNode> leaves = getTree_obj().getAllLeaves();
-		String[] leafNames = new String[leaves.size()];
-		for (int i=0; i < leaves.size(); i++)
-		{
-			leafNames[i] = getTree_obj().getLabel(leaves.get(i));
-		}
-		return leafNames;
+		return getTree_obj().getSnapshot().getLeafNames();
 	}
 
 	public double getMaxTreeLength()
 	{
-		return getTree_obj().getMaxTreeLength();
+		return getTree_obj().getStatistics().getMaxTreeLength();
 	}
 	public int getNodeCount()
 	{
-		return getTree_obj().getNodeCount();
+		return getTree_obj().getSnapshot().getNodeCount();
 	}
 
 	public double getTotalTreeLength()
 	{
-		return getTree_obj().getTotalTreeLength();
+		return getTree_obj().getStatistics().getTreeLength();
+	}
+
+	/**
+	 * The tree's summary statistics (size, length, Colless, Sackin, cherries,
+	 * gamma, patristic distances) as a JSON object. They're only worked out
+	 * again after the tree changes, so this is cheap to poll.
+	 */
+	public String getTreeStatisticsJSON()
+	{
+		return Json.hashToJson(getTree_obj().getStatistics().toMap());
 	}
 
 	public String getTree()
@@ -138,6 +146,40 @@ public abstract class PWPublicMethods extends ExtendedPApplet implements Javascr
 	
 	public abstract void setAnnotations(String nodeLabel, String annotationJson); // This is implemented in PhyloWidget.java
 	
+	/**
+	 * Indexes the nodes by an annotation key (e.g. an external ID), for fast
+	 * lookups; a sorted index also allows numeric range lookups.
+	 */
+	public void addAnnotationIndex(String key, boolean sorted)
+	{
+		getTree_obj().addAnnotationIndex(key, sorted);
+	}
+
+	/**
+	 * Sets an annotation on every node whose idKey annotation is idValue.
+	 */
+	public void setAnnotationWhere(String idKey, String idValue, String key, String value)
+	{
+		PhyloTree tree = getTree_obj();
+		synchronized (tree)
+		{
+			List<PhyloNode> nodes = tree.searchAnnotation(idKey, idValue);
+			for (PhyloNode n : nodes)
+				n.setAnnotation(key, value);
+			tree.modPlus();
+		}
+	}
+
+	/**
+	 * Joins a tab-separated or JSON table onto the tree, matching rows to
+	 * nodes by the joinKey column (a label, or an annotation). Returns the
+	 * number of nodes annotated.
+	 */
+	public int importAnnotations(String table, String joinKey)
+	{
+		return getTree_obj().importAnnotations(table, joinKey);
+	}
+
 	public abstract void transformTree(String url); // Defined in PhyloWidget.java. Requires the "full" version of PhyloWidget.
 	
 }
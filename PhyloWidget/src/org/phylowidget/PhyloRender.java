@@ -1,21 +1,212 @@
 package org.phylowidget;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.phylowidget.render.HeadlessRenderer;
+
+/**
+ * Renders trees to PNG, PDF or SVG files from the command line, without opening a
+ * PhyloWidget window:
+ *
+ * <pre>
+ * PhyloRender [-threads n] [-format png|pdf|svg] [-width w] [-height h] [-out dir]
+ *             [setting=value ...] input ...
+ * </pre>
+ *
+ * Each input is a tree file, a directory of tree files, or "-" to read one
+ * Newick string per line from standard input. Settings are the same as
+ * PhyloWidget's URL parameters, e.g. <code>layout=circular</code>.
+ * <p>
+ * Trees are rendered by a pool of worker threads, each with its own
+ * HeadlessRenderer (and so its own config and renderer). No display is
+ * needed: on a server, run this with -Djava.awt.headless=true.
+ */
 public class PhyloRender
 {
-	
+	static final String USAGE = "Usage: PhyloRender [-threads n] [-format png|pdf|svg] [-width w] [-height h] [-out dir]"
+			+ " [setting=value ...] input ...";
+
+	int threads = Runtime.getRuntime().availableProcessors();
+	String format = "png";
+	int width = 1024;
+	int height = 1024;
+	File outDir = new File(".");
+	HashMap<String, String> settings = new HashMap<String, String>();
+
+	BlockingQueue<Job> jobs;
+	AtomicInteger numRendered = new AtomicInteger();
+	AtomicInteger numFailed = new AtomicInteger();
+
+	static final Job DONE = new Job(null, null, null);
+
 	public static void main(String[] args) throws Exception
 	{
-		PhyloWidget.main(null);
-//		PhyloWidget p = PhyloWidget.p;
-		PhyloWidget p = null;
-		p.changeSetting("tree", "(a,(b,c))");
-//		p.changeSetting("viewportX", "-200");
-//		p.changeSetting("layout","unrooted");
-		Thread.sleep(500);
-		p.callMethod("selectNode(c)");
-		p.callMethod("nodeReroot");
-		Thread.sleep(5000);
-		p.close();
+		PhyloRender pr = new PhyloRender();
+		ArrayList<String> inputs = new ArrayList<String>();
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				String a = args[i];
+				if (a.equals("-threads"))
+					pr.threads = Integer.parseInt(args[++i]);
+				else if (a.equals("-format"))
+					pr.format = args[++i].toLowerCase();
+				else if (a.equals("-width"))
+					pr.width = Integer.parseInt(args[++i]);
+				else if (a.equals("-height"))
+					pr.height = Integer.parseInt(args[++i]);
+				else if (a.equals("-out"))
+					pr.outDir = new File(args[++i]);
+				else if (a.indexOf('=') > 0)
+					pr.settings.put(a.substring(0, a.indexOf('=')), a.substring(a.indexOf('=') + 1));
+				else
+					inputs.add(a);
+			}
+		} catch (Exception e)
+		{
+			inputs.clear();
+		}
+		if (inputs.isEmpty() || !(pr.format.equals("png") || pr.format.equals("pdf") || pr.format.equals("svg")))
+		{
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		pr.outDir.mkdirs();
+		pr.run(inputs);
+		System.exit(pr.numFailed.get() == 0 ? 0 : 1);
+	}
+
+	void run(ArrayList<String> inputs) throws Exception
+	{
+		long start = System.currentTimeMillis();
+
+		/*
+		 * Bound the queue, so that reading a large stream of trees from stdin
+		 * doesn't run ahead of the workers.
+		 */
+		jobs = new LinkedBlockingQueue<Job>(threads * 4);
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			HeadlessRenderer hr = new HeadlessRenderer(settings);
+			workers[i] = hr.createThread(new Worker(hr));
+			workers[i].start();
+		}
+
+		for (String input : inputs)
+		{
+			if (input.equals("-"))
+			{
+				BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+				String line;
+				int count = 0;
+				while ((line = in.readLine()) != null)
+				{
+					line = line.trim();
+					if (line.length() == 0)
+						continue;
+					count++;
+					jobs.put(new Job("tree" + count, null, line));
+				}
+			} else
+			{
+				File f = new File(input);
+				if (f.isDirectory())
+				{
+					File[] files = f.listFiles();
+					Arrays.sort(files);
+					for (File file : files)
+					{
+						if (file.isFile() && !file.isHidden())
+							jobs.put(new Job(baseName(file), file, null));
+					}
+				} else
+				{
+					jobs.put(new Job(baseName(f), f, null));
+				}
+			}
+		}
+		for (int i = 0; i < threads; i++)
+			jobs.put(DONE);
+		for (int i = 0; i < threads; i++)
+			workers[i].join();
+
+		float secs = (System.currentTimeMillis() - start) / 1000f;
+		System.out.println("Rendered " + numRendered.get() + " trees (" + numFailed.get() + " failed) in " + secs
+				+ "s.");
 	}
 
+	static String baseName(File f)
+	{
+		String s = f.getName();
+		int dot = s.lastIndexOf('.');
+		if (dot > 0)
+			s = s.substring(0, dot);
+		return s;
+	}
+
+	static class Job
+	{
+		String name;
+		File file;
+		String newick;
+
+		Job(String name, File file, String newick)
+		{
+			this.name = name;
+			this.file = file;
+			this.newick = newick;
+		}
+	}
+
+	class Worker implements Runnable
+	{
+		HeadlessRenderer hr;
+
+		Worker(HeadlessRenderer hr)
+		{
+			this.hr = hr;
+		}
+
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					Job job = jobs.take();
+					if (job == DONE)
+						break;
+					File out = new File(outDir, job.name + "." + format);
+					try
+					{
+						if (job.file != null)
+							hr.renderFile(job.file, out, format, width, height);
+						else
+							hr.renderString(job.newick, out, format, width, height);
+						numRendered.incrementAndGet();
+					} catch (Exception e)
+					{
+						numFailed.incrementAndGet();
+						System.err.println("Failed to render " + job.name + ": " + e);
+					}
+				}
+			} catch (InterruptedException e)
+			{
+				return;
+			} finally
+			{
+				hr.dispose();
+			}
+		}
+	}
 }
@@ -20,24 +20,36 @@ package org.phylowidget;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.andrewberman.ui.unsorted.SearchIndex;
 import org.jgrapht.graph.DefaultWeightedEdge;
 import org.jgrapht.traverse.DepthFirstIterator;
+import org.phylowidget.tree.AnnotationImport;
+import org.phylowidget.tree.AnnotationIndex;
+import org.phylowidget.tree.AnnotationIndexes;
 import org.phylowidget.tree.CachedRootedTree;
 import org.phylowidget.tree.PhyloNode;
 import org.phylowidget.ui.NodeUncollapser;
+import org.phylowidget.ui.PhyloConfig;
 
 public class PhyloTree extends CachedRootedTree<PhyloNode, DefaultWeightedEdge>
 {
 	private static final long serialVersionUID = 1L;
 	private SearchIndex<PhyloNode> index = new SearchIndex<PhyloNode>();
+	private TreeSearcher searcher = new TreeSearcher(this);
+	private AnnotationIndexes indexes = new AnnotationIndexes(this);
 
 	public PhyloTree()
 	{
 		super(DefaultWeightedEdge.class);
 		if (PWPlatform.getInstance().getThisAppContext() != null)
-			setEnforceUniqueLabels(PWPlatform.getInstance().getThisAppContext().config().enforceUniqueLabels);
+		{
+			PhyloConfig config = PWPlatform.getInstance().getThisAppContext().config();
+			setEnforceUniqueLabels(config.enforceUniqueLabels);
+			getJournal().setMaxBytes((long) (config.undoMemory * 1024 * 1024));
+		}
 	}
 
 	@Override
@@ -99,13 +111,19 @@ public class PhyloTree extends CachedRootedTree<PhyloNode, DefaultWeightedEdge>
 	@Override
 	public boolean isCollapsed(PhyloNode v)
 	{
-		String annot = v.getAnnotation("collapse");
-		if (annot != null)
-		{
-			if (PhyloNode.parseTruth(annot))
-				return true;
-		}
-		return false;
+		return v.isCollapsed();
+	}
+
+	/**
+	 * Called when PhyloConfig.ignoreAnnotations is turned on or off, which
+	 * changes which nodes are collapsed and what the tree's written out as.
+	 */
+	public synchronized void annotationsToggled()
+	{
+		for (PhyloNode n : vertexSet())
+			n.updateCollapsed();
+		changed();
+		modPlus();
 	}
 
 	public PhyloNode hoveredNode;
@@ -148,39 +166,49 @@ public class PhyloTree extends CachedRootedTree<PhyloNode, DefaultWeightedEdge>
 		index.remove((PhyloNode) vertex);
 		super.setLabel(vertex, label);
 		index.add((PhyloNode) vertex);
+		searcher.forget();
 	}
 
-	void removeFound()
+	@Override
+	protected void relabeled(List<PhyloNode> vertices)
 	{
-		ArrayList nodes = new ArrayList();
-		getAll(getRoot(), null, nodes);
-		for (int i = 0; i < nodes.size(); i++)
-		{
-			PhyloNode n = (PhyloNode) nodes.get(i);
-			n.found = false;
-		}
+		if (vertices.isEmpty())
+			return;
+		for (PhyloNode n : vertices)
+			index.add(n);
+		searcher.forget();
 	}
 
+	/**
+	 * Marks the given nodes and their ancestors as found, and unmarks the
+	 * nodes found by the last search.
+	 */
 	public void markNodesAsFound(List<PhyloNode> matches)
 	{
-		removeFound();
-		for (PhyloNode n : matches)
-		{
-			PhyloNode cur = n;
-			while (cur != null)
-			{
-				cur.found = true;
-				cur = (PhyloNode) getParentOf(cur);
-			}
-		}
+		searcher.mark(matches);
 	}
 
 	public void searchAndMarkFound(String s)
 	{
-		List<PhyloNode> matches = search(s);
-		markNodesAsFound(matches);
+		searcher.searchNow(s);
 	}
 
+	/**
+	 * Like searchAndMarkFound(), for a search that's being typed: a query that
+	 * extends the last one just narrows down its results, and large trees are
+	 * searched in the background (see TreeSearcher).
+	 */
+	public void searchAsYouType(String s)
+	{
+		searcher.searchAsYouType(s, index.size());
+	}
+
+	/*
+	 * A search term like "s=Homo sapiens" also looks for nodes annotated with
+	 * that value.
+	 */
+	static final Pattern fieldQuery = Pattern.compile("\\s*(\\w+)\\s*=\\s*(.*?)\\s*");
+
 	public List<PhyloNode> search(String s)
 	{
 		String[] searches = s.split(";");
@@ -189,6 +217,30 @@ public class PhyloTree extends CachedRootedTree<PhyloNode, DefaultWeightedEdge>
 		for (String s2 : searches)
 		{
 			matches.addAll(index.search(s2));
+			Matcher m = fieldQuery.matcher(s2);
+			if (m.matches())
+				matches.addAll(searchAnnotation(m.group(1), m.group(2)));
+		}
+		return matches;
+	}
+
+	/**
+	 * Finds the nodes whose annotation for the given key equals the value
+	 * (ignoring case), or that have the annotation at all if value is empty.
+	 */
+	public List<PhyloNode> searchAnnotation(String key, String value)
+	{
+		AnnotationIndex ai = indexes.get(key);
+		if (ai != null && value.length() > 0)
+			return ai.getIgnoreCase(value);
+		ArrayList<PhyloNode> nodes = new ArrayList<PhyloNode>();
+		getAll(getRoot(), null, nodes);
+		ArrayList<PhyloNode> matches = new ArrayList<PhyloNode>();
+		for (PhyloNode n : nodes)
+		{
+			String v = n.getAnnotation(key);
+			if (v != null && (value.length() == 0 || v.equalsIgnoreCase(value)))
+				matches.add(n);
 		}
 		return matches;
 	}
@@ -196,6 +248,9 @@ public class PhyloTree extends CachedRootedTree<PhyloNode, DefaultWeightedEdge>
 
 	public PhyloNode getVertexForAnnotation(String key, String searchValue)
 	{
+		AnnotationIndex ai = indexes.get(key);
+		if (ai != null)
+			return ai.getFirst(searchValue);
 		DepthFirstIterator<PhyloNode,DefaultWeightedEdge> it = new DepthFirstIterator<PhyloNode,DefaultWeightedEdge>(this, getRoot());
 		while (it.hasNext())
 		{
@@ -210,12 +265,50 @@ public class PhyloTree extends CachedRootedTree<PhyloNode, DefaultWeightedEdge>
 		return null;
 	}
 	
+	/**
+	 * Indexes the nodes by their value for the given annotation key, so that
+	 * getVertexForAnnotation() and searchAnnotation() don't have to walk the
+	 * tree. A sorted index also supports numeric range lookups. The index is
+	 * kept up to date as annotations change.
+	 */
+	public synchronized AnnotationIndex addAnnotationIndex(String key, boolean sorted)
+	{
+		ArrayList<PhyloNode> nodes = new ArrayList<PhyloNode>(vertexSet());
+		return indexes.add(key, sorted, nodes);
+	}
+
+	public void removeAnnotationIndex(String key)
+	{
+		indexes.remove(key);
+	}
+
+	/**
+	 * May return null, if the key isn't indexed.
+	 */
+	public AnnotationIndex getAnnotationIndex(String key)
+	{
+		return indexes.get(key);
+	}
+
+	/**
+	 * Joins a table of annotations (tab-separated or JSON) onto the nodes;
+	 * see AnnotationImport. Returns the number of nodes annotated.
+	 */
+	public int importAnnotations(String table, String joinKey)
+	{
+		return AnnotationImport.importTable(this, table, joinKey);
+	}
+
 	@Override
 	public boolean removeVertex(PhyloNode o)
 	{
 		boolean b = super.removeVertex(o);
 		if (b)
+		{
 			index.remove((PhyloNode) o);
+			indexes.nodeRemoved(o);
+			searcher.forget();
+		}
 		return b;
 	}
 
@@ -224,7 +317,11 @@ public class PhyloTree extends CachedRootedTree<PhyloNode, DefaultWeightedEdge>
 	{
 		boolean b = super.addVertex(o);
 		if (b)
+		{
 			index.add((PhyloNode) o);
+			indexes.nodeAdded(o);
+			searcher.forget();
+		}
 		return b;
 	}
 
@@ -35,6 +35,7 @@ import org.andrewberman.ui.unsorted.JavaUtils;
 import org.andrewberman.ui.unsorted.MethodAndFieldSetter;
 import org.andrewberman.ui.unsorted.StringPair;
 import org.phylowidget.net.PhyloTransformServices;
+import org.phylowidget.render.BasicTreeRenderer;
 import org.phylowidget.render.DoubleBuffer;
 import org.phylowidget.tree.PhyloNode;
 import org.phylowidget.tree.RootedTree;
@@ -180,6 +181,7 @@ public class PhyloWidget extends PWPublicMethods
 			{
 				drawNumLeaves();
 				drawFrameRate();
+				drawBatchStats();
 			}
 		}
 
@@ -274,6 +276,18 @@ public class PhyloWidget extends PWPublicMethods
 		text(nleaves, width - 100, height - 10);
 	}
 
+	protected void drawBatchStats()
+	{
+		BasicTreeRenderer r = pwc.trees().getRenderer();
+		if (r == null)
+			return;
+		textAlign(PApplet.LEFT);
+		textFont(pwc.getPFont());
+		textSize(10);
+		fill(255, 0, 0);
+		text(r.getBatchStats(), 5, height - 24);
+	}
+
 	protected void drawMessage()
 	{
 		textAlign(PApplet.LEFT);
@@ -393,8 +407,7 @@ public class PhyloWidget extends PWPublicMethods
 		PhyloTree tree = (PhyloTree) pwc.trees().getTree();
 		if (tree == null)
 			return;
-		List<PhyloNode> nodes = tree.search(nodeLabel);
-		PhyloNode n = nodes.get(0);
+		PhyloNode n = findNode(tree, nodeLabel);
 		if (n == null)
 			return;
 		System.out.println("JSON: " + annotationJson);
@@ -406,13 +419,24 @@ public class PhyloWidget extends PWPublicMethods
 		PhyloTree tree = (PhyloTree) pwc.trees().getTree();
 		if (tree == null)
 			return;
-		List<PhyloNode> nodes = tree.search(nodeLabel);
-		PhyloNode n = nodes.get(0);
+		PhyloNode n = findNode(tree, nodeLabel);
 		if (n == null)
 			return;
 		n.setAnnotation(key, value);
 	}
 
+	/*
+	 * The node with exactly this label, or else the first search result.
+	 */
+	private PhyloNode findNode(PhyloTree tree, String nodeLabel)
+	{
+		PhyloNode n = tree.getVertexForLabel(nodeLabel);
+		if (n != null)
+			return n;
+		List<PhyloNode> nodes = tree.search(nodeLabel);
+		return nodes.isEmpty() ? null : nodes.get(0);
+	}
+
 	private boolean doingSomethingLong = false;
 
 	@Override
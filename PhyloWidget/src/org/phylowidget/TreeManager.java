@@ -34,6 +34,7 @@ import org.phylowidget.render.LayoutCircular;
 import org.phylowidget.render.LayoutCladogram;
 import org.phylowidget.render.LayoutDiagonal;
 import org.phylowidget.render.LayoutUnrooted;
+import org.phylowidget.render.NodeRange;
 import org.phylowidget.render.images.ImageLoader;
 import org.phylowidget.tree.PhyloNode;
 import org.phylowidget.tree.RootedTree;
@@ -162,6 +163,11 @@ public class TreeManager extends AbstractUIObject implements GraphListener
 		r.nodesInRange(list, rect);
 	}
 
+	public NodeRange nearestNode(float x, float y, float maxDist)
+	{
+		return r.nearestNode(x, y, maxDist);
+	}
+
 	// public void nodesTouchingPoint(ArrayList list, Point2D.Float pt)
 	// {
 	// Rectangle2D.Float rect = new Rectangle2D.Float();
@@ -0,0 +1,346 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.andrewberman.ui.unsorted.SearchIndex;
+import org.phylowidget.tree.PhyloNode;
+
+/**
+ * Runs a tree's searches and keeps its nodes' <code>found</code> flags up to
+ * date, for searching as the user types.
+ * <p>
+ * Only the nodes marked by the last search are ever unmarked, and marking a
+ * match's ancestors stops at the first one that's already marked. When a
+ * query just extends the last one (another character typed onto the end),
+ * the last search's matches are filtered instead of searching the whole tree
+ * again.
+ * <p>
+ * On large trees, searches run on a background thread, and each new search
+ * cancels the one before it. The matches currently on screen are marked
+ * first, top to bottom, and the rest follow in batches, so the hits the user
+ * can see light up straight away.
+ *
+ * @author Greg
+ */
+public class TreeSearcher
+{
+	/*
+	 * Trees with more nodes than this are searched in the background.
+	 */
+	static final int BACKGROUND_NODES = 10000;
+	/*
+	 * How many matches are marked between checks for cancellation.
+	 */
+	static final int BATCH = 2000;
+
+	PhyloTree tree;
+
+	/*
+	 * The last search that ran to completion, for refining, and the number
+	 * of edits the tree had seen when it started.
+	 */
+	String lastQuery;
+	List<PhyloNode> lastMatches;
+	int lastEdits;
+
+	/*
+	 * Bumped by forget(). The tree calls that while it's locked, so it mustn't
+	 * wait for a search, which locks the tree in turn; instead a search only
+	 * refines the last one if this hasn't changed since that one started.
+	 */
+	AtomicInteger edits = new AtomicInteger();
+
+	/*
+	 * Every node whose found flag we've set.
+	 */
+	ArrayList<PhyloNode> marked = new ArrayList<PhyloNode>();
+
+	/*
+	 * Bumped for every new search; a search that sees it change gives up.
+	 */
+	AtomicInteger generation = new AtomicInteger();
+
+	/*
+	 * The search waiting for the background thread, and whether the thread's
+	 * running. Guarded by queue, not by the searcher, which a search holds
+	 * while it runs.
+	 */
+	Object queue = new Object();
+	Runnable pending;
+	boolean running;
+
+	public TreeSearcher(PhyloTree tree)
+	{
+		this.tree = tree;
+	}
+
+	/**
+	 * Searches and marks the matches before returning.
+	 */
+	public void searchNow(String query)
+	{
+		int gen = generation.incrementAndGet();
+		run(query, gen);
+	}
+
+	/**
+	 * Searches and marks the matches, in the background if the tree is large.
+	 */
+	public void searchAsYouType(final String query, int numNodes)
+	{
+		if (numNodes <= BACKGROUND_NODES)
+		{
+			searchNow(query);
+			return;
+		}
+		final int gen = generation.incrementAndGet();
+		background(new Runnable() {
+			public void run()
+			{
+				TreeSearcher.this.run(query, gen);
+			}
+		});
+	}
+
+	/**
+	 * Marks the given nodes (and their ancestors) as found, and unmarks
+	 * everything else.
+	 */
+	public void mark(List<PhyloNode> matches)
+	{
+		int gen = generation.incrementAndGet();
+		synchronized (this)
+		{
+			lastMatches = null;
+			mark(matches, gen, false);
+		}
+	}
+
+	/**
+	 * Called when labels or nodes change, since the last matches can't be
+	 * refined any more. Never blocks.
+	 */
+	public void forget()
+	{
+		edits.incrementAndGet();
+	}
+
+	/*
+	 * Runs the search on the background thread, starting it if need be. Only
+	 * the latest search waits: any before it would be cancelled anyway. The
+	 * thread goes away once there's nothing left to run.
+	 */
+	private void background(Runnable r)
+	{
+		synchronized (queue)
+		{
+			pending = r;
+			if (running)
+				return;
+			running = true;
+		}
+		Thread t = new Thread("PhyloWidget search") {
+			public void run()
+			{
+				while (true)
+				{
+					Runnable next;
+					synchronized (queue)
+					{
+						next = pending;
+						pending = null;
+						if (next == null)
+						{
+							running = false;
+							return;
+						}
+					}
+					try
+					{
+						next.run();
+					} catch (RuntimeException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private synchronized void run(String query, int gen)
+	{
+		if (gen != generation.get())
+			return;
+		int e = edits.get();
+		List<PhyloNode> matches = null;
+		boolean refining = false;
+		if (lastMatches != null && lastEdits == e && query.indexOf(';') == -1 && !PhyloTree.fieldQuery.matcher(query).matches())
+		{
+			SearchIndex.Query q = SearchIndex.Query.parse(query);
+			SearchIndex.Query last = SearchIndex.Query.parse(lastQuery);
+			if (q != null && q.narrows(last))
+			{
+				matches = new ArrayList<PhyloNode>();
+				for (int i = 0; i < lastMatches.size(); i++)
+				{
+					if ((i & 1023) == 0 && gen != generation.get())
+						return;
+					PhyloNode n = lastMatches.get(i);
+					if (q.matches(n))
+						matches.add(n);
+				}
+				refining = true;
+			}
+		}
+		if (matches == null)
+			matches = tree.search(query);
+		if (gen != generation.get())
+			return;
+
+		if (mark(matches, gen, refining))
+		{
+			lastQuery = query;
+			lastMatches = matches;
+			lastEdits = e;
+		} else
+			lastMatches = null;
+	}
+
+	/*
+	 * Marks the matches in screen order. When refining, the new marks are a
+	 * subset of the old ones, so the old ones are left up until we're done
+	 * (rather than flickering off and on again); otherwise they're cleared
+	 * first. Returns false if the search was cancelled part way.
+	 */
+	private boolean mark(List<PhyloNode> matches, int gen, boolean refining)
+	{
+		List<PhyloNode> ordered = screenOrder(matches);
+		if (!refining)
+			unmark(marked, null);
+
+		IdentityHashMap<PhyloNode, Boolean> done = new IdentityHashMap<PhyloNode, Boolean>();
+		ArrayList<PhyloNode> nowMarked = new ArrayList<PhyloNode>();
+		for (int i = 0; i < ordered.size(); i += BATCH)
+		{
+			if (gen != generation.get())
+			{
+				/*
+				 * When refining, everything we've marked was already marked.
+				 */
+				if (!refining)
+					marked = nowMarked;
+				return false;
+			}
+			synchronized (tree)
+			{
+				int end = Math.min(ordered.size(), i + BATCH);
+				for (int j = i; j < end; j++)
+				{
+					PhyloNode cur = ordered.get(j);
+					/*
+					 * If a node's been marked, so have all its ancestors.
+					 */
+					while (cur != null && done.put(cur, Boolean.TRUE) == null)
+					{
+						cur.found = true;
+						nowMarked.add(cur);
+						cur = (PhyloNode) tree.getParentOf(cur);
+					}
+				}
+			}
+			PhyloNode.marked();
+		}
+		if (refining)
+			unmark(marked, done);
+		marked = nowMarked;
+		return true;
+	}
+
+	/*
+	 * Clears the found flag of each node that isn't in keep.
+	 */
+	private void unmark(List<PhyloNode> nodes, IdentityHashMap<PhyloNode, Boolean> keep)
+	{
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			PhyloNode n = nodes.get(i);
+			if (keep == null || !keep.containsKey(n))
+				n.found = false;
+		}
+		nodes.clear();
+		PhyloNode.marked();
+	}
+
+	/*
+	 * The matches that were on screen last frame, from top to bottom, followed
+	 * by all the others.
+	 */
+	private static List<PhyloNode> screenOrder(List<PhyloNode> matches)
+	{
+		ArrayList<OnScreen> visible = new ArrayList<OnScreen>();
+		ArrayList<PhyloNode> rest = new ArrayList<PhyloNode>(matches.size());
+		for (PhyloNode n : matches)
+		{
+			if (n.isWithinScreen)
+				visible.add(new OnScreen(n));
+			else
+				rest.add(n);
+		}
+		if (visible.isEmpty())
+			return rest;
+		Collections.sort(visible);
+		ArrayList<PhyloNode> ordered = new ArrayList<PhyloNode>(matches.size());
+		for (OnScreen o : visible)
+			ordered.add(o.n);
+		ordered.addAll(rest);
+		return ordered;
+	}
+
+	/*
+	 * The renderer keeps moving the nodes, so their positions are copied
+	 * before sorting.
+	 */
+	static class OnScreen implements Comparable<OnScreen>
+	{
+		PhyloNode n;
+		float y;
+		float x;
+
+		OnScreen(PhyloNode n)
+		{
+			this.n = n;
+			y = n.getY();
+			x = n.getX();
+		}
+
+		public int compareTo(OnScreen o)
+		{
+			int c = Float.compare(y, o.y);
+			return (c != 0) ? c : Float.compare(x, o.x);
+		}
+	}
+}
@@ -31,10 +31,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
-import org.andrewberman.sortedlist.SortedXYRangeList;
+import org.andrewberman.sortedlist.XYRangeGrid;
 import org.andrewberman.ui.FontLoader;
 import org.andrewberman.ui.Point;
 import org.andrewberman.ui.TextField;
+import org.andrewberman.ui.TextWidthCache;
 import org.andrewberman.ui.UIUtils;
 import org.andrewberman.ui.unsorted.BulgeUtil;
 import org.jgrapht.event.GraphEdgeChangeEvent;
@@ -43,10 +44,13 @@ import org.jgrapht.event.GraphVertexChangeEvent;
 import org.phylowidget.PWContext;
 import org.phylowidget.PWPlatform;
 import org.phylowidget.PhyloTree;
+import org.phylowidget.TreeManager;
 import org.phylowidget.UsefulConstants;
 import org.phylowidget.tree.PhyloNode;
 import org.phylowidget.tree.RootedTree;
+import org.phylowidget.tree.TreeSnapshot;
 import org.phylowidget.ui.NodeUncollapser;
+import org.phylowidget.ui.PhyloConfig;
 
 import processing.core.PConstants;
 import processing.core.PFont;
@@ -64,6 +68,12 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 	float baseStroke;
 
 	protected FontLoader fonts;
+
+	/**
+	 * Label widths from previous layouts, so a relayout only has to measure
+	 * labels it hasn't seen before.
+	 */
+	protected TextWidthCache textWidths = new TextWidthCache();
 	
 	protected LayoutBase treeLayout = new LayoutUnrooted();
 
@@ -99,7 +109,7 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 	 */
 	protected float biggestAspectRatio = 0;
 
-	public static NodeRenderer decorator;
+	NodeRenderer decorator;
 
 	/**
 	 * Leaf nodes in the associated tree.
@@ -110,12 +120,14 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 	protected PhyloNode[] sigLeaves = new PhyloNode[1];
 
 	/**
-	 * A data structure to store the rectangular regions of all nodes. Instead
-	 * of drawing all nodes, we retrieve the nodes whose regions intersect with
-	 * the visible rectangle, and then draw. This can significantly improve
-	 * performance when viewing only a portion of a large tree.
+	 * A spatial index over the rectangular regions of the nodes visited in the
+	 * last frame, used for hit testing (hovering, selection). Off-screen nodes
+	 * can't be under the mouse, so only the visited ones are indexed, and the
+	 * grid is rebuilt at the end of each frame as the node positions move.
 	 */
-	protected SortedXYRangeList list = new SortedXYRangeList();
+	protected XYRangeGrid list = new XYRangeGrid();
+
+	private NodeRange[] visitedRanges = new NodeRange[1];
 
 	boolean mainRender;
 
@@ -126,6 +138,67 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 	 */
 	protected PhyloNode[] nodes = new PhyloNode[1];
 
+	/**
+	 * The tree's structure as of the last layout(), flattened into pre-order
+	 * arrays: a copy of the layout's FlatTree, made under the tree's lock and
+	 * never changed afterwards. recalc() and draw() ask it about parents,
+	 * children and leaves instead of asking the tree.
+	 */
+	protected FlatTree snapshot = new FlatTree();
+
+	/**
+	 * The labels and annotations that go with the snapshot, taken under the
+	 * same lock. The drawing code reads these (through getLabel() and
+	 * getAnnotation()) rather than the live nodes, which an edit may be
+	 * changing as we draw.
+	 */
+	protected TreeSnapshot content;
+
+	/*
+	 * Each snapshot node's index in content, and the other way round (-1 for
+	 * the nodes inside collapsed ones).
+	 */
+	private int[] contentIndex = new int[0];
+	private int[] flatIndex = new int[0];
+
+	/*
+	 * The tree's version as of the last layout(). Edits that don't touch the
+	 * structure (labels, annotations) don't need the tree laid out again,
+	 * but they still need a fresh copy of what gets drawn; see
+	 * refreshContent().
+	 */
+	private volatile long layoutVersion = -1;
+
+	/**
+	 * The leaf furthest from the root, as of the last layout().
+	 */
+	protected PhyloNode furthestLeaf;
+
+	/**
+	 * Nodes touched during the most recent draw(), and the leaves among them
+	 * that were within the screen.
+	 */
+	protected PhyloNode[] visited = new PhyloNode[1];
+	protected int numVisited;
+	protected PhyloNode[] visibleLeaves = new PhyloNode[1];
+	protected int numVisibleLeaves;
+
+	/**
+	 * Nodes carrying an "always show" annotation, collected during layout.
+	 */
+	protected PhyloNode[] alwaysShown = new PhyloNode[0];
+
+	/**
+	 * True if leaf labels are pushed out to the furthest leaf's x position, in
+	 * which case a subtree's labels may lie anywhere to the right of it.
+	 */
+	protected boolean alignedLabels;
+
+	/**
+	 * Screen-space padding per unit of text width, set once per frame.
+	 */
+	private float subtreePad;
+
 	//	protected HashMap<PhyloNode, NodeRange> nodesToRanges = new HashMap<PhyloNode, NodeRange>();
 
 	/**
@@ -181,6 +254,19 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 
 	private boolean fforwardMe;
 
+	/*
+	 * Set while drawing if anything on screen is still moving (a node on its
+	 * way to a new position, or an image fading in), so the next frame has to
+	 * be drawn even if nothing else changes.
+	 */
+	volatile boolean animating;
+
+	/*
+	 * What the last frame handed to the repaint thread depended on; see
+	 * frameKey().
+	 */
+	private long frameKey;
+
 	private float tsf;
 
 	PWContext context;
@@ -190,18 +276,18 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 		rect = new Rectangle2D.Float(0, 0, 0, 0);
 		this.context = context;
 		fonts = new FontLoader(context.getPW());
-		if (decorator == null)
-			decorator = new NodeRenderer();
+		decorator = new NodeRenderer(this);
+		branchLayer = new BranchLayer(context.getPW());
 
 		setOptions();
 	}
 
-	float calcRealX(PhyloNode n)
+	public float calcRealX(PhyloNode n)
 	{
 		return (float) (n.getLayoutX() * scaleX + dx);
 	}
 
-	float calcRealY(PhyloNode n)
+	public float calcRealY(PhyloNode n)
 	{
 		return (float) (n.getLayoutY() * scaleY + dy);
 	}
@@ -233,38 +319,69 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 		treeLayout.drawScaleY = (float) scaleY;
 
 		/*
-		 * FIRST LOOP: Updating nodes Update all nodes, regardless of
-		 * "threshold" status.
-		 * Also set each node's drawMe flag to FALSE.
+		 * FIRST LOOP: Updating nodes. Walk the tree top-down in pre-order, skipping
+		 * over any subtree whose bounding box lies entirely off the screen. Only the
+		 * nodes touched during the last frame need their drawMe flags reset.
 		 */
 		a = new Area();
 		foundItems.clear();
-		int nodesDrawn = 0;
-		PhyloNode[] nodesToDraw = new PhyloNode[nodes.length];
-		
-		Thread.yield();
-		
-		for (int i = 0; i < nodes.length; i++)
+		for (int i = 0; i < numVisited; i++)
 		{
-			Thread.yield();
-			PhyloNode n = nodes[i];
-			if (fforwardMe)
-				n.fforward();
-			updateNode(n); // GJ 2009-02-15 commented out. Node updates will happen in recalc() method now.
+			PhyloNode n = visited[i];
 			n.drawMe = false;
 			n.labelWasDrawn = false;
 			n.drawLineAndNode = false;
 			n.drawLabel = false;
-			//			n.occluded = false;
-			n.isWithinScreen = isNodeWithinScreen(n);
+			n.isWithinScreen = false;
+		}
+		numVisited = 0;
+		numVisibleLeaves = 0;
+		if (fforwardMe)
+		{
+			for (int i = 0; i < nodes.length; i++)
+				nodes[i].fforward();
+			fforwardMe = false;
+		}
+		subtreePad = getSubtreePad();
+		animating = false;
+		if (mainRender && TreeManager.imageLoader != null)
+			TreeManager.imageLoader.beginFrame();
+
+		long positions = 0;
+		int idx = 0;
+		while (idx < snapshot.size)
+		{
+			PhyloNode n = snapshot.node[idx];
+			if (!isSubtreeWithinScreen(n))
+			{
+				idx = snapshot.end[idx];
+				continue;
+			}
+			idx++;
+			updateNode(n);
+			if (n.isMoving())
+				animating = true;
+			positions = positions * 31 + Float.floatToIntBits(n.getX());
+			positions = positions * 31 + Float.floatToIntBits(n.getY());
 			n.bulgeFactor = 1;
+			n.isWithinScreen = isNodeWithinScreen(n);
+			visited[numVisited++] = n;
+			if (n.isWithinScreen && snapshot.leaf[idx - 1])
+				visibleLeaves[numVisibleLeaves++] = n;
+		}
+
+		/*
+		 * Restore the significance ordering among the nodes we actually visited.
+		 */
+		Arrays.sort(visited, 0, numVisited, drawOrderSorter);
+		Arrays.sort(visibleLeaves, 0, numVisibleLeaves, labelOrderSorter);
+		int nodesDrawn = 0;
+		PhyloNode[] nodesToDraw = new PhyloNode[numVisited];
+		for (int j = 0; j < numVisited; j++)
+		{
+			PhyloNode n = visited[j];
 			if (n.found && n.isWithinScreen)
 				foundItems.add(n);
-			// GJ 2008-09-03: Add ALWAYS_SHOW nodes to the foundItems list.
-			if (n.getAnnotation(UsefulConstants.LABEL_ALWAYSSHOW) != null)
-				foundItems.add(n);
-			else if (n.getAnnotation(UsefulConstants.LABEL_ALWAYSSHOW_ALT) != null)
-				foundItems.add(n);
 			if (nodesDrawn >= context.config().renderThreshold && !context.config().showAllLabels)
 				continue;
 			if (!n.isWithinScreen)
@@ -273,19 +390,45 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 			nodesToDraw[nodesDrawn] = n;
 			nodesDrawn++;
 		}
-		fforwardMe = false;
+		// GJ 2008-09-03: Add ALWAYS_SHOW nodes to the foundItems list.
+		for (int j = 0; j < alwaysShown.length; j++)
+		{
+			foundItems.add(alwaysShown[j]);
+		}
+
+		/*
+		 * On a plain Java2D canvas, the branches and node markers are drawn
+		 * first, all in one go, batched by style. If the view and the tree
+		 * haven't changed, they come from the cached layer instead. Either way,
+		 * the rest of draw() only adds the labels and highlighted nodes.
+		 */
+		layerPass = NO_LAYER;
+		if (canBatch(canvas))
+		{
+			int mode = BranchLayer.OFF;
+			if (mainRender && branchLayer != null && context.getPW() != null && canvas == context.getPW().g
+					&& !RenderOutput.isOutputting)
+				mode = branchLayer.prepare(canvas, layerKey(positions, nodesDrawn));
+			batch.primitives = batch.styleChanges = batch.drawCalls = 0;
+			if (mode == BranchLayer.OFF)
+				drawStructure(canvas, nodesToDraw, nodesDrawn);
+			else
+			{
+				if (mode == BranchLayer.BUILD)
+					drawStructure(branchLayer, nodesToDraw, nodesDrawn);
+				branchLayer.drawOnto(canvas);
+			}
+			layerPass = OVER_LAYER;
+		}
 
 		/*
 		 * THIRD LOOP: Drawing nodes
 		 *   - This loop actually does the drawing.
 		 */
-		Thread.yield();
 		for (int i = nodesDrawn - 1; i >= 0; i--)
 		{
-			Thread.yield();
 			PhyloNode n = nodesToDraw[i];
 			//			canvas.fill(100,100);
-			NodeRenderer.r = this;
 			n.drawLineAndNode = true;
 			n.drawLabel = false;
 			handleNode(n);
@@ -299,12 +442,12 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 		{
 			PhyloTree pt = (PhyloTree) tree;
 			PhyloNode h = pt.hoveredNode;
-			if (h != null && pt.containsVertex(h))
+			if (h != null && getSnapshotIndex(h) != -1)
 			{
 				Point point = new Point(getX(h), getY(h));
 				float dist = (float) point.distance(mousePt);
 				float bulgedSize = BulgeUtil.bulge(dist, .7f, 30);
-				if (tree.isLeaf(h))
+				if (isLeaf(h))
 				{
 					if (textSize <= 14)
 						h.bulgeFactor = bulgedSize;
@@ -313,7 +456,7 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 				}
 				insertAndReturnOverlap(h);
 				h.drawLabel = true;
-				decorator.render(this, h);
+				renderNode(h);
 				h.labelWasDrawn = true;
 			}
 		}
@@ -325,11 +468,9 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 		/*
 		 * Also always try to draw nodes that are "found".
 		 */
-		Thread.yield();
 		Collections.reverse(foundItems);
 		for (PhyloNode n : foundItems)
 		{
-			Thread.yield();
 			NodeRange r = n.range;
 			// GJ 19-09-2008 change: Found nodes will ALWAYS be drawn, regardless of whether they're overlapping something else.
 			insertAndReturnOverlap(n);
@@ -339,37 +480,45 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 		/*
 		 * Now, go through the significance-sorted list of leaves, drawing and occluding as we go.
 		 */
-		Thread.yield();
-		for (int i = 0; i < sigLeaves.length; i++)
+		for (int i = 0; i < numVisibleLeaves; i++)
 		{
-			Thread.yield();
-			PhyloNode n = sigLeaves[i];
+			PhyloNode n = visibleLeaves[i];
 			if (!n.isWithinScreen || n.labelWasDrawn)
 				continue;
 			NodeRange r = n.range;
 			if (insertAndReturnOverlap(n))
 				continue;
 			n.drawLabel = true;
-			decorator.render(this, n);
+			renderNode(n);
 		}
 
 		/*
 		 * Now, we can draw the found nodes on top of everything else.
 		 */
-		Thread.yield();
 		for (PhyloNode n : foundItems)
 		{
-			Thread.yield();
 			NodeRange r = n.range;
 			n.drawLabel = true;
-			decorator.render(this, n);
+			renderNode(n);
 			n.labelWasDrawn = true;
 		}
 
 		/*
 		 * Finally, unhint the canvas.
 		 */
+		layerPass = NO_LAYER;
 		unhint();
+
+		/*
+		 * Re-index the ranges we just updated, for hit testing.
+		 */
+		if (visitedRanges.length < numVisited)
+			visitedRanges = new NodeRange[visited.length];
+		for (int i = 0; i < numVisited; i++)
+		{
+			visitedRanges[i] = visited[i].range;
+		}
+		list.build(visitedRanges, numVisited);
 	}
 
 	private Polygon tempP = new Polygon();
@@ -541,9 +690,12 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 
 	protected void handleNode(PhyloNode n)
 	{
-		if (tree.isLeaf(n))
+		int idx = getSnapshotIndex(n);
+		if (idx == -1)
+			return;
+		if (snapshot.leaf[idx])
 		{
-			decorator.render(this, n);
+			renderNode(n);
 			//			decorator.lineRender.render(canvas, n, true,false);
 			//			decorator.nr.render(canvas, n,true,false);
 		} else
@@ -551,7 +703,7 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 			n.drawLabel = true;
 			if (insertAndReturnOverlap(n))
 				n.drawLabel = false;
-			decorator.render(this, n);
+			renderNode(n);
 			//			decorator.lineRender.render(canvas, n, true,false);
 			//			decorator.nr.render(canvas, n,true,false);
 			/*
@@ -561,52 +713,260 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 
 			//			drawCladeLabelIfNeeded(n);
 
+			drawPlacemarks(idx);
+		}
+	}
+
+	/**
+	 * Do some extra stuff to clean up the thresholding artifacts.
+	 */
+	private void drawPlacemarks(int idx)
+	{
+		int end = snapshot.end[idx];
+		for (int c = idx + 1; c < end; c = snapshot.end[c])
+		{
+			PhyloNode child = snapshot.node[c];
 			/*
-			 * Do some extra stuff to clean up the thresholding artifacts.
+			 * If this child is thresholded out, then draw a placemark line to its
+			 * earliest or latest leaf node.
 			 */
-			List l = tree.getChildrenOf(n);
-			int sz = l.size();
-			for (int i = 0; i < sz; i++)
+			if (!child.drawMe && child.isWithinScreen)
 			{
-				PhyloNode child = (PhyloNode) l.get(i);
-				NodeRange r = child.range;
-				/*
-				 * If this child is thresholded out, then draw a placemark line to its
-				 * earliest or latest leaf node.
-				 */
-				if (!child.drawMe && child.isWithinScreen)
+				int leaf;
+				if (c == idx + 1)
 				{
-					PhyloNode leaf = null;
-					if (i == 0)
-						leaf = (PhyloNode) tree.getFirstLeaf(child);
-					else if (i == l.size() - 1)
-						leaf = (PhyloNode) tree.getLastLeaf(child);
-					else
-						/*
-						 * If this child is a "middle child", just do nothing.
-						 */
-						continue;
-					// GJ 19-09-08 change: Loop to render from the first / last leaf all the way to the current node.
-					while (leaf != n)
-					{
-						//						decorator.lineRender.render(canvas, leaf, true,false);
-						//						decorator.nr.render(canvas, leaf,true,false);
-						//						drawCladeLabelIfNeeded(leaf);
-						leaf.drawLineAndNode = true;
-						leaf.drawLabel = false;
-						decorator.render(this, leaf);
-						leaf = (PhyloNode) tree.getParentOf(leaf);
-					}
+					/*
+					 * The first leaf below a node is the first leaf after it in pre-order.
+					 */
+					leaf = c;
+					while (!snapshot.leaf[leaf])
+						leaf++;
+				} else if (snapshot.end[c] == end)
+				{
+					/*
+					 * ...and the last node in its subtree is always its last leaf.
+					 */
+					leaf = snapshot.end[c] - 1;
+				} else
+					/*
+					 * If this child is a "middle child", just do nothing.
+					 */
+					continue;
+				// GJ 19-09-08 change: Loop to render from the first / last leaf all the way to the current node.
+				while (leaf != idx)
+				{
+					//						decorator.lineRender.render(canvas, leaf, true,false);
+					//						decorator.nr.render(canvas, leaf,true,false);
+					//						drawCladeLabelIfNeeded(leaf);
+					PhyloNode ln = snapshot.node[leaf];
+					ln.drawLineAndNode = true;
+					ln.drawLabel = false;
+					renderNode(ln);
+					leaf = snapshot.parent[leaf];
 				}
 			}
 		}
 	}
 
+	/*
+	 * Which pass of draw() we're in, as far as the branch layer goes.
+	 */
+	private static final int NO_LAYER = 0;
+	private static final int INTO_LAYER = 1;
+	private static final int OVER_LAYER = 2;
+	private int layerPass = NO_LAYER;
+
+	/**
+	 * The cached image of the branches, or null to always draw them.
+	 */
+	protected BranchLayer branchLayer;
+
+	/*
+	 * Collects the plain branches and node markers for drawStructure().
+	 */
+	private BatchGraphics batch = new BatchGraphics();
+
+	/**
+	 * Draws a node, leaving out whatever the branch layer already has.
+	 */
+	private void renderNode(PhyloNode n)
+	{
+		if (layerPass != OVER_LAYER || isHighlighted(n))
+		{
+			decorator.render(this, n);
+			return;
+		}
+		decorator.layers = NodeRenderer.LAYER_LABELS;
+		try
+		{
+			decorator.render(this, n);
+		} finally
+		{
+			decorator.layers = NodeRenderer.LAYER_ALL;
+		}
+	}
+
+	/**
+	 * Whether a node is drawn differently from its plain style, in which case
+	 * its branch is drawn again over the branch layer.
+	 */
+	private boolean isHighlighted(PhyloNode n)
+	{
+		if (n.found || n.getState() != PhyloNode.NONE)
+			return true;
+		return tree instanceof PhyloTree && n == ((PhyloTree) tree).hoveredNode;
+	}
+
+	/*
+	 * Draws the branches and node markers onto the target in their plain style,
+	 * through the batching canvas. This goes through the same nodes as the
+	 * third loop in draw(), but without touching the labels.
+	 */
+	private void drawStructure(PGraphics target, PhyloNode[] nodesToDraw, int nodesDrawn)
+	{
+		PGraphics screen = canvas;
+		batch.begin(target);
+		if (screen.textFont != null)
+			batch.textFont(screen.textFont, screen.textSize);
+		canvas = batch;
+		layerPass = INTO_LAYER;
+		decorator.layers = NodeRenderer.LAYER_STRUCTURE;
+		decorator.plainStyle = true;
+		try
+		{
+			for (int i = nodesDrawn - 1; i >= 0; i--)
+			{
+				PhyloNode n = nodesToDraw[i];
+				n.drawLineAndNode = true;
+				n.drawLabel = false;
+				decorator.render(this, n);
+				int idx = getSnapshotIndex(n);
+				if (idx != -1 && !snapshot.leaf[idx])
+					drawPlacemarks(idx);
+			}
+		} finally
+		{
+			decorator.layers = NodeRenderer.LAYER_ALL;
+			decorator.plainStyle = false;
+			layerPass = NO_LAYER;
+			canvas = screen;
+		}
+		batch.flush(target);
+	}
+
+	/*
+	 * Batching only pays off when drawing pixels; the vector and tracking
+	 * canvases need to see each node's drawing separately.
+	 */
+	private static boolean canBatch(PGraphics g)
+	{
+		return g instanceof PGraphicsJava2D && !(g instanceof VectorGraphics) && !(g instanceof TrackingGraphics);
+	}
+
+	/**
+	 * A one-line summary of the last frame's batching: primitives submitted,
+	 * how often the style switched between them, and the draw calls it took
+	 * in the end. For the debug overlay.
+	 */
+	public String getBatchStats()
+	{
+		return batch.primitives + " prims, " + batch.styleChanges + " style switches, " + batch.drawCalls + " draws";
+	}
+
+	/*
+	 * Everything that goes into the branch layer: the version of the tree that
+	 * was laid out, the view, the node positions, how many nodes pass the
+	 * threshold, and the settings.
+	 */
+	private long layerKey(long positions, int nodesDrawn)
+	{
+		long k = layoutVersion;
+		k = k * 31 + Float.floatToIntBits(rect.x);
+		k = k * 31 + Float.floatToIntBits(rect.y);
+		k = k * 31 + Float.floatToIntBits(rect.width);
+		k = k * 31 + Float.floatToIntBits(rect.height);
+		k = k * 31 + canvas.width;
+		k = k * 31 + canvas.height;
+		if (canvas instanceof PGraphicsJava2D)
+			k = k * 31 + ((PGraphicsJava2D) canvas).g2.getTransform().hashCode();
+		k = k * 31 + numVisited;
+		k = k * 31 + nodesDrawn;
+		k = k * 31 + positions;
+		k = k * 31 + context.config().getStyleHash();
+		return k;
+	}
+
+	/**
+	 * Returns the given node's index in the render snapshot, or -1 if it wasn't
+	 * in the tree as of the last layout.
+	 */
+	int getSnapshotIndex(PhyloNode n)
+	{
+		int i = n.snapshotIndex;
+		if (i < 0 || i >= snapshot.size || snapshot.node[i] != n)
+			return -1;
+		return i;
+	}
+
+	/**
+	 * Whether the node was drawn as a leaf (or a collapsed clade) as of the
+	 * last layout. Use this instead of asking the tree while drawing.
+	 */
+	public boolean isLeaf(PhyloNode n)
+	{
+		int i = getSnapshotIndex(n);
+		return i != -1 && snapshot.leaf[i];
+	}
+
+	public boolean isCollapsed(PhyloNode n)
+	{
+		int i = getSnapshotIndex(n);
+		return i != -1 && snapshot.collapsed[i];
+	}
+
+	/**
+	 * The node's label, as of the last layout.
+	 */
+	public String getLabel(PhyloNode n)
+	{
+		int i = getSnapshotIndex(n);
+		if (i == -1)
+			return n.getLabel();
+		return content.getDisplayLabel(contentIndex[i]);
+	}
+
+	/**
+	 * The node's annotation, as of the last layout. Warning: may return null.
+	 */
+	public String getAnnotation(PhyloNode n, String key)
+	{
+		int i = getSnapshotIndex(n);
+		if (i == -1)
+			return n.getAnnotation(key);
+		return content.getAnnotation(contentIndex[i], key);
+	}
+
+	public boolean hasAnnotations(PhyloNode n)
+	{
+		int i = getSnapshotIndex(n);
+		if (i == -1)
+			return n.isNHX();
+		return content.hasAnnotations(contentIndex[i]);
+	}
+
+	PhyloNode getParent(PhyloNode n)
+	{
+		int i = getSnapshotIndex(n);
+		if (i <= 0)
+			return null;
+		return snapshot.node[snapshot.parent[i]];
+	}
+
 	void drawCladeLabelIfNeeded(PhyloNode n)
 	{
-		if (tree.isLeaf(n))
+		if (isLeaf(n))
 			return;
-		if (context.config().showCladeLabels && tree.isLabelSignificant(tree.getLabel(n)))
+		if (context.config().showCladeLabels && tree.isLabelSignificant(getLabel(n)))
 		{
 			boolean overlap = insertAndReturnOverlap(n);
 			if (!overlap)
@@ -652,12 +1012,12 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 
 	boolean isAnyParentDrawn(PhyloNode n)
 	{
-		PhyloNode cur = (PhyloNode) n.getParent();
+		PhyloNode cur = getParent(n);
 		while (cur != null)
 		{
 			if (cur.drawMe)
 				return true;
-			cur = (PhyloNode) cur.getParent();
+			cur = getParent(cur);
 		}
 		return false;
 	}
@@ -666,6 +1026,75 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 	Rectangle2D.Float rect2 = new Rectangle2D.Float();
 	Rectangle2D.Float rect3 = new Rectangle2D.Float();
 
+	/**
+	 * Returns false only if neither this node nor any of its descendants could
+	 * be within the screen, using the subtree bounding boxes computed by
+	 * LayoutBase. Conservatively padded by the widest label in the subtree.
+	 */
+	protected boolean isSubtreeWithinScreen(PhyloNode n)
+	{
+		NodeRange r = n.subtreeRange;
+		float EXPAND = 50;
+		float pad = EXPAND + subtreePad * n.subtreeTextWidth + subtreeExtra;
+		rect1.x = (float) (r.loX * scaleX + dx) - pad;
+		rect1.y = (float) (r.loY * scaleY + dy) - pad;
+		float hiX = (float) (r.hiX * scaleX + dx) + pad;
+		if (alignedLabels)
+		{
+			NodeRange root = snapshot.node[0].subtreeRange;
+			hiX = Math.max(hiX, (float) (root.hiX * scaleX + dx) + pad);
+		}
+		rect1.width = hiX - rect1.x;
+		rect1.height = (float) (r.hiY * scaleY + dy) + pad - rect1.y;
+
+		PhyloNode p = getParent(n);
+		if (p != null)
+		{
+			/*
+			 * A node also counts as within the screen when its parent's range is, so include that too.
+			 */
+			NodeRange r2 = p.range;
+			rect2.x = r2.loX - EXPAND;
+			rect2.y = r2.loY - EXPAND;
+			rect2.width = r2.hiX - r2.loX + EXPAND * 2;
+			rect2.height = r2.hiY - r2.loY + EXPAND * 2;
+			Rectangle.union(rect1, rect2, rect1);
+		}
+		return rect1.intersects(screenRect);
+	}
+
+	private float subtreeExtra;
+
+	/**
+	 * Works out the largest on-screen size a label could be drawn at this frame,
+	 * which bounds how far a node's label, image and cigar line can extend from it.
+	 */
+	private float getSubtreePad()
+	{
+		PhyloConfig cfg = context.config();
+		float labelSize = textSize * cfg.textScaling;
+		if (!cfg.showAllLabels)
+			labelSize = Math.max(labelSize, cfg.minTextSize);
+		subtreeExtra = labelSize * (2 + cfg.imageSize + cfg.cigarScaling) + dotWidth * cfg.nodeSize;
+		return labelSize;
+	}
+
+	static final Comparator<PhyloNode> drawOrderSorter = new Comparator<PhyloNode>()
+	{
+		public int compare(PhyloNode o1, PhyloNode o2)
+		{
+			return o1.drawOrder - o2.drawOrder;
+		}
+	};
+
+	static final Comparator<PhyloNode> labelOrderSorter = new Comparator<PhyloNode>()
+	{
+		public int compare(PhyloNode o1, PhyloNode o2)
+		{
+			return o1.labelOrder - o2.labelOrder;
+		}
+	};
+
 	protected boolean isNodeWithinScreen(PhyloNode n)
 	{
 		/*
@@ -678,7 +1107,7 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 		/*
 		 * Try to get the parental noderange and set it.
 		 */
-		PhyloNode p = (PhyloNode) tree.getParentOf(n);
+		PhyloNode p = getParent(n);
 		rect1.x = r.loX - EXPAND;
 		rect1.y = r.loY - EXPAND;
 		rect1.width = r.hiX - r.loX + EXPAND2;
@@ -713,27 +1142,47 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 	 */
 	protected void layout()
 	{
-		if (!needsLayout)
+		long version = tree.getVersion();
+		if (!needsLayout && version == layoutVersion)
 			return;
+		if (!needsLayout && content != null && refreshContent(tree.getSnapshot()))
+		{
+			layoutVersion = version;
+			return;
+		}
 //		System.out.println("Layout "+System.currentTimeMillis());
 		needsLayout = false;
+		layoutVersion = version;
 
 		ArrayList<PhyloNode> ls = new ArrayList<PhyloNode>();
 		ArrayList<PhyloNode> ns = new ArrayList<PhyloNode>();
 		synchronized (this)
 		{
 			tree.getAll(tree.getRoot(), ls, ns);
-			Thread.yield();
+
+			for (int i = 0; i < numVisited; i++)
+			{
+				PhyloNode n = visited[i];
+				n.drawMe = false;
+				n.isWithinScreen = false;
+			}
+			numVisited = 0;
+			numVisibleLeaves = 0;
 
 			leaves = new PhyloNode[ls.size()];
 			nodes = new PhyloNode[ns.size()];
 			leaves = ls.toArray(leaves);
 			nodes = ns.toArray(nodes);
+			visited = new PhyloNode[nodes.length];
+			visibleLeaves = new PhyloNode[leaves.length];
 			/*
 			 * Sort these nodes by significance (i.e. num of enclosed nodes).
 			 */
 			Arrays.sort(nodes, 0, nodes.length, tree.sorter);
-			Thread.yield();
+			for (int i = 0; i < nodes.length; i++)
+			{
+				nodes[i].drawOrder = i;
+			}
 			/*
 			 * Sort the leaves by "leaf" significance (first leaf = least depth to root)
 			 */
@@ -746,27 +1195,25 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 			if (context.config().prioritizeDistantLabels)
 				dir = -1;
 			Arrays.sort(sigLeaves, 0, sigLeaves.length, tree.new DepthToRootComparator(dir));
-			Thread.yield();
+			for (int i = 0; i < sigLeaves.length; i++)
+			{
+				sigLeaves[i].labelOrder = i;
+			}
 		}
 
 		/*
-		 * Crate new nodeRange objects for this layout.
+		 * Point each nodeRange back at this renderer. The hit-testing index is
+		 * rebuilt from the visible ranges at the end of each draw().
 		 */
-		synchronized (list)
+		list.clear();
+		for (int i = 0; i < nodes.length; i++)
 		{
-			list.clear();
-			for (int i = 0; i < nodes.length; i++)
+			PhyloNode n = (PhyloNode) nodes[i];
+			synchronized (n)
 			{
-				PhyloNode n = (PhyloNode) nodes[i];
-				synchronized (n)
-				{
-					n.range.render = this;
-				}
-				list.insert(n.range, false);
+				n.range.render = this;
 			}
-			list.sortFull();
 		}
-		Thread.yield();
 
 		/*
 		 * ASSUMPTION: the leaves ArrayList contains a "sorted" view of the
@@ -774,12 +1221,22 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 		 */
 		//		FontMetrics fm = canvas.g2.getFontMetrics(font.font);
 		//		FontMetrics fm = UIUtils.getMetrics(canvas, font.font, font.size);
+		ArrayList<PhyloNode> always = new ArrayList<PhyloNode>();
+		alignedLabels = context.config().alignLabels;
+		PFont pf = fonts.getPFont();
+		textWidths.beginPass();
 		for (int i = 0; i < nodes.length; i++)
 		{
 			PhyloNode n = nodes[i];
 
-			// GJ 2008-10-15: Add a NodeUncollapser if it doesn't exist.
-			if (tree.isCollapsed(n) && !NodeUncollapser.containsNode(n))
+			if (n.getAnnotation(UsefulConstants.LABEL_ALWAYSSHOW) != null
+					|| n.getAnnotation(UsefulConstants.LABEL_ALWAYSSHOW_ALT) != null)
+				always.add(n);
+			if (n.getAnnotation(UsefulConstants.CIGAR) != null)
+				alignedLabels = true;
+
+			// GJ 2008-10-15: Add a NodeUncollapser if it doesn't exist (and there's a UI to add it to).
+			if (tree.isCollapsed(n) && context.ui() != null && !NodeUncollapser.containsNode(n))
 			{
 				tree.collapseNode(n);
 			}
@@ -804,17 +1261,101 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 			}
 			//			Graphics2D g2 = ((PGraphicsJava2D) canvas).g2;
 			//				width = (float) fm.getStringBounds(n.getLabel(), g2).getWidth() / 100f;
-			float width = UIUtils.getTextWidth(canvas, fonts.getPFont(), 100, n.getLabel(), true) / 100f;
-			n.unitTextWidth = width;
+			n.unitTextWidth = textWidths.getWidth(pf, n.getLabel());
 		}
-
-		Thread.yield();
+		textWidths.endPass();
 
 		if (context.config().colorSpecies)
 		{
 			decorator.getColorsForSpeciesMap();
 		}
+		alwaysShown = always.toArray(new PhyloNode[always.size()]);
+		alignedLabels &= treeLayout instanceof LayoutCladogram;
 		treeLayout.layout(tree, leaves, nodes);
+		treeLayout.layoutSubtreeBounds();
+
+		/*
+		 * Copy the tree's structure from the layout, which has just flattened
+		 * it for us, and match each node up with its labels and annotations.
+		 * The layout visits the same nodes as the tree's snapshot, in the same
+		 * order, but doesn't go inside collapsed nodes.
+		 */
+		FlatTree flat = treeLayout.flat.copy();
+		TreeSnapshot ts = tree.getSnapshot();
+		int[] index = new int[flat.size];
+		int[] back = new int[ts.size()];
+		Arrays.fill(back, -1);
+		for (int i = 0, j = 0; i < flat.size && j < ts.size(); i++)
+		{
+			index[i] = j;
+			back[j] = i;
+			j = ts.isLeaf(j) ? ts.getSubtreeEnd(j) : j + 1;
+		}
+		snapshot = flat;
+		content = ts;
+		contentIndex = index;
+		flatIndex = back;
+		furthestLeaf = null;
+		double maxHeight = 0;
+		for (int i = 0; i < snapshot.size; i++)
+		{
+			snapshot.node[i].snapshotIndex = i;
+			if (snapshot.leaf[i] && snapshot.height[i] >= maxHeight)
+			{
+				maxHeight = snapshot.height[i];
+				furthestLeaf = snapshot.node[i];
+			}
+		}
+	}
+
+	/*
+	 * The annotations that layout() looks at, besides collapsing (which
+	 * changes the tree's structure version).
+	 */
+	private static final String[] LAYOUT_ANNOTATIONS = {LABEL_ALWAYSSHOW, LABEL_ALWAYSSHOW_ALT, CIGAR, TAXON_ID,
+			SPECIES_NAME};
+
+	/*
+	 * When only labels and annotations have changed since the last layout,
+	 * the layout still holds: this just takes the new snapshot and measures
+	 * the changed labels again. Only the nodes the snapshot says have changed
+	 * are looked at, if it was made from the one we have. Returns false if
+	 * the tree has to be laid out again after all.
+	 */
+	private boolean refreshContent(TreeSnapshot ts)
+	{
+		TreeSnapshot old = content;
+		if (ts.getStructureVersion() != old.getStructureVersion() || ts.size() != old.size())
+			return false;
+		int[] changed = ts.getChanged();
+		boolean all = (changed == null || ts.getBaseVersion() != old.getVersion());
+		int n = all ? ts.size() : changed.length;
+		PFont pf = fonts.getPFont();
+		for (int k = 0; k < n; k++)
+		{
+			int j = all ? k : changed[k];
+			for (int a = 0; a < LAYOUT_ANNOTATIONS.length; a++)
+			{
+				String before = old.getAnnotation(j, LAYOUT_ANNOTATIONS[a]);
+				String after = ts.getAnnotation(j, LAYOUT_ANNOTATIONS[a]);
+				if (before == null ? after != null : !before.equals(after))
+					return false;
+			}
+			int i = flatIndex[j];
+			if (i == -1 || ts.getLabel(j) == old.getLabel(j))
+				continue;
+			PhyloNode node = snapshot.node[i];
+			float w = textWidths.getWidth(pf, node.getLabel());
+			node.unitTextWidth = w;
+			/*
+			 * A longer label widens its ancestors' subtrees too; a shorter one
+			 * just leaves them a bit wider than they need to be.
+			 */
+			for (int p = i; p != -1 && snapshot.node[p].subtreeTextWidth < w; p = snapshot.parent[p])
+				snapshot.node[p].subtreeTextWidth = w;
+		}
+		content = ts;
+		return true;
 	}
 
 	public void layoutTrigger()
@@ -824,10 +1365,16 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 
 	public void nodesInRange(ArrayList arr, Rectangle2D.Float rect)
 	{
-		synchronized (list)
-		{
-			list.getInRange(arr, rect);
-		}
+		list.getInRange(arr, rect);
+	}
+
+	/**
+	 * Returns the range of the node nearest to the given point (in model
+	 * coordinates), or null if there's none within maxDist.
+	 */
+	public NodeRange nearestNode(float x, float y, float maxDist)
+	{
+		return (NodeRange) list.getNearest(x, y, maxDist);
 	}
 
 	public void positionText(PhyloNode n, TextField tf)
@@ -876,20 +1423,13 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 		}
 	}
 	
-	private TreeRenderState lastRenderState;
-	private long nodePositionHash;
-	
 	public void render(PGraphics canvas, float x, float y, float w, float h, boolean mainRender)
 	{
 		this.mainRender = mainRender;
 		rect.setRect(x, y, w, h);
 		if (tree == null)
 			return;
-		
-		// GJ 2009-02-15
-		shouldTriggerRepaint = true;
-		nodePositionHash = 0;
-		
+
 //		synchronized (this)
 //		{
 //			this.canvas = canvas;	
@@ -901,30 +1441,31 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 //			updateNodes();
 //		}
 		
-		// GJ 2009-02-15 : stop re-rendering when the tree ain't changing!!
-//		TreeRenderState trs = new TreeRenderState(this);
-//		if (trs.equals(lastRenderState))
-//		{
-////			System.out.println("Nothing new!!!");
-//			shouldTriggerRepaint = false;
-//		} else
-//		{
-//			lastRenderState = trs;
-//		}
-		
+		/*
+		 * When double buffering, the repaint thread only wakes up if something
+		 * might have changed, and then only repaints what did (see
+		 * findChanges()). An idle tree costs no more than copying the last
+		 * frame onto the screen.
+		 */
 		if (context.config().useDoubleBuffering)
 		{
+			long key = frameKey(canvas);
+			if (key != frameKey || animating || needsLayout || tree.getVersion() != layoutVersion)
+			{
+				frameKey = key;
+				shouldTriggerRepaint = true;
+			}
 			drawDoubleBuffered(canvas);
 		} else
 		{
+			this.canvas = canvas;
 			synchronized (tree)
 			{
-				this.canvas = canvas;
 				layout();
-				recalc();
-//				updateNodes();
-				draw();
 			}
+			recalc();
+//			updateNodes();
+			draw();
 		}
 	}
 
@@ -941,23 +1482,138 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 	////		}
 	//	}
 
-	public void drawToBuffer(PGraphics g)
+	/*
+	 * Everything a frame depends on that can change without the tree's
+	 * version changing: the view, the settings, the hovered node, which
+	 * nodes are found or on the clipboard, and which images are loaded.
+	 * The found flags and states are covered by PhyloNode.getMarks(), so
+	 * none of it costs more on a bigger tree, and it's cheap enough to work
+	 * out every frame. If it (and the tree's version) hasn't changed, and
+	 * nothing was still moving, the frame is skipped without laying out or
+	 * drawing anything.
+	 */
+	private long frameKey(PGraphics canvas)
+	{
+		long k = Float.floatToIntBits(rect.x);
+		k = k * 31 + Float.floatToIntBits(rect.y);
+		k = k * 31 + Float.floatToIntBits(rect.width);
+		k = k * 31 + Float.floatToIntBits(rect.height);
+		k = k * 31 + canvas.width;
+		k = k * 31 + canvas.height;
+		k = k * 31 + context.config().getStyleHash();
+		k = k * 31 + System.identityHashCode(alwaysShown);
+		if (fforwardMe)
+			k++;
+		if (TreeManager.imageLoader != null)
+			k = k * 31 + TreeManager.imageLoader.getGeneration();
+		if (tree instanceof PhyloTree)
+		{
+			PhyloNode h = ((PhyloTree) tree).hoveredNode;
+			if (h != null)
+			{
+				k = k * 31 + System.identityHashCode(h);
+				k = k * 31 + Float.floatToIntBits(mousePt.x);
+				k = k * 31 + Float.floatToIntBits(mousePt.y);
+			}
+		}
+		k = k * 31 + PhyloNode.getMarks();
+		return k;
+	}
+
+	/*
+	 * What the last tracked frame was drawn with. If any of these change,
+	 * everything on screen moves, so there's no point looking for changes.
+	 */
+	private FlatTree trackedSnapshot;
+	private Rectangle2D.Float trackedRect = new Rectangle2D.Float();
+	private int trackedWidth, trackedHeight;
+	private boolean trackedAntialias;
+
+	/*
+	 * True if findChanges() has already drawn this frame (without rasterizing),
+	 * so drawToBuffer() is drawing it for a second time.
+	 */
+	private boolean probed;
+
+	protected boolean findChanges(PGraphics g, DirtyRegion dirty, Rectangle content)
 	{
-		super.drawToBuffer(g);
-		
-		this.canvas = g;
-		g.background(0, 0);
 		/*
 		 * All operations requiring integrity of the tree structure should synchronize on the tree object!
+		 * Only layout() reads the tree, though: it leaves copies of the structure, labels and
+		 * annotations behind for recalc() and draw(), so we can let go of the tree while drawing.
 		 */
 		synchronized (tree)
 		{
 			layout();
-			recalc();
-//			updateNodes();
+		}
+		recalc();
+
+		TrackingGraphics tg = (TrackingGraphics) g;
+		boolean aa = context.config().antialias;
+		if (snapshot != trackedSnapshot || !rect.equals(trackedRect) || g.width != trackedWidth
+				|| g.height != trackedHeight || aa != trackedAntialias)
+		{
+			/*
+			 * The whole picture has moved: skip straight to drawing it, and
+			 * keep track of it while we're at it.
+			 */
+			trackedSnapshot = snapshot;
+			trackedRect.setRect(rect);
+			trackedWidth = g.width;
+			trackedHeight = g.height;
+			trackedAntialias = aa;
+			tg.resetTracking();
+			probed = false;
+			return false;
+		}
+
+		/*
+		 * Draw the frame without rasterizing it, to see what changed.
+		 */
+		tg.setScratch();
+		tg.rasterize = false;
+		tg.beginTracking(snapshot.size);
+		this.canvas = tg;
+		try
+		{
 			draw();
+		} finally
+		{
+			this.canvas = null;
+			tg.tracking = false;
+			tg.rasterize = true;
+		}
+		probed = true;
+		return tg.findChanges(dirty, content);
+	}
+
+	public void drawToBuffer(PGraphics g)
+	{
+		super.drawToBuffer(g);
+		
+		TrackingGraphics tg = (TrackingGraphics) g;
+		this.canvas = g;
+		boolean wasMain = mainRender;
+		if (probed)
+		{
+			/*
+			 * This frame has been drawn once already: don't advance the
+			 * animations a second time.
+			 */
+			mainRender = false;
+		} else
+			tg.beginTracking(snapshot.size);
+//		updateNodes();
+		try
+		{
+			draw();
+		} finally
+		{
+			tg.tracking = false;
+			mainRender = wasMain;
+			probed = false;
+			this.canvas = null;
 		}
-		this.canvas = null;
 	}
 
 	//	public UIRectangle getVisibleRect()
@@ -1052,9 +1708,6 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 		r.hiX = n.rect.x + n.rect.width;
 		r.loY = n.rect.y;
 		r.hiY = n.rect.y + n.rect.height;
-		
-		nodePositionHash += n.getX();
-		nodePositionHash += n.getY();
 	}
 
 	/**
@@ -1124,32 +1777,6 @@ public class BasicTreeRenderer extends DoubleBuffer implements GraphListener, Us
 
 	}
 	
-	class TreeRenderState
-	{
-		public int treeModCount;
-		public double x;
-		public double y;
-		public double zoom;
-		public long nodePositionHash;
-		
-		public TreeRenderState(BasicTreeRenderer r)
-		{
-			this.treeModCount = r.tree.getModCount();
-			this.x = r.rect.x;
-			this.y = r.rect.y;
-			this.zoom = r.rect.getWidth();
-			this.nodePositionHash = r.nodePositionHash;
-		}
-		
-		public boolean equals(Object o)
-		{
-			if (o == null)
-				return false;
-			TreeRenderState b = (TreeRenderState) o;
-			return (b.x == x && b.y == y && b.treeModCount == treeModCount && b.zoom == zoom && b.nodePositionHash == nodePositionHash);
-		}
-	}
-
 	public FontLoader getFontLoader()
 	{
 		return fonts;
@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.GeneralPath;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PGraphicsJava2D;
+
+/**
+ * A canvas that collects the branches and node markers instead of drawing
+ * them one at a time. Everything is transformed into the target's pixel
+ * space and grouped by style (fill color, or stroke color, width, cap and
+ * join); flush() then draws each group as a single path, so Java2D only sees
+ * one state change per style instead of several per node.
+ * <p>
+ * Straight lines, which are most of what a tree is made of, go into plain
+ * float arrays; anything else is appended to the group's path as it comes.
+ *
+ * @author Greg
+ */
+public class BatchGraphics extends OffscreenGraphics
+{
+	/*
+	 * Groups in the order their styles were first used, so that (for
+	 * example) node markers still land on top of the branches.
+	 */
+	private ArrayList<Batch> batches = new ArrayList<Batch>();
+	private int numBatches;
+	private Batch last;
+
+	private AffineTransform identity = new AffineTransform();
+	private float[] pts = new float[4];
+
+	/*
+	 * Counters for the current frame.
+	 */
+	int primitives;
+	int styleChanges;
+	int drawCalls;
+
+	@Override
+	protected void allocate()
+	{
+		/*
+		 * Nothing is drawn here; g2 is only used to keep track of the matrix.
+		 */
+		image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+		g2 = (Graphics2D) image.getGraphics();
+	}
+
+	@Override
+	public void endDraw()
+	{
+	}
+
+	/**
+	 * Starts collecting for the given target, starting from its current
+	 * transform.
+	 */
+	void begin(PGraphics target)
+	{
+		if (image == null)
+		{
+			setParent(target.parent);
+			setPrimary(false);
+			setSize(target.width, target.height);
+		}
+		width = target.width;
+		height = target.height;
+		beginDraw();
+		g2.setTransform(((PGraphicsJava2D) target).g2.getTransform());
+		numBatches = 0;
+		last = null;
+		primitives = 0;
+		styleChanges = 0;
+		drawCalls = 0;
+	}
+
+	/**
+	 * Draws everything collected since begin() onto the target.
+	 */
+	void flush(PGraphics target)
+	{
+		Graphics2D tg = ((PGraphicsJava2D) target).g2;
+		AffineTransform old = tg.getTransform();
+		tg.setTransform(identity);
+		for (int i = 0; i < numBatches; i++)
+		{
+			Batch b = batches.get(i);
+			GeneralPath p = b.toPath();
+			if (b.fill)
+			{
+				tg.setColor(new Color(b.fillColor, true));
+				tg.fill(p);
+				drawCalls++;
+			}
+			if (b.stroke)
+			{
+				tg.setColor(new Color(b.strokeColor, true));
+				tg.setStroke(new BasicStroke(b.weight, cap(b.cap), join(b.join)));
+				tg.draw(p);
+				drawCalls++;
+			}
+			b.clear();
+		}
+		tg.setTransform(old);
+		/*
+		 * Put the target's stroke back the way Processing left it.
+		 */
+		if (target.stroke)
+			target.strokeWeight(target.strokeWeight);
+		numBatches = 0;
+		last = null;
+	}
+
+	/*
+	 * Strokes are only built at flush time.
+	 */
+	@Override
+	protected void strokeImpl()
+	{
+	}
+
+	@Override
+	public void line(float x1, float y1, float x2, float y2)
+	{
+		if (!stroke)
+			return;
+		AffineTransform at = g2.getTransform();
+		if (!isUniform(at))
+		{
+			super.line(x1, y1, x2, y2);
+			return;
+		}
+		pts[0] = x1;
+		pts[1] = y1;
+		pts[2] = x2;
+		pts[3] = y2;
+		at.transform(pts, 0, pts, 0, 2);
+		Batch b = batchFor(false, true, scale(at));
+		b.addLine(pts[0], pts[1], pts[2], pts[3]);
+		primitives++;
+	}
+
+	@Override
+	protected void fillShape(Shape s)
+	{
+		add(s, true, false);
+	}
+
+	@Override
+	protected void strokeShape(Shape s)
+	{
+		add(s, false, true);
+	}
+
+	@Override
+	protected void drawShape(Shape s)
+	{
+		add(s, fill, stroke);
+	}
+
+	private void add(Shape s, boolean doFill, boolean doStroke)
+	{
+		AffineTransform at = g2.getTransform();
+		if (doStroke && !isUniform(at))
+		{
+			/*
+			 * A squashed or sheared stroke can't be drawn with a BasicStroke in
+			 * pixel space, so outline it here and fill the outline instead.
+			 */
+			BasicStroke bs = new BasicStroke(strokeWeight, cap(strokeCap), join(strokeJoin));
+			Shape outline = at.createTransformedShape(bs.createStrokedShape(s));
+			if (doFill)
+				batchFor(true, false, 1).path.append(s.getPathIterator(at), false);
+			int oldFill = fillColor;
+			fillColor = strokeColor;
+			batchFor(true, false, 1).path.append(outline, false);
+			fillColor = oldFill;
+			primitives++;
+			return;
+		}
+		if (!doFill && !doStroke)
+			return;
+		Batch b = batchFor(doFill, doStroke, scale(at));
+		b.path.append(s.getPathIterator(at), false);
+		primitives++;
+	}
+
+	private Batch batchFor(boolean doFill, boolean doStroke, float scale)
+	{
+		float weight = doStroke ? strokeWeight * scale : 0;
+		int fc = doFill ? fillColor : 0;
+		int sc = doStroke ? strokeColor : 0;
+		int cp = doStroke ? strokeCap : 0;
+		int jn = doStroke ? strokeJoin : 0;
+		if (last != null && last.matches(doFill, fc, doStroke, sc, weight, cp, jn))
+			return last;
+		styleChanges++;
+		for (int i = 0; i < numBatches; i++)
+		{
+			Batch b = batches.get(i);
+			if (b.matches(doFill, fc, doStroke, sc, weight, cp, jn))
+			{
+				last = b;
+				return b;
+			}
+		}
+		if (numBatches == batches.size())
+			batches.add(new Batch());
+		Batch b = batches.get(numBatches++);
+		b.set(doFill, fc, doStroke, sc, weight, cp, jn);
+		last = b;
+		return b;
+	}
+
+	/*
+	 * True if the transform scales both axes equally, so a stroke can be
+	 * drawn in pixel space with its width simply scaled.
+	 */
+	private static boolean isUniform(AffineTransform at)
+	{
+		return (at.getType() & (AffineTransform.TYPE_GENERAL_SCALE | AffineTransform.TYPE_GENERAL_TRANSFORM)) == 0;
+	}
+
+	private static float scale(AffineTransform at)
+	{
+		return (float) Math.sqrt(Math.abs(at.getDeterminant()));
+	}
+
+	private static int cap(int c)
+	{
+		if (c == PConstants.ROUND)
+			return BasicStroke.CAP_ROUND;
+		else if (c == PConstants.PROJECT)
+			return BasicStroke.CAP_SQUARE;
+		return BasicStroke.CAP_BUTT;
+	}
+
+	private static int join(int j)
+	{
+		if (j == PConstants.ROUND)
+			return BasicStroke.JOIN_ROUND;
+		else if (j == PConstants.BEVEL)
+			return BasicStroke.JOIN_BEVEL;
+		return BasicStroke.JOIN_MITER;
+	}
+
+	/**
+	 * Everything drawn in one style.
+	 */
+	static class Batch
+	{
+		boolean fill;
+		int fillColor;
+		boolean stroke;
+		int strokeColor;
+		float weight;
+		int cap;
+		int join;
+
+		float[] lines = new float[64];
+		int numLines;
+		GeneralPath path = new GeneralPath();
+
+		void set(boolean fill, int fillColor, boolean stroke, int strokeColor, float weight, int cap, int join)
+		{
+			this.fill = fill;
+			this.fillColor = fillColor;
+			this.stroke = stroke;
+			this.strokeColor = strokeColor;
+			this.weight = weight;
+			this.cap = cap;
+			this.join = join;
+		}
+
+		boolean matches(boolean fill, int fillColor, boolean stroke, int strokeColor, float weight, int cap, int join)
+		{
+			return this.fill == fill && this.fillColor == fillColor && this.stroke == stroke
+					&& this.strokeColor == strokeColor && this.weight == weight && this.cap == cap
+					&& this.join == join;
+		}
+
+		void addLine(float x1, float y1, float x2, float y2)
+		{
+			int i = numLines * 4;
+			if (i + 4 > lines.length)
+			{
+				float[] newLines = new float[lines.length * 2];
+				System.arraycopy(lines, 0, newLines, 0, i);
+				lines = newLines;
+			}
+			lines[i] = x1;
+			lines[i + 1] = y1;
+			lines[i + 2] = x2;
+			lines[i + 3] = y2;
+			numLines++;
+		}
+
+		GeneralPath toPath()
+		{
+			for (int i = 0; i < numLines * 4; i += 4)
+			{
+				path.moveTo(lines[i], lines[i + 1]);
+				path.lineTo(lines[i + 2], lines[i + 3]);
+			}
+			return path;
+		}
+
+		void clear()
+		{
+			numLines = 0;
+			path.reset();
+		}
+	}
+}
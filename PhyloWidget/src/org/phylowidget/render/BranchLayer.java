@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PGraphicsJava2D;
+
+/**
+ * A cached image of the tree's branches and node markers, in their plain
+ * style. While the view and the tree stay put, the renderer copies this onto
+ * the screen instead of drawing the branches again, and draws only the labels
+ * and the highlighted (hovered, found, cut or copied) nodes on top.
+ * <p>
+ * The cache is keyed on a hash of everything the branches depend on. It's
+ * only built once the key has stayed the same for two frames in a row, so
+ * there's no extra cost while the tree is moving.
+ *
+ * @author Greg
+ */
+public class BranchLayer extends PGraphicsJava2D
+{
+	static final int OFF = 0;
+	static final int BUILD = 1;
+	static final int CACHED = 2;
+
+	private long lastKey;
+	private long builtKey;
+	private boolean built;
+
+	private AffineTransform identity = new AffineTransform();
+
+	public BranchLayer(PApplet p)
+	{
+		setParent(p);
+		setPrimary(false);
+	}
+
+	@Override
+	protected void allocate()
+	{
+		/*
+		 * Premultiplied, since it's only ever composited onto the screen.
+		 */
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+		g2 = (Graphics2D) image.getGraphics();
+	}
+
+	@Override
+	public void endDraw()
+	{
+		/*
+		 * Nothing to copy back into the pixels.
+		 */
+	}
+
+	/**
+	 * Decides what to do with the layer this frame, given the key for what's
+	 * about to be drawn onto the target. If the answer is BUILD, the layer has
+	 * been cleared and set up to draw with the target's transform and hints.
+	 */
+	int prepare(PGraphics target, long key)
+	{
+		if (!(target instanceof PGraphicsJava2D))
+			return OFF;
+		if (built && key == builtKey && width == target.width && height == target.height)
+			return CACHED;
+		boolean stable = (key == lastKey);
+		lastKey = key;
+		built = false;
+		if (!stable)
+			return OFF;
+
+		if (width != target.width || height != target.height || image == null)
+			setSize(target.width, target.height);
+		beginDraw();
+		Composite old = g2.getComposite();
+		g2.setComposite(AlphaComposite.Clear);
+		g2.fillRect(0, 0, width, height);
+		g2.setComposite(old);
+		Graphics2D tg2 = ((PGraphicsJava2D) target).g2;
+		g2.setRenderingHints(tg2.getRenderingHints());
+		g2.setTransform(tg2.getTransform());
+		builtKey = key;
+		built = true;
+		return BUILD;
+	}
+
+	/**
+	 * Copies the layer onto the target, pixel for pixel.
+	 */
+	void drawOnto(PGraphics target)
+	{
+		Graphics2D tg2 = ((PGraphicsJava2D) target).g2;
+		AffineTransform old = tg2.getTransform();
+		tg2.setTransform(identity);
+		tg2.drawImage(image, 0, 0, null);
+		tg2.setTransform(old);
+	}
+}
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.GeneralPath;
+
+/**
+ * A set of rectangles (in buffer pixels) that need repainting. Rectangles that
+ * touch or nearly touch are merged as they're added, and the set is kept
+ * small, since every rectangle adds to the cost of clipping.
+ *
+ * @author Greg
+ */
+public class DirtyRegion
+{
+	static final int MAX_RECTS = 8;
+	/*
+	 * Merge two rectangles if their union wastes less than this many pixels.
+	 */
+	static final int MERGE_SLACK = 64 * 64;
+
+	private Rectangle[] rects = new Rectangle[MAX_RECTS + 1];
+	private int count;
+
+	public DirtyRegion()
+	{
+		for (int i = 0; i < rects.length; i++)
+			rects[i] = new Rectangle();
+	}
+
+	public void clear()
+	{
+		count = 0;
+	}
+
+	public boolean isEmpty()
+	{
+		return count == 0;
+	}
+
+	public int size()
+	{
+		return count;
+	}
+
+	public Rectangle get(int i)
+	{
+		return rects[i];
+	}
+
+	/**
+	 * Adds the rectangle from (x1,y1) to (x2,y2), rounded outwards to whole
+	 * pixels. Empty rectangles are ignored.
+	 */
+	public void add(float x1, float y1, float x2, float y2)
+	{
+		if (!(x2 > x1 && y2 > y1))
+			return;
+		int ix = (int) Math.floor(x1);
+		int iy = (int) Math.floor(y1);
+		add(ix, iy, (int) Math.ceil(x2) - ix, (int) Math.ceil(y2) - iy);
+	}
+
+	public void add(int x, int y, int w, int h)
+	{
+		if (w <= 0 || h <= 0)
+			return;
+		Rectangle r = rects[count];
+		r.setBounds(x, y, w, h);
+		count++;
+		mergeFrom(count - 1);
+		if (count > MAX_RECTS)
+			mergeCheapestPair();
+	}
+
+	public void add(DirtyRegion o)
+	{
+		for (int i = 0; i < o.count; i++)
+		{
+			Rectangle r = o.rects[i];
+			add(r.x, r.y, r.width, r.height);
+		}
+	}
+
+	public void set(DirtyRegion o)
+	{
+		clear();
+		add(o);
+	}
+
+	/**
+	 * Clips every rectangle to (0,0,w,h), dropping any that end up empty.
+	 */
+	public void clip(int w, int h)
+	{
+		int j = 0;
+		for (int i = 0; i < count; i++)
+		{
+			Rectangle r = rects[i];
+			int x1 = Math.max(r.x, 0);
+			int y1 = Math.max(r.y, 0);
+			int x2 = Math.min(r.x + r.width, w);
+			int y2 = Math.min(r.y + r.height, h);
+			if (x2 <= x1 || y2 <= y1)
+				continue;
+			rects[j].setBounds(x1, y1, x2 - x1, y2 - y1);
+			j++;
+		}
+		count = j;
+	}
+
+	/**
+	 * The total area covered. Overlapping rectangles are counted twice, which
+	 * is fine for deciding whether a partial repaint is worthwhile.
+	 */
+	public long getArea()
+	{
+		long area = 0;
+		for (int i = 0; i < count; i++)
+			area += (long) rects[i].width * rects[i].height;
+		return area;
+	}
+
+	/**
+	 * A shape covering the region, for use as a clip.
+	 */
+	public Shape getShape()
+	{
+		if (count == 1)
+			return new Rectangle(rects[0]);
+		GeneralPath p = new GeneralPath(GeneralPath.WIND_NON_ZERO);
+		for (int i = 0; i < count; i++)
+			p.append(rects[i], false);
+		return p;
+	}
+
+	/*
+	 * Merges rectangle i with any others that it overlaps or nearly touches,
+	 * repeating until nothing more merges.
+	 */
+	private void mergeFrom(int i)
+	{
+		boolean merged = true;
+		while (merged)
+		{
+			merged = false;
+			Rectangle r = rects[i];
+			for (int j = 0; j < count; j++)
+			{
+				if (j == i)
+					continue;
+				if (wasted(r, rects[j]) <= MERGE_SLACK)
+				{
+					r.add(rects[j]);
+					i = remove(j, i);
+					merged = true;
+					break;
+				}
+			}
+		}
+	}
+
+	private void mergeCheapestPair()
+	{
+		long best = Long.MAX_VALUE;
+		int bi = 0, bj = 1;
+		for (int i = 0; i < count; i++)
+		{
+			for (int j = i + 1; j < count; j++)
+			{
+				long w = wasted(rects[i], rects[j]);
+				if (w < best)
+				{
+					best = w;
+					bi = i;
+					bj = j;
+				}
+			}
+		}
+		rects[bi].add(rects[bj]);
+		bi = remove(bj, bi);
+		mergeFrom(bi);
+	}
+
+	/*
+	 * Removes rectangle j, returning the new index of rectangle i.
+	 */
+	private int remove(int j, int i)
+	{
+		Rectangle tmp = rects[j];
+		rects[j] = rects[count - 1];
+		rects[count - 1] = tmp;
+		count--;
+		if (i == count)
+			return j;
+		return i;
+	}
+
+	private static long wasted(Rectangle a, Rectangle b)
+	{
+		int x1 = Math.min(a.x, b.x);
+		int y1 = Math.min(a.y, b.y);
+		int x2 = Math.max(a.x + a.width, b.x + b.width);
+		int y2 = Math.max(a.y + a.height, b.y + b.height);
+		long union = (long) (x2 - x1) * (y2 - y1);
+		return union - (long) a.width * a.height - (long) b.width * b.height;
+	}
+}
@@ -1,6 +1,9 @@
 package org.phylowidget.render;
 
+import java.awt.AlphaComposite;
+import java.awt.Composite;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 
@@ -8,11 +11,10 @@ import org.andrewberman.ui.UIUtils;
 import org.phylowidget.PWPlatform;
 
 import processing.core.PGraphics;
-import processing.core.PGraphicsJava2D;
 
 public class DoubleBuffer implements Runnable
 {
-	private PGraphicsJava2D dummyGraphics;
+	private TrackingGraphics dummyGraphics;
 	private BufferedImage offscreen;
 	private BufferedImage onscreen;
 	private Graphics2D offscreenG;
@@ -26,9 +28,27 @@ public class DoubleBuffer implements Runnable
 	protected boolean shouldTriggerRepaint = false;
 	Thread repaintThread;
 
+	/*
+	 * Dirty-region bookkeeping. Each frame, findChanges() says which parts of
+	 * the picture changed since the last frame. The offscreen buffer is two
+	 * frames behind (one if the last frame was skipped), so we also repaint
+	 * what changed in the frame it missed.
+	 */
+	private DirtyRegion dirty = new DirtyRegion();
+	private DirtyRegion missed = new DirtyRegion();
+	private DirtyRegion repaint = new DirtyRegion();
+	private boolean missedAll = true;
+
+	/*
+	 * The box around everything drawn in each buffer, so the blit can skip
+	 * the empty parts.
+	 */
+	private Rectangle offscreenContent = new Rectangle();
+	private Rectangle onscreenContent = new Rectangle();
+
 	public DoubleBuffer()
 	{
-		dummyGraphics = new PGraphicsJava2D();
+		dummyGraphics = new TrackingGraphics();
 		dummyGraphics.setParent(PWPlatform.getInstance().getThisAppContext().getPW());
 		repaintThread = new Thread(this, "DoubleBuffer");
 		//		repaintThread.setPriority(Thread.MIN_PRIORITY);
@@ -56,10 +76,14 @@ public class DoubleBuffer implements Runnable
 		if (onscreen != null)
 			onscreen.flush();
 		count++;
+		/*
+		 * Premultiplied, like the branch layer, so the copy onto the canvas
+		 * every frame is a plain blend with no divides.
+		 */
 		offscreen = new BufferedImage(canvas.width, canvas.height,
-				BufferedImage.TYPE_INT_ARGB);
+				BufferedImage.TYPE_INT_ARGB_PRE);
 		onscreen = new BufferedImage(canvas.width, canvas.height,
-				BufferedImage.TYPE_INT_ARGB);
+				BufferedImage.TYPE_INT_ARGB_PRE);
 		offscreenG = offscreen.createGraphics();
 		onscreenG = onscreen.createGraphics();
 		UIUtils.setRenderingHints(offscreenG);
@@ -67,6 +91,9 @@ public class DoubleBuffer implements Runnable
 
 		dummyGraphics.width = canvas.width;
 		dummyGraphics.height = canvas.height;
+		missedAll = true;
+		offscreenContent.setBounds(0, 0, canvas.width, canvas.height);
+		onscreenContent.setBounds(0, 0, canvas.width, canvas.height);
 		//		dummyGraphics.smooth();
 
 		//		UIUtils.setRenderingHints(offscreen);
@@ -89,28 +116,54 @@ public class DoubleBuffer implements Runnable
 		}
 
 		/*
-		 * Trigger a repaint in the double-buffering thread.
+		 * Trigger a repaint in the double-buffering thread, if the subclass
+		 * has asked for one since the last frame.
 		 */
 		if (shouldTriggerRepaint)
 		{
+			shouldTriggerRepaint = false;
 			triggerRepaint();
 		}
 
 		synchronized (onscreen)
 		{
 			/*
-			 *  Blit the onscreen buffer onto the current canvas.
+			 *  Blit the onscreen buffer onto the current canvas. PhyloWidget.draw()
+			 *  clears the canvas every frame, so this has to cover everything in the
+			 *  buffer, not just what changed; but it skips the empty space around
+			 *  it.
 			 */
-			canvas.loadPixels();
 //			Graphics2D g2 = (Graphics2D) canvas.getImage().getGraphics();
 			BufferedImage bi = (BufferedImage) canvas.image;
 //			BufferedImage bi = (BufferedImage) canvas.getImage();
-			Graphics2D g2 = bi.createGraphics();
-			g2.drawImage(onscreen, 0, 0, null);
-			g2.dispose();
+			Rectangle c = onscreenContent;
+			if (!c.isEmpty())
+			{
+				Graphics2D g2 = bi.createGraphics();
+				g2.drawImage(onscreen, c.x, c.y, c.x + c.width, c.y + c.height, c.x, c.y, c.x + c.width, c.y
+						+ c.height, null);
+				g2.dispose();
+			}
 		}
 	}
 
+	/**
+	 * Called from the repaint thread before each frame is drawn. Subclasses
+	 * that can tell what changed since the last frame should add the changed
+	 * areas (in buffer pixels) to the dirty region, set content to the box
+	 * around everything in the new frame and return true. Returning true with
+	 * an empty region skips the frame altogether; returning false repaints
+	 * the whole buffer.
+	 */
+	protected boolean findChanges(PGraphics g, DirtyRegion dirty, Rectangle content)
+	{
+		return false;
+	}
+
+	/**
+	 * Draws a frame into the buffer. Only the region being repainted has been
+	 * cleared, and drawing is clipped to it.
+	 */
 	public void drawToBuffer(PGraphics g)
 	{
 //		System.out.println("Draw" + System.currentTimeMillis());
@@ -120,29 +173,36 @@ public class DoubleBuffer implements Runnable
 	{
 		while (true)
 		{
-			if (stopRunning)
-				break;
-			if (shouldRepaint)
+			boolean painted = false;
+			synchronized (this)
 			{
-				synchronized (this)
+				/*
+				 * Repaints aren't asked for every frame any more, so one asked
+				 * for while we were painting mustn't be lost: wait only if
+				 * there isn't one waiting already.
+				 */
+				while (!shouldRepaint && !stopRunning)
 				{
-					dummyGraphics.image = offscreen;
-					dummyGraphics.g2 = offscreenG;
-
 					try
 					{
-						drawToBuffer(dummyGraphics);
-					} catch (Exception e)
+						wait();
+					} catch (InterruptedException e)
 					{
 						e.printStackTrace();
 					}
-					/*
-					 * These lines are important for garbage collection!!!
-					 */
-					dummyGraphics.image = null;
-					dummyGraphics.g2 = null;
 				}
+				if (stopRunning)
+					break;
+				shouldRepaint = false;
+				painted = paintFrame();
+				/*
+				 * These lines are important for garbage collection!!!
+				 */
+				dummyGraphics.setBuffer(null, null);
+			}
 
+			if (painted)
+			{
 				synchronized (onscreen)
 				{
 					/*
@@ -154,21 +214,11 @@ public class DoubleBuffer implements Runnable
 					offscreenG = onscreenG;
 					onscreen = temp;
 					onscreenG = tempG;
+					Rectangle tempR = offscreenContent;
+					offscreenContent = onscreenContent;
+					onscreenContent = tempR;
 				}
 			}
-			if (stopRunning)
-				break;
-			try
-			{
-				synchronized (this)
-				{
-					wait();
-				}
-			} catch (InterruptedException e)
-			{
-				e.printStackTrace();
-				continue;
-			}
 		}
 		dummyGraphics = null;
 		offscreen = null;
@@ -179,6 +229,73 @@ public class DoubleBuffer implements Runnable
 		repaintThread = null;
 	}
 
+	/*
+	 * Draws the next frame into the offscreen buffer, repainting only what
+	 * changed. Returns false if nothing changed, in which case the buffers
+	 * shouldn't be swapped.
+	 */
+	private boolean paintFrame()
+	{
+		if (offscreen == null)
+			return false;
+		int w = offscreen.getWidth();
+		int h = offscreen.getHeight();
+		dirty.clear();
+		boolean tracked;
+		dummyGraphics.setBuffer(offscreen, offscreenG);
+		try
+		{
+			tracked = findChanges(dummyGraphics, dirty, offscreenContent);
+		} catch (Exception e)
+		{
+			e.printStackTrace();
+			tracked = false;
+		}
+		dirty.clip(w, h);
+		if (tracked && dirty.isEmpty())
+		{
+			return false;
+		}
+
+		/*
+		 * Work out what to repaint in this buffer. If it's most of the
+		 * buffer, just do the lot.
+		 */
+		boolean all = !tracked || missedAll;
+		repaint.clear();
+		if (!all)
+		{
+			repaint.add(dirty);
+			repaint.add(missed);
+			repaint.clip(w, h);
+			if (repaint.getArea() * 2 > (long) w * h)
+				all = true;
+		}
+		missed.set(dirty);
+		missedAll = !tracked;
+		if (tracked)
+			offscreenContent.setBounds(offscreenContent.intersection(new Rectangle(0, 0, w, h)));
+		else
+			offscreenContent.setBounds(0, 0, w, h);
+
+		dummyGraphics.setBuffer(offscreen, offscreenG);
+		if (!all)
+			offscreenG.setClip(repaint.getShape());
+		Composite oldC = offscreenG.getComposite();
+		offscreenG.setComposite(AlphaComposite.Clear);
+		offscreenG.fillRect(0, 0, w, h);
+		offscreenG.setComposite(oldC);
+		try
+		{
+			drawToBuffer(dummyGraphics);
+		} catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		offscreenG.setClip(null);
+		return true;
+	}
+
 	static int count = 0;
 
 	private boolean stopRunning = false;
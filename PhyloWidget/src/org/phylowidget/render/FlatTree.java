@@ -0,0 +1,303 @@
+/**************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PhyloWidget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.util.List;
+
+import org.phylowidget.tree.PhyloNode;
+import org.phylowidget.tree.RootedTree;
+
+/**
+ * A snapshot of a tree's structure, flattened into pre-order arrays so that
+ * the layout classes can do all their arithmetic with plain loops instead of
+ * recursing through the graph.
+ * <p>
+ * Node 0 is the root. Because the arrays are in pre-order, the children of
+ * node i are found by starting at i+1 and hopping from each child c to the
+ * next one at end[c], until reaching end[i]. Every pass from the root down
+ * is a forward loop, and every pass from the leaves up is a backward loop.
+ * <p>
+ * The arrays only grow, so re-loading a tree of the same size allocates
+ * nothing beyond what RootedTree.getChildrenOf() creates.
+ *
+ * @author Greg
+ */
+public class FlatTree
+{
+	public int size;
+
+	public PhyloNode[] node = new PhyloNode[0];
+	public int[] parent = new int[0];
+	public int[] end = new int[0];
+	public boolean[] leaf = new boolean[0];
+	public boolean[] collapsed = new boolean[0];
+	public int[] numLeaves = new int[0];
+	public int[] depth = new int[0];
+	public int[] maxDepth = new int[0];
+	public double[] branchLength = new double[0];
+	public double[] height = new double[0];
+	public double[] maxHeight = new double[0];
+	public float[] mult = new float[0];
+
+	/*
+	 * The layout's output: a position and a label angle for each node. An
+	 * angle of NaN means the layout leaves that node's angle alone.
+	 */
+	public float[] x = new float[0];
+	public float[] y = new float[0];
+	public float[] angle = new float[0];
+
+	private PhyloNode[] stack = new PhyloNode[0];
+	private int[] stackParent = new int[0];
+
+	public void ensureCapacity(int n)
+	{
+		if (parent.length >= n)
+			return;
+		node = new PhyloNode[n];
+		parent = new int[n];
+		end = new int[n];
+		leaf = new boolean[n];
+		collapsed = new boolean[n];
+		numLeaves = new int[n];
+		depth = new int[n];
+		maxDepth = new int[n];
+		branchLength = new double[n];
+		height = new double[n];
+		maxHeight = new double[n];
+		mult = new float[n];
+		x = new float[n];
+		y = new float[n];
+		angle = new float[n];
+	}
+
+	/**
+	 * Flattens the tree below (and including) the given root, visiting the
+	 * children in the same order as RootedTree.getAll(). Collapsed nodes are
+	 * treated as leaves.
+	 *
+	 * @param tree
+	 * @param root
+	 * @param sizeHint
+	 *            the number of nodes we expect to find, or 0 if unknown.
+	 */
+	public void load(RootedTree tree, PhyloNode root, int sizeHint)
+	{
+		ensureCapacity(sizeHint);
+		for (int i = 0; i < size; i++)
+			node[i] = null;
+		size = 0;
+		if (root == null)
+			return;
+
+		int sp = 0;
+		if (stack.length < 16)
+		{
+			stack = new PhyloNode[16];
+			stackParent = new int[16];
+		}
+		stack[sp] = root;
+		stackParent[sp] = -1;
+		sp++;
+		while (sp > 0)
+		{
+			sp--;
+			PhyloNode v = stack[sp];
+			int p = stackParent[sp];
+			stack[sp] = null;
+
+			if (size == parent.length)
+				grow();
+			int i = size++;
+			node[i] = v;
+			parent[i] = p;
+			leaf[i] = tree.isLeaf(v);
+			collapsed[i] = tree.isCollapsed(v);
+			branchLength[i] = (p == -1) ? 0 : tree.getBranchLength(v);
+			mult[i] = 1;
+			if (leaf[i])
+			{
+				mult[i] = LayoutBase.getLayoutMult(v);
+			} else
+			{
+				List children = tree.getChildrenOf(v);
+				int num = children.size();
+				if (sp + num > stack.length)
+				{
+					int newLength = Math.max(stack.length * 2, sp + num);
+					PhyloNode[] newStack = new PhyloNode[newLength];
+					int[] newParent = new int[newLength];
+					System.arraycopy(stack, 0, newStack, 0, sp);
+					System.arraycopy(stackParent, 0, newParent, 0, sp);
+					stack = newStack;
+					stackParent = newParent;
+				}
+				for (int j = num - 1; j >= 0; j--)
+				{
+					stack[sp] = (PhyloNode) children.get(j);
+					stackParent[sp] = i;
+					sp++;
+				}
+			}
+		}
+		computeAggregates();
+	}
+
+	/**
+	 * An independent copy of the first size nodes, for a reader that needs
+	 * the tree to stay put while the layout goes on to load the next one.
+	 */
+	public FlatTree copy()
+	{
+		FlatTree t = new FlatTree();
+		int n = size;
+		t.ensureCapacity(n);
+		t.size = n;
+		System.arraycopy(node, 0, t.node, 0, n);
+		System.arraycopy(parent, 0, t.parent, 0, n);
+		System.arraycopy(end, 0, t.end, 0, n);
+		System.arraycopy(leaf, 0, t.leaf, 0, n);
+		System.arraycopy(collapsed, 0, t.collapsed, 0, n);
+		System.arraycopy(numLeaves, 0, t.numLeaves, 0, n);
+		System.arraycopy(depth, 0, t.depth, 0, n);
+		System.arraycopy(maxDepth, 0, t.maxDepth, 0, n);
+		System.arraycopy(branchLength, 0, t.branchLength, 0, n);
+		System.arraycopy(height, 0, t.height, 0, n);
+		System.arraycopy(maxHeight, 0, t.maxHeight, 0, n);
+		System.arraycopy(mult, 0, t.mult, 0, n);
+		System.arraycopy(x, 0, t.x, 0, n);
+		System.arraycopy(y, 0, t.y, 0, n);
+		System.arraycopy(angle, 0, t.angle, 0, n);
+		return t;
+	}
+
+	private void grow()
+	{
+		int n = size;
+		FlatTree copy = new FlatTree();
+		copy.ensureCapacity(Math.max(16, n * 2));
+		System.arraycopy(node, 0, copy.node, 0, n);
+		System.arraycopy(parent, 0, copy.parent, 0, n);
+		System.arraycopy(leaf, 0, copy.leaf, 0, n);
+		System.arraycopy(collapsed, 0, copy.collapsed, 0, n);
+		System.arraycopy(branchLength, 0, copy.branchLength, 0, n);
+		System.arraycopy(mult, 0, copy.mult, 0, n);
+		node = copy.node;
+		parent = copy.parent;
+		end = copy.end;
+		leaf = copy.leaf;
+		collapsed = copy.collapsed;
+		numLeaves = copy.numLeaves;
+		depth = copy.depth;
+		maxDepth = copy.maxDepth;
+		branchLength = copy.branchLength;
+		height = copy.height;
+		maxHeight = copy.maxHeight;
+		mult = copy.mult;
+		x = copy.x;
+		y = copy.y;
+		angle = copy.angle;
+	}
+
+	/**
+	 * Fills in the derived arrays (subtree ends, leaf counts, depths and
+	 * heights) from the parent, leaf and branchLength arrays. These match
+	 * the values cached by CachedRootedTree.
+	 */
+	public void computeAggregates()
+	{
+		/*
+		 * Root to leaves: a parent always comes before its children.
+		 */
+		for (int i = 0; i < size; i++)
+		{
+			int p = parent[i];
+			if (p == -1)
+			{
+				depth[i] = 0;
+				height[i] = 0;
+			} else
+			{
+				depth[i] = depth[p] + 1;
+				height[i] = height[p] + branchLength[i];
+			}
+			end[i] = i + 1;
+			numLeaves[i] = leaf[i] ? 1 : 0;
+			maxDepth[i] = 0;
+			maxHeight[i] = 0;
+			angle[i] = Float.NaN;
+		}
+		/*
+		 * Leaves to root: a node's subtree is complete by the time we reach it.
+		 */
+		for (int i = size - 1; i > 0; i--)
+		{
+			int p = parent[i];
+			if (end[i] > end[p])
+				end[p] = end[i];
+			numLeaves[p] += numLeaves[i];
+			if (maxDepth[i] + 1 > maxDepth[p])
+				maxDepth[p] = maxDepth[i] + 1;
+			if (maxHeight[i] + branchLength[i] > maxHeight[p])
+				maxHeight[p] = maxHeight[i] + branchLength[i];
+		}
+	}
+
+	/**
+	 * Creates a synthetic tree with the given number of leaves and unit
+	 * branch lengths, for testing and benchmarking the layouts. A balanced
+	 * tree splits each clade in half; otherwise, each clade splits off a
+	 * single leaf (a "caterpillar" tree, as deep as it is wide).
+	 */
+	public static FlatTree synthetic(int leaves, boolean balanced)
+	{
+		FlatTree t = new FlatTree();
+		int n = 2 * leaves - 1;
+		t.ensureCapacity(n);
+		int[] stackLeaves = new int[n];
+		int[] stackParent = new int[n];
+		int sp = 0;
+		stackLeaves[sp] = leaves;
+		stackParent[sp] = -1;
+		sp++;
+		while (sp > 0)
+		{
+			sp--;
+			int numBelow = stackLeaves[sp];
+			int i = t.size++;
+			t.parent[i] = stackParent[sp];
+			t.leaf[i] = (numBelow == 1);
+			t.collapsed[i] = false;
+			t.branchLength[i] = (i == 0) ? 0 : 1;
+			t.mult[i] = 1;
+			if (numBelow > 1)
+			{
+				int left = balanced ? numBelow / 2 : 1;
+				stackLeaves[sp] = numBelow - left;
+				stackParent[sp] = i;
+				sp++;
+				stackLeaves[sp] = left;
+				stackParent[sp] = i;
+				sp++;
+			}
+		}
+		t.computeAggregates();
+		return t;
+	}
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.andrewberman.ui.UIPlatform;
+import org.andrewberman.ui.unsorted.MethodAndFieldSetter;
+import org.phylowidget.HeadlessContext;
+import org.phylowidget.PWPlatform;
+import org.phylowidget.PhyloTree;
+import org.phylowidget.tree.RootedTree;
+import org.phylowidget.tree.TreeIO;
+import org.phylowidget.ui.PhyloConfig;
+
+import processing.core.PGraphicsJava2D;
+
+/**
+ * Renders trees straight to PNG, PDF or SVG files, without a PhyloWidget window,
+ * file dialogs or the global TreeManager camera.
+ * <p>
+ * Each HeadlessRenderer has its own context, config and BasicTreeRenderer, so
+ * several of them can render at once. There's no applet (PApplet can't even
+ * be loaded without a display), so this works with java.awt.headless=true.
+ * Since the rendering code finds its context through PWPlatform, everything
+ * apart from the constructor must be called from a thread made by
+ * createThread().
+ * <p>
+ * The settings map uses the same names as PhyloWidget's URL parameters (see
+ * PhyloConfig), e.g. "layout" = "circular" or "textColor" = "(255,0,0)".
+ *
+ * @author Greg
+ */
+public class HeadlessRenderer
+{
+	private HeadlessContext context;
+	private Map<String, String> settings;
+
+	private PhyloConfig config;
+	private BasicTreeRenderer renderer;
+
+	public HeadlessRenderer(Map<String, String> settings)
+	{
+		this.settings = new HashMap<String, String>(settings);
+		context = new HeadlessContext();
+		/*
+		 * As in PWPlatform.registerApp(), register with the base UIPlatform
+		 * too, which the shared UI code asks for its context.
+		 */
+		PWPlatform.getInstance().registerAppWithContext(null, context);
+		UIPlatform.getInstance().registerAppWithContext(null, context);
+	}
+
+	public Thread createThread(Runnable r)
+	{
+		return context.createThread(r);
+	}
+
+	/**
+	 * Creates this renderer's config and BasicTreeRenderer. Called
+	 * automatically by the first render.
+	 */
+	public void setup()
+	{
+		if (renderer != null)
+			return;
+		config = new PhyloConfig();
+		/*
+		 * Draw everything, in one go.
+		 */
+		config.renderThreshold = Integer.MAX_VALUE;
+		config.useDoubleBuffering = false;
+		config.useAnimations = false;
+		config.suppressMessages = true;
+
+		HashMap<String, String> map = new HashMap<String, String>(settings);
+		/*
+		 * These settings all act through the UI or TreeManager, which we don't
+		 * have. The layout and font are set on the renderer below.
+		 */
+		map.remove("tree");
+		map.remove("menus");
+		map.remove("clipboard");
+		map.remove("search");
+		String font = map.remove("font");
+		MethodAndFieldSetter.setMethodsAndFields(config, map);
+		context.setConfig(config);
+
+		renderer = new BasicTreeRenderer(context);
+		renderer.setLayout(createLayout(config.layout));
+		if (font != null)
+			renderer.getFontLoader().setFont(font);
+	}
+
+	static LayoutBase createLayout(String s)
+	{
+		s = s.toLowerCase();
+		if (s.equals("diagonal"))
+			return new LayoutDiagonal();
+		else if (s.equals("circular"))
+			return new LayoutCircular();
+		else if (s.equals("unrooted"))
+			return new LayoutUnrooted();
+		else
+			return new LayoutCladogram();
+	}
+
+	/**
+	 * Parses a tree file (Newick, NHX or Nexus) and renders it.
+	 */
+	public void renderFile(File in, File out, String format, int w, int h) throws Exception
+	{
+		setup();
+		RootedTree t;
+		/*
+		 * TreeIO keeps some of its parsing state in static fields.
+		 */
+		synchronized (TreeIO.class)
+		{
+			t = TreeIO.parseFile(new PhyloTree(), in);
+		}
+		if (t == null)
+			throw new Exception("Couldn't read a tree from " + in);
+		render(t, out, format, w, h);
+	}
+
+	/**
+	 * Parses a Newick or NHX string and renders it.
+	 */
+	public void renderString(String s, File out, String format, int w, int h) throws Exception
+	{
+		setup();
+		RootedTree t;
+		synchronized (TreeIO.class)
+		{
+			t = TreeIO.parseNewickString(new PhyloTree(), s);
+		}
+		render(t, out, format, w, h);
+	}
+
+	/**
+	 * Renders a tree to a w by h image, written as "png", "pdf" or "svg".
+	 */
+	public void render(RootedTree t, File out, String format, int w, int h) throws Exception
+	{
+		setup();
+		boolean png = format.equalsIgnoreCase("png");
+		renderer.setTree(t);
+		if (!png)
+		{
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 1 << 16);
+			try
+			{
+				new VectorExporter().export(null, renderer, VectorExporter.createWriter(format, os), w, h, 0, 0, w, h);
+			} finally
+			{
+				os.close();
+			}
+			return;
+		}
+
+		PGraphicsJava2D canvas = RenderOutput.offscreen(null, w, h);
+		try
+		{
+			canvas.beginDraw();
+			RenderOutput.prettyHints(canvas);
+			canvas.background(config.getBackgroundColor().getRGB());
+			renderer.render(canvas, 0, 0, w, h, true);
+			canvas.endDraw();
+			ImageIO.write((BufferedImage) canvas.image, "png", out);
+		} finally
+		{
+			canvas.g2.dispose();
+		}
+	}
+
+	/**
+	 * Stops the renderer and unregisters this renderer's context.
+	 */
+	public void dispose()
+	{
+		if (renderer != null)
+			renderer.dispose();
+		renderer = null;
+		PWPlatform.getInstance().unregisterContext(context);
+		UIPlatform.getInstance().unregisterContext(context);
+	}
+}
@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import processing.core.PConstants;
+import processing.core.PFont;
+import processing.core.PGraphicsJava2D;
+
+/**
+ * Laid-out labels, kept from one frame to the next. Processing lays a label
+ * out from scratch every time it's drawn (and measures it again afterwards),
+ * even though the labels hardly ever change while the view is zoomed and
+ * panned; here each label is turned into a <code>GlyphVector</code> once and
+ * reused.
+ * <p>
+ * Glyph runs are made at sizes rounded to the nearest quarter point, and
+ * scaled to the exact size when drawn, so a smooth zoom doesn't make a new
+ * run every frame. The least recently drawn runs are dropped once the cache
+ * holds more than its memory budget (an estimate, based on the number of
+ * glyphs).
+ *
+ * @author Greg
+ */
+public class LabelGlyphCache
+{
+	/*
+	 * Sizes are rounded to multiples of 1/STEPS of a point.
+	 */
+	static final int STEPS = 4;
+
+	private long maxBytes;
+	private long bytes;
+
+	private LinkedHashMap<Key, Run> runs = new LinkedHashMap<Key, Run>(256, 0.75f, true);
+	private HashMap<Integer, Font> fonts = new HashMap<Integer, Font>();
+
+	private PFont pfont;
+	private String fontName;
+	private int fontStyle;
+	private FontRenderContext frc;
+
+	/*
+	 * Reused for lookups, so a hit doesn't allocate anything.
+	 */
+	private Key probe = new Key();
+	private AffineTransform at = new AffineTransform();
+
+	int hits;
+	int misses;
+
+	public LabelGlyphCache(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Draws a single line of text onto the canvas, the same way canvas.text(s,
+	 * x, y) would with the canvas's current font, size, fill and horizontal
+	 * alignment. Returns the width of the text, or -1 if the canvas has no
+	 * native font to draw with, in which case nothing was drawn.
+	 */
+	public float draw(PGraphicsJava2D canvas, String s, float x, float y)
+	{
+		Run run = get(canvas, s);
+		if (run == null)
+			return -1;
+		float scale = canvas.textSize / run.size;
+		float w = run.width * scale;
+		if (canvas.textAlign == PConstants.RIGHT)
+			x -= w;
+		else if (canvas.textAlign == PConstants.CENTER)
+			x -= w / 2;
+
+		Graphics2D g2 = canvas.g2;
+		Object aa = g2.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+		if (aa == null)
+			aa = RenderingHints.VALUE_ANTIALIAS_DEFAULT;
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, canvas.textFont.smooth ? RenderingHints.VALUE_ANTIALIAS_ON
+				: RenderingHints.VALUE_ANTIALIAS_OFF);
+		g2.setColor(new Color(canvas.fillColor, true));
+		AffineTransform old = g2.getTransform();
+		at.setTransform(old);
+		at.translate(x, y);
+		at.scale(scale, scale);
+		g2.setTransform(at);
+		g2.drawGlyphVector(run.glyphs, 0, 0);
+		g2.setTransform(old);
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, aa);
+		return w;
+	}
+
+	/**
+	 * The width the text would be drawn at by draw(), or -1 if it can't be
+	 * drawn from the cache.
+	 */
+	public float getWidth(PGraphicsJava2D canvas, String s)
+	{
+		Run run = get(canvas, s);
+		if (run == null)
+			return -1;
+		return run.width * canvas.textSize / run.size;
+	}
+
+	public void clear()
+	{
+		runs.clear();
+		fonts.clear();
+		bytes = 0;
+		pfont = null;
+		frc = null;
+	}
+
+	public long getBytes()
+	{
+		return bytes;
+	}
+
+	public int size()
+	{
+		return runs.size();
+	}
+
+	private Run get(PGraphicsJava2D canvas, String s)
+	{
+		PFont pf = canvas.textFont;
+		if (pf == null || s == null || s.indexOf('\n') != -1)
+			return null;
+		Font f = pf.getFont();
+		if (f == null)
+			return null;
+		if (pf != pfont || !f.getName().equals(fontName) || f.getStyle() != fontStyle
+				|| !sameContext(canvas.g2))
+		{
+			clear();
+			pfont = pf;
+			fontName = f.getName();
+			fontStyle = f.getStyle();
+			frc = new FontRenderContext(null, canvas.textFont.smooth, fractionalMetrics(canvas.g2));
+		}
+
+		int bucket = Math.max(1, Math.round(canvas.textSize * STEPS));
+		probe.set(s, bucket);
+		Run run = runs.get(probe);
+		if (run != null)
+		{
+			hits++;
+			return run;
+		}
+		misses++;
+
+		Integer b = new Integer(bucket);
+		Font sized = fonts.get(b);
+		if (sized == null)
+		{
+			sized = f.deriveFont((float) bucket / STEPS);
+			fonts.put(b, sized);
+		}
+		run = new Run();
+		run.glyphs = sized.createGlyphVector(frc, s);
+		run.size = sized.getSize2D();
+		run.width = (float) run.glyphs.getLogicalBounds().getWidth();
+		run.bytes = 96 + 2 * s.length() + 32 * run.glyphs.getNumGlyphs();
+		runs.put(new Key(s, bucket), run);
+		bytes += run.bytes;
+		trim();
+		return run;
+	}
+
+	/*
+	 * Drops the least recently drawn runs until we're back under budget.
+	 */
+	private void trim()
+	{
+		Iterator<Run> it = runs.values().iterator();
+		while (bytes > maxBytes && it.hasNext())
+		{
+			bytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	private boolean sameContext(Graphics2D g2)
+	{
+		return frc != null && frc.isAntiAliased() == pfont.smooth
+				&& frc.usesFractionalMetrics() == fractionalMetrics(g2);
+	}
+
+	private static boolean fractionalMetrics(Graphics2D g2)
+	{
+		return g2.getRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS) == RenderingHints.VALUE_FRACTIONALMETRICS_ON;
+	}
+
+	static class Key
+	{
+		String s;
+		int bucket;
+		int hash;
+
+		Key()
+		{
+		}
+
+		Key(String s, int bucket)
+		{
+			set(s, bucket);
+		}
+
+		void set(String s, int bucket)
+		{
+			this.s = s;
+			this.bucket = bucket;
+			hash = s.hashCode() * 31 + bucket;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return k.bucket == bucket && k.s.equals(s);
+		}
+	}
+
+	static class Run
+	{
+		GlyphVector glyphs;
+		float size;
+		float width;
+		int bytes;
+	}
+}
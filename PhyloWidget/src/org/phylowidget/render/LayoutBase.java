@@ -9,7 +9,6 @@ import org.phylowidget.tree.PhyloNode;
 import org.phylowidget.tree.RootedTree;
 import org.phylowidget.ui.PhyloConfig;
 
-import processing.core.PApplet;
 import processing.core.PGraphics;
 
 public abstract class LayoutBase
@@ -40,6 +39,13 @@ public abstract class LayoutBase
 	
 	float drawScaleX;
 	float drawScaleY;
+
+	/*
+	 * The tree being laid out, flattened into arrays. Subclasses compute
+	 * positions into flat.x and flat.y (and angles into flat.angle), which
+	 * are then copied onto the nodes in one go by publish().
+	 */
+	protected FlatTree flat = new FlatTree();
 	
 	public void layout(RootedTree tree, PhyloNode[] leaves, PhyloNode[] nodes)
 	{
@@ -58,7 +64,9 @@ public abstract class LayoutBase
 		else
 			angleHandling = ANGLE_NONE;
 
+		flat.load(tree, (PhyloNode) tree.getRoot(), nodes.length);
 		layoutImpl();
+		publish();
 		
 		// Now, take the arbitrarily-scaled layout and transform it to fit into the unit square (0,1).
 		rect.setFrame(loX, loY, hiX - loX, hiY - loY);
@@ -67,7 +75,7 @@ public abstract class LayoutBase
 		scaleX = 1f / rect.width;
 		scaleY = 1f / rect.height;
 		
-		float scale = PApplet.min(scaleX,scaleY);
+		float scale = Math.min(scaleX, scaleY);
 		if (Float.isInfinite(scale))
 			scaleX = scaleY = scale = 0;
 		else
@@ -104,6 +112,66 @@ public abstract class LayoutBase
 		}
 	}
 
+	/**
+	 * Stores the bounding box of each node's entire subtree into its
+	 * subtreeRange. The box covers both the start and the target of each
+	 * node's position tween, so it stays valid while the layout animates.
+	 */
+	public void layoutSubtreeBounds()
+	{
+		for (int i = 0; i < flat.size; i++)
+		{
+			PhyloNode n = flat.node[i];
+			NodeRange r = n.subtreeRange;
+			float x0 = n.getBeginX();
+			float x1 = n.getTargetX();
+			float y0 = n.getBeginY();
+			float y1 = n.getTargetY();
+			r.loX = Math.min(x0, x1);
+			r.hiX = Math.max(x0, x1);
+			r.loY = Math.min(y0, y1);
+			r.hiY = Math.max(y0, y1);
+			n.subtreeTextWidth = n.unitTextWidth;
+		}
+		/*
+		 * Walking the pre-order arrays backwards visits every node after all of its
+		 * descendants, so each subtree is complete by the time it's merged upwards.
+		 */
+		for (int i = flat.size - 1; i > 0; i--)
+		{
+			PhyloNode n = flat.node[i];
+			PhyloNode p = flat.node[flat.parent[i]];
+			NodeRange r = n.subtreeRange;
+			NodeRange pr = p.subtreeRange;
+			if (r.loX < pr.loX)
+				pr.loX = r.loX;
+			if (r.hiX > pr.hiX)
+				pr.hiX = r.hiX;
+			if (r.loY < pr.loY)
+				pr.loY = r.loY;
+			if (r.hiY > pr.hiY)
+				pr.hiY = r.hiY;
+			if (n.subtreeTextWidth > p.subtreeTextWidth)
+				p.subtreeTextWidth = n.subtreeTextWidth;
+		}
+	}
+
+	/**
+	 * Copies the positions and angles computed by layoutImpl() from the flat
+	 * arrays onto the nodes themselves.
+	 */
+	protected void publish()
+	{
+		for (int i = 0; i < flat.size; i++)
+		{
+			PhyloNode n = flat.node[i];
+			float theta = flat.angle[i];
+			if (!Float.isNaN(theta))
+				setAngle(n, theta);
+			setPosition(n, flat.x[i], flat.y[i]);
+		}
+	}
+
 	protected void setPosition(PhyloNode n, float newX, float newY)
 	{
 		n.setPosition(newX, newY);
@@ -122,6 +190,12 @@ public abstract class LayoutBase
 
 	protected abstract void layoutImpl();
 
+	/**
+	 * Computes the layout of the given flattened tree into its x, y and angle
+	 * arrays, without touching the nodes themselves.
+	 */
+	abstract void layoutFlat(FlatTree t);
+
 	private Rectangle2D.Float rect = new Rectangle2D.Float();
 
 	static final boolean between(float a, float lo, float hi)
@@ -137,8 +211,7 @@ public abstract class LayoutBase
 		theta += (float)TWOPI;
 		theta %= (float)TWOPI;
 		n.setAngle(theta);
-		String s = n.getAnnotation("collapse");
-		if (s != null && PhyloNode.parseTruth(s))
+		if (n.isCollapsed())
 		{
 			return;
 		}
@@ -156,7 +229,7 @@ public abstract class LayoutBase
 		}
 	}
 
-	protected float getLayoutMult(PhyloNode n)
+	static float getLayoutMult(PhyloNode n)
 	{
 		float lm = 1;
 		String layoutSize = n.getAnnotation("layout_size");
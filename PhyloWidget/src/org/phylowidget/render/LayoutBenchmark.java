@@ -0,0 +1,186 @@
+/**************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PhyloWidget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.util.ArrayList;
+
+import org.phylowidget.PhyloTree;
+import org.phylowidget.tree.PhyloNode;
+
+/**
+ * Times each layout's arithmetic on synthetic balanced and caterpillar trees
+ * of increasing size. Run it from the command line; it doesn't need a running
+ * PhyloWidget.
+ * <p>
+ * It also times loading a real 100,000-node tree into a FlatTree, the part of
+ * layout that asks the tree whether each node is a leaf, and compares reading
+ * each node's collapsed flag with parsing its "collapse" annotation (as the
+ * leaf test used to).
+ *
+ * @author Greg
+ */
+public class LayoutBenchmark
+{
+	static final int[] SIZES = new int[] { 1000, 10000, 100000, 1000000 };
+
+	static final int WARMUP = 5;
+	static final int RUNS = 10;
+
+	public static void main(String[] args)
+	{
+		LayoutCladogram clado = new LayoutCladogram();
+		LayoutDiagonal diag = new LayoutDiagonal();
+		LayoutCircular circ = new LayoutCircular();
+		LayoutUnrooted unroot = new LayoutUnrooted();
+
+		System.out.println("leaves\tshape\taggregate\tclado\tdiag\tcirc\tunroot\t(ms per run)");
+		for (int i = 0; i < SIZES.length; i++)
+		{
+			for (int shape = 0; shape < 2; shape++)
+			{
+				boolean balanced = (shape == 0);
+				FlatTree t = FlatTree.synthetic(SIZES[i], balanced);
+
+				StringBuffer sb = new StringBuffer();
+				sb.append(SIZES[i]).append('\t');
+				sb.append(balanced ? "balanced" : "caterpillar").append('\t');
+				sb.append(time(t, null)).append('\t');
+				sb.append(time(t, clado)).append('\t');
+				sb.append(time(t, diag)).append('\t');
+				sb.append(time(t, circ)).append('\t');
+				sb.append(time(t, unroot));
+				System.out.println(sb.toString());
+			}
+		}
+
+		PhyloTree tree = balancedTree(50000);
+		ArrayList<PhyloNode> nodes = new ArrayList<PhyloNode>();
+		tree.getAll(tree.getRoot(), null, nodes);
+		System.out.println();
+		System.out.println("nodes	load	collapsed flag	collapse annotation	(ms per run)");
+		StringBuffer sb = new StringBuffer();
+		sb.append(nodes.size()).append('\t');
+		sb.append(timeLoad(tree, nodes.size())).append('\t');
+		sb.append(timeCollapsed(nodes, false)).append('\t');
+		sb.append(timeCollapsed(nodes, true));
+		System.out.println(sb.toString());
+	}
+
+	static PhyloTree balancedTree(int leaves)
+	{
+		PhyloTree tree = new PhyloTree();
+		tree.setHoldCalculations(true);
+		PhyloNode root = newNode(tree);
+		tree.setRoot(root);
+		ArrayList<PhyloNode> open = new ArrayList<PhyloNode>();
+		ArrayList<Integer> below = new ArrayList<Integer>();
+		open.add(root);
+		below.add(leaves);
+		while (!open.isEmpty())
+		{
+			PhyloNode v = open.remove(open.size() - 1);
+			int n = below.remove(below.size() - 1);
+			if (n == 1)
+				continue;
+			for (int half = 0; half < 2; half++)
+			{
+				PhyloNode c = newNode(tree);
+				tree.addEdge(v, c);
+				open.add(c);
+				below.add(half == 0 ? n / 2 : n - n / 2);
+			}
+		}
+		tree.setHoldCalculations(false);
+		return tree;
+	}
+
+	/*
+	 * Each node's labelled before it's added, so it doesn't need a unique
+	 * label made up for it.
+	 */
+	static PhyloNode newNode(PhyloTree tree)
+	{
+		PhyloNode n = tree.createVertex();
+		n.setLabel("n" + tree.vertexSet().size());
+		if (tree.vertexSet().size() % 2 == 0)
+			n.setAnnotation("s", "Homo sapiens");
+		tree.addVertex(n);
+		return n;
+	}
+
+	static String timeLoad(PhyloTree tree, int size)
+	{
+		FlatTree t = new FlatTree();
+		for (int i = 0; i < WARMUP; i++)
+			t.load(tree, (PhyloNode) tree.getRoot(), size);
+		long start = System.nanoTime();
+		for (int i = 0; i < RUNS; i++)
+			t.load(tree, (PhyloNode) tree.getRoot(), size);
+		double ms = (System.nanoTime() - start) / 1e6 / RUNS;
+		return String.valueOf(Math.round(ms * 100) / 100.0);
+	}
+
+	static int sink;
+
+	static String timeCollapsed(ArrayList<PhyloNode> nodes, boolean parse)
+	{
+		long start = 0;
+		for (int i = 0; i < WARMUP + RUNS; i++)
+		{
+			if (i == WARMUP)
+				start = System.nanoTime();
+			int count = 0;
+			for (int j = 0; j < nodes.size(); j++)
+			{
+				PhyloNode n = nodes.get(j);
+				boolean c;
+				if (parse)
+				{
+					String s = n.getAnnotation("collapse");
+					c = s != null && PhyloNode.parseTruth(s);
+				} else
+					c = n.isCollapsed();
+				if (c)
+					count++;
+			}
+			sink += count;
+		}
+		double ms = (System.nanoTime() - start) / 1e6 / RUNS;
+		return String.valueOf(Math.round(ms * 1000) / 1000.0);
+	}
+
+	static String time(FlatTree t, LayoutBase layout)
+	{
+		for (int i = 0; i < WARMUP; i++)
+			run(t, layout);
+		long start = System.nanoTime();
+		for (int i = 0; i < RUNS; i++)
+			run(t, layout);
+		double ms = (System.nanoTime() - start) / 1e6 / RUNS;
+		return String.valueOf(Math.round(ms * 100) / 100.0);
+	}
+
+	static void run(FlatTree t, LayoutBase layout)
+	{
+		if (layout == null)
+			t.computeAggregates();
+		else
+			layout.layoutFlat(t);
+	}
+}
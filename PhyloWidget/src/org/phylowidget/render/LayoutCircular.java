@@ -1,7 +1,6 @@
 package org.phylowidget.render;
 
 import java.util.HashMap;
-import java.util.List;
 
 import org.andrewberman.ui.Color;
 import org.andrewberman.ui.UIUtils;
@@ -18,29 +17,87 @@ public class LayoutCircular extends LayoutBase
 	float depthToLeaves;
 
 	PhyloNode root;
-	float rootX;
-	float rootY;
+
+	float startAngle = STARTING_ANGLE;
+	boolean useBranchLengths;
 
 	HashMap<PhyloNode, AngleRadius> nodeToAngleRadius = new HashMap<PhyloNode, AngleRadius>();
 
 	public synchronized void layoutImpl()
 	{
-			numLeaves = leaves.length;
-			curAngle = STARTING_ANGLE + context.config().layoutAngle / 360f * (float)Math.PI*2f;
-			double index = 0;
+			startAngle = STARTING_ANGLE + context.config().layoutAngle / 360f * (float)Math.PI*2f;
+			useBranchLengths = context.config().useBranchLengths;
 			for (PhyloNode leaf : leaves)
 			{
-				index+= getLayoutMult(leaf)/2;
 				leaf.setTextAlign(PhyloNode.ALIGN_LEFT);
-				leafPosition(leaf, index);
-//				index+= getLayoutMult(leaf)/2;
-				index++;
 			}
+			layoutFlat(flat);
 
-			branchPosition((PhyloNode) tree.getRoot());
+			/*
+			 * Keep each node's angle and radius around for drawing the arcs,
+			 * re-using the entries from the last layout where we can.
+			 */
+			for (int i = 0; i < flat.size; i++)
+			{
+				PhyloNode n = flat.node[i];
+				AngleRadius ar = nodeToAngleRadius.get(n);
+				if (ar == null)
+				{
+					ar = new AngleRadius(0, 0);
+					nodeToAngleRadius.put(n, ar);
+				}
+				ar.angle = flat.angle[i];
+				if (flat.leaf[i])
+				{
+					ar.radius = 1;
+					ar.leafRadius = 1;
+					if (useBranchLengths)
+						ar.leafRadius = calcRadius(flat, i);
+				} else
+				{
+					ar.radius = calcRadius(flat, i);
+					ar.leafRadius = 0;
+				}
+			}
 			root = (PhyloNode) tree.getRoot();
-			rootX = ((PhyloNode) tree.getRoot()).getX();
-			rootY = ((PhyloNode) tree.getRoot()).getY();
+	}
+
+	/**
+	 * Lays out the flattened tree. Leaves go on the unit circle, and each
+	 * branch node is placed at the mean angle of its children, at a radius
+	 * given by its depth (or height) in the tree.
+	 */
+	void layoutFlat(FlatTree t)
+	{
+		numLeaves = t.numLeaves[0];
+		for (int i = 0; i < t.size; i++)
+		{
+			if (!t.leaf[i])
+				continue;
+			float theta = startAngle;
+			float radius = 1;
+			t.x[i] = (float) Math.cos(theta) * radius;
+			t.y[i] = (float) Math.sin(theta) * radius;
+			t.angle[i] = theta;
+		}
+
+		for (int i = t.size - 1; i >= 0; i--)
+		{
+			if (t.leaf[i])
+				continue;
+			float sum = 0;
+			float count = 0;
+			for (int c = i + 1; c < t.end[i]; c = t.end[c])
+			{
+				sum += t.angle[c];
+				count++;
+			}
+			float radius = calcRadius(t, i);
+			float theta = sum / count;
+			t.x[i] = (float) Math.cos(theta) * radius;
+			t.y[i] = (float) Math.sin(theta) * radius;
+			t.angle[i] = theta;
+		}
 	}
 
 	@Override
@@ -110,42 +167,6 @@ public class LayoutCircular extends LayoutBase
 		return (float) Math.sqrt((bX - aX) * (bX - aX) + (bY - aY) * (bY - aY));
 	}
 
-	private float branchPosition(PhyloNode n)
-	{
-		if (tree.isLeaf(n))
-		{
-			// If N is a leaf, then it's already been laid out.
-			float theta = nodeToAngleRadius.get(n).angle;
-			//			setAngle(n,theta);
-			return theta;
-		} else
-		{
-			// If not:
-			// theta should be the average of its children's thetas
-			List children = tree.getChildrenOf(n);
-			float sum = 0;
-			float count = 0;
-			for (int i = 0; i < children.size(); i++)
-			{
-				PhyloNode child = (PhyloNode) children.get(i);
-				sum += branchPosition(child);
-				count++;
-			}
-			// Find the radius.
-			float radius = calcRadius(n);
-			float theta = (float) sum / (float) count;
-
-			// Convert radius and theta into x,y.
-			float x = (float) Math.cos(theta) * radius;
-			float y = (float) Math.sin(theta) * radius;
-
-			setPosition(n, x, y);
-			setAngle(n, theta);
-			nodeToAngleRadius.put(n, new AngleRadius(theta, radius));
-			return theta;
-		}
-	}
-
 	/*
 	 * Find the smallest angle between two angles.
 	 */
@@ -195,44 +216,17 @@ public class LayoutCircular extends LayoutBase
 	
 	static float PI = (float)Math.PI;
 	static float TWOPI = (float)Math.PI*2;
-	float curAngle;
-	private void leafPosition(PhyloNode n, double index)
-	{
-		/**
-		 * Set the leaf position.
-		 */
-		float theta = curAngle;
-//		curAngle += 1f / (float)numLeaves * (float)Math.PI*2f;
-//		curAngle = (float) index / (float) numLeaves * (float) Math.PI * 2f;
-//		theta += startingAngle;
-//		theta = theta % (float)Math.PI * 2f;
-		float radius = 1;
-		float leafRadius = 1;
-		if (context.config().useBranchLengths)
-			leafRadius = calcRadius(n);
-
-		float yPos = (float) Math.sin(theta) * radius;
-		float xPos = (float) Math.cos(theta) * radius;
-		//		if (context.config().useBranchLengths)
-		//		xPos = calcXPosition(n);
-		setPosition(n, xPos, yPos);
-		setAngle(n, theta);
-		nodeToAngleRadius.put(n, new AngleRadius(theta, radius, leafRadius));
-	}
-
-	private float calcRadius(PhyloNode n)
+	private float calcRadius(FlatTree t, int i)
 	{
-		if (context.config().useBranchLengths)
+		if (i == 0)
+			return 0;
+		if (useBranchLengths)
 		{
-			if (tree.isRoot(n))
-				return 0;
-			float asdf = (float) tree.getHeightToRoot(n) / (float) tree.getMaxHeightToLeaf(tree.getRoot());
+			float asdf = (float) t.height[i] / (float) t.maxHeight[0];
 			return asdf;
 		} else
 		{
-			if (tree.isRoot(n))
-				return 0;
-			float md = 1f - (float) tree.getMaxDepthToLeaf(n) / (float) tree.getMaxDepthToLeaf(tree.getRoot());
+			float md = 1f - (float) t.maxDepth[i] / (float) t.maxDepth[0];
 			return md;
 		}
 	}
@@ -16,34 +16,69 @@ public class LayoutCladogram extends LayoutBase
 	int numLeaves;
 	float depthLeafRatio;
 
-	float totalLayoutHeight;
+	float branchScaling = 1;
+	boolean useBranchLengths;
 	
 	public synchronized void layoutImpl()
 	{
-		numLeaves = leaves.length;
-		float maxDepth = tree.getMaxDepthToLeaf(tree.getRoot());
+		branchScaling = context.config().branchScaling;
+		useBranchLengths = context.config().useBranchLengths;
+		for (PhyloNode leaf : leaves)
+		{
+			leaf.setTextAlign(PhyloNode.ALIGN_LEFT);
+		}
+		layoutFlat(flat);
+	}
+
+	/**
+	 * Lays out the flattened tree: leaves are spaced evenly (weighted by their
+	 * layout_size) down the page, and each branch node sits at the mean height
+	 * of its children.
+	 */
+	void layoutFlat(FlatTree t)
+	{
+		numLeaves = t.numLeaves[0];
+		float maxDepth = t.maxDepth[0];
 		depthLeafRatio = maxDepth / numLeaves;
 
-		depthLeafRatio *= context.config().branchScaling;
+		depthLeafRatio *= branchScaling;
 
-		totalLayoutHeight = 0;
-		for (PhyloNode leaf : leaves)
+		if (useBranchLengths && t.maxHeight[0] == 0)
 		{
-			totalLayoutHeight += getLayoutMult(leaf);
+			System.out.println("Tree height is zero!");
 		}
-		
+
 		double index = 0;
-		PhyloNode previousLeaf = null;
-		for (PhyloNode leaf : leaves)
+		for (int i = 0; i < t.size; i++)
 		{
-			index+= getLayoutMult(leaf)/2;
-			leaf.setTextAlign(PhyloNode.ALIGN_LEFT);
-			leafPosition(leaf, previousLeaf, index);
-			index+= getLayoutMult(leaf)/2;
-			previousLeaf = leaf;
+			if (!t.leaf[i])
+				continue;
+			index += t.mult[i] / 2;
+			t.y[i] = (float) (index + .5f) / (float) numLeaves;
+			t.x[i] = calcXPosition(t, i);
+			t.angle[i] = 0;
+			index += t.mult[i] / 2;
 		}
 
-		branchPosition((PhyloNode) tree.getRoot());
+		/*
+		 * Y coordinate of each branch node should be the average of its
+		 * children's heights.
+		 */
+		for (int i = t.size - 1; i >= 0; i--)
+		{
+			if (t.leaf[i])
+				continue;
+			float sum = 0;
+			float count = 0;
+			for (int c = i + 1; c < t.end[i]; c = t.end[c])
+			{
+				sum += t.y[c];
+				count++;
+			}
+			t.y[i] = sum / count;
+			t.x[i] = calcXPosition(t, i);
+			t.angle[i] = 0;
+		}
 	}
 
 	public void drawSquareLine(PGraphics canvas, PhyloNode p, PhyloNode c)
@@ -207,72 +242,17 @@ public class LayoutCladogram extends LayoutBase
 		}
 	}
 
-	private float branchPosition(PhyloNode n)
+	private float calcXPosition(FlatTree t, int i)
 	{
-		setAngle(n, 0);
-
-		if (tree.isLeaf(n))
-		{
-			// If N is a leaf, then it's already been laid out.
-			return n.getTargetY();
-		} else
+		if (i == 0)
+			return 0;
+		if (useBranchLengths)
 		{
-			// If not:
-			// Y coordinate should be the average of its children's heights
-			List children = tree.getChildrenOf(n);
-			float sum = 0;
-			float count = 0;
-			for (int i = 0; i < children.size(); i++)
-			{
-				PhyloNode child = (PhyloNode) children.get(i);
-				sum += branchPosition(child);
-				count++;
-			}
-			float yPos = (float) sum / (float) count;
-			float xPos = 1;
-			xPos = calcXPosition(n);
-			setPosition(n, xPos, yPos);
-			return yPos;
-		}
-	}
-
-	private void leafPosition(PhyloNode n, PhyloNode previousLeaf, double index)
-	{
-		/**
-		 * Set the leaf position.
-		 */
-		float yPos = ((float) (index + .5f) / (float) (numLeaves));
-//		float yPos = 0;
-//		float addedPos = 0;
-//		if (previousLeaf != null)
-//		{
-//			yPos = previousLeaf.getLayoutY();
-//			addedPos = getLayoutMult(previousLeaf)/2;
-//		}
-//		addedPos += getLayoutMult(n)/2;
-		float xPos = calcXPosition(n);
-		setPosition(n,xPos,yPos);
-//		setPosition(n, xPos, yPos+addedPos/totalLayoutHeight);
-	}
-
-	private float calcXPosition(PhyloNode n)
-	{
-		if (context.config().useBranchLengths)
-		{
-			if (tree.isRoot(n))
-				return 0;
-			float asdf = 0;
-			if (tree.getMaxHeightToLeaf(tree.getRoot()) == 0)
-			{
-				System.out.println("Tree height is zero!");
-			}
-			asdf = (float) tree.getHeightToRoot(n) / (float) tree.getMaxHeightToLeaf(tree.getRoot());
+			float asdf = (float) t.height[i] / (float) t.maxHeight[0];
 			return asdf * depthLeafRatio;
 		} else
 		{
-			if (tree.isRoot(n))
-				return 0;
-			float md = 1f - (float) tree.getMaxDepthToLeaf(n) / (float) tree.getMaxDepthToLeaf(tree.getRoot());
+			float md = 1f - (float) t.maxDepth[i] / (float) t.maxDepth[0];
 			return md * depthLeafRatio;
 		}
 	}
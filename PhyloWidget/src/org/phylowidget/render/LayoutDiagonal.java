@@ -1,8 +1,5 @@
 package org.phylowidget.render;
 
-import java.util.Collections;
-import java.util.List;
-
 import org.phylowidget.PhyloWidget;
 import org.phylowidget.tree.PhyloNode;
 import org.phylowidget.tree.RootedTree;
@@ -15,117 +12,81 @@ public class LayoutDiagonal extends LayoutBase
 	
 	public void layoutImpl()
 	{
-		numLeaves = leaves.length;
+		layoutFlat(flat);
+	}
+	
+	/**
+	 * Lays out the flattened tree: leaves are spaced evenly down the page, and
+	 * each branch node is placed according to how many leaves it encloses.
+	 */
+	void layoutFlat(FlatTree t)
+	{
+		numLeaves = t.numLeaves[0];
 		
 		double index = 0;
-		for (PhyloNode leaf : leaves)
+		for (int i = 0; i < t.size; i++)
 		{
-//			index+= getLayoutMult(leaf)/2;
-			leafPosition(leaf,index);
-//			index+= getLayoutMult(leaf)/2;
+			if (!t.leaf[i])
+				continue;
+			t.y[i] = (float) (index + .5f) / (float) (numLeaves);
+			t.x[i] = calcXPosition(t, i);
+			t.angle[i] = 0;
 			index++;
 		}
 		
-		branchPosition((PhyloNode)tree.getRoot());
-	}
-	
-	@Override
-	public void drawLine(PGraphics canvas, PhyloNode p, PhyloNode c)
-	{
-		canvas.line(c.getX(), c.getY(), p.getX(),p.getY());
-	}
-	
-	protected float branchPosition(PhyloNode n)
-	{
-		setAngle(n,0);
-		
-		if (tree.isLeaf(n))
-			// If N is a leaf, then it's already been laid out.
-			return 0;
 		/*
-		 * Do the children first.
+		 * Do the children first, by working backwards through the pre-order.
 		 */
-		List<PhyloNode> children = tree.getChildrenOf(n);
-		for (int i=0; i < children.size(); i++)
-		{
-			PhyloNode child = children.get(i);
-//			if (!tree.shouldKeep(child))
-//			{
-//				children.remove(i);
-//				i--;
-//			}
-		}
-		for (int i = 0; i < children.size(); i++)
+		float stepSize = 1f / (numLeaves);
+		for (int i = t.size - 1; i >= 0; i--)
 		{
-			PhyloNode child = (PhyloNode) children.get(i);
-			branchPosition(child);
+			if (t.leaf[i])
+				continue;
+			/*
+			 * Now, let's put on our thinking caps and try to lay ourselves out
+			 * correctly.
+			 */
+			int loChild = -1;
+			int hiChild = -1;
+			for (int c = i + 1; c < t.end[i]; c = t.end[c])
+			{
+				if (loChild == -1 || t.y[c] < t.y[loChild])
+					loChild = c;
+				if (hiChild == -1 || t.y[c] > t.y[hiChild])
+					hiChild = c;
+			}
+			/*
+			 * Find the max depth of each child, and project where the "lower" child
+			 * would be in the y axis if it were at that higher depth.
+			 */
+			float loLeaves = t.numLeaves[loChild];
+			float hiLeaves = t.numLeaves[hiChild];
+			float mLeaves = Math.max(loLeaves, hiLeaves);
+			float loChildNewY = t.y[loChild] + (mLeaves - loLeaves)
+					* stepSize / 2;
+			float hiChildNewY = t.y[hiChild] - (mLeaves - hiLeaves)
+					* stepSize / 2;
+			t.y[i] = (loChildNewY + hiChildNewY) / 2;
+			t.x[i] = calcXPosition(t, i);
+			t.angle[i] = 0;
 		}
-		Collections.sort(children);
-		/*
-		 * Now, let's put on our thinking caps and try to lay ourselves out
-		 * correctly.
-		 */
-		PhyloNode loChild = (PhyloNode) Collections.min(children);
-		PhyloNode hiChild = (PhyloNode) Collections.max(children);
-		/*
-		 * Find the max depth of each child, and project where the "lower" child
-		 * would be in the y axis if it were at that higher depth.
-		 */
-		float stepSize = 1f / (numLeaves);
-		float loLeaves = tree.getNumEnclosedLeaves(loChild);
-		float hiLeaves = tree.getNumEnclosedLeaves(hiChild);
-//		float loLeaves = getRealEnclosedLeaves(loChild);
-//		float hiLeaves = getRealEnclosedLeaves(hiChild);
-		float mLeaves = Math.max(loLeaves, hiLeaves);
-		// System.out.println("md:" + mLeaves);
-		float loChildNewY = loChild.getTargetY() + (mLeaves - loLeaves)
-				* stepSize / 2;
-		float hiChildNewY = hiChild.getTargetY() - (mLeaves - hiLeaves)
-				* stepSize / 2;
-		float unscaledY = (loChildNewY + hiChildNewY) / 2;
-		float unscaledX = calcXPosition(n);
-		setPosition(n,unscaledX, unscaledY);
-		return 0;
 	}
 	
-	protected int getRealEnclosedLeaves(PhyloNode n)
-	{
-		int numEnclosed = tree.getNumEnclosedLeaves(n);
-		int orig = numEnclosed;
-		List<PhyloNode> children = tree.getChildrenOf(n);
-//		for (PhyloNode child : children)
-//		{
-////			if (!tree.shouldKeep(child))
-////				numEnclosed -= tree.getNumEnclosedLeaves(child);
-//		}
-//		System.out.println(n.getLabel()+"  "+numEnclosed);
-		return numEnclosed;
-	}
-	
-	private void leafPosition(PhyloNode n, double index)
+	@Override
+	public void drawLine(PGraphics canvas, PhyloNode p, PhyloNode c)
 	{
-		/**
-		 * Set the leaf position.
-		 */
-		float yPos = ((float) (index + .5f) / (float) (numLeaves));
-		float xPos = 1;
-//		if (PhyloWidget.cfg.useBranchLengths)
-			xPos = calcXPosition(n);
-		setPosition(n,xPos, yPos);
+		canvas.line(c.getX(), c.getY(), p.getX(),p.getY());
 	}
 	
-	protected float calcXPosition(PhyloNode n)
+	protected float calcXPosition(FlatTree t, int i)
 	{
-//		System.out.println(n.getLabel()+"  "+getRealEnclosedLeaves(n));
-		float a = xPosForNumEnclosedLeaves(getRealEnclosedLeaves(n));
-//		float b = (float) (tree.getBranchLength(n) / tree
-//				.getMaxHeightToLeaf(tree.getRoot()));
+		float a = xPosForNumEnclosedLeaves(t.numLeaves[i]);
 		return a / 2;
 	}
 
 	float xPosForNumEnclosedLeaves(int numLeaves)
 	{
-		float asdf =  1 - (float) (numLeaves - 1) / (float) (leaves.length);
+		float asdf =  1 - (float) (numLeaves - 1) / (float) (this.numLeaves);
 		return asdf;
 	}
 }
@@ -1,7 +1,5 @@
 package org.phylowidget.render;
 
-import java.util.List;
-
 import org.phylowidget.PhyloWidget;
 import org.phylowidget.tree.PhyloNode;
 
@@ -16,11 +14,21 @@ public class LayoutUnrooted extends LayoutBase
 {
 	static final float STARTING_ANGLE = (float)-Math.PI/2;
 	
+	float startAngle = STARTING_ANGLE;
+	boolean useBranchLengths;
+
+	/*
+	 * The arc of angles given to each node's subtree.
+	 */
+	double[] loAngle = new double[0];
+	double[] hiAngle = new double[0];
+
 	@Override
 	public void layoutImpl()
 	{
-		float angle = STARTING_ANGLE + context.config().layoutAngle / 360f * (float)Math.PI*2f;
-		layoutNode((PhyloNode)tree.getRoot(),angle, angle + 2*Math.PI);
+		startAngle = STARTING_ANGLE + context.config().layoutAngle / 360f * (float)Math.PI*2f;
+		useBranchLengths = context.config().useBranchLengths;
+		layoutFlat(flat);
 	}
 
 	@Override
@@ -29,45 +37,54 @@ public class LayoutUnrooted extends LayoutBase
 		canvas.line(c.getX(), c.getY(), p.getX(),p.getY());
 	}
 	
-	void layoutNode(PhyloNode n, double loAngle, double hiAngle)
+	/**
+	 * Lays out the flattened tree. Walking forwards through the pre-order
+	 * arrays, each node divides its arc between its children in proportion
+	 * to the number of leaves below each one.
+	 */
+	void layoutFlat(FlatTree t)
 	{
-		if (tree.isRoot(n)) // Set the root to (0,0).
+		if (loAngle.length < t.size)
 		{
-			setPosition(n,0,0);
+			loAngle = new double[t.size];
+			hiAngle = new double[t.size];
 		}
-		if (tree.isLeaf(n)) // Leaves need no more laying out!
-			return;
-		
-		float numEnclosed = tree.getNumEnclosedLeaves(n); // Total enclosed leaves for this node.
-		double curX = n.getLayoutX();
-		double curY = n.getLayoutY();
-		
-		List<PhyloNode> children = tree.getChildrenOf(n);
-		double curAngle = loAngle;
-		for (int i=0; i < children.size(); i++)
+		// Set the root to (0,0).
+		t.x[0] = 0;
+		t.y[0] = 0;
+		loAngle[0] = startAngle;
+		hiAngle[0] = startAngle + 2*Math.PI;
+
+		for (int i = 0; i < t.size; i++)
 		{
-			PhyloNode child = children.get(i);
-			
-			// Get the % of leaves under this child.
-			float childEnclosed = tree.getNumEnclosedLeaves(child);
-			double childRatio = childEnclosed / numEnclosed;
-			double arcSize = childRatio * (hiAngle-loAngle);
-			
-			// Place this child in the middle of its given arc.
-			double length = child.getBranchLength() * 10;
-			double midAngle = curAngle+arcSize/2;
-			
-			double newX = curX + Math.cos(midAngle)*length;
-			double newY = curY + Math.sin(midAngle)*length;
-			
-			setPosition(child, (float)newX, (float)newY);
-			setAngle(child,(float)midAngle);
-			
-			layoutNode(child,curAngle,curAngle+arcSize);
-			
-			curAngle += arcSize;
+			if (t.leaf[i]) // Leaves need no more laying out!
+				continue;
+
+			float numEnclosed = t.numLeaves[i]; // Total enclosed leaves for this node.
+			double curX = t.x[i];
+			double curY = t.y[i];
+			double range = hiAngle[i] - loAngle[i];
+			double curAngle = loAngle[i];
+			for (int c = i + 1; c < t.end[i]; c = t.end[c])
+			{
+				// Get the % of leaves under this child.
+				float childEnclosed = t.numLeaves[c];
+				double childRatio = childEnclosed / numEnclosed;
+				double arcSize = childRatio * range;
+
+				// Place this child in the middle of its given arc.
+				double length = (useBranchLengths ? t.branchLength[c] : 1) * 10;
+				double midAngle = curAngle + arcSize / 2;
+
+				t.x[c] = (float) (curX + Math.cos(midAngle) * length);
+				t.y[c] = (float) (curY + Math.sin(midAngle) * length);
+				t.angle[c] = (float) midAngle;
+
+				loAngle[c] = curAngle;
+				hiAngle[c] = curAngle + arcSize;
+				curAngle += arcSize;
+			}
 		}
 	}
 	
-	
 }
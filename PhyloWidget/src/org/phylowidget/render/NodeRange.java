@@ -23,7 +23,7 @@ import org.phylowidget.tree.PhyloNode;
 
 /**
  * NodeRange is an implementation of ItemI, to be used by PhyloWidget
- * renderers for storing ranges within a SortedXYRangeList structure.
+ * renderers for storing ranges within an XYRangeGrid structure.
  * @author Greg
  *
  */
@@ -35,6 +35,7 @@ public final class NodeRange implements ItemI
 	public int type=0;
 	public static final int NODE = 0;
 	public static final int LABEL = 1;
+	public static final int SUBTREE = 2;
 
 	public float loX, hiX, loY, hiY = 0;
 	
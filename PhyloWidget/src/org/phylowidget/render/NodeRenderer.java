@@ -19,51 +19,81 @@ import javax.imageio.ImageIO;
 import org.andrewberman.ui.Color;
 import org.andrewberman.ui.TextField;
 import org.phylowidget.PWContext;
-import org.phylowidget.PWPlatform;
 import org.phylowidget.PhyloTree;
 import org.phylowidget.PhyloWidget;
+import org.phylowidget.TreeManager;
 import org.phylowidget.UsefulConstants;
+import org.phylowidget.render.images.MipImage;
 import org.phylowidget.tree.PhyloNode;
-import org.phylowidget.tree.RootedTree;
 
-import processing.core.PApplet;
+import processing.core.PConstants;
 import processing.core.PGraphics;
 import processing.core.PGraphicsJava2D;
 
 public final class NodeRenderer implements UsefulConstants
 {
-	static Graphics2D g2;
-	static FontMetrics fm;
-	static BasicTreeRenderer r;
+	Graphics2D g2;
+	FontMetrics fm;
+	BasicTreeRenderer r;
 
-	static PWContext context = PWPlatform.getInstance().getThisAppContext();
+	PWContext context;
 	
 	static float[] ZEROES = new float[] { 0, 0 };
 
+	/*
+	 * Memory budget for the laid-out labels.
+	 */
+	static final long LABEL_CACHE_BYTES = 4 << 20;
+
 	/*
 	 * Create the taxon color map, which is used if this tree has NHX annotations.
 	 */
-	static HashMap<String, Integer> taxonColorMap = new HashMap<String, Integer>();
+	HashMap<String, Integer> taxonColorMap = new HashMap<String, Integer>();
+
+	NodeRender nr = new NodeRender();
+	LineRender lineRender = new LineRender();
+	CigarRender cr = new CigarRender();
+	ImageRender ir = new ImageRender();
+	LabelRender lr = new LabelRender();
 
-	static NodeRender nr = new NodeRender();
-	static LineRender lineRender = new LineRender();
-	static CigarRender cr = new CigarRender();
-	static ImageRender ir = new ImageRender();
-	static LabelRender lr = new LabelRender();
+	RenderItem[] renderables = new RenderItem[] { ir, cr, lr };
+	RenderItem[] structRenderables = new RenderItem[] { lineRender, nr };
 
-	static RenderItem[] renderables = new RenderItem[] { ir, cr, lr };
-	static RenderItem[] structRenderables = new RenderItem[] { lineRender, nr };
+	/*
+	 * Which parts of a node get drawn: its branch and node marker (the
+	 * structure), and/or its label, image and alignment.
+	 */
+	static final int LAYER_STRUCTURE = 1;
+	static final int LAYER_LABELS = 2;
+	static final int LAYER_ALL = LAYER_STRUCTURE | LAYER_LABELS;
+	int layers = LAYER_ALL;
 
-	public NodeRenderer()
+	/*
+	 * If true, the structure is drawn as though the node weren't hovered,
+	 * found, cut or copied, for the cached branch layer.
+	 */
+	boolean plainStyle;
+
+	/**
+	 * Each renderer gets its own NodeRenderer, since the render items keep
+	 * state between calls; this lets several renderers draw at once.
+	 */
+	public NodeRenderer(BasicTreeRenderer r)
 	{
+		this.r = r;
+		this.context = r.context;
 	}
 
-	public static final void render(BasicTreeRenderer r, PhyloNode n)
+	public final void render(BasicTreeRenderer r, PhyloNode n)
 	{
+		if (r.canvas instanceof VectorGraphics)
+			((VectorGraphics) r.canvas).nodeRendered(r, n);
+		else if (r.canvas instanceof TrackingGraphics)
+			((TrackingGraphics) r.canvas).nodeRendered(r, n);
 		renderImpl(r, n, true);
 	}
 
-	static final void renderImpl(BasicTreeRenderer r, PhyloNode n, boolean actuallyRender)
+	final void renderImpl(BasicTreeRenderer r, PhyloNode n, boolean actuallyRender)
 	{
 		PGraphics canvas = r.canvas;
 		if (canvas == null)
@@ -73,17 +103,16 @@ public final class NodeRenderer implements UsefulConstants
 		}
 		//		g2 = r.canvas.g2;
 
-		NodeRenderer.r = r;
-
 		// Translate the canvas to the node's x and y coords.
 		float x = n.getX();
 		float y = n.getY();
-		if (r.treeLayout instanceof LayoutCladogram && r.tree.isLeaf(n))
+		if (r.treeLayout instanceof LayoutCladogram && r.isLeaf(n))
 		{
-			if (context.config().alignLabels || n.getAnnotation("cigar") != null)
+			if (context.config().alignLabels || r.getAnnotation(n, "cigar") != null)
 			{
-				PhyloNode mostDistant = (PhyloNode) r.tree.getFurthestLeafFromVertex(r.tree.getRoot());
-				x = mostDistant.getX();
+				PhyloNode mostDistant = r.furthestLeaf;
+				if (mostDistant != null)
+					x = mostDistant.getX();
 			}
 		}
 		canvas.pushMatrix();
@@ -100,13 +129,14 @@ public final class NodeRenderer implements UsefulConstants
 		float rowHeight = r.getTextSize();
 		float dotWidth = r.getNodeOffset(n);
 
+		boolean labelLayer = (layers & LAYER_LABELS) != 0;
 		if (context.config().treatNodesAsLabels)
 		{
-			boolean drawNode = (actuallyRender && n.drawLabel) || context.config().showAllLeafNodes;
+			boolean drawNode = ((actuallyRender && n.drawLabel) || context.config().showAllLeafNodes) && labelLayer;
 			nr.render(canvas, n, drawNode, true);
 		}
 
-		if (r.getTree().isCollapsed(n))
+		if (r.isCollapsed(n))
 		{
 			canvas.translate(rowHeight * .3f, 0);
 		}
@@ -115,7 +145,7 @@ public final class NodeRenderer implements UsefulConstants
 		float dx = 0;
 		for (RenderItem ri : renderables)
 		{
-			boolean drawLabel = (n.drawLabel && actuallyRender);
+			boolean drawLabel = (n.drawLabel && actuallyRender && labelLayer);
 			float[] xy = ri.render(canvas, n, drawLabel, true);
 			dx = xy[0];
 			canvas.translate(dx + (RenderConstants.labelSpacing) * dMult * rowHeight, 0);
@@ -123,6 +153,7 @@ public final class NodeRenderer implements UsefulConstants
 
 		canvas.popMatrix();
 
+		boolean structureLayer = (layers & LAYER_STRUCTURE) != 0;
 		for (RenderItem ri : structRenderables)
 		{
 			boolean drawNode = (actuallyRender && n.drawLineAndNode);
@@ -133,17 +164,18 @@ public final class NodeRenderer implements UsefulConstants
 				// GJ 19-09-08 clarify: this is a special case, where we want all nodes to be drawn.
 				drawNode = (actuallyRender && n.drawLineAndNode) || context.config().showAllLeafNodes;
 			}
+			drawNode &= structureLayer;
 			ri.render(canvas, n, drawNode, false);
 		}
 
 	}
 
-	public final static void setCornerPoints(BasicTreeRenderer r, PhyloNode n)
+	public final void setCornerPoints(BasicTreeRenderer r, PhyloNode n)
 	{
 		renderImpl(r, n, false);
 	}
 
-	static void getColorsForSpeciesMap()
+	void getColorsForSpeciesMap()
 	{
 		int n = taxonColorMap.size();
 		Set<String> keys = taxonColorMap.keySet();
@@ -157,15 +189,33 @@ public final class NodeRenderer implements UsefulConstants
 		}
 	}
 
-	static float strokeForNode(PhyloNode n)
+	/*
+	 * The node's found flag and clipboard state, or neither in plain style.
+	 */
+	private boolean isFound(PhyloNode n)
+	{
+		return n.found && !plainStyle;
+	}
+
+	private int stateOf(PhyloNode n)
+	{
+		return plainStyle ? PhyloNode.NONE : n.getState();
+	}
+
+	private boolean isHovered(PhyloNode n)
+	{
+		return !plainStyle && n == ((PhyloTree) r.tree).hoveredNode && context.config().colorHoveredBranch;
+	}
+
+	float strokeForNode(PhyloNode n)
 	{
 		float stroke = r.baseStroke;
-		if (n.found)
+		if (isFound(n))
 		{
 			stroke *= RenderConstants.foundStroke;
 			return stroke;
 		}
-		switch (n.getState())
+		switch (stateOf(n))
 		{
 			case (PhyloNode.CUT):
 				stroke *= RenderConstants.dimStroke;
@@ -181,11 +231,11 @@ public final class NodeRenderer implements UsefulConstants
 		return stroke;
 	}
 
-	static private Point2D.Float tempPoint = new Point2D.Float();
+	private Point2D.Float tempPoint = new Point2D.Float();
 
-	private static final void registerPoint(PGraphics canvas, PhyloNode n, float x, float y)
+	private final void registerPoint(PGraphics canvas, PhyloNode n, float x, float y)
 	{
-		if (n.getLabel().length() == 0)
+		if (r.getLabel(n).length() == 0)
 			return;
 		
 		float screenX = canvas.screenX(x, y);
@@ -200,9 +250,9 @@ public final class NodeRenderer implements UsefulConstants
 		n.range.hiY = (float) n.rect.getMaxY();
 	}
 
-	private static final float getFloatAnnotation(PhyloNode n, String key)
+	private final float getFloatAnnotation(PhyloNode n, String key)
 	{
-		String ann = n.getAnnotation(key);
+		String ann = r.getAnnotation(n, key);
 		if (ann == null)
 			return -1;
 		try {
@@ -214,7 +264,7 @@ public final class NodeRenderer implements UsefulConstants
 		}
 	}
 
-	public static abstract class RenderItem
+	public abstract class RenderItem
 	{
 		protected float offX;
 		protected float offY;
@@ -234,7 +284,7 @@ public final class NodeRenderer implements UsefulConstants
 		}
 	}
 
-	public static class NodeRender extends RenderItem
+	public class NodeRender extends RenderItem
 	{
 		@Override
 		public float[] render(PGraphics canvas, PhyloNode n, boolean actuallyRender, boolean preTransformed)
@@ -248,7 +298,7 @@ public final class NodeRenderer implements UsefulConstants
 			float thisDotSize = r.dotWidth;
 
 			// Multiply by inner ratio.
-			if (!r.tree.isLeaf(n))
+			if (!r.isLeaf(n))
 			{
 				thisDotSize *= context.config().innerNodeRatio;
 			}
@@ -272,13 +322,11 @@ public final class NodeRenderer implements UsefulConstants
 			canvas.fill(nodeColor(n));
 			canvas.noStroke();
 
-			RootedTree tree = r.tree;
-
 			if (thisDotSize == 0)
 				return ZEROES;
-			if (n.isNHX() && context.config().colorDuplications && !tree.isLeaf(n))
+			if (r.hasAnnotations(n) && context.config().colorDuplications && !r.isLeaf(n))
 			{
-				String s = n.getAnnotation(DUPLICATION);
+				String s = r.getAnnotation(n, DUPLICATION);
 				if (s != null)
 				{
 					if (PhyloNode.parseTruth(s))
@@ -366,11 +414,11 @@ public final class NodeRenderer implements UsefulConstants
 		static final int STAR = 3;
 		static final int FILLED_CIRCLE = 4;
 
-		static int getNodeShape(PhyloNode n)
+		int getNodeShape(PhyloNode n)
 		{
-			String annotation = n.getAnnotation(UsefulConstants.NODE_SHAPE);
+			String annotation = r.getAnnotation(n, UsefulConstants.NODE_SHAPE);
 			if (annotation == null)
-				annotation = n.getAnnotation(UsefulConstants.NODE_SHAPE_ALT);	
+				annotation = r.getAnnotation(n, UsefulConstants.NODE_SHAPE_ALT);	
 			String shape = context.config().nodeShape.toLowerCase();
 			if (annotation != null)
 			{
@@ -388,17 +436,17 @@ public final class NodeRenderer implements UsefulConstants
 				return CIRCLE;
 		}
 
-		static int nodeColor(PhyloNode n)
+		int nodeColor(PhyloNode n)
 		{
-			if (n.found)
+			if (isFound(n))
 			{
 				return RenderConstants.foundColor.getRGB();
 			}
-			if (n == ((PhyloTree) r.tree).hoveredNode && context.config().colorHoveredBranch)
+			if (isHovered(n))
 			{
 				return RenderConstants.hoverColor.getRGB();
 			}
-			switch (n.getState())
+			switch (stateOf(n))
 			{
 				case (PhyloNode.CUT):
 					return RenderConstants.dimColor.getRGB();
@@ -408,9 +456,9 @@ public final class NodeRenderer implements UsefulConstants
 				default:
 					int c = context.config().getNodeColor().getRGB();
 
-					String nodeColor = n.getAnnotation(NODE_COLOR);
+					String nodeColor = r.getAnnotation(n, NODE_COLOR);
 					if (nodeColor == null)
-						nodeColor = n.getAnnotation(NODE_COLOR_ALT);
+						nodeColor = r.getAnnotation(n, NODE_COLOR_ALT);
 					if (nodeColor != null)
 					{
 						c = Color.parseColor(nodeColor).getRGB();
@@ -421,7 +469,7 @@ public final class NodeRenderer implements UsefulConstants
 
 	}
 
-	public static class LineRender extends RenderItem
+	public class LineRender extends RenderItem
 	{
 		@Override
 		public float[] render(PGraphics canvas, PhyloNode n, boolean actuallyRender, boolean preTransformed)
@@ -429,7 +477,7 @@ public final class NodeRenderer implements UsefulConstants
 			super.render(canvas, n, actuallyRender, preTransformed);
 			if (!actuallyRender)
 				return ZEROES;
-			PhyloNode parent = (PhyloNode) n.getParent();
+			PhyloNode parent = r.getParent(n);
 			if (parent != null)
 				drawLine(r, parent, n);
 			return ZEROES;
@@ -454,14 +502,13 @@ public final class NodeRenderer implements UsefulConstants
 			r.canvas.strokeWeight(weight);
 			r.canvas.stroke(lineColor(c));
 
-			PhyloTree tree = (PhyloTree) r.getTree();
-			if (c == tree.hoveredNode && context.config().colorHoveredBranch)
+			if (isHovered(c))
 			{
 				r.canvas.stroke(RenderConstants.hoverColor.getRGB());
 				r.canvas.strokeWeight(weight * RenderConstants.hoverStroke);
 			}
 
-			if (c.isNHX() && context.config().colorBootstrap && !c.found)
+			if (c.isNHX() && context.config().colorBootstrap && !isFound(c))
 			{
 //				double d = getFloatAnnotation(c, BOOTSTRAP);
 				double d = -1;
@@ -477,7 +524,7 @@ public final class NodeRenderer implements UsefulConstants
 			//			r.canvas.line(p.getRealX(), c.getRealY(), c.getRealX(),c.getRealY());
 		}
 
-		static float nodeStroke(BasicTreeRenderer r, PhyloNode n)
+		float nodeStroke(BasicTreeRenderer r, PhyloNode n)
 		{
 			float stroke = strokeForNode(n);
 			float bSize = getFloatAnnotation(n, BRANCH_SIZE);
@@ -488,13 +535,13 @@ public final class NodeRenderer implements UsefulConstants
 			return stroke;
 		}
 
-		static int lineColor(PhyloNode n)
+		int lineColor(PhyloNode n)
 		{
-			if (n.found)
+			if (isFound(n))
 			{
 				return RenderConstants.foundColor.getRGB();
 			}
-			switch (n.getState())
+			switch (stateOf(n))
 			{
 				case (PhyloNode.CUT):
 					return RenderConstants.dimColor.getRGB();
@@ -503,9 +550,9 @@ public final class NodeRenderer implements UsefulConstants
 				case (PhyloNode.NONE):
 				default:
 					int c = context.config().getBranchColor().getRGB();
-					String branchColor = n.getAnnotation(BRANCH_COLOR);
+					String branchColor = r.getAnnotation(n, BRANCH_COLOR);
 					if (branchColor == null)
-						branchColor = n.getAnnotation(BRANCH_COLOR_ALT);
+						branchColor = r.getAnnotation(n, BRANCH_COLOR_ALT);
 					if (branchColor != null)
 					{
 						c = Color.parseColor(branchColor).getRGB();
@@ -515,9 +562,9 @@ public final class NodeRenderer implements UsefulConstants
 		}
 	}
 
-	static class ImageRender extends RenderItem
+	class ImageRender extends RenderItem
 	{
-		static boolean fitImagesToSquare = true;
+		boolean fitImagesToSquare = true;
 
 		@Override
 		public float[] render(PGraphics canvas, PhyloNode n, boolean actuallyRender, boolean preTransformed)
@@ -526,6 +573,29 @@ public final class NodeRenderer implements UsefulConstants
 			return renderImage(r, n, actuallyRender);
 		}
 
+		/*
+		 * The node's image, loaded for drawing within a square of the given
+		 * size (in device pixels). Offscreen renderers have no TreeManager, and
+		 * so no image loader.
+		 */
+		private MipImage mipsForNode(PhyloNode n, float side)
+		{
+			if (TreeManager.imageLoader == null)
+				return null;
+			return TreeManager.imageLoader.getMipsForNode(n, side);
+		}
+
+		/*
+		 * How many device pixels there are to a unit on the canvas.
+		 */
+		private float deviceScale(PGraphics canvas)
+		{
+			if (!(canvas instanceof PGraphicsJava2D))
+				return 1;
+			Graphics2D g2 = ((PGraphicsJava2D) canvas).g2;
+			return (float) Math.sqrt(Math.abs(g2.getTransform().getDeterminant()));
+		}
+
 		private float imageSizeForNode(BasicTreeRenderer r, PhyloNode n)
 		{
 			float thisRowSize = r.getTextSize() * context.config().imageSize * n.bulgeFactor;
@@ -547,7 +617,7 @@ public final class NodeRenderer implements UsefulConstants
 		 */
 		float[] renderImage(BasicTreeRenderer r, PhyloNode n, boolean actuallyRender)
 		{
-			String imgS = n.getAnnotation("img");
+			String imgS = r.getAnnotation(n, "img");
 			if (imgS == null)
 				return ZEROES;
 
@@ -556,8 +626,10 @@ public final class NodeRenderer implements UsefulConstants
 				alignRight = true;
 
 			float rowHeight = imageSizeForNode(r, n);
+			float scale = deviceScale(r.canvas);
+			MipImage mips = mipsForNode(n, rowHeight * scale);
 
-			float[] size = imageSize(n, rowHeight);
+			float[] size = imageSize(n, rowHeight, mips);
 			float scaledW = size[0];
 			float scaledH = size[1];
 
@@ -579,7 +651,8 @@ public final class NodeRenderer implements UsefulConstants
 					} catch (Exception e)
 					{
 						e.printStackTrace();
-						img = context.trees().imageLoader.getImageForNode(n);
+						if (mips != null)
+							img = mips.getImage();
 					}
 				} else
 				{
@@ -589,24 +662,35 @@ public final class NodeRenderer implements UsefulConstants
 //						System.out.println("Loading full image...");
 						n.loadFullImage();
 					}
-					img = context.trees().imageLoader.getImageForNode(n);
+					if (mips != null)
+						img = mips.getLevel(scaledW * scale, scaledH * scale);
 				}
 				if (img != null)
 				{
 					float alpha = 1.0f;
-					if (n.getAnnotation("img_a") != null)
+					TrackingGraphics tg = null;
+					if (canvas instanceof TrackingGraphics)
+						tg = (TrackingGraphics) canvas;
+					if (!RenderOutput.isOutputting)
 					{
-						alpha = Float.parseFloat(n.getAnnotation("img_a"));
-						alpha += 0.05;
-						if (alpha >= 1)
-						{
-							n.clearAnnotation("img_a");
-							alpha = 1;
-						} else
+						/*
+						 * A new image fades in over a few frames. A double-buffered
+						 * frame may be drawn twice (once just to see what changed);
+						 * only move the fade on during the first go.
+						 */
+						if (!imgS.equals(n.imageShown))
 						{
-							n.setAnnotation("img_a", alpha);
+							n.imageShown = imgS;
+							n.imageAlpha = 0;
 						}
+						alpha = n.imageAlpha;
+						if (alpha < 1 && (tg == null || tg.tracking))
+							n.imageAlpha = Math.min(1, alpha + 0.05f);
 					}
+					if (alpha < 1)
+						r.animating = true;
+					if (tg != null)
+						tg.imageDrawn(img, alpha, (int) dx, (int) -scaledH / 2, (int) scaledW, (int) scaledH);
 					Composite old = g2.getComposite();
 					g2.setComposite(AlphaComposite.getInstance(
 						AlphaComposite.SRC_OVER, alpha));
@@ -627,15 +711,14 @@ public final class NodeRenderer implements UsefulConstants
 				return new float[] { scaledW, rowHeight };
 		}
 
-		public float[] imageSize(PhyloNode n, float rowHeight)
+		public float[] imageSize(PhyloNode n, float rowHeight, MipImage mips)
 		{
-			Image img = context.trees().imageLoader.getImageForNode(n);
-			if (img == null)
+			if (mips == null)
 				return new float[] { 0, 0 };
 
 			float scaling = 1;
-			float imgW = img.getWidth(null);
-			float imgH = img.getHeight(null);
+			float imgW = mips.getWidth();
+			float imgH = mips.getHeight();
 			if (fitImagesToSquare)
 			{
 				if (imgW > imgH)
@@ -655,8 +738,13 @@ public final class NodeRenderer implements UsefulConstants
 		}
 	}
 
-	static class LabelRender extends RenderItem
+	class LabelRender extends RenderItem
 	{
+		/*
+		 * Laid-out labels, reused from frame to frame.
+		 */
+		LabelGlyphCache glyphs = new LabelGlyphCache(LABEL_CACHE_BYTES);
+
 		@Override
 		public float[] render(PGraphics canvas, PhyloNode n, boolean actuallyRender, boolean preTransformed)
 		{
@@ -676,7 +764,7 @@ public final class NodeRenderer implements UsefulConstants
 				curTextSize *= labelMult;
 
 			// If collapsed, label size is smaller.
-			if (r.getTree().isCollapsed(n))
+			if (r.isCollapsed(n))
 			{
 				curTextSize *= .6f;
 			}
@@ -699,11 +787,10 @@ public final class NodeRenderer implements UsefulConstants
 
 			if (context.config().textRotation != 0)
 			{
-				canvas.rotate(PApplet.radians(context.config().textRotation));
+				canvas.rotate((float) Math.toRadians(context.config().textRotation));
 			}
 
-			RootedTree tree = r.tree;
-			if (tree.isLeaf(n) && (n.found || alwaysRender))
+			if (r.isLeaf(n) && (n.found || alwaysRender))
 			{
 				/*
 				 * Draw a background rect.
@@ -736,7 +823,7 @@ public final class NodeRenderer implements UsefulConstants
 				canvas.fill(RenderConstants.foundForeground.getRGB());
 			}
 
-			if (!tree.isLeaf(n))
+			if (!r.isLeaf(n))
 			{
 				if (context.config().showCladeLabels)
 				{
@@ -763,7 +850,7 @@ public final class NodeRenderer implements UsefulConstants
 						canvas.textAlign(canvas.RIGHT, canvas.BASELINE);
 						canvas.fill(textColor(n));
 						//						canvas.text(n.getLabel(), 0, r.dFont * curTextSize / r.textSize);
-						canvas.text(tree.getLabel(n), offX - curTextSize / 3 - s, offY - s - curTextSize / 3);
+						drawText(canvas, r.getLabel(n), offX - curTextSize / 3 - s, offY - s - curTextSize / 3);
 					}
 				}
 			} else
@@ -791,18 +878,63 @@ public final class NodeRenderer implements UsefulConstants
 //					canvas.rotate(PApplet.radians(context.config().textRotation));
 //				}
 				if (actuallyRender)
-					canvas.text(tree.getLabel(n), 0, 0 + r.dFont * curTextSize / r.textSize);
+					drawText(canvas, r.getLabel(n), 0, 0 + r.dFont * curTextSize / r.textSize);
 			}
 			if (actuallyRender)
 				n.lastTextSize = curTextSize;
 			return new float[] { dx, curTextSize };
 		}
 
+		/*
+		 * Draws a label on screen from the glyph cache, falling back to
+		 * Processing's text drawing for anything else (files, or a canvas
+		 * without a native font).
+		 */
+		private void drawText(PGraphics canvas, String s, float x, float y)
+		{
+			if (canvas instanceof PGraphicsJava2D && !(canvas instanceof VectorGraphics)
+					&& !RenderOutput.isOutputting)
+			{
+				PGraphicsJava2D j2d = (PGraphicsJava2D) canvas;
+				TrackingGraphics tg = null;
+				if (canvas instanceof TrackingGraphics)
+					tg = (TrackingGraphics) canvas;
+				if (tg != null && !tg.rasterize)
+				{
+					float w = glyphs.getWidth(j2d, s);
+					if (w >= 0)
+					{
+						tg.textDrawn(s, alignedX(canvas, x, w), y, w);
+						return;
+					}
+				} else
+				{
+					float w = glyphs.draw(j2d, s, x, y);
+					if (w >= 0)
+					{
+						if (tg != null)
+							tg.textDrawn(s, alignedX(canvas, x, w), y, w);
+						return;
+					}
+				}
+			}
+			canvas.text(s, x, y);
+		}
+
+		private float alignedX(PGraphics canvas, float x, float w)
+		{
+			if (canvas.textAlign == PConstants.RIGHT)
+				return x - w;
+			else if (canvas.textAlign == PConstants.CENTER)
+				return x - w / 2;
+			return x;
+		}
+
 		private float textSizeForNode(BasicTreeRenderer r, PhyloNode n)
 		{
-			String always = n.getAnnotation(UsefulConstants.LABEL_ALWAYSSHOW);
+			String always = r.getAnnotation(n, UsefulConstants.LABEL_ALWAYSSHOW);
 			if (always == null)
-				always = n.getAnnotation(UsefulConstants.LABEL_ALWAYSSHOW_ALT);
+				always = r.getAnnotation(n, UsefulConstants.LABEL_ALWAYSSHOW_ALT);
 			boolean alwaysShow = false;
 			if (always != null && always.equals("1"))
 				alwaysShow = true;
@@ -819,20 +951,20 @@ public final class NodeRenderer implements UsefulConstants
 			return thisRowSize;
 		}
 
-		static int textColor(PhyloNode n)
+		int textColor(PhyloNode n)
 		{
-			if (r.getTree().isCollapsed(n))
+			if (r.isCollapsed(n))
 			{
 				return context.config().getTextColor().brighter(128).getRGB();
 			}
-			if (n.isNHX())
+			if (r.hasAnnotations(n))
 			{
 				int c = Color.black.getRGB();
-				String labelColor = n.getAnnotation(LABEL_COLOR);
+				String labelColor = r.getAnnotation(n, LABEL_COLOR);
 				if (labelColor == null)
-					labelColor = n.getAnnotation(LABEL_COLOR_ALT);
-				String tax = n.getAnnotation(TAXON_ID);
-				String spec = n.getAnnotation(SPECIES_NAME);
+					labelColor = r.getAnnotation(n, LABEL_COLOR_ALT);
+				String tax = r.getAnnotation(n, TAXON_ID);
+				String spec = r.getAnnotation(n, SPECIES_NAME);
 				if (labelColor != null)
 				{
 					c = Color.parseColor(labelColor).getRGB();
@@ -877,9 +1009,9 @@ public final class NodeRenderer implements UsefulConstants
 		}
 	}
 
-	public static class CigarRender extends RenderItem
+	public class CigarRender extends RenderItem
 	{
-		static Pattern p = Pattern.compile("(\\d*?)([MD])", Pattern.CASE_INSENSITIVE);
+		Pattern p = Pattern.compile("(\\d*?)([MD])", Pattern.CASE_INSENSITIVE);
 
 		public float[] render(PGraphics canvas, PhyloNode n, boolean actuallyRender, boolean preTransformed)
 		{
@@ -890,7 +1022,7 @@ public final class NodeRenderer implements UsefulConstants
 				alignRight = true;
 
 			String cigarLine = null;
-			cigarLine = n.getAnnotation(UsefulConstants.CIGAR);
+			cigarLine = r.getAnnotation(n, UsefulConstants.CIGAR);
 			if (cigarLine == null)
 				return ZEROES;
 
@@ -964,15 +1096,15 @@ public final class NodeRenderer implements UsefulConstants
 			return thisRowSize;
 		}
 
-		static int alignmentColor(PhyloNode n)
+		int alignmentColor(PhyloNode n)
 		{
-			if (n.isNHX())
+			if (r.hasAnnotations(n))
 			{
-				String labelColor = n.getAnnotation(ALIGNMENT_COLOR);
+				String labelColor = r.getAnnotation(n, ALIGNMENT_COLOR);
 				if (labelColor == null)
-					labelColor = n.getAnnotation(ALIGNMENT_COLOR_ALT);	
-				String tax = n.getAnnotation(TAXON_ID);
-				String spec = n.getAnnotation(SPECIES_NAME);
+					labelColor = r.getAnnotation(n, ALIGNMENT_COLOR_ALT);	
+				String tax = r.getAnnotation(n, TAXON_ID);
+				String spec = r.getAnnotation(n, SPECIES_NAME);
 				if (labelColor != null)
 				{
 					int c = Color.parseColor(labelColor).getRGB();
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.awt.Font;
+
+import processing.core.PGraphicsJava2D;
+
+/**
+ * A PGraphicsJava2D that can be drawn into without an applet behind it.
+ * <p>
+ * PGraphicsJava2D asks its parent applet for font metrics, but a PApplet
+ * can't be created (or even loaded) without a display. With no parent, this
+ * asks its own Graphics2D instead.
+ *
+ * @author Greg
+ */
+public class OffscreenGraphics extends PGraphicsJava2D
+{
+	@Override
+	public float textAscent()
+	{
+		Font font = nativeFont();
+		if (font == null)
+			return super.textAscent();
+		return g2.getFontMetrics(font).getAscent();
+	}
+
+	@Override
+	public float textDescent()
+	{
+		Font font = nativeFont();
+		if (font == null)
+			return super.textDescent();
+		return g2.getFontMetrics(font).getDescent();
+	}
+
+	/*
+	 * The font PGraphicsJava2D would have measured with its parent, if we
+	 * have to measure it ourselves.
+	 */
+	private Font nativeFont()
+	{
+		if (parent != null || textFont == null)
+			return null;
+		return textFont.getFont();
+	}
+}
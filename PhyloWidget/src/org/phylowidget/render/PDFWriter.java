@@ -0,0 +1,345 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import processing.core.PConstants;
+
+/**
+ * Writes a single-page PDF, compressing the page's content as it goes. The
+ * page content's length is written as a separate object at the end, so
+ * nothing has to be buffered.
+ * <p>
+ * The current colors, line width, cap and join are tracked, and only written
+ * when they change; clades are bracketed as marked content. Text uses the
+ * built-in Helvetica font, so nothing needs embedding, at the cost of
+ * slightly different letter widths to the on-screen font. Transparency is
+ * ignored.
+ *
+ * @author Greg
+ */
+public class PDFWriter extends VectorWriter
+{
+	/*
+	 * Object numbers.
+	 */
+	static final int CATALOG = 1;
+	static final int PAGES = 2;
+	static final int PAGE = 3;
+	static final int CONTENTS = 4;
+	static final int FONT = 5;
+	static final int LENGTH = 6;
+
+	private long[] offsets = new long[LENGTH + 1];
+	private long contentStart;
+
+	private Deflater def;
+	private DeflaterOutputStream content;
+	private StringBuilder sb = new StringBuilder();
+	private float[] coords = new float[6];
+	private byte[] bytes = new byte[1024];
+
+	/*
+	 * The current graphics state, or -1 for unknown.
+	 */
+	private int curFill;
+	private int curStroke;
+	private float curWeight;
+	private int curCap;
+	private int curJoin;
+
+	public PDFWriter(OutputStream out)
+	{
+		super(out);
+	}
+
+	public void begin(float width, float height) throws IOException
+	{
+		write("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+		startObject(CATALOG);
+		write("<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+		startObject(PAGES);
+		write("<< /Type /Pages /Kids [3 0 R] /Count 1 >>\nendobj\n");
+		startObject(PAGE);
+		sb.setLength(0);
+		sb.append("<< /Type /Page /Parent 2 0 R /MediaBox [0 0 ");
+		appendNum(sb, width);
+		sb.append(' ');
+		appendNum(sb, height);
+		sb.append("] /Resources << /Font << /F1 5 0 R >> >> /Contents 4 0 R >>\nendobj\n");
+		write(sb.toString());
+		startObject(FONT);
+		write("<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica /Encoding /WinAnsiEncoding >>\nendobj\n");
+
+		startObject(CONTENTS);
+		write("<< /Length 6 0 R /Filter /FlateDecode >>\nstream\n");
+		out.flush();
+		contentStart = out.count;
+		def = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		content = new DeflaterOutputStream(out, def, 1 << 16);
+
+		curFill = curStroke = curCap = curJoin = -1;
+		curWeight = -1;
+		/*
+		 * Flip the page so that y points down, like the screen.
+		 */
+		sb.setLength(0);
+		sb.append("1 0 0 -1 0 ");
+		appendNum(sb, height);
+		sb.append(" cm\n");
+		writeContent(sb);
+	}
+
+	public void beginGroup(String id, String label) throws IOException
+	{
+		sb.setLength(0);
+		sb.append("/Clade BMC\n");
+		writeContent(sb);
+	}
+
+	public void endGroup() throws IOException
+	{
+		sb.setLength(0);
+		sb.append("EMC\n");
+		writeContent(sb);
+	}
+
+	public void shape(Shape s, boolean fill, int fillColor, boolean stroke, int strokeColor, float weight, int cap,
+			int join) throws IOException
+	{
+		if (!fill && !stroke)
+			return;
+		sb.setLength(0);
+		if (fill && (fillColor & 0xffffff) != curFill)
+		{
+			curFill = fillColor & 0xffffff;
+			appendColor(sb, curFill);
+			sb.append(" rg\n");
+		}
+		if (stroke)
+		{
+			if ((strokeColor & 0xffffff) != curStroke)
+			{
+				curStroke = strokeColor & 0xffffff;
+				appendColor(sb, curStroke);
+				sb.append(" RG\n");
+			}
+			if (weight != curWeight)
+			{
+				curWeight = weight;
+				appendNum(sb, weight);
+				sb.append(" w\n");
+			}
+			int c = (cap == PConstants.ROUND ? 1 : (cap == PConstants.PROJECT ? 2 : 0));
+			if (c != curCap)
+			{
+				curCap = c;
+				sb.append(c).append(" J\n");
+			}
+			int j = (join == PConstants.ROUND ? 1 : (join == PConstants.BEVEL ? 2 : 0));
+			if (j != curJoin)
+			{
+				curJoin = j;
+				sb.append(j).append(" j\n");
+			}
+		}
+
+		PathIterator it = s.getPathIterator(null);
+		float lastX = 0, lastY = 0;
+		while (!it.isDone())
+		{
+			int type = it.currentSegment(coords);
+			switch (type)
+			{
+				case PathIterator.SEG_MOVETO:
+					appendPoints(sb, coords, 1);
+					sb.append(" m ");
+					lastX = coords[0];
+					lastY = coords[1];
+					break;
+				case PathIterator.SEG_LINETO:
+					appendPoints(sb, coords, 1);
+					sb.append(" l ");
+					lastX = coords[0];
+					lastY = coords[1];
+					break;
+				case PathIterator.SEG_QUADTO:
+					/*
+					 * PDF has no quadratic curves, so raise it to a cubic.
+					 */
+					float c1x = lastX + 2f / 3f * (coords[0] - lastX);
+					float c1y = lastY + 2f / 3f * (coords[1] - lastY);
+					float c2x = coords[2] + 2f / 3f * (coords[0] - coords[2]);
+					float c2y = coords[3] + 2f / 3f * (coords[1] - coords[3]);
+					coords[4] = coords[2];
+					coords[5] = coords[3];
+					coords[0] = c1x;
+					coords[1] = c1y;
+					coords[2] = c2x;
+					coords[3] = c2y;
+					appendPoints(sb, coords, 3);
+					sb.append(" c ");
+					lastX = coords[4];
+					lastY = coords[5];
+					break;
+				case PathIterator.SEG_CUBICTO:
+					appendPoints(sb, coords, 3);
+					sb.append(" c ");
+					lastX = coords[4];
+					lastY = coords[5];
+					break;
+				case PathIterator.SEG_CLOSE:
+					sb.append("h ");
+					break;
+			}
+			it.next();
+		}
+		if (fill && stroke)
+			sb.append("B\n");
+		else if (fill)
+			sb.append("f\n");
+		else
+			sb.append("S\n");
+		writeContent(sb);
+	}
+
+	public void text(String s, AffineTransform at, String font, float size, int color) throws IOException
+	{
+		sb.setLength(0);
+		if ((color & 0xffffff) != curFill)
+		{
+			curFill = color & 0xffffff;
+			appendColor(sb, curFill);
+			sb.append(" rg\n");
+		}
+		sb.append("BT /F1 ");
+		appendNum(sb, size);
+		sb.append(" Tf ");
+		/*
+		 * Flip the text back over, since the page is upside down.
+		 */
+		appendNum(sb, at.getScaleX());
+		sb.append(' ');
+		appendNum(sb, at.getShearY());
+		sb.append(' ');
+		appendNum(sb, -at.getShearX());
+		sb.append(' ');
+		appendNum(sb, -at.getScaleY());
+		sb.append(' ');
+		appendNum(sb, at.getTranslateX());
+		sb.append(' ');
+		appendNum(sb, at.getTranslateY());
+		sb.append(" Tm (");
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c == '(' || c == ')' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20 || c > 0xff)
+				sb.append('?');
+			else
+				sb.append(c);
+		}
+		sb.append(") Tj ET\n");
+		writeContent(sb);
+	}
+
+	public void end() throws IOException
+	{
+		content.finish();
+		def.end();
+		long length = out.count - contentStart;
+		write("\nendstream\nendobj\n");
+		startObject(LENGTH);
+		write(length + "\nendobj\n");
+
+		long xref = out.count;
+		sb.setLength(0);
+		sb.append("xref\n0 ").append(offsets.length).append('\n');
+		sb.append("0000000000 65535 f \n");
+		for (int i = 1; i < offsets.length; i++)
+		{
+			String off = String.valueOf(offsets[i]);
+			for (int j = off.length(); j < 10; j++)
+				sb.append('0');
+			sb.append(off).append(" 00000 n \n");
+		}
+		sb.append("trailer\n<< /Size ").append(offsets.length).append(" /Root 1 0 R >>\n");
+		sb.append("startxref\n").append(xref).append("\n%%EOF\n");
+		write(sb.toString());
+		out.flush();
+	}
+
+	private void startObject(int num) throws IOException
+	{
+		offsets[num] = out.count;
+		write(num + " 0 obj\n");
+	}
+
+	/*
+	 * Everything we write is ASCII or Latin-1, so chars map straight to bytes.
+	 */
+	private void write(String s) throws IOException
+	{
+		int n = s.length();
+		if (bytes.length < n)
+			bytes = new byte[n * 2];
+		for (int i = 0; i < n; i++)
+			bytes[i] = (byte) s.charAt(i);
+		out.write(bytes, 0, n);
+	}
+
+	private void writeContent(StringBuilder s) throws IOException
+	{
+		int n = s.length();
+		if (bytes.length < n)
+			bytes = new byte[n * 2];
+		for (int i = 0; i < n; i++)
+			bytes[i] = (byte) s.charAt(i);
+		content.write(bytes, 0, n);
+	}
+
+	private static void appendPoints(StringBuilder sb, float[] coords, int num)
+	{
+		for (int i = 0; i < num * 2; i += 2)
+		{
+			if (i > 0)
+				sb.append(' ');
+			appendNum(sb, coords[i]);
+			sb.append(' ');
+			appendNum(sb, coords[i + 1]);
+		}
+	}
+
+	private static void appendColor(StringBuilder sb, int rgb)
+	{
+		appendNum(sb, ((rgb >> 16) & 0xff) / 255f);
+		sb.append(' ');
+		appendNum(sb, ((rgb >> 8) & 0xff) / 255f);
+		sb.append(' ');
+		appendNum(sb, (rgb & 0xff) / 255f);
+	}
+}
@@ -20,14 +20,21 @@ package org.phylowidget.render;
 
 import java.awt.FileDialog;
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.RenderingHints;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.andrewberman.ui.UIUtils;
+import org.andrewberman.ui.unsorted.StreamingPNGWriter;
 import org.phylowidget.PWContext;
 import org.phylowidget.PWPlatform;
 import org.phylowidget.PhyloTree;
@@ -36,21 +43,17 @@ import org.phylowidget.tree.PhyloNode;
 import org.phylowidget.tree.RootedTree;
 
 import processing.core.PApplet;
-import processing.core.PConstants;
-import processing.core.PGraphics;
 import processing.core.PGraphicsJava2D;
 
-import com.lowagie.text.Document;
-
 public class RenderOutput
 {
 	public static boolean isOutputting = false;
 
-	public static Document doc;
-	
-	
-	
-	public static synchronized void savePDF(PApplet p, BasicTreeRenderer r, boolean zoomToFull, boolean showAllLabels)
+	/**
+	 * Saves the tree as an SVG or PDF file, streamed out by a VectorExporter.
+	 */
+	public static synchronized void saveVector(PApplet p, BasicTreeRenderer r, boolean zoomToFull,
+			boolean showAllLabels, String fileType)
 	{
 		PWContext context = PWPlatform.getInstance().getThisAppContext();
 		isOutputting = true;
@@ -62,13 +65,11 @@ public class RenderOutput
 		float oldTextSize = context.config().minTextSize;
 		if (showAllLabels)
 			context.config().minTextSize = 0;
+		context.config().styleChanged();
 		try
 		{
-			context.getPW().setMessage("Outputting PDF...");
+			context.getPW().setMessage("Outputting " + fileType + "...");
 			preprocess(t);
-			//			File f = p.outputFile("Save PDF as...");
-			//			String s = p.selectOutput("Save PDF as...");
-			String fileType = "PDF";
 			FileDialog fd =
 					new FileDialog(context.ui().getFrame(), "Choose your desination " + fileType + " file.",
 							FileDialog.SAVE);
@@ -81,25 +82,19 @@ public class RenderOutput
 				context.getPW().setMessage("Output cancelled.");
 				return;
 			}
-			// Fix a non-PDF extension.
-			if (!filename.toLowerCase().endsWith((".pdf")))
+			// Fix a missing extension.
+			String ext = "." + fileType.toLowerCase();
+			if (!filename.toLowerCase().endsWith(ext))
 			{
-				filename += ".pdf";
+				filename += ext;
 			}
-			File f = new File(directory,filename);
+			File f = new File(directory, filename);
 			p.noLoop();
-			PGraphics canvas = p.createGraphics(p.width, p.height, PConstants.PDF);
-			canvas.setPath(f.getAbsolutePath());
-			canvas.setSize(p.width, p.height);
-			canvas.beginDraw();
-			if (context.config().debug)
-				System.out.println("BEGIN DRAW");
 
 			/*
 			 * Create the render rectangle.
 			 */
 			Rectangle2D.Float rect = TreeManager.cameraRect;
-			Rectangle2D.Float oldRect = rect;
 			if (zoomToFull)
 			{
 				TreeManager.camera.fillScreen(0.5f);
@@ -107,25 +102,28 @@ public class RenderOutput
 				context.trees().update();
 				rect = TreeManager.cameraRect;
 			}
-			/*
-			 * Do the rendering!
-			 */
-			r.render(canvas, rect.x, rect.y, rect.width, rect.height, true);
 
-			if (context.config().debug)
-				System.out.println("END DRAW");
-			canvas.endDraw();
-			canvas.dispose();
-			context.getPW().setMessage("Output complete.");
+			VectorExporter exporter = new VectorExporter();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16);
+			try
+			{
+				exporter.export(p, r, VectorExporter.createWriter(fileType, out), p.width, p.height, rect.x, rect.y,
+					rect.width, rect.height);
+			} finally
+			{
+				out.close();
+			}
+			context.getPW().setMessage("Output complete: " + exporter + ".");
 		} catch (Exception e)
 		{
 			e.printStackTrace();
-			context.getPW().setMessage("PDF output failed: " + e.getMessage());
+			context.getPW().setMessage(fileType + " output failed: " + e.getMessage());
 		} finally
 		{
 			context.config().renderThreshold = oldThreshold;
 			context.config().minTextSize = oldTextSize;
 			context.config().useDoubleBuffering = oldDoubleBuff;
+			context.config().styleChanged();
 			isOutputting = false;
 			p.loop();
 		}
@@ -143,6 +141,7 @@ public class RenderOutput
 		float oldTextSize = context.config().minTextSize;
 		if (showAllLabels)
 			context.config().minTextSize = 0;
+		context.config().styleChanged();
 		try
 		{
 			context.getPW().setMessage("Outputting image...");
@@ -168,19 +167,15 @@ public class RenderOutput
 			File f = new File(directory, filename);
 
 			p.noLoop();
-			PGraphicsJava2D canvas = (PGraphicsJava2D) p.g;
-			Image oldImage = canvas.image;
-			Graphics2D oldG2 = canvas.g2;
-			int oldW = canvas.width;
-			int oldH = canvas.height;
-			canvas.width = w;
-			canvas.height = h;
-			BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-
-			Graphics2D g2 = img.createGraphics();
-			UIUtils.setRenderingHints(g2);
-			canvas.image = img;
-			canvas.g2 = g2;
+			if (fileType.toLowerCase().equals("png"))
+			{
+				saveTiled(p, r, f, zoomToFull, w, h);
+				context.getPW().setMessage("Output complete.");
+				return;
+			}
+			int oldW = p.g.width;
+			int oldH = p.g.height;
+			PGraphicsJava2D canvas = offscreen(p, w, h);
 			canvas.beginDraw();
 			prettyHints(canvas);
 			canvas.background(255);
@@ -199,11 +194,7 @@ public class RenderOutput
 			canvas.endDraw();
 			canvas.loadPixels();
 			canvas.save(f.getAbsolutePath());
-			g2.dispose();
-			canvas.image = oldImage;
-			canvas.g2 = oldG2;
-			canvas.width = oldW;
-			canvas.height = oldH;
+			canvas.g2.dispose();
 			context.getPW().setMessage("Output complete.");
 		} catch (Exception e)
 		{
@@ -216,12 +207,130 @@ public class RenderOutput
 			context.config().renderThreshold = oldThreshold;
 			context.config().minTextSize = oldTextSize;
 			context.config().useDoubleBuffering = oldDoubleBuff;
+			context.config().styleChanged();
 			isOutputting = false;
 			p.loop();
 		}
 	}
 
-	private static void prettyHints(PGraphicsJava2D g)
+	/**
+	 * Size (in pixels) of the tiles used when exporting to PNG.
+	 */
+	static final int TILE_SIZE = 1024;
+	/**
+	 * Extra border rendered around each tile and then thrown away, so that
+	 * labels crossing a tile's edge are drawn (and occluded) the same way on
+	 * either side of it.
+	 */
+	static final int TILE_MARGIN = 128;
+	/**
+	 * Most pixels in one band of rows waiting to be compressed. Bands are as
+	 * many rows as fit in this at the output's width, but no more than
+	 * TILE_SIZE and no fewer than MIN_BAND_ROWS.
+	 */
+	static final int BAND_PIXELS = 1 << 22;
+	static final int MIN_BAND_ROWS = 32;
+
+	/**
+	 * Renders the tree tile by tile, streaming each band of rows out to a PNG
+	 * file. Each band is compressed on a background thread while the next one
+	 * renders. Only one tile and two bands are held in memory: 2 *
+	 * BAND_PIXELS ints (32MB) for the bands, or 2 * MIN_BAND_ROWS rows for
+	 * images wider than BAND_PIXELS / MIN_BAND_ROWS pixels, plus a tile of at
+	 * most (TILE_SIZE + 2 * TILE_MARGIN) pixels square. Narrow bands mean
+	 * shorter tiles, which spend more of their time on the margins, so very
+	 * wide images render a bit slower.
+	 */
+	static void saveTiled(PApplet p, BasicTreeRenderer r, File f, boolean zoomToFull, final int w, int h)
+			throws Exception
+	{
+		int oldW = p.g.width;
+		int oldH = p.g.height;
+
+		/*
+		 * Create the render rectangle, scaled up to the output size.
+		 */
+		Rectangle2D.Float rect = TreeManager.cameraRect;
+		if (zoomToFull)
+			rect.setRect(0, 0, oldW, oldH);
+		float wFactor = (float) w / oldW;
+		float hFactor = (float) h / oldH;
+		float rx = rect.x * wFactor;
+		float ry = rect.y * hFactor;
+		float rw = rect.width * wFactor;
+		float rh = rect.height * hFactor;
+
+		int bandH = Math.max(MIN_BAND_ROWS, Math.min(TILE_SIZE, BAND_PIXELS / w));
+		bandH = Math.min(bandH, h);
+		PGraphicsJava2D canvas = offscreen(p, TILE_SIZE + 2 * TILE_MARGIN, bandH + 2 * TILE_MARGIN);
+		BufferedImage tile = (BufferedImage) canvas.image;
+
+		int[][] bands = new int[][] { new int[w * bandH], new int[w * bandH] };
+		Future[] pending = new Future[2];
+		ExecutorService encoder = Executors.newSingleThreadExecutor();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16);
+		try
+		{
+			final StreamingPNGWriter png = new StreamingPNGWriter(out, w, h);
+			int which = 0;
+			for (int ty = 0; ty < h; ty += bandH)
+			{
+				final int rows = Math.min(bandH, h - ty);
+				final int[] band = bands[which];
+				/*
+				 * Wait for the encoder to finish with this buffer before re-using it.
+				 */
+				if (pending[which] != null)
+					pending[which].get();
+				for (int tx = 0; tx < w; tx += TILE_SIZE)
+				{
+					int cols = Math.min(TILE_SIZE, w - tx);
+					canvas.beginDraw();
+					prettyHints(canvas);
+					canvas.background(255);
+					r.render(canvas, rx - tx + TILE_MARGIN, ry - ty + TILE_MARGIN, rw, rh, false);
+					canvas.endDraw();
+					tile.getRGB(TILE_MARGIN, TILE_MARGIN, cols, rows, band, tx, w);
+				}
+				pending[which] = encoder.submit(new Callable<Object>()
+				{
+					public Object call() throws Exception
+					{
+						png.writeRows(band, 0, w, rows);
+						return null;
+					}
+				});
+				which = 1 - which;
+			}
+			for (int i = 0; i < pending.length; i++)
+			{
+				if (pending[i] != null)
+					pending[i].get();
+			}
+			png.finish();
+		} finally
+		{
+			encoder.shutdownNow();
+			canvas.g2.dispose();
+			out.close();
+		}
+	}
+
+	/*
+	 * A canvas of our own to export into. Borrowing the applet's would leave
+	 * it drawing into the export buffer if anything went wrong part-way.
+	 */
+	static PGraphicsJava2D offscreen(PApplet p, int w, int h)
+	{
+		PGraphicsJava2D canvas = new OffscreenGraphics();
+		canvas.setParent(p);
+		canvas.setPrimary(false);
+		canvas.setSize(w, h);
+		UIUtils.setRenderingHints(canvas.g2);
+		return canvas;
+	}
+
+	static void prettyHints(PGraphicsJava2D g)
 	{
 		Graphics2D g2 = g.g2;
 		g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import processing.core.PConstants;
+
+/**
+ * Writes an SVG document. Each distinct combination of colors, line width
+ * and font becomes a CSS class, so elements only carry their geometry. Since
+ * we don't know every style until the end, the style sheet is written after
+ * the drawing (CSS applies to the whole document wherever it appears).
+ *
+ * @author Greg
+ */
+public class SVGWriter extends VectorWriter
+{
+	private Writer w;
+	private StringBuilder sb = new StringBuilder();
+	private HashMap<String, String> styles = new HashMap<String, String>();
+	private float[] coords = new float[6];
+
+	public SVGWriter(OutputStream out)
+	{
+		super(out);
+		try
+		{
+			w = new BufferedWriter(new OutputStreamWriter(this.out, "UTF-8"), 1 << 16);
+		} catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void begin(float width, float height) throws IOException
+	{
+		sb.setLength(0);
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<svg xmlns=\"http://www.w3.org/2000/svg\" version=\"1.1\" width=\"");
+		appendNum(sb, width);
+		sb.append("\" height=\"");
+		appendNum(sb, height);
+		sb.append("\" viewBox=\"0 0 ");
+		appendNum(sb, width);
+		sb.append(' ');
+		appendNum(sb, height);
+		sb.append("\">\n");
+		w.write(sb.toString());
+	}
+
+	public void beginGroup(String id, String label) throws IOException
+	{
+		sb.setLength(0);
+		sb.append("<g id=\"").append(id).append("\">");
+		if (label != null && label.length() > 0)
+		{
+			sb.append("<title>");
+			escape(sb, label);
+			sb.append("</title>");
+		}
+		sb.append('\n');
+		w.write(sb.toString());
+	}
+
+	public void endGroup() throws IOException
+	{
+		w.write("</g>\n");
+	}
+
+	public void shape(Shape s, boolean fill, int fillColor, boolean stroke, int strokeColor, float weight, int cap,
+			int join) throws IOException
+	{
+		sb.setLength(0);
+		if (fill)
+		{
+			sb.append("fill:");
+			appendColor(sb, fillColor, "fill-opacity");
+		} else
+			sb.append("fill:none");
+		if (stroke)
+		{
+			sb.append(";stroke:");
+			appendColor(sb, strokeColor, "stroke-opacity");
+			sb.append(";stroke-width:");
+			appendNum(sb, weight);
+			sb.append(";stroke-linecap:");
+			sb.append(cap == PConstants.ROUND ? "round" : (cap == PConstants.PROJECT ? "square" : "butt"));
+			sb.append(";stroke-linejoin:");
+			sb.append(join == PConstants.ROUND ? "round" : (join == PConstants.BEVEL ? "bevel" : "miter"));
+		}
+		String cls = styleClass(sb.toString());
+
+		sb.setLength(0);
+		sb.append("<path class=\"").append(cls).append("\" d=\"");
+		PathIterator it = s.getPathIterator(null);
+		while (!it.isDone())
+		{
+			int type = it.currentSegment(coords);
+			switch (type)
+			{
+				case PathIterator.SEG_MOVETO:
+					sb.append('M');
+					appendPoints(sb, coords, 1);
+					break;
+				case PathIterator.SEG_LINETO:
+					sb.append('L');
+					appendPoints(sb, coords, 1);
+					break;
+				case PathIterator.SEG_QUADTO:
+					sb.append('Q');
+					appendPoints(sb, coords, 2);
+					break;
+				case PathIterator.SEG_CUBICTO:
+					sb.append('C');
+					appendPoints(sb, coords, 3);
+					break;
+				case PathIterator.SEG_CLOSE:
+					sb.append('Z');
+					break;
+			}
+			it.next();
+		}
+		sb.append("\"/>\n");
+		w.write(sb.toString());
+	}
+
+	public void text(String s, AffineTransform at, String font, float size, int color) throws IOException
+	{
+		sb.setLength(0);
+		sb.append("font-family:'").append(font).append("';font-size:");
+		appendNum(sb, size);
+		sb.append("px;fill:");
+		appendColor(sb, color, "fill-opacity");
+		String cls = styleClass(sb.toString());
+
+		sb.setLength(0);
+		sb.append("<text class=\"").append(cls).append('"');
+		if (at.getType() == AffineTransform.TYPE_TRANSLATION || at.isIdentity())
+		{
+			sb.append(" x=\"");
+			appendNum(sb, at.getTranslateX());
+			sb.append("\" y=\"");
+			appendNum(sb, at.getTranslateY());
+			sb.append('"');
+		} else
+		{
+			sb.append(" transform=\"matrix(");
+			appendNum(sb, at.getScaleX());
+			sb.append(',');
+			appendNum(sb, at.getShearY());
+			sb.append(',');
+			appendNum(sb, at.getShearX());
+			sb.append(',');
+			appendNum(sb, at.getScaleY());
+			sb.append(',');
+			appendNum(sb, at.getTranslateX());
+			sb.append(',');
+			appendNum(sb, at.getTranslateY());
+			sb.append(")\"");
+		}
+		sb.append('>');
+		escape(sb, s);
+		sb.append("</text>\n");
+		w.write(sb.toString());
+	}
+
+	public void end() throws IOException
+	{
+		sb.setLength(0);
+		sb.append("<style type=\"text/css\"><![CDATA[\n");
+		Iterator<Map.Entry<String, String>> it = styles.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<String, String> e = it.next();
+			sb.append('.').append(e.getValue()).append('{').append(e.getKey()).append("}\n");
+		}
+		sb.append("]]></style>\n</svg>\n");
+		w.write(sb.toString());
+		w.flush();
+	}
+
+	private String styleClass(String style)
+	{
+		String cls = styles.get(style);
+		if (cls == null)
+		{
+			cls = "s" + styles.size();
+			styles.put(style, cls);
+		}
+		return cls;
+	}
+
+	private static void appendPoints(StringBuilder sb, float[] coords, int num)
+	{
+		for (int i = 0; i < num * 2; i += 2)
+		{
+			if (i > 0)
+				sb.append(' ');
+			appendNum(sb, coords[i]);
+			sb.append(',');
+			appendNum(sb, coords[i + 1]);
+		}
+	}
+
+	private static void appendColor(StringBuilder sb, int argb, String opacityKey)
+	{
+		appendHex(sb, argb & 0xffffff);
+		int a = (argb >>> 24);
+		if (a != 255)
+		{
+			sb.append(';').append(opacityKey).append(':');
+			appendNum(sb, a / 255f);
+		}
+	}
+
+	private static void escape(StringBuilder sb, String s)
+	{
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch (c)
+			{
+				case '<':
+					sb.append("&lt;");
+					break;
+				case '>':
+					sb.append("&gt;");
+					break;
+				case '&':
+					sb.append("&amp;");
+					break;
+				case '"':
+					sb.append("&quot;");
+					break;
+				default:
+					if (c < 0x20 && c != '\t')
+						sb.append(' ');
+					else
+						sb.append(c);
+			}
+		}
+	}
+}
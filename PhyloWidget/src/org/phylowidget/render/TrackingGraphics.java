@@ -0,0 +1,377 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+
+import org.andrewberman.ui.UIUtils;
+import org.phylowidget.tree.PhyloNode;
+
+import processing.core.PImage;
+
+/**
+ * The double buffer's canvas. Besides drawing, it keeps a summary of what was
+ * drawn for each node of the tree: a hash of the drawing calls, and the box
+ * (in buffer pixels) that they covered. Comparing the summary with the one
+ * from the previous frame tells us which parts of the buffer have changed.
+ * <p>
+ * With <code>rasterize</code> off, nothing is drawn at all and only the
+ * summary is built, which is a lot cheaper than actually drawing.
+ *
+ * @author Greg
+ */
+public class TrackingGraphics extends OffscreenGraphics
+{
+	/**
+	 * Whether drawing calls are added to the summary.
+	 */
+	boolean tracking;
+
+	/**
+	 * Whether drawing calls actually get drawn.
+	 */
+	boolean rasterize = true;
+
+	/*
+	 * Summaries for this frame and the last, one slot per node in the
+	 * renderer's snapshot plus one for anything drawn before the first node.
+	 */
+	private int slots, lastSlots = -1;
+	private int slot;
+	private int[] hash = new int[0], lastHash = new int[0];
+	private float[] box = new float[0], lastBox = new float[0];
+
+	private float[] coords = new float[6];
+	private float[] pts = new float[8];
+
+	/*
+	 * A one pixel image to point g2 at while rasterizing is off, so stray
+	 * drawing can't touch the buffer.
+	 */
+	private BufferedImage scratch;
+	private Graphics2D scratchG;
+
+	/**
+	 * Points this canvas at a buffer to draw into.
+	 */
+	void setBuffer(BufferedImage image, Graphics2D g)
+	{
+		this.image = image;
+		this.g2 = g;
+	}
+
+	/**
+	 * Points this canvas at a scratch image, for a pass that only builds the
+	 * summary.
+	 */
+	void setScratch()
+	{
+		if (scratch == null)
+		{
+			scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+			scratchG = scratch.createGraphics();
+			/*
+			 * Same hints as the real buffers, so that text measures the same.
+			 */
+			UIUtils.setRenderingHints(scratchG);
+		}
+		setBuffer(scratch, scratchG);
+	}
+
+	/**
+	 * Starts a new summary with room for the given number of nodes, keeping
+	 * the current one to compare against.
+	 */
+	void beginTracking(int numNodes)
+	{
+		int[] th = lastHash;
+		lastHash = hash;
+		hash = th;
+		float[] tb = lastBox;
+		lastBox = box;
+		box = tb;
+		lastSlots = slots;
+
+		slots = numNodes + 1;
+		if (hash.length < slots)
+		{
+			hash = new int[slots];
+			box = new float[slots * 4];
+		}
+		for (int i = 0; i < slots; i++)
+		{
+			hash[i] = 1;
+			int j = i * 4;
+			box[j] = box[j + 1] = Float.MAX_VALUE;
+			box[j + 2] = box[j + 3] = -Float.MAX_VALUE;
+		}
+		slot = slots - 1;
+		tracking = true;
+	}
+
+	/**
+	 * Forgets the previous summary, so the next comparison fails.
+	 */
+	void resetTracking()
+	{
+		lastSlots = -1;
+		slots = 0;
+	}
+
+	/**
+	 * Attributes the following drawing calls to the given node.
+	 */
+	void nodeRendered(BasicTreeRenderer r, PhyloNode n)
+	{
+		if (!tracking)
+			return;
+		int i = r.getSnapshotIndex(n);
+		slot = (i == -1 || i >= slots - 1) ? slots - 1 : i;
+	}
+
+	/**
+	 * Adds the boxes of everything that differs between this summary and the
+	 * last to the dirty region, and sets content to the box around everything
+	 * drawn this time. Returns false if the two summaries can't be compared.
+	 */
+	boolean findChanges(DirtyRegion dirty, Rectangle content)
+	{
+		float cx1 = Float.MAX_VALUE, cy1 = Float.MAX_VALUE;
+		float cx2 = -Float.MAX_VALUE, cy2 = -Float.MAX_VALUE;
+		for (int i = 0; i < slots; i++)
+		{
+			int j = i * 4;
+			cx1 = Math.min(cx1, box[j]);
+			cy1 = Math.min(cy1, box[j + 1]);
+			cx2 = Math.max(cx2, box[j + 2]);
+			cy2 = Math.max(cy2, box[j + 3]);
+		}
+		if (cx2 > cx1 && cy2 > cy1)
+		{
+			int x = (int) Math.floor(cx1);
+			int y = (int) Math.floor(cy1);
+			content.setBounds(x, y, (int) Math.ceil(cx2) - x, (int) Math.ceil(cy2) - y);
+		} else
+			content.setBounds(0, 0, 0, 0);
+
+		if (slots != lastSlots)
+			return false;
+		for (int i = 0; i < slots; i++)
+		{
+			int j = i * 4;
+			if (hash[i] == lastHash[i] && box[j] == lastBox[j] && box[j + 1] == lastBox[j + 1]
+					&& box[j + 2] == lastBox[j + 2] && box[j + 3] == lastBox[j + 3])
+				continue;
+			dirty.add(lastBox[j], lastBox[j + 1], lastBox[j + 2], lastBox[j + 3]);
+			dirty.add(box[j], box[j + 1], box[j + 2], box[j + 3]);
+		}
+		return true;
+	}
+
+	@Override
+	protected void fillShape(Shape s)
+	{
+		if (tracking && fill)
+			trackShape(s, true, false);
+		if (rasterize)
+			super.fillShape(s);
+	}
+
+	@Override
+	protected void strokeShape(Shape s)
+	{
+		if (tracking && stroke)
+			trackShape(s, false, true);
+		if (rasterize)
+			super.strokeShape(s);
+	}
+
+	@Override
+	protected void drawShape(Shape s)
+	{
+		if (tracking && (fill || stroke))
+			trackShape(s, fill, stroke);
+		if (rasterize)
+			super.drawShape(s);
+	}
+
+	@Override
+	protected void textLineImpl(char[] buffer, int start, int stop, float x, float y)
+	{
+		if (tracking && textFont != null)
+		{
+			int h = 3;
+			for (int i = start; i < stop; i++)
+				h = h * 31 + buffer[i];
+			trackText(h, x, y, textWidthImpl(buffer, start, stop));
+		}
+		if (rasterize)
+			super.textLineImpl(buffer, start, stop, x, y);
+	}
+
+	/**
+	 * For text drawn straight onto g2 (from the label cache), starting at x
+	 * and already aligned.
+	 */
+	void textDrawn(String s, float x, float y, float w)
+	{
+		if (!tracking || textFont == null)
+			return;
+		int h = 3;
+		for (int i = 0; i < s.length(); i++)
+			h = h * 31 + s.charAt(i);
+		trackText(h, x, y, w);
+	}
+
+	private void trackText(int h, float x, float y, float w)
+	{
+		h = h * 31 + System.identityHashCode(textFont);
+		h = h * 31 + Float.floatToIntBits(textSize);
+		h = h * 31 + fillColor;
+		trackRect(h, x, y - textAscent(), x + w, y + textDescent(), 2);
+	}
+
+	@Override
+	protected void imageImpl(PImage img, float x1, float y1, float x2, float y2, int u1, int v1, int u2, int v2)
+	{
+		if (tracking)
+		{
+			int h = 4;
+			h = h * 31 + System.identityHashCode(img);
+			h = h * 31 + (tint ? tintColor : 0);
+			trackRect(h, x1, y1, x2, y2, 1);
+		}
+		if (rasterize)
+			super.imageImpl(img, x1, y1, x2, y2, u1, v1, u2, v2);
+	}
+
+	/**
+	 * For images drawn straight onto g2, which bypass the hooks above.
+	 */
+	void imageDrawn(Object img, float alpha, float x, float y, float w, float h)
+	{
+		if (!tracking)
+			return;
+		int hc = 5;
+		hc = hc * 31 + System.identityHashCode(img);
+		hc = hc * 31 + Float.floatToIntBits(alpha);
+		trackRect(hc, x, y, x + w, y + h, 1);
+	}
+
+	private void trackShape(Shape s, boolean doFill, boolean doStroke)
+	{
+		AffineTransform at = g2.getTransform();
+		int h = doFill ? 1 : 2;
+		if (doFill)
+			h = h * 31 + fillColor;
+		float pad = 1;
+		if (doStroke)
+		{
+			h = h * 31 + (doFill ? 7 : 0);
+			h = h * 31 + strokeColor;
+			h = h * 31 + Float.floatToIntBits(strokeWeight);
+			h = h * 31 + strokeCap * 64 + strokeJoin;
+			/*
+			 * Generous enough for square caps and most miters.
+			 */
+			pad += strokeWeight * (float) Math.sqrt(Math.abs(at.getDeterminant()));
+		}
+		float x1 = Float.MAX_VALUE, y1 = Float.MAX_VALUE;
+		float x2 = -Float.MAX_VALUE, y2 = -Float.MAX_VALUE;
+		PathIterator it = s.getPathIterator(at);
+		while (!it.isDone())
+		{
+			int type = it.currentSegment(coords);
+			int n = 0;
+			switch (type)
+			{
+				case PathIterator.SEG_MOVETO:
+				case PathIterator.SEG_LINETO:
+					n = 1;
+					break;
+				case PathIterator.SEG_QUADTO:
+					n = 2;
+					break;
+				case PathIterator.SEG_CUBICTO:
+					n = 3;
+					break;
+			}
+			h = h * 31 + type;
+			for (int i = 0; i < n * 2; i += 2)
+			{
+				float px = coords[i];
+				float py = coords[i + 1];
+				h = h * 31 + Float.floatToIntBits(px);
+				h = h * 31 + Float.floatToIntBits(py);
+				x1 = Math.min(x1, px);
+				y1 = Math.min(y1, py);
+				x2 = Math.max(x2, px);
+				y2 = Math.max(y2, py);
+			}
+			it.next();
+		}
+		if (x2 < x1)
+			return;
+		add(h, x1 - pad, y1 - pad, x2 + pad, y2 + pad);
+	}
+
+	/*
+	 * Tracks the rectangle (x1,y1)-(x2,y2) under the current transform.
+	 */
+	private void trackRect(int h, float x1, float y1, float x2, float y2, float pad)
+	{
+		AffineTransform at = g2.getTransform();
+		pts[0] = x1;
+		pts[1] = y1;
+		pts[2] = x2;
+		pts[3] = y1;
+		pts[4] = x2;
+		pts[5] = y2;
+		pts[6] = x1;
+		pts[7] = y2;
+		at.transform(pts, 0, pts, 0, 4);
+		float bx1 = Float.MAX_VALUE, by1 = Float.MAX_VALUE;
+		float bx2 = -Float.MAX_VALUE, by2 = -Float.MAX_VALUE;
+		for (int i = 0; i < 8; i += 2)
+		{
+			h = h * 31 + Float.floatToIntBits(pts[i]);
+			h = h * 31 + Float.floatToIntBits(pts[i + 1]);
+			bx1 = Math.min(bx1, pts[i]);
+			by1 = Math.min(by1, pts[i + 1]);
+			bx2 = Math.max(bx2, pts[i]);
+			by2 = Math.max(by2, pts[i + 1]);
+		}
+		add(h, bx1 - pad, by1 - pad, bx2 + pad, by2 + pad);
+	}
+
+	private void add(int h, float x1, float y1, float x2, float y2)
+	{
+		hash[slot] = hash[slot] * 31 + h;
+		int j = slot * 4;
+		box[j] = Math.min(box[j], x1);
+		box[j + 1] = Math.min(box[j + 1], y1);
+		box[j + 2] = Math.max(box[j + 2], x2);
+		box[j + 3] = Math.max(box[j + 3], y2);
+	}
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.phylowidget.tree.PhyloNode;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+
+/**
+ * Exports a tree to SVG or PDF, streaming it out in a single pre-order walk
+ * with each clade in its own group.
+ * <p>
+ * The renderer first does an ordinary (but invisible) pass, so the nodes and
+ * labels that get exported are exactly the ones the same render would draw on
+ * screen: the same thresholding and label occlusion apply.
+ *
+ * @author Greg
+ */
+public class VectorExporter
+{
+	private long bytesWritten;
+	private long millis;
+
+	public static VectorWriter createWriter(String format, OutputStream out)
+	{
+		if (format.equalsIgnoreCase("svg"))
+			return new SVGWriter(out);
+		else if (format.equalsIgnoreCase("pdf"))
+			return new PDFWriter(out);
+		throw new IllegalArgumentException("Unknown vector format: " + format);
+	}
+
+	/**
+	 * Renders the tree into the rectangle (x,y,w,h) of a width by height page.
+	 * The caller should turn off double buffering in the renderer's config.
+	 */
+	public void export(PApplet p, BasicTreeRenderer r, VectorWriter writer, int width, int height, float x, float y,
+			float w, float h) throws IOException
+	{
+		long start = System.currentTimeMillis();
+		VectorGraphics vg = new VectorGraphics();
+		vg.setParent(p);
+		vg.setPrimary(false);
+		vg.setSize(width, height);
+		vg.beginDraw();
+		RenderOutput.prettyHints(vg);
+
+		vg.recording = false;
+		vg.clearDrawn(r.snapshot.size);
+		r.render(vg, x, y, w, h, true);
+
+		FlatTree t = r.snapshot;
+		if (vg.drawn.length < t.size)
+			vg.clearDrawn(t.size);
+		byte[] drawn = vg.drawn;
+		/*
+		 * Find the clades with something drawn in them; the rest are skipped.
+		 */
+		boolean[] used = new boolean[t.size];
+		for (int i = t.size - 1; i >= 0; i--)
+		{
+			if (drawn[i] != 0)
+				used[i] = true;
+			if (used[i] && t.parent[i] != -1)
+				used[t.parent[i]] = true;
+		}
+
+		writer.begin(width, height);
+		writer.shape(new Rectangle2D.Float(0, 0, width, height), true, r.context.config().getBackgroundColor()
+				.getRGB(), false, 0, 0, PConstants.SQUARE, PConstants.MITER);
+		vg.writer = writer;
+		vg.recording = true;
+		vg.resetMatrix();
+
+		int[] groupEnds = new int[(t.size > 0 ? t.maxDepth[0] : 0) + 1];
+		int depth = 0;
+		int i = 0;
+		while (i < t.size && vg.error == null)
+		{
+			while (depth > 0 && groupEnds[depth - 1] <= i)
+			{
+				writer.endGroup();
+				depth--;
+			}
+			if (!used[i])
+			{
+				i = t.end[i];
+				continue;
+			}
+			PhyloNode n = t.node[i];
+			if (!t.leaf[i])
+			{
+				writer.beginGroup("n" + i, n.getLabel());
+				groupEnds[depth++] = t.end[i];
+			}
+			if (drawn[i] != 0)
+			{
+				n.drawLineAndNode = (drawn[i] & VectorGraphics.STRUCTURE) != 0;
+				n.drawLabel = (drawn[i] & VectorGraphics.LABEL) != 0;
+				r.decorator.render(r, n);
+				if (n.drawLineAndNode && !t.leaf[i])
+					r.drawBootstrap(n);
+			}
+			i++;
+		}
+		while (depth > 0)
+		{
+			writer.endGroup();
+			depth--;
+		}
+		vg.endDraw();
+		if (vg.error != null)
+			throw vg.error;
+		writer.end();
+
+		bytesWritten = writer.getBytesWritten();
+		millis = System.currentTimeMillis() - start;
+	}
+
+	public long getBytesWritten()
+	{
+		return bytesWritten;
+	}
+
+	public long getMillis()
+	{
+		return millis;
+	}
+
+	/**
+	 * A short summary for the status bar, e.g. "2.4 MB in 1.3s".
+	 */
+	public String toString()
+	{
+		String size;
+		if (bytesWritten >= 1 << 20)
+			size = Math.round(bytesWritten * 10f / (1 << 20)) / 10f + " MB";
+		else
+			size = Math.round(bytesWritten / 1024f) + " KB";
+		return size + " in " + (millis / 100) / 10f + "s";
+	}
+}
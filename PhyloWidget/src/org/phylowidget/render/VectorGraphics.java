@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.phylowidget.tree.PhyloNode;
+
+import processing.core.PImage;
+
+/**
+ * A canvas that passes shapes and text on to a VectorWriter instead of
+ * drawing them, so that the usual render code can be used for vector output.
+ * <p>
+ * It has two modes. While not recording, nothing is written, but every node
+ * that the renderer draws is noted down, along with whether its branch and
+ * its label were drawn; this captures the render threshold and the label
+ * occlusion. While recording, drawing calls go to the writer.
+ *
+ * @author Greg
+ */
+public class VectorGraphics extends OffscreenGraphics
+{
+	static final byte STRUCTURE = 1;
+	static final byte LABEL = 2;
+
+	VectorWriter writer;
+	boolean recording;
+	IOException error;
+
+	/**
+	 * What was drawn for each node during the last non-recording pass, indexed
+	 * by the node's position in the renderer's snapshot.
+	 */
+	byte[] drawn = new byte[0];
+
+	@Override
+	protected void allocate()
+	{
+		/*
+		 * No pixels are ever drawn, but PGraphicsJava2D keeps its matrix and
+		 * font metrics in g2, so give it a tiny image to hang off.
+		 */
+		image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+		g2 = (Graphics2D) image.getGraphics();
+	}
+
+	@Override
+	public void endDraw()
+	{
+		/*
+		 * Nothing to copy back into the pixels.
+		 */
+	}
+
+	@Override
+	public void loadPixels()
+	{
+	}
+
+	void clearDrawn(int size)
+	{
+		if (drawn.length < size)
+			drawn = new byte[size];
+		else
+		{
+			for (int i = 0; i < drawn.length; i++)
+				drawn[i] = 0;
+		}
+	}
+
+	void nodeRendered(BasicTreeRenderer r, PhyloNode n)
+	{
+		if (recording)
+			return;
+		int i = r.getSnapshotIndex(n);
+		if (i == -1)
+			return;
+		if (i >= drawn.length)
+		{
+			byte[] newDrawn = new byte[r.snapshot.size];
+			System.arraycopy(drawn, 0, newDrawn, 0, drawn.length);
+			drawn = newDrawn;
+		}
+		if (n.drawLineAndNode)
+			drawn[i] |= STRUCTURE;
+		if (n.drawLabel)
+			drawn[i] |= LABEL;
+	}
+
+	@Override
+	protected void fillShape(Shape s)
+	{
+		emit(s, fill, false);
+	}
+
+	@Override
+	protected void strokeShape(Shape s)
+	{
+		emit(s, false, stroke);
+	}
+
+	@Override
+	protected void drawShape(Shape s)
+	{
+		emit(s, fill, stroke);
+	}
+
+	private void emit(Shape s, boolean doFill, boolean doStroke)
+	{
+		if (!recording || error != null || (!doFill && !doStroke))
+			return;
+		AffineTransform at = g2.getTransform();
+		float scale = (float) Math.sqrt(Math.abs(at.getDeterminant()));
+		try
+		{
+			writer.shape(at.createTransformedShape(s), doFill, fillColor, doStroke, strokeColor, strokeWeight * scale,
+				strokeCap, strokeJoin);
+		} catch (IOException e)
+		{
+			error = e;
+		}
+	}
+
+	@Override
+	protected void textLineImpl(char[] buffer, int start, int stop, float x, float y)
+	{
+		if (!recording || error != null || textFont == null)
+			return;
+		AffineTransform at = g2.getTransform();
+		at.translate(x, y);
+		Font f = textFont.getFont();
+		String family = (f != null) ? f.getFamily() : textFont.name;
+		try
+		{
+			writer.text(new String(buffer, start, stop - start), at, family, textSize, fillColor);
+		} catch (IOException e)
+		{
+			error = e;
+		}
+	}
+
+	@Override
+	protected void imageImpl(PImage img, float x1, float y1, float x2, float y2, int u1, int v1, int u2, int v2)
+	{
+		/*
+		 * Images aren't exported.
+		 */
+	}
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.render;
+
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams vector drawing commands straight to a file format. Shapes arrive
+ * already transformed into page coordinates (y pointing down, as on screen);
+ * text arrives with the transform to draw it with.
+ * <p>
+ * Nothing is held in memory beyond the current element and the table of
+ * styles seen so far, so the output can be as large as the tree needs.
+ *
+ * @author Greg
+ */
+public abstract class VectorWriter
+{
+	protected CountingOutputStream out;
+
+	public VectorWriter(OutputStream out)
+	{
+		this.out = new CountingOutputStream(out);
+	}
+
+	public abstract void begin(float width, float height) throws IOException;
+
+	/**
+	 * Starts a group holding a clade; groups nest the same way as the tree.
+	 */
+	public abstract void beginGroup(String id, String label) throws IOException;
+
+	public abstract void endGroup() throws IOException;
+
+	/**
+	 * Fills and/or strokes a shape. Colors are ARGB; cap and join use the
+	 * Processing constants (SQUARE, ROUND, PROJECT, MITER and BEVEL).
+	 */
+	public abstract void shape(Shape s, boolean fill, int fillColor, boolean stroke, int strokeColor, float weight,
+			int cap, int join) throws IOException;
+
+	/**
+	 * Draws a line of text with its baseline starting at (0,0) after applying
+	 * the given transform.
+	 */
+	public abstract void text(String s, AffineTransform at, String font, float size, int color) throws IOException;
+
+	/**
+	 * Finishes the document. Doesn't close the underlying stream.
+	 */
+	public abstract void end() throws IOException;
+
+	public long getBytesWritten()
+	{
+		return out.count;
+	}
+
+	/*
+	 * Formatting helpers, shared by the subclasses. Coordinates are written
+	 * with at most two decimal places, which is plenty at any zoom level a
+	 * viewer is likely to use and keeps the files small.
+	 */
+
+	static void appendNum(StringBuilder sb, double d)
+	{
+		long l = Math.round(d * 100);
+		if (l < 0)
+		{
+			sb.append('-');
+			l = -l;
+		}
+		sb.append(l / 100);
+		int frac = (int) (l % 100);
+		if (frac != 0)
+		{
+			sb.append('.');
+			if (frac < 10)
+				sb.append('0');
+			if (frac % 10 == 0)
+				frac /= 10;
+			sb.append(frac);
+		}
+	}
+
+	static void appendHex(StringBuilder sb, int rgb)
+	{
+		sb.append('#');
+		for (int shift = 20; shift >= 0; shift -= 4)
+			sb.append(Character.forDigit((rgb >> shift) & 0xf, 16));
+	}
+
+	/**
+	 * Counts the bytes written through it, so that the writers know their file
+	 * offsets and can report the output size.
+	 */
+	static class CountingOutputStream extends FilterOutputStream
+	{
+		long count;
+
+		CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+
+		/*
+		 * The writers decide when the underlying stream gets closed.
+		 */
+		public void close() throws IOException
+		{
+			flush();
+		}
+	}
+}
@@ -1,13 +1,29 @@
 package org.phylowidget.render.images;
 
+import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.InputStream;
 import java.net.URL;
-import java.util.Hashtable;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import org.phylowidget.PWContext;
 import org.phylowidget.PWPlatform;
@@ -15,44 +31,95 @@ import org.phylowidget.PhyloTree;
 import org.phylowidget.tree.PhyloNode;
 import org.phylowidget.tree.RootedTree;
 
-import processing.core.PApplet;
-
-public class ImageLoader implements Runnable
+/**
+ * Loads the images annotated onto nodes, in the background.
+ * <p>
+ * Images are decoded by a small pool of worker threads and kept as
+ * thumbnails only as big as they're being drawn: the size asked for is
+ * rounded up to a power of two (between MIN_SIDE and MAX_SIDE pixels on the
+ * longest side), and if an image is later drawn bigger than its thumbnail,
+ * a bigger one is loaded to replace it. Each has a chain of smaller copies
+ * (see MipImage) for drawing at small sizes. The thumbnails are held in a
+ * cache that drops the least recently drawn ones once their pixels add up to
+ * more than the <code>imageCacheSize</code> setting, but never one that was
+ * drawn in the last frame or this one. Thumbnails of local files can also be
+ * kept on disk (the <code>diskImageCache</code> setting), so that reopening
+ * the same tree doesn't decode every image again.
+ * <p>
+ * The render thread only ever reads from a concurrent map, so drawing never
+ * waits on a decode.
+ */
+public class ImageLoader
 {
-	static Hashtable<String, Image> imageMap;
-	static Hashtable<String, Integer> loadedImageURLs;
-	static Hashtable<String, PhyloNode> urlsToNodes;
-	static Thread thread;
+	/*
+	 * The largest thumbnail we keep, in pixels on its longest side.
+	 */
+	static final int MAX_SIDE = 1024;
+
+	/*
+	 * The smallest thumbnail we load.
+	 */
+	static final int MIN_SIDE = 64;
+
+	static final int MAX_THREADS = 4;
+
+	ConcurrentHashMap<String, Cached> images = new ConcurrentHashMap<String, Cached>();
+	/*
+	 * The images waiting to be loaded, and the thumbnail size wanted for each.
+	 */
+	ConcurrentHashMap<String, Integer> loading = new ConcurrentHashMap<String, Integer>();
+	AtomicLong bytes = new AtomicLong();
+	AtomicLong clock = new AtomicLong();
+	AtomicLong generation = new AtomicLong();
+
+	/*
+	 * The clock at the start of this frame and the one before. Images used
+	 * since lastFrame are on screen, and trim() leaves them alone.
+	 */
+	volatile long thisFrame;
+	volatile long lastFrame;
+
+	ExecutorService pool;
 
 	PWContext context;
-	
+
 	public ImageLoader()
 	{
 		context = PWPlatform.getInstance().getThisAppContext();
 	}
 
-	boolean loadingImg = false;
-	PhyloNode loadingNode = null;
-	public synchronized Image getImageForNode(PhyloNode n)
+	/**
+	 * Called by the renderer at the start of each frame it draws.
+	 */
+	public void beginFrame()
 	{
-		if (thread == null)
-		{
-			loadedImageURLs = new Hashtable<String, Integer>();
-			imageMap = new Hashtable<String, Image>();
-			urlsToNodes = new Hashtable<String,PhyloNode>();
-			thread = new Thread(this);
-			thread.start();
-		}
+		lastFrame = thisFrame;
+		thisFrame = clock.get();
+	}
 
+	/**
+	 * The node's image, at its largest thumbnail size.
+	 */
+	public Image getImageForNode(PhyloNode n)
+	{
+		MipImage mips = getMipsForNode(n, MAX_SIDE);
+		return (mips == null) ? null : mips.getImage();
+	}
+
+	/**
+	 * The node's image along with its smaller copies, for drawing at any size
+	 * up to the given number of pixels on its longest side.
+	 */
+	public MipImage getMipsForNode(PhyloNode n, float side)
+	{
 		String imgS = n.getAnnotation(ImageSearcher.IMG_TAG);
 		if (imgS != null)
 		{
-			addImage(imgS,n);
-			Image img = imageMap.get(imgS);
+			MipImage img = getImage(imgS, sideFor(side));
 			if (img != null)
 			{
 				/*
-				 * The latest image is here, so unload the old image from the hashtable and the annotation map.
+				 * The latest image is here, so unload the old image from the cache and the annotation map.
 				 */
 				String oldImgS = n.getAnnotation(ImageSearcher.OLD_IMG_TAG);
 				if (oldImgS != null)
@@ -62,133 +129,313 @@ public class ImageLoader implements Runnable
 				}
 				return img;
 			}
-			context.getPW().setMessage("Loading image...");
+			if (context.getPW() != null)
+				context.getPW().setMessage("Loading image...");
 			String oldImgS = n.getAnnotation(ImageSearcher.OLD_IMG_TAG);
 			if (oldImgS != null)
 			{
-				img = imageMap.get(oldImgS);
-				return img;
+				Cached e = images.get(oldImgS);
+				return (e == null) ? null : e.mips;
 			} else
 				return null;
 		} else
 			return null;
 	}
 
-	synchronized void removeImage(String imageURL)
+	/*
+	 * The thumbnail size to load for drawing at the given size.
+	 */
+	static int sideFor(float side)
 	{
-		Image i = imageMap.get(imageURL);
-		if (i != null)
+		int s = MIN_SIDE;
+		while (s < side && s < MAX_SIDE)
+			s *= 2;
+		return s;
+	}
+
+	/*
+	 * Returns the image if it's loaded, and otherwise queues it up for loading.
+	 * If the thumbnail we have is smaller than asked for (and smaller than the
+	 * image itself), it's returned while a bigger one is loaded.
+	 */
+	MipImage getImage(String imageURL, int side)
+	{
+		Cached e = images.get(imageURL);
+		if (e != null)
 		{
-			i.flush();
-			i = null;
+			e.lastUsed = clock.incrementAndGet();
+			/*
+			 * The thumbnail was loaded at e.side, but may have been drawn
+			 * small since, and lost its larger levels.
+			 */
+			int top = e.mips.getTop();
+			if ((e.side >> top) < side && (top > 0 || !e.whole))
+				load(imageURL, side);
+			return e.mips;
 		}
-		imageMap.remove(imageURL);
-		loadedImageURLs.remove(imageURL);
+		load(imageURL, side);
+		return null;
 	}
 
-	static final Integer integer = new Integer(0);
+	/*
+	 * Queues up an image to be loaded at the given size, unless it's queued
+	 * already; in that case it's loaded at the larger of the two sizes, if
+	 * the loader hasn't started on it yet.
+	 */
+	void load(String imageURL, int side)
+	{
+		Integer queued = loading.putIfAbsent(imageURL, side);
+		if (queued == null)
+			pool().execute(new Load(imageURL));
+		else if (queued.intValue() < side)
+			loading.replace(imageURL, queued, side);
+	}
 
-	synchronized void addImage(String imageURL,PhyloNode n)
+	void removeImage(String imageURL)
 	{
-//		if (!PhyloWidget.ui.canAccessInternet())
-//		{
-//			context.getP().setMessage("Image loading failed: requires PhyloWidget full!");
-//			return;
-//		}
-		if (!loadedImageURLs.containsKey(imageURL))
+		Cached e = images.remove(imageURL);
+		if (e != null)
 		{
-			loadedImageURLs.put(imageURL, integer);
-			imagesToLoad.add(imageURL);
-			urlsToNodes.put(imageURL,n);
-			notifyAll();
+			e.mips.flush();
+			generation.incrementAndGet();
 		}
 	}
 
-	Queue<String> imagesToLoad = new LinkedBlockingQueue<String>();
+	/**
+	 * A number that changes whenever an image arrives or is dropped from the
+	 * cache, so the renderer can tell when it has something new to draw.
+	 */
+	public long getGeneration()
+	{
+		return generation.get();
+	}
 
-	public void run()
+	synchronized ExecutorService pool()
 	{
-		while (true)
+		if (pool == null)
 		{
-			if (!imagesToLoad.isEmpty())
-			{
-				String imgS = null;
-				try
-				{
-					imgS = imagesToLoad.remove();
-					URL url = null;
-					try {
-						url = new URL(imgS);
-					} catch (Exception e) {
-						RootedTree t = context.trees().getTree();
-						PhyloTree pt = (PhyloTree) t;
-						if (pt.getBaseURL().length() > 0)
-						{
-							imgS = imgS.replaceAll("\"", "");
-							File f = new File(pt.getBaseURL(),imgS);
-							url = f.toURL();
-						}
+			int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+			/*
+			 * The threads are daemons, and stay around until dispose().
+			 */
+			pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "PhyloWidget image loader");
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
 					}
-					
-					PApplet p = context.getPW();
-					//					InputStream in = p.openStream(imgS);
-					//					byte[] bytes = PApplet.loadBytes(in);
-					//					if (bytes == null)
-					//					{
-					//						in.close();
-					//						continue;
-					//					}
-//					Image img = p.getImage(new URL(imgS));
-					Image img = ImageIO.read(url);
-					context.getPW().setMessage("Finished loading image!");
-					//					System.out.println(img);
-					//					Image img = Toolkit.getDefaultToolkit().createImage(bytes);
-					//					bytes = null;
-					imageMap.put(imgS, img);
-					
-					PhyloNode n = urlsToNodes.get(imgS);
-					if (n != null)
+				});
+		}
+		return pool;
+	}
+
+	class Load implements Runnable
+	{
+		String imgS;
+
+		Load(String imgS)
+		{
+			this.imgS = imgS;
+		}
+
+		public void run()
+		{
+			try
+			{
+				Integer queued = loading.get(imgS);
+				if (queued == null)
+					return;
+				int side = queued.intValue();
+				URL url = null;
+				File file = null;
+				try {
+					url = new URL(imgS);
+					if (url.getProtocol().equals("file"))
+						file = new File(url.toURI());
+				} catch (Exception e) {
+					RootedTree t = context.trees().getTree();
+					PhyloTree pt = (PhyloTree) t;
+					if (pt.getBaseURL().length() > 0)
 					{
-						n.setAnnotation("img_a", 0);
+						file = new File(pt.getBaseURL(), imgS.replaceAll("\"", ""));
+						url = file.toURL();
 					}
-					
-				} catch (Exception e)
+				}
+				if (url == null)
+					return;
+
+				BufferedImage img = null;
+				File cached = null;
+				if (file != null && context.config().diskImageCache)
 				{
-					e.printStackTrace();
-					loadedImageURLs.remove(imgS);
+					cached = ThumbnailDiskCache.fileFor(file, side);
+					img = ThumbnailDiskCache.read(cached);
 				}
+				boolean[] whole = new boolean[1];
+				if (img == null)
+				{
+					img = readThumbnail(url, side, whole);
+					if (img == null)
+						return;
+					if (cached != null)
+						ThumbnailDiskCache.write(cached, img);
+				} else
+					whole[0] = Math.max(img.getWidth(), img.getHeight()) < side;
+				if (context.getPW() != null)
+					context.getPW().setMessage("Finished loading image!");
+
+				/*
+				 * The smaller copies are only made as they're drawn (see
+				 * MipImage), which counts them in bytes as it goes.
+				 */
+				Cached e = new Cached();
+				e.mips = new MipImage(img, bytes);
+				e.side = side;
+				e.whole = whole[0];
+				e.lastUsed = clock.incrementAndGet();
+				Cached old = images.put(imgS, e);
+				if (old != null)
+					old.mips.flush();
+				generation.incrementAndGet();
+				trim();
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+			} finally
+			{
+				loading.remove(imgS);
 			}
-			if (imagesToLoad.isEmpty())
+		}
+	}
+
+	/**
+	 * Decodes an image, scaled down to fit within side pixels. Large images
+	 * are subsampled while they're decoded, so the full size image never has
+	 * to fit in memory. whole[0] is set if the image is smaller than that
+	 * already, so there's no point asking for it any bigger.
+	 */
+	static BufferedImage readThumbnail(URL url, int side, boolean[] whole) throws Exception
+	{
+		InputStream raw = url.openStream();
+		try
+		{
+			ImageInputStream in = ImageIO.createImageInputStream(raw);
+			if (in == null)
+				return null;
+			try
 			{
-				synchronized (this)
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+				if (!readers.hasNext())
+					return null;
+				ImageReader reader = readers.next();
+				try
 				{
-					try
-					{
-						wait();
-					} catch (InterruptedException e)
-					{
-						e.printStackTrace();
-					}
+					reader.setInput(in, true, true);
+					int w = reader.getWidth(0);
+					int h = reader.getHeight(0);
+					ImageReadParam param = reader.getDefaultReadParam();
+					/*
+					 * Subsample to no less than twice the thumbnail size, then
+					 * scale down the rest of the way smoothly.
+					 */
+					whole[0] = Math.max(w, h) <= side;
+					int sub = Math.max(1, Math.max(w, h) / (side * 2));
+					if (sub > 1)
+						param.setSourceSubsampling(sub, sub, 0, 0);
+					BufferedImage img = reader.read(0, param);
+					return fit(img, side);
+				} finally
+				{
+					reader.dispose();
 				}
+			} finally
+			{
+				in.close();
 			}
+		} finally
+		{
+			raw.close();
 		}
 	}
 
-	public void dispose()
+	/**
+	 * Scales an image down (never up) to fit within max pixels on each side,
+	 * as an ARGB image so it draws quickly.
+	 */
+	static BufferedImage fit(BufferedImage img, int max)
 	{
-		if (imageMap != null)
-		{
-			imageMap.clear();
-		}
-		if (imagesToLoad != null)
+		int w = img.getWidth();
+		int h = img.getHeight();
+		float scale = Math.min(1f, (float) max / Math.max(w, h));
+		int nw = Math.max(1, Math.round(w * scale));
+		int nh = Math.max(1, Math.round(h * scale));
+		if (scale == 1 && img.getType() == BufferedImage.TYPE_INT_ARGB)
+			return img;
+		BufferedImage out = new BufferedImage(nw, nh, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = out.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(img, 0, 0, nw, nh, null);
+		g.dispose();
+		return out;
+	}
+
+	/*
+	 * Drops the least recently drawn images until we're back under budget,
+	 * apart from those on screen.
+	 */
+	synchronized void trim()
+	{
+		long max = (long) (context.config().imageCacheSize * 1024 * 1024);
+		if (bytes.get() <= max)
+			return;
+		ArrayList<Map.Entry<String, Cached>> all = new ArrayList<Map.Entry<String, Cached>>(
+			images.entrySet());
+		Collections.sort(all, new Comparator<Map.Entry<String, Cached>>() {
+			public int compare(Map.Entry<String, Cached> a, Map.Entry<String, Cached> b)
+			{
+				long la = a.getValue().lastUsed;
+				long lb = b.getValue().lastUsed;
+				return (la < lb) ? -1 : ((la == lb) ? 0 : 1);
+			}
+		});
+		/*
+		 * Always keep the newest one, even if it's bigger than the whole budget.
+		 */
+		long onScreen = lastFrame;
+		for (int i = 0; i < all.size() - 1 && bytes.get() > max; i++)
 		{
-			imagesToLoad.clear();
+			if (all.get(i).getValue().lastUsed > onScreen)
+				break;
+			removeImage(all.get(i).getKey());
 		}
-		if (loadedImageURLs != null)
+	}
+
+	public void dispose()
+	{
+		synchronized (this)
 		{
-			loadedImageURLs.clear();
+			if (pool != null)
+				pool.shutdownNow();
+			pool = null;
 		}
-		thread = null;
+		for (Cached e : images.values())
+			e.mips.flush();
+		images.clear();
+		loading.clear();
+		bytes.set(0);
 	}
 
+	static class Cached
+	{
+		MipImage mips;
+		/*
+		 * The size it was loaded at, and whether that's the whole image.
+		 */
+		int side;
+		boolean whole;
+		volatile long lastUsed;
+	}
 }
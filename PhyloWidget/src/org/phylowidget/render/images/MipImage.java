@@ -0,0 +1,197 @@
+package org.phylowidget.render.images;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An image that can be drawn at half, a quarter, an eighth (and so on) of its
+ * size without resampling all of its pixels every frame. Each smaller level
+ * is made from the one above it, which also gives a much smoother result
+ * than scaling the full image down in one go.
+ * <p>
+ * Levels are only made when they're drawn, and only the level being drawn
+ * and the one above it are kept: once the image is drawn at a quarter of a
+ * level's size or less, that level is dropped. So an image that's drawn small
+ * takes up less memory than its full size copy did, not more. If it's then
+ * drawn bigger than the biggest level left, the largest level is scaled up
+ * (and the ImageLoader fetches a bigger copy).
+ * <p>
+ * The bytes taken up by the levels are kept in a counter shared with the
+ * cache, which sees them go up and down as levels are made and dropped.
+ */
+public class MipImage
+{
+	/*
+	 * Don't bother halving past this size.
+	 */
+	static final int MIN_SIDE = 8;
+
+	BufferedImage[] levels;
+	int[] widths;
+	int[] heights;
+
+	/*
+	 * The largest level still kept; every level above it has been dropped.
+	 */
+	int top;
+
+	long bytes;
+	AtomicLong total;
+	boolean flushed;
+
+	public MipImage(BufferedImage img, AtomicLong total)
+	{
+		int n = 1;
+		for (int s = Math.min(img.getWidth(), img.getHeight()); s / 2 >= MIN_SIDE; s /= 2)
+			n++;
+		levels = new BufferedImage[n];
+		widths = new int[n];
+		heights = new int[n];
+		levels[0] = img;
+		widths[0] = img.getWidth();
+		heights[0] = img.getHeight();
+		for (int i = 1; i < n; i++)
+		{
+			widths[i] = Math.max(1, widths[i - 1] / 2);
+			heights[i] = Math.max(1, heights[i - 1] / 2);
+		}
+		this.total = total;
+		added(0);
+	}
+
+	/**
+	 * The width of the full size image.
+	 */
+	public int getWidth()
+	{
+		return widths[0];
+	}
+
+	/**
+	 * The height of the full size image.
+	 */
+	public int getHeight()
+	{
+		return heights[0];
+	}
+
+	/**
+	 * The largest level that's still kept.
+	 */
+	public synchronized BufferedImage getImage()
+	{
+		return levels[top];
+	}
+
+	/**
+	 * How many times the largest level kept has been halved from the full
+	 * size image.
+	 */
+	public synchronized int getTop()
+	{
+		return top;
+	}
+
+	/**
+	 * The smallest level that's at least w by h pixels, or the largest one
+	 * kept if none are. This makes the level if need be, and drops the ones
+	 * more than twice its size.
+	 */
+	public synchronized BufferedImage getLevel(float w, float h)
+	{
+		int i = levels.length - 1;
+		while (i > top && (widths[i] < w || heights[i] < h))
+			i--;
+		if (flushed)
+			return levels[top];
+		if (levels[i] == null)
+		{
+			int j = i - 1;
+			while (levels[j] == null)
+				j--;
+			BufferedImage img = levels[j];
+			for (j++; j <= i; j++)
+			{
+				img = half(img, widths[j], heights[j]);
+				/*
+				 * Keep the level above too, which becomes the new top.
+				 */
+				if (j >= i - 1)
+				{
+					levels[j] = img;
+					added(j);
+				}
+			}
+		}
+		for (int j = top; j < i - 1; j++)
+		{
+			if (levels[j] != null)
+				dropped(j);
+		}
+		if (i - 1 > top)
+			top = i - 1;
+		return levels[i];
+	}
+
+	public int getNumLevels()
+	{
+		return levels.length;
+	}
+
+	/**
+	 * The bytes taken up by the levels kept.
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Drops every level, taking their bytes off the shared counter. Anyone
+	 * still holding the image can go on drawing it at the size they had.
+	 */
+	public synchronized void flush()
+	{
+		if (flushed)
+			return;
+		flushed = true;
+		for (int i = 0; i < levels.length; i++)
+		{
+			if (levels[i] != null)
+				levels[i].flush();
+		}
+		if (total != null)
+			total.addAndGet(-bytes);
+		bytes = 0;
+	}
+
+	private void added(int i)
+	{
+		long b = 4L * widths[i] * heights[i];
+		bytes += b;
+		if (total != null)
+			total.addAndGet(b);
+	}
+
+	private void dropped(int i)
+	{
+		long b = 4L * widths[i] * heights[i];
+		levels[i].flush();
+		levels[i] = null;
+		bytes -= b;
+		if (total != null)
+			total.addAndGet(-b);
+	}
+
+	private static BufferedImage half(BufferedImage img, int w, int h)
+	{
+		BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = out.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(img, 0, 0, w, h, null);
+		g.dispose();
+		return out;
+	}
+}
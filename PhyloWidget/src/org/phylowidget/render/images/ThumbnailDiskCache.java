@@ -0,0 +1,181 @@
+package org.phylowidget.render.images;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Thumbnails of local image files, saved as PNGs in a directory under the
+ * system's temp directory. A thumbnail is named after the image's path, size
+ * and modification time, so an edited image gets a new one.
+ * <p>
+ * The directory is kept under MAX_BYTES: once it goes over, the thumbnails
+ * used least recently (reading one counts as using it) are deleted until
+ * it's down to three quarters of that. It's checked when it's first used,
+ * and again whenever what we've written since pushes it over.
+ * <p>
+ * Any failure (including not being allowed to touch the disk at all, as in an
+ * applet) just means the image gets decoded from scratch.
+ */
+class ThumbnailDiskCache
+{
+	static final String DIR_NAME = "phylowidget-thumbs";
+
+	static final long MAX_BYTES = 64L * 1024 * 1024;
+
+	static File dir;
+	static boolean disabled;
+
+	/*
+	 * Roughly how much is in the directory: what was left after the last
+	 * prune, plus what we've written since.
+	 */
+	static long bytes;
+
+	static synchronized File getDir()
+	{
+		if (dir == null && !disabled)
+		{
+			try
+			{
+				File d = new File(System.getProperty("java.io.tmpdir"), DIR_NAME);
+				if (d.isDirectory() || d.mkdirs())
+				{
+					dir = d;
+					prune();
+				} else
+					disabled = true;
+			} catch (SecurityException e)
+			{
+				disabled = true;
+			}
+		}
+		return dir;
+	}
+
+	/**
+	 * The cache file for a thumbnail of the given image, or null if there's
+	 * no cache.
+	 */
+	static File fileFor(File image, int maxSide)
+	{
+		File d = getDir();
+		if (d == null)
+			return null;
+		try
+		{
+			String path = image.getAbsolutePath();
+			long h = path.hashCode();
+			h = h * 31 + image.length();
+			h = h * 31 + image.lastModified();
+			h = h * 31 + maxSide;
+			return new File(d, Long.toHexString(h) + "-" + Integer.toHexString(path.length()) + ".png");
+		} catch (SecurityException e)
+		{
+			return null;
+		}
+	}
+
+	static BufferedImage read(File f)
+	{
+		if (f == null)
+			return null;
+		try
+		{
+			if (!f.isFile())
+				return null;
+			BufferedImage img = ImageIO.read(f);
+			if (img != null)
+				f.setLastModified(System.currentTimeMillis());
+			return img;
+		} catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	static void write(File f, BufferedImage img)
+	{
+		if (f == null)
+			return;
+		try
+		{
+			/*
+			 * Write to a temporary file first, so another loader never sees a
+			 * half-written thumbnail.
+			 */
+			File tmp = new File(f.getParentFile(), f.getName() + ".part" + Thread.currentThread().getId());
+			if (ImageIO.write(img, "png", tmp) && !tmp.renameTo(f))
+				tmp.delete();
+			else
+				added(f.length());
+		} catch (Exception e)
+		{
+			/*
+			 * Not worth complaining about; we'll just decode it again next time.
+			 */
+		}
+	}
+
+	private static synchronized void added(long length)
+	{
+		bytes += length;
+		if (bytes > MAX_BYTES)
+			prune();
+	}
+
+	/*
+	 * Deletes the least recently used thumbnails (and any leftover partial
+	 * ones, which are older still) until the directory is back to three
+	 * quarters of MAX_BYTES.
+	 */
+	private static synchronized void prune()
+	{
+		try
+		{
+			File[] files = dir.listFiles();
+			if (files == null)
+				return;
+			/*
+			 * Read the times first: they mustn't change while we sort.
+			 */
+			final long[] times = new long[files.length];
+			Integer[] order = new Integer[files.length];
+			long total = 0;
+			for (int i = 0; i < files.length; i++)
+			{
+				times[i] = files[i].lastModified();
+				order[i] = i;
+				total += files[i].length();
+			}
+			if (total <= MAX_BYTES)
+			{
+				bytes = total;
+				return;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b)
+				{
+					long la = times[a.intValue()];
+					long lb = times[b.intValue()];
+					return (la < lb) ? -1 : ((la == lb) ? 0 : 1);
+				}
+			});
+			for (int i = 0; i < order.length && total > MAX_BYTES * 3 / 4; i++)
+			{
+				File f = files[order[i].intValue()];
+				long length = f.length();
+				if (f.delete())
+					total -= length;
+			}
+			bytes = total;
+		} catch (SecurityException e)
+		{
+			disabled = true;
+			dir = null;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.phylowidget.PhyloTree;
+
+/**
+ * Joins a table of annotations onto a tree's nodes, in one pass over the
+ * table.
+ * <p>
+ * The table is either tab-separated text, with a header line naming the
+ * columns, or JSON: an array of objects (one per row), or an object mapping
+ * each join value to an object of annotations. Rows are matched to nodes by
+ * the join column, which is either "name" or "label" (the node's label) or an
+ * annotation key. Every other non-empty column is set as an annotation on
+ * the matching nodes; "name" and "branch length" columns set the label and
+ * branch length, as in the annotation editor.
+ *
+ * @author Greg
+ */
+public class AnnotationImport
+{
+	PhyloTree tree;
+	String joinKey;
+	boolean byLabel;
+
+	/*
+	 * Join values to nodes, built in one pass over the tree unless there's an
+	 * index on the join key to use instead.
+	 */
+	AnnotationIndex index;
+	HashMap<String, Object> nodes;
+
+	int matched;
+
+	AnnotationImport(PhyloTree tree, String joinKey)
+	{
+		this.tree = tree;
+		this.joinKey = joinKey;
+		byLabel = joinKey.equalsIgnoreCase("name") || joinKey.equalsIgnoreCase("label");
+		if (!byLabel)
+			index = tree.getAnnotationIndex(joinKey);
+		if (index == null)
+		{
+			nodes = new HashMap<String, Object>();
+			ArrayList<PhyloNode> all = new ArrayList<PhyloNode>();
+			tree.getAll(tree.getRoot(), null, all);
+			for (PhyloNode n : all)
+			{
+				String v = byLabel ? n.getLabel() : n.getAnnotation(joinKey);
+				if (v == null)
+					continue;
+				Object o = nodes.get(v);
+				if (o == null)
+					nodes.put(v, n);
+				else if (o instanceof PhyloNode)
+				{
+					ArrayList<PhyloNode> list = new ArrayList<PhyloNode>();
+					list.add((PhyloNode) o);
+					list.add(n);
+					nodes.put(v, list);
+				} else
+					((ArrayList<PhyloNode>) o).add(n);
+			}
+		}
+	}
+
+	/**
+	 * Imports the table, joining on the given column (or, if joinKey is null,
+	 * the first column of tab-separated text). Returns the number of nodes
+	 * that were annotated. The import is a single edit, as far as undo is
+	 * concerned.
+	 */
+	public static int importTable(PhyloTree tree, String table, String joinKey)
+	{
+		String text = table.trim();
+		boolean json = text.startsWith("{") || text.startsWith("[");
+		String[] header = null;
+		String[] lines = null;
+		if (!json)
+		{
+			lines = text.split("\r?\n");
+			header = lines[0].split("\t", -1);
+			for (int i = 0; i < header.length; i++)
+				header[i] = header[i].trim();
+			if (joinKey == null)
+				joinKey = header[0];
+		}
+		if (joinKey == null)
+			throw new IllegalArgumentException("No join key given for a JSON table");
+
+		synchronized (tree)
+		{
+			tree.beginEdit("Import Annotations");
+			try
+			{
+				AnnotationImport imp = new AnnotationImport(tree, joinKey);
+				if (json)
+					imp.importJson(text);
+				else
+					imp.importTsv(header, lines);
+				tree.modPlus();
+				return imp.matched;
+			} finally
+			{
+				tree.endEdit();
+			}
+		}
+	}
+
+	void importTsv(String[] header, String[] lines)
+	{
+		int join = -1;
+		for (int i = 0; i < header.length; i++)
+		{
+			if (header[i].equalsIgnoreCase(joinKey))
+				join = i;
+		}
+		if (join == -1)
+			throw new IllegalArgumentException("The table has no " + joinKey + " column");
+		for (int i = 1; i < lines.length; i++)
+		{
+			String[] cells = lines[i].split("\t", -1);
+			if (cells.length <= join)
+				continue;
+			List<PhyloNode> targets = lookup(cells[join].trim());
+			if (targets.isEmpty())
+				continue;
+			for (PhyloNode n : targets)
+			{
+				for (int j = 0; j < cells.length && j < header.length; j++)
+				{
+					if (j != join)
+						set(n, header[j], cells[j].trim());
+				}
+			}
+			matched += targets.size();
+		}
+	}
+
+	void importJson(String text)
+	{
+		Object parsed;
+		try
+		{
+			parsed = new JSONParser().parse(text);
+		} catch (Exception e)
+		{
+			throw new IllegalArgumentException("Couldn't parse the annotation table: " + e);
+		}
+		if (parsed instanceof JSONArray)
+		{
+			for (Object o : (JSONArray) parsed)
+			{
+				if (!(o instanceof JSONObject))
+					continue;
+				Map row = (Map) o;
+				Object id = row.get(joinKey);
+				if (id != null)
+					apply(lookup(id.toString()), row);
+			}
+		} else
+		{
+			for (Object o : ((JSONObject) parsed).entrySet())
+			{
+				Map.Entry e = (Map.Entry) o;
+				if (e.getValue() instanceof Map)
+					apply(lookup(e.getKey().toString()), (Map) e.getValue());
+			}
+		}
+	}
+
+	void apply(List<PhyloNode> targets, Map row)
+	{
+		if (targets.isEmpty())
+			return;
+		for (PhyloNode n : targets)
+		{
+			for (Object o : row.entrySet())
+			{
+				Map.Entry e = (Map.Entry) o;
+				String key = e.getKey().toString();
+				if (e.getValue() != null && !key.equalsIgnoreCase(joinKey))
+					set(n, key, e.getValue().toString());
+			}
+		}
+		matched += targets.size();
+	}
+
+	void set(PhyloNode n, String key, String value)
+	{
+		if (key.length() == 0 || value.length() == 0)
+			return;
+		if (key.equalsIgnoreCase("name") || key.equalsIgnoreCase("label"))
+			tree.setLabel(n, value);
+		else if (key.equalsIgnoreCase("branch length"))
+		{
+			try
+			{
+				tree.setBranchLength(n, Double.parseDouble(value));
+			} catch (NumberFormatException e)
+			{
+			}
+		} else
+			n.setAnnotation(key, value);
+	}
+
+	List<PhyloNode> lookup(String value)
+	{
+		if (index != null)
+			return index.get(value);
+		ArrayList<PhyloNode> list = new ArrayList<PhyloNode>();
+		Object o = nodes.get(value);
+		if (o instanceof PhyloNode)
+			list.add((PhyloNode) o);
+		else if (o != null)
+			list.addAll((ArrayList<PhyloNode>) o);
+		return list;
+	}
+}
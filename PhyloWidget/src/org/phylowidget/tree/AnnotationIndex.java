@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.tree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An index of a tree's nodes by the value of one annotation key, for looking
+ * nodes up by an external ID (or a taxon, or a species) without walking the
+ * whole tree.
+ * <p>
+ * Values can be looked up exactly or ignoring case. A sorted index also
+ * keeps the numeric values in order, for range lookups. The tree keeps its
+ * indexes up to date as annotations are set and nodes come and go; see
+ * AnnotationIndexes.
+ *
+ * @author Greg
+ */
+public class AnnotationIndex
+{
+	String key;
+	int keyId;
+
+	/*
+	 * Each value maps to a single node or, when it's shared, a set of them.
+	 */
+	HashMap<String, Object> exact = new HashMap<String, Object>();
+	HashMap<String, Object> folded = new HashMap<String, Object>();
+	TreeMap<Double, Object> numeric;
+
+	int size;
+
+	AnnotationIndex(String key, boolean sorted)
+	{
+		this.key = key;
+		keyId = NodeAnnotations.keyId(normalKey(key));
+		if (sorted)
+			numeric = new TreeMap<Double, Object>();
+	}
+
+	/*
+	 * The key annotations are stored under, as PhyloNode.setAnnotation()
+	 * does it.
+	 */
+	static String normalKey(String key)
+	{
+		return (key.length() <= 3) ? key.toLowerCase() : key;
+	}
+
+	public String getKey()
+	{
+		return key;
+	}
+
+	public boolean isSorted()
+	{
+		return numeric != null;
+	}
+
+	/**
+	 * The number of nodes with a value for this key.
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * The nodes with exactly this value.
+	 */
+	public synchronized List<PhyloNode> get(String value)
+	{
+		return list(exact.get(value));
+	}
+
+	public synchronized List<PhyloNode> getIgnoreCase(String value)
+	{
+		return list(folded.get(value.toLowerCase()));
+	}
+
+	/**
+	 * The first node found with this value (ignoring case), or null.
+	 */
+	public synchronized PhyloNode getFirst(String value)
+	{
+		Object o = folded.get(value.toLowerCase());
+		if (o == null)
+			return null;
+		if (o instanceof PhyloNode)
+			return (PhyloNode) o;
+		return ((LinkedHashSet<PhyloNode>) o).iterator().next();
+	}
+
+	/**
+	 * The nodes whose values are numbers between lo and hi (inclusive), in
+	 * order of value. Only works for a sorted index.
+	 */
+	public synchronized List<PhyloNode> getRange(double lo, double hi)
+	{
+		if (numeric == null)
+			throw new IllegalStateException("The index on " + key + " isn't sorted");
+		ArrayList<PhyloNode> nodes = new ArrayList<PhyloNode>();
+		if (lo > hi)
+			return nodes;
+		/*
+		 * subMap() leaves out hi itself.
+		 */
+		for (Object o : numeric.subMap(lo, hi).values())
+			addTo(o, nodes);
+		Object last = numeric.get(hi);
+		if (last != null)
+			addTo(last, nodes);
+		return nodes;
+	}
+
+	/*
+	 * The value is as the node stores it: a String, or a Double.
+	 */
+	synchronized void add(PhyloNode n, Object value)
+	{
+		String s = NodeAnnotations.asString(value);
+		exact.put(s, with(exact.get(s), n));
+		String f = s.toLowerCase();
+		folded.put(f, with(folded.get(f), n));
+		if (numeric != null)
+		{
+			Double d = number(value);
+			if (d != null)
+				numeric.put(d, with(numeric.get(d), n));
+		}
+		size++;
+	}
+
+	synchronized void remove(PhyloNode n, Object value)
+	{
+		String s = NodeAnnotations.asString(value);
+		if (!without(exact, s, n))
+			return;
+		without(folded, s.toLowerCase(), n);
+		if (numeric != null)
+		{
+			Double d = number(value);
+			if (d != null)
+				without(numeric, d, n);
+		}
+		size--;
+	}
+
+	static Double number(Object value)
+	{
+		if (value instanceof Double)
+			return (Double) value;
+		try
+		{
+			return Double.valueOf(((String) value).trim());
+		} catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	private static Object with(Object o, PhyloNode n)
+	{
+		if (o == null)
+			return n;
+		LinkedHashSet<PhyloNode> set;
+		if (o instanceof PhyloNode)
+		{
+			set = new LinkedHashSet<PhyloNode>();
+			set.add((PhyloNode) o);
+		} else
+			set = (LinkedHashSet<PhyloNode>) o;
+		set.add(n);
+		return set;
+	}
+
+	/*
+	 * Takes the node out of the entry for k, and returns false if it wasn't
+	 * there.
+	 */
+	private static <K> boolean without(Map<K, Object> map, K k, PhyloNode n)
+	{
+		Object o = map.get(k);
+		if (o == null)
+			return false;
+		if (o == n)
+		{
+			map.remove(k);
+			return true;
+		}
+		if (o instanceof PhyloNode)
+			return false;
+		LinkedHashSet<PhyloNode> set = (LinkedHashSet<PhyloNode>) o;
+		if (!set.remove(n))
+			return false;
+		if (set.size() == 1)
+			map.put(k, set.iterator().next());
+		return true;
+	}
+
+	private static List<PhyloNode> list(Object o)
+	{
+		ArrayList<PhyloNode> nodes = new ArrayList<PhyloNode>();
+		addTo(o, nodes);
+		return nodes;
+	}
+
+	private static void addTo(Object o, List<PhyloNode> nodes)
+	{
+		if (o == null)
+			return;
+		if (o instanceof PhyloNode)
+			nodes.add((PhyloNode) o);
+		else
+			nodes.addAll((Collection<PhyloNode>) o);
+	}
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.tree;
+
+import java.util.Collection;
+
+/**
+ * A tree's annotation indexes. Each node in the tree points back here, so
+ * that setting an annotation can update the index on its key (and the tree's
+ * version); with no indexes that costs one array length check.
+ *
+ * @author Greg
+ */
+public class AnnotationIndexes
+{
+	/*
+	 * Replaced (never changed) when an index is added or removed, so it can
+	 * be read without locking.
+	 */
+	private volatile AnnotationIndex[] indexes = new AnnotationIndex[0];
+
+	private RootedTree tree;
+
+	public AnnotationIndexes(RootedTree tree)
+	{
+		this.tree = tree;
+	}
+
+	public AnnotationIndex get(String key)
+	{
+		int id = NodeAnnotations.findKeyId(AnnotationIndex.normalKey(key));
+		if (id == NodeAnnotations.NO_KEY)
+			return null;
+		AnnotationIndex[] cur = indexes;
+		for (int i = 0; i < cur.length; i++)
+		{
+			if (cur[i].keyId == id)
+				return cur[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Adds an index on the given key, filled in from the given nodes (which
+	 * should be all of the tree's nodes). Replaces any index already on that
+	 * key.
+	 */
+	public synchronized AnnotationIndex add(String key, boolean sorted, Collection<PhyloNode> nodes)
+	{
+		remove(key);
+		AnnotationIndex index = new AnnotationIndex(key, sorted);
+		for (PhyloNode n : nodes)
+		{
+			n.indexes = this;
+			Object value = (n.annotations == null) ? null : n.annotations.getRaw(index.keyId);
+			if (value != null)
+				index.add(n, value);
+		}
+		AnnotationIndex[] cur = indexes;
+		AnnotationIndex[] next = new AnnotationIndex[cur.length + 1];
+		System.arraycopy(cur, 0, next, 0, cur.length);
+		next[cur.length] = index;
+		indexes = next;
+		return index;
+	}
+
+	public synchronized void remove(String key)
+	{
+		AnnotationIndex index = get(key);
+		if (index == null)
+			return;
+		AnnotationIndex[] cur = indexes;
+		AnnotationIndex[] next = new AnnotationIndex[cur.length - 1];
+		int j = 0;
+		for (int i = 0; i < cur.length; i++)
+		{
+			if (cur[i] != index)
+				next[j++] = cur[i];
+		}
+		indexes = next;
+	}
+
+	public synchronized void clear()
+	{
+		indexes = new AnnotationIndex[0];
+	}
+
+	/**
+	 * Called by the tree as nodes are added and removed.
+	 */
+	public void nodeAdded(PhyloNode n)
+	{
+		n.indexes = this;
+		AnnotationIndex[] cur = indexes;
+		if (cur.length == 0 || n.annotations == null)
+			return;
+		for (int i = 0; i < cur.length; i++)
+		{
+			Object value = n.annotations.getRaw(cur[i].keyId);
+			if (value != null)
+				cur[i].add(n, value);
+		}
+	}
+
+	public void nodeRemoved(PhyloNode n)
+	{
+		if (n.indexes == this)
+			n.indexes = null;
+		AnnotationIndex[] cur = indexes;
+		if (cur.length == 0 || n.annotations == null)
+			return;
+		for (int i = 0; i < cur.length; i++)
+		{
+			Object value = n.annotations.getRaw(cur[i].keyId);
+			if (value != null)
+				cur[i].remove(n, value);
+		}
+	}
+
+	/*
+	 * Called by the node after the annotation under exactly this key changes,
+	 * or (with a null key) after its annotations are created or dropped.
+	 */
+	void changed(PhyloNode n, String key, Object before, Object after)
+	{
+		if (PhyloNode.isLayoutKey(key, after))
+			tree.changed();
+		else if (!PhyloNode.isRenderState(key))
+			tree.contentChanged(n);
+		AnnotationIndex[] cur = indexes;
+		if (cur.length == 0 || key == null)
+			return;
+		int id = NodeAnnotations.findKeyId(key);
+		for (int i = 0; i < cur.length; i++)
+		{
+			if (cur[i].keyId != id)
+				continue;
+			if (before != null)
+				cur[i].remove(n, before);
+			if (after != null)
+				cur[i].add(n, after);
+		}
+	}
+}
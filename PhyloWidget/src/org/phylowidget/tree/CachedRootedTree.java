@@ -76,6 +76,24 @@ public class CachedRootedTree<V extends CachedVertex,E extends DefaultWeightedEd
 		holdCalculations = holdMe;
 	}
 
+	private volatile TreeStatistics stats;
+
+	/**
+	 * Statistics on the whole tree. They're worked out from a snapshot (so
+	 * without holding the tree's lock) the first time they're asked for after
+	 * each change to the tree's structure, and the same ones are returned
+	 * until the next (label and annotation edits don't count).
+	 */
+	public TreeStatistics getStatistics()
+	{
+		TreeStatistics s = stats;
+		if (s != null && s.structureVersion == getStructureVersion())
+			return s;
+		s = new TreeStatistics(getSnapshot());
+		stats = s;
+		return s;
+	}
+
 	private synchronized List<V> getChildrenOfNoSort(V vertex)
 	{
 		List<V> l;
@@ -285,7 +303,7 @@ public class CachedRootedTree<V extends CachedVertex,E extends DefaultWeightedEd
 	}
 
 	@Override
-	public synchronized boolean isLeaf(V vertex)
+	public boolean isLeaf(V vertex)
 	{
 //		sync();
 //		if (inSync())
@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -259,6 +260,14 @@ public class NexmlIO
 		return createNeXMLString(tree, config);
 	}
 
+	static String createNeXMLString(RootedTree tree, Map<String, String> imageURLs)
+	{
+		TreeOutputConfig config = new TreeOutputConfig();
+		config.outputNHX = true;
+		config.imageURLs = imageURLs;
+		return createNeXMLString(tree, config);
+	}
+
 	private static String createNeXMLString(RootedTree tree, TreeOutputConfig config)
 	{
 		int nodeId = 0;
@@ -319,7 +328,7 @@ public class NexmlIO
 			}
 			labelAndRoot = escapeXml(labelAndRoot);
 
-			HashMap<String,String> anns = null;
+			Map<String,String> anns = null;
 			if (o instanceof PhyloNode)
 			{
 				PhyloNode pn = (PhyloNode) o;
@@ -351,7 +360,7 @@ public class NexmlIO
 				{
 					globalDummyId++;
 					String dummyString = qw("dummy"+globalDummyId);
-					addLine(sb,"<"+s+" id="+dummyString+">"+escapeXml(anns.get(s))+"</"+s+">",5);
+					addLine(sb,"<"+s+" id="+dummyString+">"+escapeXml(config.annotation(s, anns.get(s)))+"</"+s+">",5);
 				}
 				addLine(sb,"</dict>",4);
 				addLine(sb,"</node>",3);
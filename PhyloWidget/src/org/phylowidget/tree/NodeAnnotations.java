@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.tree;
+
+import java.lang.ref.WeakReference;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A node's annotations, kept as two short arrays: the id of each key, and
+ * its value.
+ * <p>
+ * Keys are interned into small ints shared by every node, so a node holds no
+ * key strings of its own, and looking a key up doesn't lower-case it each
+ * time. String values go through a shared pool, so a value like a species
+ * name that's on thousands of nodes is only stored once. Numbers set with
+ * <code>setAnnotation(String, double)</code> are kept as doubles, and only
+ * formatted when they're read.
+ *
+ * @author Greg
+ */
+final class NodeAnnotations
+{
+	int[] keys;
+	Object[] values;
+	int size;
+
+	NodeAnnotations()
+	{
+		keys = new int[2];
+		values = new Object[2];
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	String keyAt(int i)
+	{
+		return keyName(keys[i]);
+	}
+
+	/*
+	 * The value as it was set: a String, or a Double.
+	 */
+	Object valueAt(int i)
+	{
+		return values[i];
+	}
+
+	Object getRaw(int key)
+	{
+		int i = indexOf(key);
+		return (i == -1) ? null : values[i];
+	}
+
+	String get(int key)
+	{
+		int i = indexOf(key);
+		return (i == -1) ? null : asString(values[i]);
+	}
+
+	/*
+	 * Returns the old value (as it was set), or null.
+	 */
+	Object put(int key, Object value)
+	{
+		if (value instanceof String)
+			value = pooled((String) value);
+		int i = indexOf(key);
+		if (i != -1)
+		{
+			Object old = values[i];
+			values[i] = value;
+			return old;
+		}
+		if (size == keys.length)
+		{
+			int[] k = new int[size * 2];
+			Object[] v = new Object[size * 2];
+			System.arraycopy(keys, 0, k, 0, size);
+			System.arraycopy(values, 0, v, 0, size);
+			keys = k;
+			values = v;
+		}
+		keys[size] = key;
+		values[size] = value;
+		size++;
+		return null;
+	}
+
+	Object remove(int key)
+	{
+		int i = indexOf(key);
+		if (i == -1)
+			return null;
+		Object old = values[i];
+		size--;
+		System.arraycopy(keys, i + 1, keys, i, size - i);
+		System.arraycopy(values, i + 1, values, i, size - i);
+		values[size] = null;
+		return old;
+	}
+
+	void clear()
+	{
+		for (int i = 0; i < size; i++)
+			values[i] = null;
+		size = 0;
+	}
+
+	private int indexOf(int key)
+	{
+		for (int i = 0; i < size; i++)
+		{
+			if (keys[i] == key)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * A read-only map of the annotations, with numbers formatted as strings.
+	 */
+	Map<String, String> asMap()
+	{
+		return new AbstractMap<String, String>() {
+			public String get(Object key)
+			{
+				return (key instanceof String) ? NodeAnnotations.this.get(findKeyId((String) key)) : null;
+			}
+
+			public boolean containsKey(Object key)
+			{
+				return (key instanceof String) && indexOf(findKeyId((String) key)) != -1;
+			}
+
+			public int size()
+			{
+				return size;
+			}
+
+			public Set<Map.Entry<String, String>> entrySet()
+			{
+				return new AbstractSet<Map.Entry<String, String>>() {
+					public int size()
+					{
+						return size;
+					}
+
+					public Iterator<Map.Entry<String, String>> iterator()
+					{
+						return new Iterator<Map.Entry<String, String>>() {
+							int i = 0;
+
+							public boolean hasNext()
+							{
+								return i < size;
+							}
+
+							public Map.Entry<String, String> next()
+							{
+								if (i >= size)
+									throw new NoSuchElementException();
+								Map.Entry<String, String> e = new KeyValue(keyAt(i), asString(values[i]));
+								i++;
+								return e;
+							}
+
+							public void remove()
+							{
+								throw new UnsupportedOperationException();
+							}
+						};
+					}
+				};
+			}
+		};
+	}
+
+	/*
+	 * A read-only key and value, for asMap().
+	 */
+	static final class KeyValue implements Map.Entry<String, String>
+	{
+		final String key;
+		final String value;
+
+		KeyValue(String key, String value)
+		{
+			this.key = key;
+			this.value = value;
+		}
+
+		public String getKey()
+		{
+			return key;
+		}
+
+		public String getValue()
+		{
+			return value;
+		}
+
+		public String setValue(String value)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry e = (Map.Entry) o;
+			return key.equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+		}
+
+		public int hashCode()
+		{
+			return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+		}
+
+		public String toString()
+		{
+			return key + "=" + value;
+		}
+	}
+
+	/*
+	 * The interned keys. Ids are handed out once and never reused, and only
+	 * for keys that are set on some node: looking up a key that was never set
+	 * just finds NO_KEY, so lookups can't fill the table up.
+	 */
+	private static final ConcurrentHashMap<String, Integer> keyIds = new ConcurrentHashMap<String, Integer>();
+	private static volatile String[] keyNames = new String[16];
+	private static int numKeys;
+
+	/*
+	 * The ids for keys as they're looked up: a key is lower-cased before
+	 * lookup, so this caches the id of each lookup string's lower-case form.
+	 * It isn't allowed to grow without bound, in case the keys come from
+	 * outside.
+	 */
+	private static final ConcurrentHashMap<String, Integer> lookupIds = new ConcurrentHashMap<String, Integer>();
+	private static final int MAX_LOOKUPS = 4096;
+
+	/*
+	 * The id of a key that was never set. No node has it.
+	 */
+	static final int NO_KEY = -1;
+
+	/**
+	 * The id of exactly this key, handing out a new one if it's new. Only for
+	 * keys that are being set.
+	 */
+	static int keyId(String key)
+	{
+		Integer id = keyIds.get(key);
+		if (id != null)
+			return id;
+		synchronized (keyIds)
+		{
+			id = keyIds.get(key);
+			if (id != null)
+				return id;
+			if (numKeys == keyNames.length)
+			{
+				String[] names = new String[numKeys * 2];
+				System.arraycopy(keyNames, 0, names, 0, numKeys);
+				keyNames = names;
+			}
+			keyNames[numKeys] = key;
+			id = numKeys++;
+			keyIds.put(key, id);
+			return id;
+		}
+	}
+
+	/**
+	 * The id of exactly this key, or NO_KEY if it's never been set.
+	 */
+	static int findKeyId(String key)
+	{
+		Integer id = keyIds.get(key);
+		return (id == null) ? NO_KEY : id;
+	}
+
+	/**
+	 * The id of the lower-cased key, as getAnnotation() looks it up, or NO_KEY
+	 * if it's never been set. Misses aren't cached, since the key may be set
+	 * later.
+	 */
+	static int lookupId(String key)
+	{
+		Integer id = lookupIds.get(key);
+		if (id != null)
+			return id;
+		int i = findKeyId(key.toLowerCase());
+		if (i != NO_KEY && lookupIds.size() < MAX_LOOKUPS)
+			lookupIds.put(key, i);
+		return i;
+	}
+
+	static String keyName(int id)
+	{
+		return keyNames[id];
+	}
+
+	/*
+	 * The shared pool of values. It's weak, so values nobody uses any more can
+	 * still be collected.
+	 */
+	private static final WeakHashMap<String, WeakReference<String>> pool = new WeakHashMap<String, WeakReference<String>>();
+
+	static String pooled(String s)
+	{
+		synchronized (pool)
+		{
+			WeakReference<String> ref = pool.get(s);
+			String p = (ref == null) ? null : ref.get();
+			if (p != null)
+				return p;
+			pool.put(s, new WeakReference<String>(s));
+			return s;
+		}
+	}
+
+	/*
+	 * NumberFormats aren't thread-safe, so each thread gets its own.
+	 */
+	private static final ThreadLocal<NumberFormat> fmt = new ThreadLocal<NumberFormat>() {
+		protected NumberFormat initialValue()
+		{
+			NumberFormat f = DecimalFormat.getInstance();
+			f.setMaximumFractionDigits(3);
+			return f;
+		}
+	};
+
+	static String asString(Object value)
+	{
+		if (value instanceof Double)
+			return fmt.get().format(((Double) value).doubleValue());
+		return (String) value;
+	}
+}
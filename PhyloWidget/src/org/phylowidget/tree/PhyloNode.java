@@ -20,11 +20,10 @@ package org.phylowidget.tree;
 
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.andrewberman.ui.tween.Tween;
 import org.andrewberman.ui.tween.TweenQuad;
@@ -58,6 +57,16 @@ final public class PhyloNode extends CachedVertex implements Comparable, UsefulC
 
 	public float bulgeFactor = 1;
 	public boolean found = false;
+	/*
+	 * The image last drawn for this node, and how far it has faded in. These
+	 * belong to the renderer, and are only touched while drawing.
+	 */
+	public String imageShown;
+	public float imageAlpha = 1;
+	/*
+	 * Mirrors the "collapse" annotation, which is only parsed when it's set.
+	 */
+	private boolean collapsed;
 
 	private int sorting = RootedTree.FORWARD.intValue();
 
@@ -71,7 +80,11 @@ final public class PhyloNode extends CachedVertex implements Comparable, UsefulC
 	static TweenQuad quad = TweenQuad.tween;
 	static final float mult = 10000f;
 
-	HashMap<String, String> annotations;
+	NodeAnnotations annotations;
+	/*
+	 * The indexes of the tree this node is in, if it's in a PhyloTree.
+	 */
+	AnnotationIndexes indexes;
 
 	private Tween xTween;
 	private Tween yTween;
@@ -82,6 +95,22 @@ final public class PhyloNode extends CachedVertex implements Comparable, UsefulC
 
 	private ImageSearcher searchResults;
 	public NodeRange range;
+	/**
+	 * Bounding box (in layout coordinates) of this node's entire subtree, set by LayoutBase.
+	 */
+	public NodeRange subtreeRange;
+	/**
+	 * Widest unitTextWidth found within this node's subtree.
+	 */
+	public float subtreeTextWidth;
+	/**
+	 * Rank of this node within the renderer's draw order and label significance order.
+	 */
+	public int drawOrder, labelOrder;
+	/**
+	 * Position of this node within the renderer's pre-order snapshot of the tree.
+	 */
+	public int snapshotIndex = -1;
 
 	PWContext context;
 	
@@ -93,6 +122,9 @@ final public class PhyloNode extends CachedVertex implements Comparable, UsefulC
 		yTween = new Tween(null, quad, Tween.OUT, (float) layoutY, (float) layoutY, 30f);
 		range = new NodeRange();
 		range.node = this;
+		subtreeRange = new NodeRange();
+		subtreeRange.node = this;
+		subtreeRange.type = NodeRange.SUBTREE;
 	}
 
 	public void loadThumbImage()
@@ -202,6 +234,24 @@ final public class PhyloNode extends CachedVertex implements Comparable, UsefulC
 		return yTween.getFinish() / mult;
 	}
 
+	/**
+	 * Whether the node is still on its way to where the layout last put it.
+	 */
+	public boolean isMoving()
+	{
+		return xTween.getPosition() != xTween.getFinish() || yTween.getPosition() != yTween.getFinish();
+	}
+
+	public float getBeginX()
+	{
+		return xTween.getBegin() / mult;
+	}
+
+	public float getBeginY()
+	{
+		return yTween.getBegin() / mult;
+	}
+
 	public String toString()
 	{
 		return label;
@@ -236,7 +286,27 @@ final public class PhyloNode extends CachedVertex implements Comparable, UsefulC
 
 	public void setState(int state)
 	{
+		if (this.state == state)
+			return;
 		this.state = state;
+		marked();
+	}
+
+	/*
+	 * Bumped whenever any node's found flag or state changes, so the renderer
+	 * can tell whether to redraw without looking at every node. Whoever sets
+	 * found calls marked() afterwards (once for a whole batch of nodes).
+	 */
+	private static final AtomicLong marks = new AtomicLong();
+
+	public static void marked()
+	{
+		marks.incrementAndGet();
+	}
+
+	public static long getMarks()
+	{
+		return marks.get();
 	}
 
 	public int getState()
@@ -272,32 +342,89 @@ final public class PhyloNode extends CachedVertex implements Comparable, UsefulC
 	public void clearAnnotations()
 	{
 		if (annotations != null)
+		{
+			collapsed = false;
+			for (int i = 0; i < annotations.size(); i++)
+			{
+				TreeJournal.annotationChanged(this, annotations.keyAt(i), annotations.valueAt(i), null);
+				if (indexes != null)
+					indexes.changed(this, annotations.keyAt(i), annotations.valueAt(i), null);
+			}
 			annotations.clear();
+		}
 	}
 
 	public void clearAnnotation(String key)
 	{
 		if (annotations == null)
 			return;
-		annotations.remove(key);
+		putAnnotation(key, null);
+	}
+
+	/*
+	 * Sets (or with a null value, removes) the annotation under exactly this
+	 * key, and lets the undo history know. Whether there's an annotation map
+	 * at all shows in the NHX output, so its creation is recorded too, under
+	 * the null key. The value is a String, or a Double.
+	 */
+	void putAnnotation(String key, Object value)
+	{
+		if (key == null)
+		{
+			annotations = (value == null) ? null : new NodeAnnotations();
+			collapsed = false;
+			if (indexes != null)
+				indexes.changed(this, null, null, value);
+			return;
+		}
+		if (annotations == null)
+		{
+			if (value == null)
+				return;
+			createAnnotations();
+		}
+		Object old;
+		if (value == null)
+			old = annotations.remove(NodeAnnotations.findKeyId(key));
+		else
+			old = annotations.put(NodeAnnotations.keyId(key), value);
+		if (key.equalsIgnoreCase(COLLAPSE))
+			updateCollapsed();
+		if (old != value && (old == null || !old.equals(value)))
+		{
+			TreeJournal.annotationChanged(this, key, old, value);
+			if (indexes != null)
+				indexes.changed(this, key, old, value);
+		}
+	}
+
+	private void createAnnotations()
+	{
+		annotations = new NodeAnnotations();
+		TreeJournal.annotationChanged(this, null, null, "");
+		if (indexes != null)
+			indexes.changed(this, null, null, "");
 	}
 
-	static NumberFormat fmt = DecimalFormat.getInstance();
-	static {fmt.setMaximumFractionDigits(3);}
-	
 	public void setAnnotation(String key, double value)
 	{
-		String dblString = fmt.format(value);
-		setAnnotation(key,dblString);
+		if (key.equalsIgnoreCase("name") || key.equalsIgnoreCase("branch length"))
+		{
+			setAnnotation(key, NodeAnnotations.asString(value));
+			return;
+		}
+		if (annotations == null)
+			createAnnotations();
+		putAnnotation(key.length() <= 3 ? key.toLowerCase() : key, value);
 	}
 	
 	public void setAnnotation(String key, String value)
 	{
 		if (annotations == null)
-			annotations = new HashMap<String, String>();
+			createAnnotations();
 		if (value == null)
 		{
-			annotations.remove(key);
+			putAnnotation(key, null);
 		} else
 		{
 			if (key.equalsIgnoreCase("name"))
@@ -310,10 +437,10 @@ final public class PhyloNode extends CachedVertex implements Comparable, UsefulC
 				return;
 			} else if (key.length() <= 3)
 			{
-				annotations.put(key.toLowerCase(),value);
+				putAnnotation(key.toLowerCase(),value);
 			} else
 			{
-				annotations.put(key, value); // GJ 2009-02-15 : stop lower-casing annotations for longer keys.
+				putAnnotation(key, value); // GJ 2009-02-15 : stop lower-casing annotations for longer keys.
 			}
 		}
 	}
@@ -326,19 +453,11 @@ final public class PhyloNode extends CachedVertex implements Comparable, UsefulC
 	 */
 	public String getAnnotation(String key)
 	{
-		if (context == null)
-		{
-			if (annotations != null)
-				return annotations.get(key.toLowerCase());
-			else
-				return null;
-		}
-		if (context.config().ignoreAnnotations)
-			return null;
 		if (annotations == null)
 			return null;
-		else
-			return annotations.get(key.toLowerCase());
+		if (context != null && context.config().ignoreAnnotations)
+			return null;
+		return annotations.get(NodeAnnotations.lookupId(key));
 	}
 
 	/**
@@ -346,19 +465,21 @@ final public class PhyloNode extends CachedVertex implements Comparable, UsefulC
 	 * 
 	 * @return
 	 */
-	public HashMap<String, String> getAnnotations()
+	public Map<String, String> getAnnotations()
 	{
 		if (context != null && context.config().ignoreAnnotations)
 			return null;
-		return annotations;
+		if (annotations == null)
+			return null;
+		return annotations.asMap();
 	}
 	
 	public HashMap<String,String> getFullAnnotations()
 	{
-		HashMap<String,String> annot = getAnnotations();
-		if (annot == null)
-			annot = new HashMap<String,String>();
-		HashMap<String,String> clone = (HashMap<String, String>) annot.clone();
+		Map<String,String> annot = getAnnotations();
+		HashMap<String,String> clone = new HashMap<String,String>();
+		if (annot != null)
+			clone.putAll(annot);
 		clone.put("Label",getLabel());
 		clone.put("Branch Length",""+getTree().getBranchLength(this));
 		return clone;
@@ -397,6 +518,53 @@ final public class PhyloNode extends CachedVertex implements Comparable, UsefulC
 		this.textAlign = (byte) textAlign;
 	}
 
+	static final String COLLAPSE = "collapse";
+
+	/*
+	 * Annotations that only say how the node's being drawn (like the fade of
+	 * its image, which used to be kept as "img_a"), rather than anything about
+	 * the tree. They're never part of an edit, and don't change the tree's
+	 * version.
+	 */
+	static boolean isRenderState(String key)
+	{
+		return key != null && key.equals("img_a");
+	}
+
+	/*
+	 * Whether changing this annotation can change the tree's layout, not just
+	 * what's drawn: whether the node's collapsed, how much room a collapsed
+	 * node takes, and where it's sorted among its siblings. Dropping all of a node's annotations (a null key
+	 * and value) uncollapses it.
+	 */
+	static boolean isLayoutKey(String key, Object value)
+	{
+		if (key == null)
+			return value == null;
+		return key.equalsIgnoreCase(COLLAPSE) || key.equalsIgnoreCase("layout_size")
+				|| key.equalsIgnoreCase(CHILD_ORDER);
+	}
+
+	/**
+	 * Works out again whether the node's collapsed, from its "collapse"
+	 * annotation. That only counts while annotations aren't being ignored, so
+	 * this is called for every node when PhyloConfig.ignoreAnnotations is
+	 * changed.
+	 */
+	public void updateCollapsed()
+	{
+		String s = getAnnotation(COLLAPSE);
+		collapsed = (s != null) && parseTruth(s);
+	}
+
+	/**
+	 * Whether the node is collapsed, as set by its "collapse" annotation.
+	 */
+	public boolean isCollapsed()
+	{
+		return collapsed;
+	}
+
 	public static boolean parseTruth(String s)
 	{
 		if (s.startsWith("T") || s.startsWith("t") || s.startsWith("y") || s.startsWith("Y") || s.equals("1"))
@@ -32,6 +32,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jgrapht.Graphs;
 import org.jgrapht.alg.DirectedNeighborIndex;
@@ -120,6 +122,33 @@ public class RootedTree<V extends DefaultVertex, E extends DefaultWeightedEdge>
 
 	private boolean isValid = true;
 
+	/**
+	 * The undo history of this tree.
+	 */
+	TreeJournal<V, E> journal;
+
+	/*
+	 * Bumped on every change to the tree: its shape, labels, branch lengths,
+	 * sorting, or (for PhyloNodes in a PhyloTree) annotations.
+	 */
+	private volatile long version;
+	private volatile TreeSnapshot snapshot;
+
+	/*
+	 * The version as of the last change to anything but labels and
+	 * annotations.
+	 */
+	private volatile long structureVersion;
+
+	/*
+	 * The vertices whose labels or annotations changed since the last
+	 * snapshot, so the next one only has to copy theirs. Past MAX_DIRTY
+	 * changes, the next snapshot is made from scratch.
+	 */
+	static final int MAX_DIRTY = 1024;
+	private ConcurrentLinkedQueue<Object> dirty = new ConcurrentLinkedQueue<Object>();
+	private AtomicInteger numDirty = new AtomicInteger();
+
 	public boolean isValid()
 	{
 		return isValid;
@@ -132,6 +161,8 @@ public class RootedTree<V extends DefaultVertex, E extends DefaultWeightedEdge>
 		// super(new SimpleDirectedWeightedGraph(DefaultWeightedEdge.class));
 		super(edgeClass);
 		this.edgeClass = edgeClass;
+		journal = new TreeJournal<V, E>(this);
+		addGraphListener(journal);
 		setOptions();
 		if (useNeighborIndex)
 			createNeighborIndex();
@@ -175,22 +206,154 @@ public class RootedTree<V extends DefaultVertex, E extends DefaultWeightedEdge>
 	 */
 	public void setEnforceUniqueLabels(boolean enforceUniqueLabels)
 	{
+		/*
+		 * The labeler's kept up to date as labels change, so there's nothing to
+		 * do (and no pass over the tree) unless the setting changes.
+		 */
+		if (enforceUniqueLabels == this.enforceUniqueLabels && uniqueLabeler != null)
+			return;
 		this.enforceUniqueLabels = enforceUniqueLabels;
 		if (enforceUniqueLabels)
 		{
 			uniqueLabeler = new UniqueLabeler();
-			uniqueLabeler.resetVertexLabels(this);
-		} else
+			relabeled(uniqueLabeler.resetVertexLabels(this));
+		} else if (uniqueLabeler != null)
 		{
-			uniqueLabeler.removeDuplicateTags(this);
+			relabeled(uniqueLabeler.removeDuplicateTags(this));
 		}
+		changed();
+	}
+
+	/**
+	 * Called with the vertices whose labels were changed all at once, when
+	 * unique labels were turned on or off.
+	 */
+	protected void relabeled(List<V> vertices)
+	{
+	}
+
+	/**
+	 * A number that changes whenever the tree does.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * A number that changes whenever anything but a label or an annotation
+	 * does: the tree's shape, branch lengths, sorting, or which nodes are
+	 * collapsed. Everything worked out from the shape alone (a layout, say)
+	 * stays good while this stays the same.
+	 */
+	public long getStructureVersion()
+	{
+		return structureVersion;
+	}
+
+	protected void changed()
+	{
+		structureVersion = ++version;
+	}
+
+	/*
+	 * Only the vertex's label or annotations changed. It's queued before the
+	 * version changes, so a snapshot of the new version always sees it.
+	 */
+	void contentChanged(Object v)
+	{
+		if (numDirty.incrementAndGet() <= MAX_DIRTY)
+			dirty.add(v);
+		version++;
+	}
+
+	/**
+	 * An immutable copy of the tree as it is now, which can be read without
+	 * holding the tree's lock while it's edited. The same snapshot is handed
+	 * out until the tree changes.
+	 */
+	public TreeSnapshot getSnapshot()
+	{
+		TreeSnapshot s = snapshot;
+		if (s != null && s.getVersion() == version)
+			return s;
+		synchronized (this)
+		{
+			/*
+			 * Read the version before copying, so anything that changes while
+			 * we copy makes this snapshot out of date.
+			 */
+			s = snapshot;
+			if (s == null || s.getVersion() != version)
+			{
+				/*
+				 * Anything queued after this is seen by the next snapshot.
+				 */
+				boolean all = numDirty.getAndSet(0) > MAX_DIRTY;
+				ArrayList<Object> d = new ArrayList<Object>();
+				for (Object o = dirty.poll(); o != null; o = dirty.poll())
+					d.add(o);
+				/*
+				 * Children are sorted by label, so a new label can move a node
+				 * among its siblings, which changes the structure after all.
+				 */
+				if (s != null && s.getStructureVersion() == structureVersion)
+				{
+					if (all)
+						changed();
+					else
+						for (Object o : d)
+							if (!keepsItsPlace(s, o))
+							{
+								changed();
+								break;
+							}
+				}
+				long v = version;
+				long sv = structureVersion;
+				if (s != null && s.getStructureVersion() == sv)
+					s = new TreeSnapshot(s, v, d.toArray());
+				else
+					s = new TreeSnapshot(this, v, sv);
+				snapshot = s;
+			}
+			return s;
+		}
+	}
+
+	/*
+	 * Whether a node is still sorted between the same siblings as in the
+	 * snapshot. Ties count as moving, since the order within them isn't
+	 * decided by the labels.
+	 */
+	private boolean keepsItsPlace(TreeSnapshot s, Object o)
+	{
+		int i = s.indexOf(o);
+		if (i == -1)
+			return true;
+		int prev = s.previousSibling(i);
+		int next = s.nextSibling(i);
+		if (prev == -1 && next == -1)
+			return true;
+		if (getSorting((V) s.vertices[s.getParent(i)]) == REVERSE_I)
+		{
+			int t = prev;
+			prev = next;
+			next = t;
+		}
+		V v = (V) o;
+		if (prev != -1 && sorter.compare((V) s.vertices[prev], v) >= 0)
+			return false;
+		if (next != -1 && sorter.compare(v, (V) s.vertices[next]) >= 0)
+			return false;
+		return true;
 	}
 
 	public boolean isLabelSignificant(String s)
 	{
 		if (enforceUniqueLabels)
 		{
-			return uniqueLabeler.isLabelSignificant(s);
+			return UniqueLabeler.isLabelSignificant(s);
 		} else
 			return s.length() > 0;
 	}
@@ -217,14 +380,16 @@ public class RootedTree<V extends DefaultVertex, E extends DefaultWeightedEdge>
 
 	public void setLabel(Object vertex, String label)
 	{
+		V v = (V) vertex;
+		String old = v.getLabel();
 		if (enforceUniqueLabels)
 		{
 			uniqueLabeler.changeLabel(vertex, label);
-		} else if (vertex instanceof Labelable)
+		} else
 		{
-			Labelable v = (Labelable) vertex;
 			v.setLabel(label);
 		}
+		journal.labelChanged(v, old, v.getLabel());
 	}
 
 	public RootedTree<V, E> extractSubtree(V... vertices)
@@ -345,9 +510,18 @@ public class RootedTree<V extends DefaultVertex, E extends DefaultWeightedEdge>
 		setEdgeWeight(edge, length);
 	}
 
+	@Override
+	public void setEdgeWeight(E e, double weight)
+	{
+		double old = getEdgeWeight(e);
+		super.setEdgeWeight(e, weight);
+		journal.weightChanged(e, old, weight);
+	}
+
 	public void resetVertexLabels()
 	{
-		uniqueLabeler.resetVertexLabels(this);
+		relabeled(uniqueLabeler.resetVertexLabels(this));
+		changed();
 	}
 
 	/**
@@ -1000,7 +1174,7 @@ public class RootedTree<V extends DefaultVertex, E extends DefaultWeightedEdge>
 		V newRoot = createAndAddVertex();
 		// Capture the length of the edge above the pivot vertex.
 		insertNodeBetween(getParentOf(pivot), pivot, newRoot);
-		root = newRoot;
+		setRoot(newRoot);
 
 		// System.out.println("Step 3...");
 		// System.out.println(this);
@@ -1135,10 +1309,12 @@ public class RootedTree<V extends DefaultVertex, E extends DefaultWeightedEdge>
 
 	public void setSorting(V vertex, int direction)
 	{
+		Integer old = sorting.get(vertex);
 		if (fInt == direction)
 			sorting.put(vertex, FORWARD);
 		else
 			sorting.put(vertex, REVERSE);
+		journal.sortingChanged(vertex, old, sorting.get(vertex));
 	}
 
 	public int getSorting(V v)
@@ -1244,7 +1420,44 @@ public class RootedTree<V extends DefaultVertex, E extends DefaultWeightedEdge>
 		//		{
 		//			addVertex(newRoot);
 		//		}
+		V old = root;
 		root = newRoot;
+		journal.rootChanged(old, newRoot);
+	}
+
+	/**
+	 * Starts recording an edit to this tree, which can be undone as a whole
+	 * once endEdit() is called. See TreeJournal.
+	 */
+	public void beginEdit(String name)
+	{
+		journal.beginEdit(name);
+	}
+
+	public void endEdit()
+	{
+		journal.endEdit();
+	}
+
+	/**
+	 * Undoes the last edit. Returns false if there was nothing to undo.
+	 */
+	public boolean undo()
+	{
+		return journal.undo();
+	}
+
+	/**
+	 * Redoes the last undone edit. Returns false if there was nothing to redo.
+	 */
+	public boolean redo()
+	{
+		return journal.redo();
+	}
+
+	public TreeJournal<V, E> getJournal()
+	{
+		return journal;
 	}
 
 	/**
@@ -1631,6 +1844,7 @@ public class RootedTree<V extends DefaultVertex, E extends DefaultWeightedEdge>
 	
 	public void dispose()
 	{
+		journal.clear();
 		sorting = null;
 		neighbors = null;
 		root = null;
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.phylowidget.PhyloTree;
+
+/**
+ * A copy of a subtree, detached from any tree, for the clipboard.
+ * <p>
+ * The nodes are stored in pre-order as plain arrays: the index of each
+ * node's parent, its label, the length of the branch above it, whether its
+ * children are sorted in reverse, and its annotations as key/value pairs.
+ * Making a copy takes one pass over the subtree, and so does grafting it
+ * into a tree; Newick text is only made if something asks for it.
+ *
+ * @author Greg
+ */
+public class SubtreeCopy
+{
+	int n;
+	int[] parent;
+	String[] labels;
+	double[] lengths;
+	boolean[] reversed;
+	String[][] annotations;
+
+	private SubtreeCopy(int n)
+	{
+		this.n = n;
+		parent = new int[n];
+		labels = new String[n];
+		lengths = new double[n];
+		reversed = new boolean[n];
+		annotations = new String[n][];
+	}
+
+	/**
+	 * Copies the subtree below (and including) the given vertex.
+	 */
+	public static <V extends DefaultVertex, E extends DefaultWeightedEdge> SubtreeCopy copy(RootedTree<V, E> tree,
+			V vertex)
+	{
+		/*
+		 * Walk the subtree in pre-order, so each parent comes before its
+		 * children, noting each node's parent as we go.
+		 */
+		ArrayList<V> order = new ArrayList<V>();
+		ArrayList<Integer> parents = new ArrayList<Integer>();
+		ArrayList<V> stack = new ArrayList<V>();
+		ArrayList<Integer> stackParents = new ArrayList<Integer>();
+		stack.add(vertex);
+		stackParents.add(-1);
+		while (!stack.isEmpty())
+		{
+			V v = stack.remove(stack.size() - 1);
+			parents.add(stackParents.remove(stackParents.size() - 1));
+			int i = order.size();
+			order.add(v);
+			List<V> kids = tree.getChildrenOf(v);
+			for (int j = kids.size() - 1; j >= 0; j--)
+			{
+				stack.add(kids.get(j));
+				stackParents.add(i);
+			}
+		}
+
+		SubtreeCopy c = new SubtreeCopy(order.size());
+		for (int i = 0; i < c.n; i++)
+		{
+			V v = order.get(i);
+			int p = parents.get(i);
+			c.parent[i] = p;
+			c.labels[i] = v.getLabel();
+			if (p != -1)
+				c.lengths[i] = tree.getEdgeWeight(tree.getEdge(order.get(p), v));
+			c.reversed[i] = tree.getSorting(v) == RootedTree.REVERSE_I;
+			if (v instanceof PhyloNode)
+				c.annotations[i] = pairs(((PhyloNode) v).getAnnotations());
+		}
+		return c;
+	}
+
+	/**
+	 * Adds a copy of the subtree's nodes and edges to the tree, and returns
+	 * the copy's root, which is left for the caller to connect (or to make
+	 * the tree's root).
+	 */
+	public <V extends DefaultVertex, E extends DefaultWeightedEdge> V graft(RootedTree<V, E> tree)
+	{
+		Object[] made = new Object[n];
+		for (int i = 0; i < n; i++)
+		{
+			V v = tree.createVertex();
+			v.setLabel(labels[i]);
+			String[] a = annotations[i];
+			if (a != null && v instanceof PhyloNode)
+			{
+				PhyloNode pn = (PhyloNode) v;
+				for (int j = 0; j < a.length; j += 2)
+					pn.setAnnotation(a[j], a[j + 1]);
+			}
+			tree.addVertex(v);
+			made[i] = v;
+			if (parent[i] != -1)
+			{
+				E e = tree.addEdge((V) made[parent[i]], v);
+				tree.setEdgeWeight(e, lengths[i]);
+			}
+			if (reversed[i])
+				tree.setSorting(v, RootedTree.REVERSE_I);
+		}
+		return (V) made[0];
+	}
+
+	public int size()
+	{
+		return n;
+	}
+
+	/**
+	 * The subtree as an NHX string.
+	 */
+	public String toNHX()
+	{
+		PhyloTree t = new PhyloTree();
+		t.setRoot(graft(t));
+		return TreeIO.createNHXString(t);
+	}
+
+	private static String[] pairs(Map<String, String> m)
+	{
+		if (m == null)
+			return null;
+		String[] a = new String[m.size() * 2];
+		int i = 0;
+		for (Map.Entry<String, String> e : m.entrySet())
+		{
+			a[i++] = e.getKey();
+			a[i++] = e.getValue();
+		}
+		return a;
+	}
+}
@@ -18,10 +18,10 @@
  */
 package org.phylowidget.tree;
 
+import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
-import java.awt.image.RenderedImage;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
@@ -33,19 +33,17 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.imageio.ImageIO;
-
 import org.jgrapht.WeightedGraph;
 import org.jgrapht.traverse.BreadthFirstIterator;
 import org.phylowidget.PWPlatform;
 import org.phylowidget.PhyloTree;
 import org.phylowidget.PhyloWidget;
-import org.phylowidget.render.images.ImageLoader;
 
 public class TreeIO
 {
@@ -388,11 +386,11 @@ public class TreeIO
 		 */
 		((CachedRootedTree) tree).modPlus();
 
-		// GJ 2009-03-01: if we have a massive tree, never enforce unique labels (it's too slow!)
-		if (tree.getNumEnclosedLeaves(tree.getRoot()) > 1000)
-			tree.setEnforceUniqueLabels(false);
-		else
-			tree.setEnforceUniqueLabels(oldEnforceUniqueLabels);
+		/*
+		 * Labels are made unique in one pass at the end, rather than as each
+		 * node's added.
+		 */
+		tree.setEnforceUniqueLabels(oldEnforceUniqueLabels);
 
 		if (DEBUG)
 			System.out.println(System.currentTimeMillis() + "\nDone loading tree!");
@@ -530,8 +528,12 @@ public class TreeIO
 			//			}
 		}
 		//		DefaultVertex o = t.createAndAddVertex();
+		/*
+		 * Label the node before adding it, so a unique label is only worked
+		 * out once.
+		 */
+		v.setLabel(s);
 		t.addVertex(v);
-		t.setLabel(v, s);
 		return v;
 	}
 
@@ -569,80 +571,73 @@ public class TreeIO
 		return io.createNeXMLString(tree);
 	}
 
-	private static String createTreeString(RootedTree tree, TreeOutputConfig config)
+	/**
+	 * The tree in NeXML format, with the given img annotations in place of the
+	 * nodes' own (see TreeImageExport.getImageURLs()).
+	 */
+	public static String createNeXMLString(RootedTree tree, Map<String, String> imageURLs)
 	{
-		if (config == null)
-			config = new TreeOutputConfig();
-
-		StringBuffer sb = new StringBuffer();
-		synchronized (tree)
-		{
-			outputVertex(tree, sb, tree.getRoot(), config);
-		}
-		return sb.toString() + ";";
+		return NexmlIO.createNeXMLString(tree, imageURLs);
 	}
 
-	private static void outputVertex(RootedTree tree, StringBuffer sb, DefaultVertex v, TreeOutputConfig config)
+	private static String createTreeString(RootedTree tree, TreeOutputConfig config)
 	{
-		/*
-		 * Ok, I was gonna make this one iterative instead of recursive (like
-		 * the parser), but it's just too annoying. So maybe on reeeeally large
-		 * trees, this will result in heap problems. Oh, well...
-		 */
-		if (!tree.isLeaf(v) || tree.isCollapsed(v)) // GJ 2008-10-15: Still output children if collapsed.
-		{
-			sb.append('(');
-			List<DefaultVertex> l = tree.getChildrenOf(v);
-			for (int i = 0; i < l.size(); i++)
-			{
-				outputVertex(tree, sb, l.get(i), config);
-				if (i != l.size() - 1)
-					sb.append(',');
-			}
-			sb.append(')');
-		}
-		// Call this to make the vertex's label nicely formatted for Nexus
-		// output.
-		String s =
-				getNexusCompliantLabel(tree, v, config.includeStupidLabels, config.scrapeNaughtyChars,
-					config.outputAllInnerNodes);
-		if (s.length() != 0)
-			sb.append(s);
-		Object p = tree.getParentOf(v);
-		if (p != null)
+		StringBuilder sb = new StringBuilder();
+		try
 		{
-			double ew = tree.getEdgeWeight(tree.getEdge(p, v));
-			//			if (ew != 1.0)
-			sb.append(":" + Double.toString(ew));
-		}
-		if (v instanceof PhyloNode && config.outputNHX)
+			writeTreeString(tree, sb, config);
+		} catch (IOException e)
 		{
 			/*
-			 * Output annotations if they exist.
+			 * Can't happen with a StringBuilder.
 			 */
-			PhyloNode n = (PhyloNode) v;
-			HashMap<String, String> annot = n.getAnnotations();
-			if (annot != null)
-			{
-				sb.append("[&&NHX");
-				/*
-				 * Okay, we have some annotations.
-				 */
-				Set<String> set = annot.keySet();
-				for (String st : set)
-				{
-					if (st.length() == 0)
-						continue; // Deal with stupid keys.
-					String value = annot.get(st);
-					/*
-					 * Turn all colons into "&colon;".
-					 */
-					value = value.replaceAll(":", COLON_REPLACE);
-					sb.append(":" + st + "=" + value);
-				}
-				sb.append("]");
-			}
+			throw new RuntimeException(e);
 		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the tree in Newick format straight to the given writer, without
+	 * building the whole string in memory first.
+	 */
+	public static void writeNewick(RootedTree tree, Appendable out) throws IOException
+	{
+		TreeOutputConfig config = new TreeOutputConfig();
+		config.outputNHX = false;
+		writeTreeString(tree, out, config);
+	}
+
+	/**
+	 * Writes the tree in NHX format straight to the given writer.
+	 */
+	public static void writeNHX(RootedTree tree, Appendable out) throws IOException
+	{
+		TreeOutputConfig config = new TreeOutputConfig();
+		config.outputNHX = true;
+		writeTreeString(tree, out, config);
+	}
+
+	/**
+	 * Writes the tree in NHX format, with the given img annotations in place
+	 * of the nodes' own (see TreeImageExport.getImageURLs()).
+	 */
+	public static void writeNHX(RootedTree tree, Appendable out, Map<String, String> imageURLs) throws IOException
+	{
+		TreeOutputConfig config = new TreeOutputConfig();
+		config.outputNHX = true;
+		config.imageURLs = imageURLs;
+		writeTreeString(tree, out, config);
+	}
+
+	/*
+	 * The tree's only locked while its snapshot is taken (if it's changed
+	 * since the last one), not while the string's written.
+	 */
+	private static void writeTreeString(RootedTree tree, Appendable out, TreeOutputConfig config) throws IOException
+	{
+		if (config == null)
+			config = new TreeOutputConfig();
+		tree.getSnapshot().write(out, config);
 	}
 
 	static final String COLON_REPLACE = "&colon;";
@@ -662,7 +657,25 @@ public class TreeIO
 	public static String getNexusCompliantLabel(RootedTree t, DefaultVertex v, boolean includeStupidLabels,
 			boolean scrapeNaughtyChars, boolean outputAllInnerNodes)
 	{
-		String s = v.toString();
+		String s = nexusLabel(v.toString(), scrapeNaughtyChars);
+		/*
+		 * Now, if the label is just a number (i.e. "#123") we assume that this
+		 * is an unlabeled node, and the number was just inserted by PhyloWidget
+		 * to keep the node labels unique.
+		 */
+		if (!includeStupidLabels && !t.isLabelSignificant(s) && !t.isLeaf(v))
+		{
+			boolean pr = outputAllInnerNodes;
+			if (!pr)
+			{
+				s = "";
+			}
+		}
+		return s;
+	}
+
+	static String nexusLabel(String s, boolean scrapeNaughtyChars)
+	{
 		Matcher m = naughtyPattern.matcher(s);
 		if (m.find())
 		{
@@ -692,19 +705,6 @@ public class TreeIO
 			// Otherwise, just turn whitespace into underbars.
 			s = s.replaceAll(" ", "_");
 		}
-		/*
-		 * Now, if the label is just a number (i.e. "#123") we assume that this
-		 * is an unlabeled node, and the number was just inserted by PhyloWidget
-		 * to keep the node labels unique.
-		 */
-		if (!includeStupidLabels && !t.isLabelSignificant(s) && !t.isLeaf(v))
-		{
-			boolean pr = outputAllInnerNodes;
-			if (!pr)
-			{
-				s = "";
-			}
-		}
 		return s;
 	}
 
@@ -834,45 +834,32 @@ public class TreeIO
 		return bi;
 	}
 
-	public static void outputTreeImages(RootedTree t, File dir)
+	/**
+	 * Copies an image into a new RGB image, for writing to formats without
+	 * an alpha channel.
+	 */
+	public static BufferedImage createRGBImage(Image image)
 	{
-		ImageLoader loader = PWPlatform.getInstance().getThisAppContext().trees().imageLoader;
-		ArrayList<PhyloNode> nodes = new ArrayList<PhyloNode>();
-		t.getAll(t.getRoot(), null, nodes);
-
-		int img_id = 0;
-		for (PhyloNode n : nodes)
-		{
-			try
-			{
-				if (n.getAnnotation("img") != null)
-				{
-					String imgURL = n.getAnnotation("img");
-					Image img = loader.getImageForNode(n);
-					if (img != null)
-					{
-						img = createBufferedImage(img);
-						File f = new File(dir.getAbsolutePath() + File.separator + img_id + ".jpg");
-						//						System.out.println(f);
-						n.setAnnotation("img", f.toURL().toString());
-						System.out.println(n.getAnnotation("img"));
-						try
-						{
-							ImageIO.write((RenderedImage) img, "jpg", f);
-						} catch (IOException e)
-						{
-							e.printStackTrace();
-						}
+		BufferedImage bi = new BufferedImage(image.getWidth(null), image.getHeight(null), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = bi.createGraphics();
+		g.setColor(Color.white);
+		g.fillRect(0, 0, bi.getWidth(), bi.getHeight());
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return bi;
+	}
 
-						img_id++;
-					}
-				}
-			} catch (Exception e)
-			{
-				e.printStackTrace();
-				continue;
-			}
-		}
+	/**
+	 * Copies the tree's images next to the tree file, and waits for them to
+	 * be copied. Returns the img annotations to write the tree with; see
+	 * TreeImageExport.
+	 */
+	public static Map<String, String> outputTreeImages(RootedTree t, File dir)
+	{
+		TreeImageExport export = new TreeImageExport(t, dir);
+		export.start();
+		export.await();
+		return export.getImageURLs();
 	}
 
 	public static final class NHXHandler
@@ -939,6 +926,13 @@ public class TreeIO
 		public boolean includeStupidLabels;
 		public boolean outputTreeImages;
 
+		/*
+		 * The img annotations to write in place of the nodes' own, by their
+		 * original value, or null to write them as they are. See
+		 * TreeImageExport.
+		 */
+		public Map<String, String> imageURLs;
+
 		public TreeOutputConfig()
 		{
 			outputNHX = true;
@@ -947,5 +941,16 @@ public class TreeIO
 			scrapeNaughtyChars = true;
 			outputAllInnerNodes = false;
 		}
+
+		String annotation(String key, String value)
+		{
+			if (imageURLs != null && key.equalsIgnoreCase("img"))
+			{
+				String url = imageURLs.get(value);
+				if (url != null)
+					return url;
+			}
+			return value;
+		}
 	}
 }
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.tree;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.phylowidget.PWContext;
+import org.phylowidget.PWPlatform;
+import org.phylowidget.PhyloTree;
+
+/**
+ * Copies the images annotated onto a tree's nodes next to the tree file, byte
+ * for byte, so the saved tree can point at copies that are exactly the
+ * originals.
+ * <p>
+ * The tree itself is never changed. start() decides up front where each image
+ * will go, and getImageURLs() gives the img annotations to write in place of
+ * the originals (see TreeIO.writeNHX()), so the tree can be written while the
+ * images are still being copied. Each distinct image URL is copied once,
+ * however many nodes use it. An image that can't be copied is dropped from
+ * getImageURLs(), and its nodes keep their original URL.
+ *
+ * @author Greg
+ */
+public class TreeImageExport
+{
+	static final int MAX_THREADS = 4;
+
+	RootedTree tree;
+	File dir;
+
+	PWContext context;
+	ExecutorService pool;
+
+	/*
+	 * The new img annotation for each original one.
+	 */
+	Map<String, String> urls = new ConcurrentHashMap<String, String>();
+
+	int total;
+	AtomicInteger done = new AtomicInteger();
+	AtomicInteger failed = new AtomicInteger();
+
+	public TreeImageExport(RootedTree tree, File dir)
+	{
+		this.tree = tree;
+		this.dir = dir;
+	}
+
+	/**
+	 * Works out where each image goes and starts copying them.
+	 */
+	public void start()
+	{
+		context = PWPlatform.getInstance().getThisAppContext();
+		String base = "";
+		if (tree instanceof PhyloTree)
+			base = ((PhyloTree) tree).getBaseURL();
+
+		/*
+		 * The snapshot's annotations are the tree's as of now, without
+		 * holding the tree's lock while we go through them.
+		 */
+		TreeSnapshot snapshot = tree.getSnapshot();
+		ArrayList<Runnable> jobs = new ArrayList<Runnable>();
+		int img_id = 0;
+		for (int i = 0; i < snapshot.size(); i++)
+		{
+			String imgS = snapshot.getAnnotation(i, "img");
+			if (imgS == null || urls.containsKey(imgS))
+				continue;
+			URL from = resolve(imgS, base);
+			if (from == null)
+				continue;
+			File f = new File(dir, img_id + extension(from));
+			img_id++;
+			try
+			{
+				urls.put(imgS, f.toURI().toURL().toString());
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+				continue;
+			}
+			jobs.add(new Copy(imgS, from, f));
+		}
+
+		total = jobs.size();
+		if (total == 0)
+			return;
+		pool = Executors.newFixedThreadPool(Math.min(MAX_THREADS, total));
+		for (Runnable r : jobs)
+			pool.execute(r);
+		pool.shutdown();
+	}
+
+	/**
+	 * The img annotations to write in place of the tree's: the URL of the
+	 * copy for each original URL. Once await() returns, only the images that
+	 * were copied are left in here.
+	 */
+	public Map<String, String> getImageURLs()
+	{
+		return urls;
+	}
+
+	/**
+	 * Waits for all the images to be copied. Returns the number that
+	 * couldn't be.
+	 */
+	public int await()
+	{
+		if (pool != null)
+		{
+			try
+			{
+				while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+					;
+			} catch (InterruptedException e)
+			{
+				pool.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+		return failed.get();
+	}
+
+	public int getTotal()
+	{
+		return total;
+	}
+
+	public int getDone()
+	{
+		return done.get();
+	}
+
+	/*
+	 * As the ImageLoader finds images: a full URL, or a path relative to
+	 * where the tree came from.
+	 */
+	static URL resolve(String imgS, String base)
+	{
+		try
+		{
+			return new URL(imgS);
+		} catch (Exception e)
+		{
+			if (base.length() == 0)
+				return null;
+			try
+			{
+				return new File(base, imgS.replaceAll("\"", "")).toURI().toURL();
+			} catch (Exception e1)
+			{
+				return null;
+			}
+		}
+	}
+
+	/*
+	 * The image's own extension, so the copy opens as the same kind of file.
+	 */
+	static String extension(URL url)
+	{
+		String path = url.getPath();
+		int slash = path.lastIndexOf('/');
+		int dot = path.lastIndexOf('.');
+		if (dot <= slash || path.length() - dot > 6)
+			return "";
+		String ext = path.substring(dot);
+		if (!ext.substring(1).matches("[a-zA-Z0-9]+"))
+			return "";
+		return ext;
+	}
+
+	class Copy implements Runnable
+	{
+		String imgS;
+		URL from;
+		File f;
+
+		Copy(String imgS, URL from, File f)
+		{
+			this.imgS = imgS;
+			this.from = from;
+			this.f = f;
+		}
+
+		public void run()
+		{
+			/*
+			 * Copied to a temporary file first, so that a failed copy never
+			 * leaves half a file behind, and an image that's already where
+			 * its copy goes (from saving to the same place before) isn't
+			 * overwritten while it's being read.
+			 */
+			File tmp = null;
+			try
+			{
+				tmp = File.createTempFile("img", ".tmp", dir);
+				InputStream in = from.openStream();
+				try
+				{
+					OutputStream out = new FileOutputStream(tmp);
+					try
+					{
+						byte[] buf = new byte[64 * 1024];
+						int n;
+						while ((n = in.read(buf)) != -1)
+							out.write(buf, 0, n);
+					} finally
+					{
+						out.close();
+					}
+				} finally
+				{
+					in.close();
+				}
+				f.delete();
+				if (!tmp.renameTo(f))
+					throw new IOException("Couldn't write " + f);
+				tmp = null;
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+				urls.remove(imgS);
+				failed.incrementAndGet();
+			} finally
+			{
+				if (tmp != null)
+					tmp.delete();
+				progress(done.incrementAndGet());
+			}
+		}
+	}
+
+	/*
+	 * Called from the workers, which may not belong to the app's thread group.
+	 */
+	private void progress(int n)
+	{
+		if (context != null && context.getPW() != null)
+		{
+			if (n < total)
+				context.getPW().setMessage("Saving images... " + n + " of " + total);
+			else
+				context.getPW().setMessage("Saving tree...");
+		}
+	}
+}
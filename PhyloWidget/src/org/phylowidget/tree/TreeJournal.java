@@ -0,0 +1,549 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import org.jgrapht.event.GraphEdgeChangeEvent;
+import org.jgrapht.event.GraphListener;
+import org.jgrapht.event.GraphVertexChangeEvent;
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+/**
+ * The undo history of a tree.
+ * <p>
+ * Each edit (a reroot, a paste, renaming a node...) is kept as the list of
+ * small changes it made to the tree: nodes and edges added or removed, and
+ * branch lengths, labels, sortings, annotations and the root changed from one
+ * value to another. Undoing an edit plays its changes backwards, and redoing
+ * plays them forwards again, so either costs as much as the edit itself did.
+ * Removed nodes and edges are kept as they are rather than copied, so undoing
+ * a deleted subtree just puts the same objects back.
+ * <p>
+ * When an edit is finished, its changes are compacted: repeated changes to
+ * the same value (e.g. a label being typed, a letter at a time) become one,
+ * and nodes and edges that were created and thrown away within the edit
+ * (as by a reroot) are left out altogether. The oldest edits are forgotten
+ * once the history takes up more than its memory budget.
+ * <p>
+ * Changes are only recorded between beginEdit() and endEdit(). If the
+ * tree's structure is changed outside of an edit, the history no longer
+ * matches the tree, so it's cleared.
+ *
+ * @author Greg
+ */
+public class TreeJournal<V extends DefaultVertex, E extends DefaultWeightedEdge> implements GraphListener<V, E>
+{
+	static final byte VERTEX_ADDED = 0;
+	static final byte VERTEX_REMOVED = 1;
+	static final byte EDGE_ADDED = 2;
+	static final byte EDGE_REMOVED = 3;
+	static final byte WEIGHT = 4;
+	static final byte LABEL = 5;
+	static final byte SORTING = 6;
+	static final byte ROOT = 7;
+	static final byte ANNOTATION = 8;
+
+	public static final long DEFAULT_MAX_BYTES = 16 << 20;
+	/*
+	 * A rough cost of one change, not counting its strings.
+	 */
+	static final int CHANGE_BYTES = 64;
+
+	/*
+	 * The journal (if any) that's recording an edit on each thread. Annotations
+	 * are set directly on the nodes, which don't know their tree.
+	 */
+	static ThreadLocal<TreeJournal> recording = new ThreadLocal<TreeJournal>();
+
+	RootedTree<V, E> tree;
+
+	/*
+	 * The first pos edits are done, and the rest have been undone.
+	 */
+	ArrayList<Edit> edits = new ArrayList<Edit>();
+	int pos;
+	long bytes;
+	long maxBytes = DEFAULT_MAX_BYTES;
+
+	Edit open;
+	int depth;
+	boolean replaying;
+
+	public TreeJournal(RootedTree<V, E> tree)
+	{
+		this.tree = tree;
+	}
+
+	/**
+	 * Starts recording an edit. Edits can be nested, in which case the inner
+	 * ones become part of the outermost.
+	 */
+	public synchronized void beginEdit(String name)
+	{
+		if (depth++ == 0)
+			open = new Edit(name);
+		recording.set(this);
+	}
+
+	public synchronized void endEdit()
+	{
+		if (depth == 0)
+			return;
+		if (--depth > 0)
+			return;
+		if (recording.get() == this)
+			recording.remove();
+		Edit e = open;
+		open = null;
+		e.compact();
+		if (e.n == 0)
+			return;
+		/*
+		 * A new edit means the undone ones can't be redone.
+		 */
+		while (edits.size() > pos)
+			bytes -= edits.remove(edits.size() - 1).bytes;
+		edits.add(e);
+		pos++;
+		bytes += e.bytes;
+		trim();
+	}
+
+	public synchronized boolean canUndo()
+	{
+		return pos > 0 && depth == 0;
+	}
+
+	public synchronized boolean canRedo()
+	{
+		return pos < edits.size() && depth == 0;
+	}
+
+	/**
+	 * The name of the edit that undo() would undo, or null.
+	 */
+	public synchronized String getUndoName()
+	{
+		return canUndo() ? edits.get(pos - 1).name : null;
+	}
+
+	public synchronized String getRedoName()
+	{
+		return canRedo() ? edits.get(pos).name : null;
+	}
+
+	public boolean undo()
+	{
+		synchronized (tree)
+		{
+			synchronized (this)
+			{
+				if (!canUndo())
+					return false;
+				replay(edits.get(--pos), false);
+			}
+		}
+		return true;
+	}
+
+	public boolean redo()
+	{
+		synchronized (tree)
+		{
+			synchronized (this)
+			{
+				if (!canRedo())
+					return false;
+				replay(edits.get(pos++), true);
+			}
+		}
+		return true;
+	}
+
+	public synchronized void clear()
+	{
+		edits.clear();
+		pos = 0;
+		bytes = 0;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	public synchronized int size()
+	{
+		return edits.size();
+	}
+
+	/*
+	 * Forgets the oldest edits until we're back under budget, but always keeps
+	 * the newest one.
+	 */
+	private void trim()
+	{
+		while (bytes > maxBytes && edits.size() > 1 && pos > 1)
+		{
+			bytes -= edits.remove(0).bytes;
+			pos--;
+		}
+	}
+
+	private void replay(Edit e, boolean forwards)
+	{
+		replaying = true;
+		try
+		{
+			if (forwards)
+			{
+				for (int i = 0; i < e.n; i++)
+					apply(e, i, true);
+			} else
+			{
+				for (int i = e.n - 1; i >= 0; i--)
+					apply(e, i, false);
+			}
+		} finally
+		{
+			replaying = false;
+			/*
+			 * Not every change goes back through record() (sorting doesn't).
+			 */
+			for (int i = 0; i < e.n; i++)
+			{
+				if (e.kinds[i] == SORTING)
+				{
+					tree.changed();
+					break;
+				}
+			}
+		}
+		tree.modPlus();
+	}
+
+	private void apply(Edit e, int i, boolean forwards)
+	{
+		Object a = e.refs[i * 4];
+		Object b = e.refs[i * 4 + 1];
+		Object value = e.refs[i * 4 + (forwards ? 3 : 2)];
+		byte kind = e.kinds[i];
+		if (!forwards)
+		{
+			/*
+			 * Backwards, additions become removals and vice versa.
+			 */
+			if (kind == VERTEX_ADDED || kind == EDGE_ADDED)
+				kind++;
+			else if (kind == VERTEX_REMOVED || kind == EDGE_REMOVED)
+				kind--;
+		}
+		switch (kind)
+		{
+			case VERTEX_ADDED:
+				tree.addVertex((V) a);
+				break;
+			case VERTEX_REMOVED:
+				tree.removeVertex((V) a);
+				break;
+			case EDGE_ADDED:
+				tree.addEdge((V) b, (V) e.refs[i * 4 + 2], (E) a);
+				break;
+			case EDGE_REMOVED:
+				tree.removeEdge((E) a);
+				break;
+			case WEIGHT:
+				tree.setEdgeWeight((E) a, e.weights[i * 2 + (forwards ? 1 : 0)]);
+				break;
+			case LABEL:
+				tree.setLabel(a, (String) value);
+				break;
+			case SORTING:
+				if (value == null)
+					tree.sorting.remove(a);
+				else
+					tree.sorting.put((V) a, (Integer) value);
+				break;
+			case ROOT:
+				tree.setRoot((V) value);
+				break;
+			case ANNOTATION:
+				((PhyloNode) a).putAnnotation((String) b, value);
+				break;
+		}
+	}
+
+	/*
+	 * Called by the tree, and by the nodes (through annotationChanged), after
+	 * every change.
+	 */
+	synchronized void record(byte kind, Object a, Object b, Object before, Object after, double w0, double w1)
+	{
+		if (kind == LABEL || (kind == ANNOTATION && !PhyloNode.isLayoutKey((String) b, after)))
+			tree.contentChanged(a);
+		else
+			tree.changed();
+		if (replaying)
+			return;
+		if (open == null)
+		{
+			if (kind <= EDGE_REMOVED && edits.size() > 0)
+				clear();
+			return;
+		}
+		open.add(kind, a, b, before, after, w0, w1);
+	}
+
+	void labelChanged(V v, String before, String after)
+	{
+		record(LABEL, v, null, before, after, 0, 0);
+	}
+
+	void weightChanged(E e, double before, double after)
+	{
+		record(WEIGHT, e, null, null, null, before, after);
+	}
+
+	void sortingChanged(V v, Integer before, Integer after)
+	{
+		record(SORTING, v, null, before, after, 0, 0);
+	}
+
+	void rootChanged(V before, V after)
+	{
+		record(ROOT, null, null, before, after, 0, 0);
+	}
+
+	/**
+	 * Records an annotation change, if an edit is being recorded on this
+	 * thread.
+	 */
+	static void annotationChanged(PhyloNode n, String key, Object before, Object after)
+	{
+		TreeJournal j = recording.get();
+		if (j != null && !PhyloNode.isRenderState(key))
+			j.record(ANNOTATION, n, key, before, after, 0, 0);
+	}
+
+	public void edgeAdded(GraphEdgeChangeEvent<V, E> e)
+	{
+		E edge = e.getEdge();
+		record(EDGE_ADDED, edge, tree.getEdgeSource(edge), tree.getEdgeTarget(edge), null, 0, 0);
+	}
+
+	public void edgeRemoved(GraphEdgeChangeEvent<V, E> e)
+	{
+		/*
+		 * The edge still knows its ends after it's been removed.
+		 */
+		E edge = e.getEdge();
+		record(EDGE_REMOVED, edge, tree.getEdgeSource(edge), tree.getEdgeTarget(edge), null, 0, 0);
+	}
+
+	public void vertexAdded(GraphVertexChangeEvent<V> e)
+	{
+		record(VERTEX_ADDED, e.getVertex(), null, null, null, 0, 0);
+	}
+
+	public void vertexRemoved(GraphVertexChangeEvent<V> e)
+	{
+		record(VERTEX_REMOVED, e.getVertex(), null, null, null, 0, 0);
+	}
+
+	/*
+	 * One edit's changes, in the order they were made. Change i's objects are
+	 * refs[4i..4i+3]: what changed, a second key (an edge's source, or an
+	 * annotation's key), and the value before and after (an edge's target,
+	 * for edges). Branch lengths before and after are in weights[2i..2i+1].
+	 */
+	static class Edit
+	{
+		String name;
+		int n;
+		byte[] kinds = new byte[16];
+		Object[] refs = new Object[64];
+		double[] weights = new double[32];
+		long bytes;
+
+		/*
+		 * Where the last change to each value is, so that later changes to the
+		 * same value can be folded into it. Only kept while recording.
+		 */
+		HashMap<Key, Integer> latest = new HashMap<Key, Integer>();
+
+		Edit(String name)
+		{
+			this.name = name;
+		}
+
+		void add(byte kind, Object a, Object b, Object before, Object after, double w0, double w1)
+		{
+			if (kind >= WEIGHT)
+			{
+				Key k = new Key(kind, a, b);
+				Integer prev = latest.get(k);
+				if (prev != null)
+				{
+					int p = prev.intValue();
+					refs[p * 4 + 3] = after;
+					weights[p * 2 + 1] = w1;
+					return;
+				}
+				latest.put(k, new Integer(n));
+			}
+			if (n == kinds.length)
+			{
+				kinds = grow(kinds, n * 2);
+				refs = grow(refs, n * 8);
+				weights = grow(weights, n * 4);
+			}
+			kinds[n] = kind;
+			refs[n * 4] = a;
+			refs[n * 4 + 1] = b;
+			refs[n * 4 + 2] = before;
+			refs[n * 4 + 3] = after;
+			weights[n * 2] = w0;
+			weights[n * 2 + 1] = w1;
+			n++;
+		}
+
+		/*
+		 * Drops changes that came to nothing, and the nodes and edges that
+		 * weren't in the tree either before or after the edit, then trims the
+		 * arrays down to size.
+		 */
+		void compact()
+		{
+			latest = null;
+			IdentityHashMap<Object, byte[]> firstLast = new IdentityHashMap<Object, byte[]>();
+			for (int i = 0; i < n; i++)
+			{
+				if (kinds[i] > EDGE_REMOVED)
+					continue;
+				byte[] fl = firstLast.get(refs[i * 4]);
+				if (fl == null)
+					firstLast.put(refs[i * 4], new byte[] { kinds[i], kinds[i] });
+				else
+					fl[1] = kinds[i];
+			}
+
+			int m = 0;
+			bytes = 0;
+			for (int i = 0; i < n; i++)
+			{
+				if (isTemporary(firstLast.get(refs[i * 4])) || isNoOp(i))
+					continue;
+				kinds[m] = kinds[i];
+				System.arraycopy(refs, i * 4, refs, m * 4, 4);
+				System.arraycopy(weights, i * 2, weights, m * 2, 2);
+				bytes += CHANGE_BYTES + chars(refs[m * 4 + 1]) + chars(refs[m * 4 + 2]) + chars(refs[m * 4 + 3]);
+				m++;
+			}
+			n = m;
+			kinds = grow(kinds, m);
+			refs = grow(refs, m * 4);
+			weights = grow(weights, m * 2);
+		}
+
+		/*
+		 * Added first and removed last: it was never part of the tree outside
+		 * of this edit.
+		 */
+		private static boolean isTemporary(byte[] fl)
+		{
+			return fl != null && (fl[0] == VERTEX_ADDED || fl[0] == EDGE_ADDED)
+					&& (fl[1] == VERTEX_REMOVED || fl[1] == EDGE_REMOVED);
+		}
+
+		private boolean isNoOp(int i)
+		{
+			if (kinds[i] == WEIGHT)
+				return weights[i * 2] == weights[i * 2 + 1];
+			if (kinds[i] > WEIGHT)
+			{
+				Object before = refs[i * 4 + 2];
+				Object after = refs[i * 4 + 3];
+				return (before == null) ? after == null : before.equals(after);
+			}
+			return false;
+		}
+
+		private static int chars(Object o)
+		{
+			return (o instanceof String) ? 40 + 2 * ((String) o).length() : 0;
+		}
+	}
+
+	static class Key
+	{
+		byte kind;
+		Object a;
+		Object b;
+
+		Key(byte kind, Object a, Object b)
+		{
+			this.kind = kind;
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return kind * 31 + System.identityHashCode(a) * 17 + ((b == null) ? 0 : b.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			Key k = (Key) o;
+			return k.kind == kind && k.a == a && ((b == null) ? k.b == null : b.equals(k.b));
+		}
+	}
+
+	static byte[] grow(byte[] a, int len)
+	{
+		byte[] b = new byte[len];
+		System.arraycopy(a, 0, b, 0, Math.min(len, a.length));
+		return b;
+	}
+
+	static Object[] grow(Object[] a, int len)
+	{
+		Object[] b = new Object[len];
+		System.arraycopy(a, 0, b, 0, Math.min(len, a.length));
+		return b;
+	}
+
+	static double[] grow(double[] a, int len)
+	{
+		double[] b = new double[len];
+		System.arraycopy(a, 0, b, 0, Math.min(len, a.length));
+		return b;
+	}
+}
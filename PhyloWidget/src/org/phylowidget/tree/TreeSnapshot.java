@@ -0,0 +1,510 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.tree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+/**
+ * A read-only copy of a tree as it was at one version, for readers (the
+ * exporters, the Javascript getters) that would otherwise have to hold the
+ * tree's lock while they walk it.
+ * <p>
+ * Nodes are numbered in pre-order, in the order the tree sorts its children,
+ * so a node's subtree is the range from it up to its end. Labels and
+ * annotation values are the tree's own (immutable) strings. A snapshot never
+ * changes; the tree hands out the same one until it's edited. See
+ * RootedTree.getSnapshot().
+ * <p>
+ * When only labels or annotations have changed since the last snapshot, the
+ * next one shares the last one's structure, and only the changed nodes'
+ * labels and annotations are copied again (see getChanged()).
+ *
+ * @author Greg
+ */
+public final class TreeSnapshot
+{
+	final long version;
+	final long structureVersion;
+	final boolean enforceUniqueLabels;
+
+	final int size;
+	final int[] parent;
+	final int[] end;
+	final String[] labels;
+	final double[] lengths;
+	final boolean[] collapsed;
+
+	/*
+	 * The leaves below each node's children, counting a collapsed child as
+	 * one leaf (for a collapsed node, it's the count shown in its label).
+	 */
+	final int[] leaves;
+
+	/*
+	 * Each node's annotations, as key/value pairs, or null if it has none.
+	 */
+	final String[][] annotations;
+
+	/*
+	 * The tree's nodes, in order, for copying their labels and annotations
+	 * again; and each node's index, made when it's first needed. Shared by
+	 * every snapshot with the same structure.
+	 */
+	final Object[] vertices;
+	IdentityHashMap<Object, Integer> indexes;
+
+	/*
+	 * The snapshot this one was made from, and the nodes that changed since
+	 * (null if this one was made from scratch).
+	 */
+	long baseVersion = -1;
+	int[] changed;
+
+	int numLeaves;
+	int numNodes;
+
+	/*
+	 * Should be called with the tree locked.
+	 */
+	<V extends DefaultVertex, E extends DefaultWeightedEdge> TreeSnapshot(RootedTree<V, E> tree, long version,
+			long structureVersion)
+	{
+		this.version = version;
+		this.structureVersion = structureVersion;
+		enforceUniqueLabels = tree.getEnforceUniqueLabels();
+		V root = tree.getRoot();
+		size = (root == null) ? 0 : tree.vertexSet().size();
+		parent = new int[size];
+		end = new int[size];
+		labels = new String[size];
+		lengths = new double[size];
+		collapsed = new boolean[size];
+		leaves = new int[size];
+		annotations = new String[size][];
+		vertices = new Object[size];
+		if (root == null)
+			return;
+
+		ArrayList<V> stack = new ArrayList<V>();
+		ArrayList<Integer> parents = new ArrayList<Integer>();
+		stack.add(root);
+		parents.add(-1);
+		int i = 0;
+		while (!stack.isEmpty())
+		{
+			V v = stack.remove(stack.size() - 1);
+			int p = parents.remove(parents.size() - 1);
+			parent[i] = p;
+			end[i] = i + 1;
+			vertices[i] = v;
+			labels[i] = v.toString();
+			if (p != -1)
+				lengths[i] = tree.getEdgeWeight(tree.getEdge(tree.getParentOf(v), v));
+			collapsed[i] = tree.isCollapsed(v);
+			if (v instanceof PhyloNode)
+				annotations[i] = pairs(((PhyloNode) v).getAnnotations());
+			List<V> kids = tree.getChildrenOf(v);
+			for (int j = kids.size() - 1; j >= 0; j--)
+			{
+				stack.add(kids.get(j));
+				parents.add(i);
+			}
+			i++;
+		}
+
+		/*
+		 * Children come after their parents, so one pass backwards fills in
+		 * the subtree ends and leaf counts.
+		 */
+		for (i = size - 1; i > 0; i--)
+		{
+			int p = parent[i];
+			if (end[i] > end[p])
+				end[p] = end[i];
+			leaves[p] += (collapsed[i] || leaves[i] == 0) ? 1 : leaves[i];
+		}
+
+		/*
+		 * The visible nodes: those not inside a collapsed node.
+		 */
+		for (i = 0; i < size; i = isLeaf(i) ? end[i] : i + 1)
+		{
+			numNodes++;
+			if (isLeaf(i))
+				numLeaves++;
+		}
+	}
+
+	/*
+	 * A snapshot with the same structure as last, in which only the given
+	 * nodes' labels or annotations have changed. Should be called with the
+	 * tree locked.
+	 */
+	TreeSnapshot(TreeSnapshot last, long version, Object[] dirty)
+	{
+		this.version = version;
+		structureVersion = last.structureVersion;
+		enforceUniqueLabels = last.enforceUniqueLabels;
+		size = last.size;
+		parent = last.parent;
+		end = last.end;
+		lengths = last.lengths;
+		collapsed = last.collapsed;
+		leaves = last.leaves;
+		vertices = last.vertices;
+		numLeaves = last.numLeaves;
+		numNodes = last.numNodes;
+		labels = last.labels.clone();
+		annotations = last.annotations.clone();
+		baseVersion = last.version;
+		indexes = last.indexes;
+		int[] c = new int[dirty.length];
+		int n = 0;
+		for (int j = 0; j < dirty.length; j++)
+		{
+			int i = indexOf(dirty[j]);
+			if (i == -1)
+				continue;
+			copyContent(i);
+			c[n++] = i;
+		}
+		changed = new int[n];
+		System.arraycopy(c, 0, changed, 0, n);
+	}
+
+	/*
+	 * The node's index, or -1 if it isn't in this snapshot. Should be called
+	 * with the tree locked.
+	 */
+	int indexOf(Object v)
+	{
+		if (indexes == null)
+		{
+			indexes = new IdentityHashMap<Object, Integer>(size * 2);
+			for (int i = 0; i < size; i++)
+				indexes.put(vertices[i], i);
+		}
+		Integer i = indexes.get(v);
+		return i == null ? -1 : i;
+	}
+
+	/*
+	 * The sibling just before or after node i, or -1 if there isn't one.
+	 */
+	int previousSibling(int i)
+	{
+		int p = parent[i];
+		int prev = -1;
+		if (p != -1)
+			for (int c = p + 1; c < i; c = end[c])
+				prev = c;
+		return prev;
+	}
+
+	int nextSibling(int i)
+	{
+		int p = parent[i];
+		if (p == -1 || end[i] >= end[p])
+			return -1;
+		return end[i];
+	}
+
+	private void copyContent(int i)
+	{
+		Object v = vertices[i];
+		labels[i] = v.toString();
+		if (v instanceof PhyloNode)
+			annotations[i] = pairs(((PhyloNode) v).getAnnotations());
+	}
+
+	private static String[] pairs(Map<String, String> annot)
+	{
+		if (annot == null)
+			return null;
+		String[] kv = new String[annot.size() * 2];
+		int j = 0;
+		for (Map.Entry<String, String> e : annot.entrySet())
+		{
+			kv[j++] = e.getKey();
+			kv[j++] = e.getValue();
+		}
+		return kv;
+	}
+
+	/**
+	 * The version of the tree this is a snapshot of. See
+	 * RootedTree.getVersion().
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * The tree's structure version when this was made. Snapshots with the
+	 * same structure version differ only in labels and annotations. See
+	 * RootedTree.getStructureVersion().
+	 */
+	public long getStructureVersion()
+	{
+		return structureVersion;
+	}
+
+	/**
+	 * The version of the snapshot this one was made from by copying only
+	 * what changed, or -1 if it was made from scratch.
+	 */
+	public long getBaseVersion()
+	{
+		return baseVersion;
+	}
+
+	/**
+	 * The nodes whose labels or annotations changed since the snapshot of
+	 * getBaseVersion(), or null if that's not known (any of them may have).
+	 * A node may be listed more than once.
+	 */
+	public int[] getChanged()
+	{
+		return changed;
+	}
+
+	/**
+	 * The number of nodes in the snapshot, including those inside collapsed
+	 * nodes. Nodes are numbered from 0 (the root) to size() - 1.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * The number of nodes, not counting those inside collapsed nodes (as
+	 * RootedTree.getNodeCount() counts them).
+	 */
+	public int getNodeCount()
+	{
+		return numNodes;
+	}
+
+	/**
+	 * The number of leaves, counting each collapsed node as one.
+	 */
+	public int getLeafCount()
+	{
+		return numLeaves;
+	}
+
+	public int getParent(int i)
+	{
+		return parent[i];
+	}
+
+	/**
+	 * The node after the last one in node i's subtree.
+	 */
+	public int getSubtreeEnd(int i)
+	{
+		return end[i];
+	}
+
+	public int getNumChildren(int i)
+	{
+		int n = 0;
+		for (int c = i + 1; c < end[i]; c = end[c])
+			n++;
+		return n;
+	}
+
+	public String getLabel(int i)
+	{
+		return labels[i];
+	}
+
+	/**
+	 * Node i's label as RootedTree.getLabel() gives it, with the number of
+	 * leaves inside if it's collapsed.
+	 */
+	public String getDisplayLabel(int i)
+	{
+		if (collapsed[i])
+			return labels[i] + " (" + leaves[i] + " leaves)";
+		return labels[i];
+	}
+
+	public double getBranchLength(int i)
+	{
+		return lengths[i];
+	}
+
+	public boolean isCollapsed(int i)
+	{
+		return collapsed[i];
+	}
+
+	/**
+	 * Whether node i is a leaf as far as the tree's concerned: it has no
+	 * children, or it's collapsed.
+	 */
+	public boolean isLeaf(int i)
+	{
+		return collapsed[i] || end[i] == i + 1;
+	}
+
+	public boolean hasAnnotations(int i)
+	{
+		return annotations[i] != null;
+	}
+
+	public String getAnnotation(int i, String key)
+	{
+		String[] kv = annotations[i];
+		if (kv == null)
+			return null;
+		for (int j = 0; j < kv.length; j += 2)
+		{
+			if (kv[j].equalsIgnoreCase(key))
+				return kv[j + 1];
+		}
+		return null;
+	}
+
+	/**
+	 * The labels of the leaves, in order, as RootedTree.getLabel() gives them.
+	 */
+	public String[] getLeafNames()
+	{
+		String[] names = new String[numLeaves];
+		int j = 0;
+		for (int i = 0; i < size; i = isLeaf(i) ? end[i] : i + 1)
+		{
+			if (!isLeaf(i))
+				continue;
+			names[j++] = getDisplayLabel(i);
+		}
+		return names;
+	}
+
+	public String toNewick()
+	{
+		TreeIO.TreeOutputConfig config = new TreeIO.TreeOutputConfig();
+		config.outputNHX = false;
+		return toString(config);
+	}
+
+	public String toNHX()
+	{
+		return toString(new TreeIO.TreeOutputConfig());
+	}
+
+	private String toString(TreeIO.TreeOutputConfig config)
+	{
+		StringBuilder sb = new StringBuilder();
+		try
+		{
+			write(sb, config);
+		} catch (IOException e)
+		{
+			/*
+			 * Can't happen with a StringBuilder.
+			 */
+			throw new RuntimeException(e);
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Writes the tree as Newick (or NHX), exactly as TreeIO always has. Going
+	 * through the nodes in order, a node with children opens a bracket, and
+	 * the last node of a subtree closes the brackets of every node whose
+	 * subtree it ends; so there's no recursion, however deep the tree. (A
+	 * collapsed node always gets brackets, even with no children.)
+	 */
+	void write(Appendable out, TreeIO.TreeOutputConfig config) throws IOException
+	{
+		int[] open = new int[16];
+		int depth = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (i > 0 && i != parent[i] + 1)
+				out.append(',');
+			if (end[i] > i + 1)
+			{
+				if (depth == open.length)
+				{
+					int[] o = new int[depth * 2];
+					System.arraycopy(open, 0, o, 0, depth);
+					open = o;
+				}
+				open[depth++] = i;
+				out.append('(');
+				continue;
+			}
+			if (collapsed[i])
+				out.append("()");
+			writeNode(out, i, config);
+			while (depth > 0 && end[open[depth - 1]] == i + 1)
+			{
+				out.append(')');
+				writeNode(out, open[--depth], config);
+			}
+		}
+		out.append(';');
+	}
+
+	private void writeNode(Appendable out, int i, TreeIO.TreeOutputConfig config) throws IOException
+	{
+		String s = TreeIO.nexusLabel(labels[i], config.scrapeNaughtyChars);
+		if (!config.includeStupidLabels && !config.outputAllInnerNodes && !isLeaf(i) && !isSignificant(s))
+			s = "";
+		if (s.length() != 0)
+			out.append(s);
+		if (parent[i] != -1)
+			out.append(':').append(Double.toString(lengths[i]));
+		String[] kv = annotations[i];
+		if (kv != null && config.outputNHX)
+		{
+			out.append("[&&NHX");
+			for (int j = 0; j < kv.length; j += 2)
+			{
+				if (kv[j].length() == 0)
+					continue; // Deal with stupid keys.
+				String value = config.annotation(kv[j], kv[j + 1]).replaceAll(":", TreeIO.COLON_REPLACE);
+				out.append(':').append(kv[j]).append('=').append(value);
+			}
+			out.append("]");
+		}
+	}
+
+	/*
+	 * As RootedTree.isLabelSignificant().
+	 */
+	private boolean isSignificant(String s)
+	{
+		if (enforceUniqueLabels)
+			return UniqueLabeler.isLabelSignificant(s);
+		return s.length() > 0;
+	}
+}
@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Copyright (c) 2007, 2008 Gregory Jordan
+ *
+ * This file is part of PhyloWidget.
+ *
+ * PhyloWidget is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * PhyloWidget is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * PhyloWidget. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phylowidget.tree;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Summary statistics of a whole tree (collapsed nodes included): its size
+ * and length, the Colless and Sackin imbalance indices, the number of
+ * cherries, Pybus and Harvey's gamma, and the mean and maximum patristic
+ * distance between leaves. It also has the tree's length as
+ * RootedTree.getTotalTreeLength() and getMaxTreeLength() work it out, which
+ * don't look inside collapsed nodes.
+ * <p>
+ * Everything is worked out from one TreeSnapshot, in a pass down the tree
+ * and a pass back up (plus a sort of the branching times, for gamma), and
+ * never changes afterwards. CachedRootedTree.getStatistics() keeps the
+ * latest, so asking again costs nothing until the tree's structure is
+ * edited.
+ *
+ * @author Greg
+ */
+public final class TreeStatistics
+{
+	final long version;
+	final long structureVersion;
+
+	int numLeaves;
+	int numNodes;
+	int numCherries;
+	boolean binary = true;
+
+	double totalLength;
+	double maxHeight;
+	double meanHeight;
+
+	long colless;
+	long sackin;
+	double gamma = Double.NaN;
+
+	double meanDistance = Double.NaN;
+	double maxDistance;
+
+	/*
+	 * As the tree's own getters give them.
+	 */
+	double treeLength;
+	double maxTreeLength;
+
+	TreeStatistics(TreeSnapshot t)
+	{
+		version = t.getVersion();
+		structureVersion = t.getStructureVersion();
+		int n = t.size();
+		numNodes = n;
+		if (n == 0)
+			return;
+		int[] parent = t.parent;
+		double[] lengths = t.lengths;
+
+		/*
+		 * Down the tree (parents come before their children): depths and
+		 * heights, and the number of children.
+		 */
+		int[] depth = new int[n];
+		double[] height = new double[n];
+		int[] kids = new int[n];
+		boolean[] hidden = new boolean[n];
+		/*
+		 * The root has no branch, which the tree counts as a length of 1.
+		 */
+		treeLength = 1;
+		for (int i = 1; i < n; i++)
+		{
+			int p = parent[i];
+			depth[i] = depth[p] + 1;
+			height[i] = height[p] + lengths[i];
+			kids[p]++;
+			totalLength += lengths[i];
+			hidden[i] = hidden[p] || t.collapsed[p];
+			if (hidden[i])
+				continue;
+			treeLength += lengths[i];
+			if (t.isLeaf(i) && height[i] > maxTreeLength)
+				maxTreeLength = height[i];
+		}
+
+		/*
+		 * Back up: leaves below each node, and the furthest leaf below it.
+		 * The longest path between two leaves turns at its highest node, so
+		 * it's found when that node's second child (in the order they come
+		 * up) is added in.
+		 */
+		int[] leaves = new int[n];
+		double[] furthest = new double[n];
+		double sumHeight = 0;
+		for (int i = n - 1; i >= 0; i--)
+		{
+			if (kids[i] == 0)
+			{
+				leaves[i] = 1;
+				numLeaves++;
+				sackin += depth[i];
+				sumHeight += height[i];
+				if (height[i] > maxHeight)
+					maxHeight = height[i];
+			} else if (kids[i] == 2)
+			{
+				int a = i + 1;
+				int b = t.end[a];
+				colless += Math.abs(leaves[a] - leaves[b]);
+				if (kids[a] == 0 && kids[b] == 0)
+					numCherries++;
+			} else
+				binary = false;
+			int p = parent[i];
+			if (p == -1)
+				continue;
+			leaves[p] += leaves[i];
+			double f = furthest[i] + lengths[i];
+			if (leaves[p] > leaves[i] && furthest[p] + f > maxDistance)
+				maxDistance = furthest[p] + f;
+			if (f > furthest[p])
+				furthest[p] = f;
+		}
+		meanHeight = sumHeight / numLeaves;
+
+		/*
+		 * Each branch is on the path between every leaf below it and every
+		 * leaf that isn't, which gives the mean distance over all pairs of
+		 * leaves without looking at the pairs.
+		 */
+		if (numLeaves > 1)
+		{
+			double sumDistance = 0;
+			for (int i = 1; i < n; i++)
+				sumDistance += lengths[i] * leaves[i] * (double) (numLeaves - leaves[i]);
+			meanDistance = sumDistance / ((double) numLeaves * (numLeaves - 1) / 2);
+		}
+
+		if (binary && numLeaves > 2)
+			gamma = gamma(height, kids, n);
+	}
+
+	/*
+	 * Pybus and Harvey's (2000) gamma, from the intervals between branching
+	 * times. It's only meaningful for an ultrametric tree; the intervals end
+	 * at the furthest leaf.
+	 */
+	private double gamma(double[] height, int[] kids, int n)
+	{
+		int m = numLeaves;
+		double[] times = new double[m];
+		int j = 0;
+		for (int i = 0; i < n; i++)
+		{
+			if (kids[i] > 0)
+				times[j++] = height[i];
+		}
+		times[j] = maxHeight;
+		Arrays.sort(times, 0, j);
+
+		/*
+		 * Between the k-1'th and k'th branching there are k lineages.
+		 */
+		double total = 0;
+		double sumPartial = 0;
+		for (int k = 2; k <= m; k++)
+		{
+			double g = times[k - 1] - times[k - 2];
+			total += k * g;
+			if (k < m)
+				sumPartial += total;
+		}
+		if (total == 0)
+			return Double.NaN;
+		double mean = sumPartial / (m - 2);
+		return (mean - total / 2) / (total * Math.sqrt(1.0 / (12 * (m - 2))));
+	}
+
+	/**
+	 * The version of the tree these were worked out from. They stay the same
+	 * for as long as only labels and annotations change.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	public int getLeafCount()
+	{
+		return numLeaves;
+	}
+
+	public int getNodeCount()
+	{
+		return numNodes;
+	}
+
+	/**
+	 * Whether every internal node has exactly two children. The Colless
+	 * index only counts the nodes that do, and gamma needs the whole tree to
+	 * be binary.
+	 */
+	public boolean isBinary()
+	{
+		return binary;
+	}
+
+	/**
+	 * The sum of all branch lengths.
+	 */
+	public double getTotalLength()
+	{
+		return totalLength;
+	}
+
+	/**
+	 * The distance from the root to the furthest leaf.
+	 */
+	public double getMaxHeight()
+	{
+		return maxHeight;
+	}
+
+	/**
+	 * The sum of the branch lengths of the nodes that aren't inside a
+	 * collapsed node, plus 1 for the root, as RootedTree.getTotalTreeLength()
+	 * gives it.
+	 */
+	public double getTreeLength()
+	{
+		return treeLength;
+	}
+
+	/**
+	 * The distance from the root to the furthest leaf or collapsed node, as
+	 * RootedTree.getMaxTreeLength() gives it.
+	 */
+	public double getMaxTreeLength()
+	{
+		return maxTreeLength;
+	}
+
+	/**
+	 * The mean distance from the root to a leaf.
+	 */
+	public double getMeanHeight()
+	{
+		return meanHeight;
+	}
+
+	/**
+	 * The number of pairs of leaves that are each other's only sibling.
+	 */
+	public int getCherryCount()
+	{
+		return numCherries;
+	}
+
+	/**
+	 * The sum, over the nodes with two children, of the difference in the
+	 * number of leaves below each.
+	 */
+	public long getColless()
+	{
+		return colless;
+	}
+
+	/**
+	 * The sum of the depths (in nodes) of the leaves.
+	 */
+	public long getSackin()
+	{
+		return sackin;
+	}
+
+	/**
+	 * Pybus and Harvey's gamma statistic, or NaN if the tree isn't binary or
+	 * has fewer than three leaves.
+	 */
+	public double getGamma()
+	{
+		return gamma;
+	}
+
+	/**
+	 * The mean patristic distance between two leaves, or NaN with fewer than
+	 * two leaves.
+	 */
+	public double getMeanDistance()
+	{
+		return meanDistance;
+	}
+
+	/**
+	 * The greatest patristic distance between two leaves.
+	 */
+	public double getMaxDistance()
+	{
+		return maxDistance;
+	}
+
+	/**
+	 * The statistics by name, for JSON. Numbers that aren't defined for this
+	 * tree are left out.
+	 */
+	public LinkedHashMap<String, Object> toMap()
+	{
+		LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("version", version);
+		map.put("leaves", numLeaves);
+		map.put("nodes", numNodes);
+		map.put("binary", binary);
+		map.put("totalLength", totalLength);
+		map.put("maxHeight", maxHeight);
+		putNumber(map, "meanHeight", meanHeight);
+		map.put("cherries", numCherries);
+		map.put("colless", colless);
+		map.put("sackin", sackin);
+		putNumber(map, "gamma", gamma);
+		putNumber(map, "meanDistance", meanDistance);
+		map.put("maxDistance", maxDistance);
+		return map;
+	}
+
+	private static void putNumber(LinkedHashMap<String, Object> map, String key, double d)
+	{
+		if (!Double.isNaN(d))
+			map.put(key, d);
+	}
+}
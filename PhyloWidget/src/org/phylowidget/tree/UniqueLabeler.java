@@ -22,39 +22,92 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
+/**
+ * Keeps a tree's labels unique by suffixing clashing labels with a number,
+ * as in "Homo sapiens#2".
+ * <p>
+ * For each base label, we remember the lowest suffix that might be free, so
+ * that adding the ten-thousandth unlabelled node doesn't try the nine
+ * thousand nine hundred and ninety-nine suffixes already taken. Removing a
+ * suffixed label lowers its base's counter again, so freed suffixes get
+ * reused.
+ */
 public class UniqueLabeler
 {
 	public static final char sep = '#';
 
 	private HashMap<String,Object> vertexLabels = new HashMap<String,Object>();
+	private HashMap<String,Integer> nextSuffix = new HashMap<String,Integer>();
 
 	protected void makeLabelUnique(Object object)
 	{
 		if (!(object instanceof Labelable))
 			return;
 		Labelable vertex = (Labelable) object;
-		if (vertex.getLabel().length() == 0)
+		String cur = vertex.getLabel();
+		if (cur.length() != 0 && !vertexLabels.containsKey(cur))
+			return;
+
+		/*
+		 * Split the label into its base and the first suffix to try: a label
+		 * that's already suffixed carries on from its own number.
+		 */
+		String base = cur;
+		int start = 1;
+		int i = cur.lastIndexOf(sep);
+		int num = (i == -1) ? -1 : suffixOf(cur, i);
+		if (num != -1)
+		{
+			base = cur.substring(0, i);
+			start = num + 1;
+		}
+		Integer next = nextSuffix.get(base);
+		int n = (next == null) ? start : Math.max(start, next);
+		String label = base + sep + n;
+		while (vertexLabels.containsKey(label))
 		{
-			vertex.setLabel(sep + "1");
+			n++;
+			label = base + sep + n;
 		}
+		if (next == null || n >= next)
+			nextSuffix.put(base, n + 1);
+		vertex.setLabel(label);
+	}
 
-		while (vertexLabels.containsKey(vertex.getLabel()))
+	/*
+	 * The number after the separator at i, or -1 if it's not a number.
+	 */
+	private static int suffixOf(String s, int i)
+	{
+		int len = s.length();
+		if (i + 1 == len || len - i > 10)
+			return -1;
+		int n = 0;
+		for (int j = i + 1; j < len; j++)
 		{
-			String cur = vertex.getLabel();
-			/*
-			 * Take the current label and increment the suffixed number.
-			 */
-			int i = cur.lastIndexOf(sep);
-			if (i != -1)
-			{
-				String num = cur.substring(i + 1);
-				int curNum = Integer.parseInt(num) + 1;
-				vertex.setLabel(cur.substring(0, i + 1) + curNum);
-			} else
-			{
-				vertex.setLabel(cur + sep + 1);
-			}
+			char c = s.charAt(j);
+			if (c < '0' || c > '9')
+				return -1;
+			n = n * 10 + (c - '0');
 		}
+		return n;
+	}
+
+	/*
+	 * A suffixed label was freed, so its number can be used again.
+	 */
+	private void freed(String label)
+	{
+		int i = label.lastIndexOf(sep);
+		if (i == -1)
+			return;
+		int num = suffixOf(label, i);
+		if (num == -1)
+			return;
+		String base = label.substring(0, i);
+		Integer next = nextSuffix.get(base);
+		if (next != null && num < next)
+			nextSuffix.put(base, num);
 	}
 
 	protected void changeLabel(Object o, String label)
@@ -63,7 +116,11 @@ public class UniqueLabeler
 			return;
 		Labelable v = (Labelable) o;
 		String oldLabel = v.getLabel();
-		vertexLabels.remove(oldLabel);
+		if (vertexLabels.get(oldLabel) == v)
+		{
+			vertexLabels.remove(oldLabel);
+			freed(oldLabel);
+		}
 		v.setLabel(label);
 		makeLabelUnique(v);
 		vertexLabels.put(v.getLabel(), v);
@@ -83,44 +140,67 @@ public class UniqueLabeler
 		if (!(o instanceof Labelable))
 			return;
 		Labelable v = (Labelable) o;
-		vertexLabels.remove(v.getLabel());
+		if (vertexLabels.get(v.getLabel()) == v)
+		{
+			vertexLabels.remove(v.getLabel());
+			freed(v.getLabel());
+		}
 	}
 
-	protected void resetVertexLabels(RootedTree t)
+	/*
+	 * Makes all the tree's labels unique in one pass, and returns the nodes
+	 * whose labels changed.
+	 */
+	protected List resetVertexLabels(RootedTree t)
 	{
 		vertexLabels.clear();
-		List nodes = t.getAllNodes();
-		for (int i = 0; i < nodes.size(); i++)
+		nextSuffix.clear();
+		ArrayList changed = new ArrayList();
+		for (Object o : t.vertexSet())
 		{
-			Object o = nodes.get(i);
-			makeLabelUnique(o);
-			if (o instanceof Labelable)
-				vertexLabels.put(((Labelable) o).getLabel(), o);
+			if (!(o instanceof Labelable))
+				continue;
+			Labelable l = (Labelable) o;
+			String before = l.getLabel();
+			makeLabelUnique(l);
+			if (l.getLabel() != before)
+				changed.add(o);
+			vertexLabels.put(l.getLabel(), o);
 		}
+		return changed;
 	}
 
-	protected void removeDuplicateTags(RootedTree t)
+	/*
+	 * Strips the suffixes off all the tree's labels, and returns the nodes
+	 * whose labels changed.
+	 */
+	protected List removeDuplicateTags(RootedTree t)
 	{
 		vertexLabels.clear();
-		ArrayList nodes = new ArrayList();
-		t.getAll(t.getRoot(), null, nodes);
-		for (int i = 0; i < nodes.size(); i++)
+		nextSuffix.clear();
+		ArrayList changed = new ArrayList();
+		for (Object o : t.vertexSet())
 		{
-			Object o = nodes.get(i);
 			if (o instanceof Labelable)
 			{
 				Labelable l = (Labelable) o;
 				String s = l.getLabel();
 				int index = s.lastIndexOf(sep);
-				if (index == -1)
+				/*
+				 * Only a numbered suffix is one of ours; anything else after the
+				 * separator is part of the label (see makeLabelUnique()).
+				 */
+				if (index == -1 || suffixOf(s, index) == -1)
 				{
 					continue;
 				} else
 				{
 					l.setLabel(s.substring(0, index));
+					changed.add(o);
 				}
 			}
 		}
+		return changed;
 	}
 
 	public Object getNodeForLabel(String s)
@@ -128,7 +208,7 @@ public class UniqueLabeler
 		return vertexLabels.get(s);
 	}
 
-	public boolean isLabelSignificant(String s)
+	public static boolean isLabelSignificant(String s)
 	{
 		int index = s.lastIndexOf(UniqueLabeler.sep);
 		if (index != 0)
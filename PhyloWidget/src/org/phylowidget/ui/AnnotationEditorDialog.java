@@ -16,10 +16,11 @@ import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 import org.phylowidget.PWPlatform;
+import org.phylowidget.PhyloTree;
 import org.phylowidget.PhyloWidget;
 import org.phylowidget.tree.PhyloNode;
 
@@ -138,6 +139,26 @@ public class AnnotationEditorDialog extends Dialog implements ActionListener,
 	}
 
 	void commitAnnotations()
+	{
+		PhyloTree tree = node.getTree();
+		tree.beginEdit("Edit Annotations");
+		try
+		{
+			setAnnotations();
+		} finally
+		{
+			tree.endEdit();
+		}
+		/*
+		 * Need to re-layout so that the tree renderer has a chance to re-assign
+		 * node colors and whatnot... There should be a better way to avoid having to 
+		 * trigger a layout from here, but frankly I'm too lazy to think of one!
+		 */
+		PWPlatform.getInstance().getThisAppContext().ui().layout();
+		tree.modPlus();
+	}
+
+	void setAnnotations()
 	{
 		node.clearAnnotations();
 		String textS = text.getText();
@@ -159,13 +180,6 @@ public class AnnotationEditorDialog extends Dialog implements ActionListener,
 				e.printStackTrace();
 			}
 		}
-		/*
-		 * Need to re-layout so that the tree renderer has a chance to re-assign
-		 * node colors and whatnot... There should be a better way to avoid having to 
-		 * trigger a layout from here, but frankly I'm too lazy to think of one!
-		 */
-		PWPlatform.getInstance().getThisAppContext().ui().layout();
-		node.getTree().modPlus();
 	}
 
 	public void setVisible(boolean visible)
@@ -178,7 +192,7 @@ public class AnnotationEditorDialog extends Dialog implements ActionListener,
 	{
 		String textS = new String();
 
-		HashMap<String, String> map = node.getAnnotations();
+		Map<String, String> map = node.getAnnotations();
 		if (map == null)
 		{
 			text.setText(new String());
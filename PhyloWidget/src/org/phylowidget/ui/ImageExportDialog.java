@@ -81,6 +81,7 @@ public class ImageExportDialog extends Dialog implements ActionListener
 		
 		fileFormat = new Choice();
 		fileFormat.add("PDF");
+		fileFormat.add("SVG");
 		fileFormat.add("PNG");
 		fileFormat.add("JPG");
 		fileFormat.add("TIF");
@@ -100,7 +101,7 @@ public class ImageExportDialog extends Dialog implements ActionListener
 		imageSize.setEditable(true);
 		
 		Component boundariesL2 = sectionLabel("<html><b>1) Output Format");
-		Component boundariesInfo2 = infoLabel("<html><b>Note:</b> the size parameter is ignored for PDF output, which is resolution independent.<br><b>Hint:</b>You can specify arbitrary output dimensions by entering a width and height in the same format as the defaults. But be warned: large sizes may cause memory errors and program crashes!");
+		Component boundariesInfo2 = infoLabel("<html><b>Note:</b> the size parameter is ignored for PDF and SVG output, which are resolution independent.<br><b>Hint:</b>You can specify arbitrary output dimensions by entering a width and height in the same format as the defaults. But be warned: large sizes may cause memory errors and program crashes!");
 		
 		c.fill = c.BOTH;
 		c.anchor = c.NORTH;
@@ -233,9 +234,9 @@ public class ImageExportDialog extends Dialog implements ActionListener
 //		setEnabled(false);
 		ok.setEnabled(false);
 		cancel.setEnabled(false);
-		if (format.toLowerCase().equals("pdf"))
+		if (format.toLowerCase().equals("pdf") || format.toLowerCase().equals("svg"))
 		{
-			RenderOutput.savePDF(p, r, zoomToFit, showAll);
+			RenderOutput.saveVector(p, r, zoomToFit, showAll, format);
 		} else
 		{
 			RenderOutput.save(p, r, zoomToFit, showAll, format, w, h);
@@ -26,4 +26,7 @@ public interface JavascriptAccessibleMethods
 	// Returns an array of leaf names, as Strings.
 	public String[] getLeafNames();
 	
+	// Returns the tree's summary statistics (Colless, Sackin, gamma, cherries, patristic distances...) as a JSON object.
+	public String getTreeStatisticsJSON();
+	
 }
@@ -86,6 +86,7 @@ public class NodeTraverser extends AbstractUIObject implements TweenListener, Ke
 		glowTween = null;
 	}
 	
+	private Rectangle rc = new Rectangle();
 	public boolean containsPoint(NodeRange r, Point pt)
 	{
 		tempPt.setLocation(getX(r), getY(r));
@@ -100,7 +101,6 @@ public class NodeTraverser extends AbstractUIObject implements TweenListener, Ke
 			return true;
 		}
 
-		Rectangle rc = new Rectangle();
 		rc.setFrameFromDiagonal(r.loX, r.loY, r.hiX, r.hiY);
 		return rc.contains(pt);
 	}
@@ -165,32 +165,18 @@ public class NodeTraverser extends AbstractUIObject implements TweenListener, Ke
 	Rectangle2D.Float tempRect = new Rectangle2D.Float();
 	private NodeRange getNearestNode(float x, float y)
 	{
-		getWithinRange(x, y, 100);
+		/*
+		 * Convert the point and the search radius into model coordinates, then
+		 * let the renderer's spatial index find the closest range for us.
+		 */
 		pt.setLocation(x, y);
-		float nearestDist = Float.MAX_VALUE;
-		NodeRange temp = null;
-		for (int i = 0; i < nearNodes.size(); i++)
-		{
-			NodeRange r = (NodeRange) nearNodes.get(i);
-			PhyloNode n = r.node;
-			switch (r.type)
-			{
-				case (NodeRange.NODE):
-					float dist = (float) pt.distance(getX(r), getY(r));
-					if (containsPoint(r, pt))
-					{
-						nearestDist = dist;
-						return r;
-					}
-					if (dist < nearestDist)
-					{
-						temp = r;
-						nearestDist = dist;
-					}
-					break;
-			}
-		}
-		return temp;
+		rect.setFrame(x, y, 100, 100);
+		UIUtils.screenToModel(pt);
+		UIUtils.screenToModel(rect);
+		NodeRange r = context.trees().nearestNode((float) pt.getX(), (float) pt.getY(), rect.width);
+		if (r == null || r.type != NodeRange.NODE)
+			return null;
+		return r;
 	}
 
 	private void getWithinRange(float x, float y, float radius)
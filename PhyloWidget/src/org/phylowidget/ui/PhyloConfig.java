@@ -3,12 +3,15 @@ package org.phylowidget.ui;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.andrewberman.ui.Color;
 import org.andrewberman.ui.FontLoader;
+import org.andrewberman.ui.ifaces.FieldListener;
 import org.andrewberman.ui.unsorted.MethodAndFieldSetter;
 import org.phylowidget.PWContext;
 import org.phylowidget.PWPlatform;
@@ -16,7 +19,7 @@ import org.phylowidget.PhyloTree;
 import org.phylowidget.tree.PhyloNode;
 import org.phylowidget.tree.RootedTree;
 
-public class PhyloConfig
+public class PhyloConfig implements FieldListener
 {
 
 	/*
@@ -179,6 +182,9 @@ public class PhyloConfig
 	public boolean enforceUniqueLabels = false; // Enforce uniqueness of node labels.
 	public boolean scrapeNaughtyChars = false; // Should we scrape away naughty characters from node labels when exporting the tree file?
 	public boolean outputFullSizeImages = false; // Output images in the tree at full size, instead of thumbnail (may require LOTS of memory!!)
+	public float imageCacheSize = 64; // Megabytes of memory for loaded image thumbnails. The least recently drawn are dropped when it's full.
+	public boolean diskImageCache = true; // Keep thumbnails of local image files on disk, so they don't need decoding again next time.
+	public float undoMemory = 16; // Megabytes of memory for the undo history of each tree. The oldest edits are forgotten when it's full.
 	public boolean useAnimations = true; // Use animated transitions?
 	public boolean animateNewTree = false; // Try to animate between the current tree and new tree? (EXPERIMENTAL IF SET TO TRUE)
 
@@ -216,6 +222,7 @@ public class PhyloConfig
 	{
 		backgroundC = Color.parseColor(s);
 		backgroundColor = s;
+		styleChanged();
 	}
 
 	public Color getBackgroundColor()
@@ -229,6 +236,7 @@ public class PhyloConfig
 	{
 		textC = Color.parseColor(s);
 		textColor = s;
+		styleChanged();
 	}
 
 	public Color getTextColor()
@@ -245,6 +253,7 @@ public class PhyloConfig
 	{
 		nodeC = Color.parseColor(s);
 		nodeColor = s;
+		styleChanged();
 	}
 
 	public Color getNodeColor()
@@ -261,6 +270,7 @@ public class PhyloConfig
 	{
 		branchC = Color.parseColor(s);
 		branchColor = s;
+		styleChanged();
 	}
 
 	public Color getBranchColor()
@@ -277,6 +287,7 @@ public class PhyloConfig
 	{
 		alignmentC = Color.parseColor(s);
 		alignmentColor = s;
+		styleChanged();
 	}
 
 	public Color getAlignmentColor()
@@ -328,6 +339,7 @@ public class PhyloConfig
 	public void setUseBranchLengths(boolean useEm)
 	{
 		useBranchLengths = useEm;
+		styleChanged();
 		context.ui().layout();
 	}
 
@@ -345,6 +357,7 @@ public class PhyloConfig
 	public void setEnforceUniqueLabels(boolean b)
 	{
 		enforceUniqueLabels = b;
+		styleChanged();
 		RootedTree t = context.trees().getTree();
 		if (t != null)
 			t.setEnforceUniqueLabels(b);
@@ -354,6 +367,7 @@ public class PhyloConfig
 	{
 		if (!layout.equals(s))
 			layout = s;
+		styleChanged();
 		s = s.toLowerCase();
 		if (s.equals("diagonal"))
 		{
@@ -412,11 +426,13 @@ public class PhyloConfig
 	public void setShowAllLabels(boolean showAllLabels)
 	{
 		this.showAllLabels = showAllLabels;
+		styleChanged();
 	}
 
 	public void setPrioritizeDistantLabels(boolean prioritizeDistanceLabels)
 	{
 		this.prioritizeDistantLabels = prioritizeDistanceLabels;
+		styleChanged();
 		context.ui().layout();
 	}
 
@@ -428,12 +444,14 @@ public class PhyloConfig
 	public void setTextSize(float textSize)
 	{
 		this.textScaling = textSize;
+		styleChanged();
 		//		context.ui().layout();
 	}
 
 	public void setLayoutAngle(float layoutAngle)
 	{
 		this.layoutAngle = layoutAngle;
+		styleChanged();
 		context.ui().forceLayout();
 	}
 
@@ -455,6 +473,7 @@ public class PhyloConfig
 	public void setBranchScaling(float newBranchScaling)
 	{
 		this.branchScaling = newBranchScaling;
+		styleChanged();
 		context.ui().forceLayout();
 	}
 
@@ -476,6 +495,7 @@ public class PhyloConfig
 		FontLoader fl = context.trees().getRenderer().getFontLoader();
 		fl.setFont(newFont);
 		this.font = fl.getFontName();
+		styleChanged();
 	}
 	
 	public static Map<String, String> getChangedFields(Object a, Object b)
@@ -513,6 +533,8 @@ public class PhyloConfig
 	public void setIgnoreAnnotations(boolean ignore)
 	{
 		this.ignoreAnnotations = ignore;
+		styleChanged();
+		annotationsToggled();
 		context.ui().layout();
 	}
 	
@@ -525,4 +547,89 @@ public class PhyloConfig
 		changed.remove("menus");
 		return changed;
 	}
+
+	private static Field[] styleFields;
+
+	private int styleHash;
+	private volatile boolean styleHashValid;
+
+	/**
+	 * Called (by MethodAndFieldSetter, and the menus) when one of our fields
+	 * has been set by reflection.
+	 */
+	public void fieldChanged(String name)
+	{
+		styleChanged();
+		if (name.equals("ignoreAnnotations"))
+			annotationsToggled();
+	}
+
+	private void annotationsToggled()
+	{
+		if (context == null || context.trees() == null)
+			return;
+		RootedTree t = context.trees().getTree();
+		if (t instanceof PhyloTree)
+			((PhyloTree) t).annotationsToggled();
+	}
+
+	/**
+	 * Call this after setting any of the public fields directly, so that
+	 * getStyleHash() sees the change. The setters here, the menus and
+	 * MethodAndFieldSetter all call it for you.
+	 */
+	public void styleChanged()
+	{
+		styleHashValid = false;
+	}
+
+	/**
+	 * A hash of every setting that can change how the tree looks on screen,
+	 * for caches of rendered output to check against. The tree, clipboard,
+	 * search text and viewport are left out, since the renderer keeps track
+	 * of those itself.
+	 * <p>
+	 * It's worked out (by reflection) once after each change, and cached; see
+	 * styleChanged().
+	 */
+	public int getStyleHash()
+	{
+		if (styleHashValid)
+			return styleHash;
+		/*
+		 * Mark it valid first, so that a change made while we're reading the
+		 * fields leaves it invalid.
+		 */
+		styleHashValid = true;
+		if (styleFields == null)
+		{
+			Field[] all = PhyloConfig.class.getFields();
+			ArrayList<Field> keep = new ArrayList<Field>();
+			for (Field f : all)
+			{
+				if (Modifier.isStatic(f.getModifiers()))
+					continue;
+				String name = f.getName();
+				if (name.equals("tree") || name.equals("clipboard") || name.equals("search")
+						|| name.startsWith("viewport") || name.equals("remoteConfig") || name.equals("menus"))
+					continue;
+				keep.add(f);
+			}
+			styleFields = keep.toArray(new Field[keep.size()]);
+		}
+		int h = 1;
+		for (Field f : styleFields)
+		{
+			try
+			{
+				Object o = f.get(this);
+				h = h * 31 + (o == null ? 0 : o.hashCode());
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+		styleHash = h;
+		return h;
+	}
 }
@@ -108,8 +108,9 @@ public class PhyloScaleBar extends Menu
 				// Now, find the pixel distance between this node and the next.
 				double branchLength = tree.getBranchLength(n);
 				PhyloNode parent = tree.getParentOf(n);
-				Point2D.Double parentPt = new Point2D.Double(parent.getX(), parent.getY());
-				Point2D.Double childPt = new Point2D.Double(n.getX(), n.getY());
+				// Off-screen nodes aren't updated every frame, so go from the layout position.
+				Point2D.Double parentPt = new Point2D.Double(renderer.calcRealX(parent), renderer.calcRealY(parent));
+				Point2D.Double childPt = new Point2D.Double(renderer.calcRealX(n), renderer.calcRealY(n));
 				double distance = parentPt.distance(childPt);
 
 				branchLengthPerPixel = branchLength / distance;
@@ -127,8 +128,9 @@ public class PhyloScaleBar extends Menu
 				// Now, find the pixel distance between this node and the next.
 				double branchLength = tree.getBranchLength(n);
 				PhyloNode parent = tree.getParentOf(n);
-				Point2D.Double parentPt = new Point2D.Double(parent.getX(), parent.getY());
-				Point2D.Double childPt = new Point2D.Double(n.getX(), n.getY());
+				// Off-screen nodes aren't updated every frame, so go from the layout position.
+				Point2D.Double parentPt = new Point2D.Double(renderer.calcRealX(parent), renderer.calcRealY(parent));
+				Point2D.Double childPt = new Point2D.Double(renderer.calcRealX(n), renderer.calcRealY(n));
 //				double distance = parentPt.distance(childPt);
 				double distance = Math.abs(parentPt.x - childPt.x);
 
@@ -38,6 +38,10 @@ public class PhyloTextField extends TextField
 	PWContext context;
 	NodeRange curRange;
 	String oldValue;
+	/*
+	 * The tree whose undo history is recording this edit.
+	 */
+	RootedTree editing;
 
 	int editMode;
 	static final int LABEL = 0;
@@ -66,6 +70,9 @@ public class PhyloTextField extends TextField
 		this.editMode = editMode;
 		curRange = r;
 		RootedTree t = r.render.getTree();
+		finishEdit();
+		editing = t;
+		t.beginEdit(editMode == LABEL ? "Edit Name" : "Edit Branch Length");
 		reset();
 		oldValue = null;
 		switch (editMode)
@@ -98,6 +105,7 @@ public class PhyloTextField extends TextField
 		{
 			PhyloTree pt = (PhyloTree) t;
 		}
+		finishEdit();
 		context.ui().layout();
 	}
 
@@ -105,6 +113,18 @@ public class PhyloTextField extends TextField
 	{
 		hide();
 		updateValue(oldValue); // Set back to the old name.
+		finishEdit();
+	}
+
+	/*
+	 * All the values typed in while editing become one edit, so undo goes
+	 * straight back to the value from before.
+	 */
+	void finishEdit()
+	{
+		if (editing != null)
+			editing.endEdit();
+		editing = null;
 	}
 
 	void updateValue(String s)
@@ -63,6 +63,7 @@ import org.phylowidget.tree.CachedRootedTree;
 import org.phylowidget.tree.PhyloNode;
 import org.phylowidget.tree.RootedTree;
 import org.phylowidget.tree.TreeIO;
+import org.phylowidget.tree.TreeImageExport;
 
 import processing.core.PApplet;
 
@@ -444,9 +445,17 @@ public class PhyloUI implements Runnable
 	public void nodeReroot()
 	{
 		NodeRange r = curRange();
-		synchronized (r.render.getTree())
+		RootedTree tree = r.render.getTree();
+		synchronized (tree)
 		{
-			r.render.getTree().reroot(getCurNode());
+			tree.beginEdit("Reroot");
+			try
+			{
+				tree.reroot(getCurNode());
+			} finally
+			{
+				tree.endEdit();
+			}
 		}
 	}
 
@@ -458,14 +467,30 @@ public class PhyloUI implements Runnable
 	public void nodeSwitchChildren()
 	{
 		NodeRange r = curRange();
-		r.render.getTree().flipChildren(getCurNode());
+		RootedTree tree = r.render.getTree();
+		tree.beginEdit("Switch Children");
+		try
+		{
+			tree.flipChildren(getCurNode());
+		} finally
+		{
+			tree.endEdit();
+		}
 		r.render.layoutTrigger();
 	}
 
 	public void nodeFlipSubtree()
 	{
 		NodeRange r = curRange();
-		r.render.getTree().reverseSubtree(getCurNode());
+		RootedTree tree = r.render.getTree();
+		tree.beginEdit("Flip Subtree");
+		try
+		{
+			tree.reverseSubtree(getCurNode());
+		} finally
+		{
+			tree.endEdit();
+		}
 		getCurTree().modPlus();
 		r.render.layoutTrigger();
 	}
@@ -474,21 +499,43 @@ public class PhyloUI implements Runnable
 	{
 		NodeRange r = curRange();
 		RootedTree tree = r.render.getTree();
-		PhyloNode sis = (PhyloNode) tree.createAndAddVertex();
-		tree.addSisterNode(getCurNode(), sis);
+		tree.beginEdit("Add Sister");
+		try
+		{
+			PhyloNode sis = (PhyloNode) tree.createAndAddVertex();
+			tree.addSisterNode(getCurNode(), sis);
+		} finally
+		{
+			tree.endEdit();
+		}
 	}
 
 	public void nodeAddChild()
 	{
 		NodeRange r = curRange();
 		RootedTree tree = r.render.getTree();
-		tree.addChildNode(getCurNode());
+		tree.beginEdit("Add Child");
+		try
+		{
+			tree.addChildNode(getCurNode());
+		} finally
+		{
+			tree.endEdit();
+		}
 	}
 
 	public void nodeCut()
 	{
 		NodeRange r = curRange();
-		clipboard.cut(r.render.getTree(), r.node);
+		RootedTree tree = r.render.getTree();
+		tree.beginEdit("Cut");
+		try
+		{
+			clipboard.cut(tree, r.node);
+		} finally
+		{
+			tree.endEdit();
+		}
 	}
 
 	public void nodeCopy()
@@ -523,9 +570,17 @@ public class PhyloUI implements Runnable
 			{
 				try
 				{
-					synchronized (r.render.getTree())
+					RootedTree tree = r.render.getTree();
+					synchronized (tree)
 					{
-						clipboard.swap(r.render.getTree(), r.node);
+						tree.beginEdit("Swap");
+						try
+						{
+							clipboard.swap(tree, r.node);
+						} finally
+						{
+							tree.endEdit();
+						}
 					}
 					setMessage("");
 				} catch (Exception e)
@@ -547,7 +602,15 @@ public class PhyloUI implements Runnable
 			{
 				try
 				{
-					clipboard.paste((CachedRootedTree) r.render.getTree(), r.node);
+					CachedRootedTree tree = (CachedRootedTree) r.render.getTree();
+					tree.beginEdit("Paste");
+					try
+					{
+						clipboard.paste(tree, r.node);
+					} finally
+					{
+						tree.endEdit();
+					}
 					setMessage("");
 				} catch (Exception e)
 				{
@@ -569,7 +632,14 @@ public class PhyloUI implements Runnable
 		RootedTree g = r.render.getTree();
 		synchronized (g)
 		{
-			g.deleteNode(getCurNode());
+			g.beginEdit("Delete");
+			try
+			{
+				g.deleteNode(getCurNode());
+			} finally
+			{
+				g.endEdit();
+			}
 		}
 	}
 
@@ -580,7 +650,14 @@ public class PhyloUI implements Runnable
 		final PhyloNode n = getCurNode();
 		synchronized (g)
 		{
-			g.deleteSubtree(n);
+			g.beginEdit("Delete Subtree");
+			try
+			{
+				g.deleteSubtree(n);
+			} finally
+			{
+				g.endEdit();
+			}
 		}
 	}
 
@@ -589,12 +666,47 @@ public class PhyloUI implements Runnable
 		NodeRange r = curRange();
 		RootedTree g = r.render.getTree();
 		PhyloNode n = getCurNode();
-		n.setAnnotation("layout_size", g.getNumEnclosedLeaves(n));
-		g.collapseNode(n);
+		g.beginEdit("Collapse");
+		try
+		{
+			n.setAnnotation("layout_size", g.getNumEnclosedLeaves(n));
+			g.collapseNode(n);
+		} finally
+		{
+			g.endEdit();
+		}
 		g.modPlus();
 		layout();
 	}
 
+	/*
+	 * Undoing and redoing edits.
+	 */
+
+	public void undo()
+	{
+		RootedTree tree = getCurTree();
+		String name = tree.getJournal().getUndoName();
+		if (tree.undo())
+		{
+			setMessage("Undid " + name);
+			layout();
+		} else
+			setMessage("Nothing to undo.");
+	}
+
+	public void redo()
+	{
+		RootedTree tree = getCurTree();
+		String name = tree.getJournal().getRedoName();
+		if (tree.redo())
+		{
+			setMessage("Redid " + name);
+			layout();
+		} else
+			setMessage("Nothing to redo.");
+	}
+
 	/*
 	 * View actions.
 	 */
@@ -641,7 +753,14 @@ public class PhyloUI implements Runnable
 	public void treeFlip()
 	{
 		PhyloTree t = (PhyloTree) getCurTree();
-		t.reverseSubtree(t.getRoot());
+		t.beginEdit("Flip Tree");
+		try
+		{
+			t.reverseSubtree(t.getRoot());
+		} finally
+		{
+			t.endEdit();
+		}
 		t.modPlus();
 		layout();
 	}
@@ -649,7 +768,14 @@ public class PhyloUI implements Runnable
 	public void treeAutoSort()
 	{
 		RootedTree tree = getCurTree();
-		tree.ladderizeSubtree(tree.getRoot());
+		tree.beginEdit("Auto-sort Tree");
+		try
+		{
+			tree.ladderizeSubtree(tree.getRoot());
+		} finally
+		{
+			tree.endEdit();
+		}
 		layout();
 	}
 
@@ -658,14 +784,29 @@ public class PhyloUI implements Runnable
 		RootedTree tree = getCurTree();
 		synchronized (tree)
 		{
-			tree.removeElbowsBelow(tree.getRoot());
+			tree.beginEdit("Remove Elbow Nodes");
+			try
+			{
+				tree.removeElbowsBelow(tree.getRoot());
+			} finally
+			{
+				tree.endEdit();
+			}
 		}
 		layout();
 	}
 
 	public void treeUncollapseAll()
 	{
-		getCurTree().uncollapseAllNodes();
+		RootedTree tree = getCurTree();
+		tree.beginEdit("Uncollapse All");
+		try
+		{
+			tree.uncollapseAllNodes();
+		} finally
+		{
+			tree.endEdit();
+		}
 		layout();
 	}
 
@@ -682,7 +823,14 @@ public class PhyloUI implements Runnable
 				setMessage("Aligning leaves...");
 				RootedTree tree = getCurTree();
 				//				tree.alignLeaves();
-				tree.makeSubtreeUltrametric(tree.getRoot());
+				tree.beginEdit("Align all Leaves");
+				try
+				{
+					tree.makeSubtreeUltrametric(tree.getRoot());
+				} finally
+				{
+					tree.endEdit();
+				}
 				layout();
 				setMessage("");
 			}
@@ -698,7 +846,14 @@ public class PhyloUI implements Runnable
 			{
 				setMessage("Log transforming tree...");
 				RootedTree tree = getCurTree();
-				tree.logTransform(tree.getRoot(),1000);
+				tree.beginEdit("Log Transform");
+				try
+				{
+					tree.logTransform(tree.getRoot(),1000);
+				} finally
+				{
+					tree.endEdit();
+				}
 				layout();
 				setMessage("");
 			}
@@ -728,10 +883,18 @@ public class PhyloUI implements Runnable
 	public void treeSaveConfigIntoTree()
 	{
 		Map<String,String> changedFields = PhyloConfig.getConfigSnapshot(context.config());
-		PhyloNode root = (PhyloNode) getCurTree().getRoot();
-		for (String key : changedFields.keySet())
+		RootedTree tree = getCurTree();
+		PhyloNode root = (PhyloNode) tree.getRoot();
+		tree.beginEdit("Save Settings into Tree");
+		try
 		{
-			root.setAnnotation(key, changedFields.get(key));
+			for (String key : changedFields.keySet())
+			{
+				root.setAnnotation(key, changedFields.get(key));
+			}
+		} finally
+		{
+			tree.endEdit();
 		}
 	}
 	
@@ -783,38 +946,36 @@ public class PhyloUI implements Runnable
 		{
 			public void run()
 			{
-				p.noLoop();
+				RootedTree tree = context.trees().getTree();
 				File dir = f.getParentFile();
-				TreeIO.outputTreeImages(context.trees().getTree(), dir);
-				
 				// Get the extension.
 				String ext = FileUtils.getFileExtension(f);
-				String s;
-				RootedTree tree = context.trees().getTree();
-				if (ext.equals("nh"))
-				{
-					s = tree.getNewick();
-				} else if (ext.equals("xml"))
-				{
-					s = tree.getNeXML();
-				} else
-				{
-					s = tree.getNHX();
-				}
-				
-//				String s = TreeIO.createNHXString(context.trees().getTree());
+				/*
+				 * The images are copied in the background while we write the tree,
+				 * which already points at the copies. Newick has no annotations, so
+				 * there's nothing to point at them.
+				 */
+				TreeImageExport images = new TreeImageExport(tree, dir);
+				if (!ext.equals("nh"))
+					images.start();
 				try
 				{
-					f.createNewFile();
-					BufferedWriter r = new BufferedWriter(new FileWriter(f));
-					r.append(s);
-					r.close();
-					p.loop();
-					setMessage("");
+					writeTree(tree, f, ext, images.getImageURLs());
+					int failed = images.await();
+					if (failed > 0)
+					{
+						/*
+						 * Point the nodes whose images couldn't be copied back at
+						 * the originals.
+						 */
+						writeTree(tree, f, ext, images.getImageURLs());
+						setMessage(failed + " of " + images.getTotal() + " images couldn't be saved.");
+					} else
+						setMessage("");
 				} catch (IOException e)
 				{
 					e.printStackTrace();
-					p.loop();
+					images.await();
 					setMessage("Error writing file. Whoops!");
 					try
 					{
@@ -831,6 +992,29 @@ public class PhyloUI implements Runnable
 		}.start();
 	}
 
+	private static void writeTree(RootedTree tree, File f, String ext, Map<String, String> imageURLs)
+			throws IOException
+	{
+		f.createNewFile();
+		BufferedWriter r = new BufferedWriter(new FileWriter(f));
+		try
+		{
+			if (ext.equals("nh"))
+			{
+				TreeIO.writeNewick(tree, r);
+			} else if (ext.equals("xml"))
+			{
+				r.append(TreeIO.createNeXMLString(tree, imageURLs));
+			} else
+			{
+				TreeIO.writeNHX(tree, r, imageURLs);
+			}
+		} finally
+		{
+			r.close();
+		}
+	}
+
 	public void treeLoad()
 	{
 		FileDialog fd =
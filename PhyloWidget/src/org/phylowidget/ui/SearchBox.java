@@ -151,7 +151,7 @@ public class SearchBox extends TextBox implements UIListener
 			PhyloTree t = (PhyloTree) context.trees().getTree();
 			if (t != null)
 			{
-				t.searchAndMarkFound(getText());
+				t.searchAsYouType(getText());
 			}
 		}
 	}
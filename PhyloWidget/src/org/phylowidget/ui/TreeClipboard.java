@@ -20,19 +20,25 @@ package org.phylowidget.ui;
 
 import org.andrewberman.ui.AbstractUIObject;
 import org.andrewberman.ui.StringClipboard;
-import org.jgrapht.Graphs;
 import org.jgrapht.traverse.BreadthFirstIterator;
 import org.phylowidget.PhyloTree;
 import org.phylowidget.tree.CachedRootedTree;
 import org.phylowidget.tree.DefaultVertex;
 import org.phylowidget.tree.PhyloNode;
 import org.phylowidget.tree.RootedTree;
+import org.phylowidget.tree.SubtreeCopy;
 import org.phylowidget.tree.TreeIO;
 
 import processing.core.PApplet;
 
 public class TreeClipboard extends AbstractUIObject
 {
+	/*
+	 * Copies within PhyloWidget are kept as a SubtreeCopy, and only turned
+	 * into text if it's asked for. Text from JavaScript or the system
+	 * clipboard is parsed when it's pasted.
+	 */
+	SubtreeCopy clip;
 	String newickString;
 	//	String fullNewickString;
 	RootedTree origTree;
@@ -44,6 +50,8 @@ public class TreeClipboard extends AbstractUIObject
 
 	public boolean isEmpty()
 	{
+		if (clip != null)
+			return false;
 		if (newickString == null)
 			return true;
 		else
@@ -55,6 +63,7 @@ public class TreeClipboard extends AbstractUIObject
 	public void clearClipboard()
 	{
 		clearTree();
+		clip = null;
 		newickString = "";
 		fireEvent(CLIPBOARD_UPDATED);
 	}
@@ -85,14 +94,16 @@ public class TreeClipboard extends AbstractUIObject
 
 	public String getClipboardText()
 	{
+		if (newickString == null && clip != null)
+			newickString = clip.toNHX();
 		return newickString;
 	}
 	
 	public void setClip(RootedTree tree, PhyloNode node)
 	{
 		setStateRecursive(tree,(PhyloNode) tree.getRoot(),PhyloNode.NONE);
-		RootedTree clone = tree.cloneSubtree(node);
-		newickString = TreeIO.createNHXString(clone);
+		clip = SubtreeCopy.copy(tree, node);
+		newickString = null;
 		origTree = tree;
 		origVertex = node;
 		fireEvent(CLIPBOARD_UPDATED);
@@ -101,13 +112,16 @@ public class TreeClipboard extends AbstractUIObject
 	public void setClipFromJS(String newick)
 	{
 		clearTree();
+		clip = null;
 		newickString = newick;
 		origTree = null;
 		origVertex = null;
 	}
 
-	PhyloTree loadClip()
+	SubtreeCopy loadClip()
 	{
+		if (clip != null)
+			return clip;
 		if (newickString == null || newickString.length() == 0)
 		{
 			/*
@@ -120,13 +134,20 @@ public class TreeClipboard extends AbstractUIObject
 		
 		PhyloTree clipTree = new PhyloTree();
 		TreeIO.parseNewickString(clipTree, newickString);
-		
-		if (origTree != null && origVertex != null)
-		{
-			setPositionRecursive(clipTree, (PhyloNode) clipTree.getRoot(),
-					origVertex);
-		}
-		return clipTree;
+		clip = SubtreeCopy.copy(clipTree, (PhyloNode) clipTree.getRoot());
+		return clip;
+	}
+
+	/*
+	 * Grafts the clipboard's subtree into the tree, and returns its root
+	 * (which is left unconnected).
+	 */
+	PhyloNode graftClip(SubtreeCopy c, RootedTree tree, PhyloNode positionToMe)
+	{
+		PhyloNode root = (PhyloNode) c.graft(tree);
+		if (positionToMe != null)
+			setPositionRecursive(tree, root, positionToMe);
+		return root;
 	}
 
 	public synchronized void swap(RootedTree destTree, PhyloNode destNode)
@@ -152,19 +173,25 @@ public class TreeClipboard extends AbstractUIObject
 				/*
 				 * If we're swapping with an "external" clipboard, then it's also easy.
 				 */
-				PhyloTree clipTree = loadClip();
+				SubtreeCopy c = loadClip();
+				PhyloNode positionToMe = (origTree != null) ? origVertex : null;
 				setClip(destTree, destNode);
-				setClipFromJS(newickString);
+				/*
+				 * The clipboard now holds the old subtree, which isn't tied to
+				 * the tree any more once it's been deleted.
+				 */
+				clearTree();
+				origVertex = null;
 				
 				Object p1 = destTree.getParentOf(destNode);
 				destTree.deleteSubtree(destNode);
-				Graphs.addGraph(destTree, clipTree);
+				PhyloNode root = graftClip(c, destTree, positionToMe);
 				if (p1 == null)
 				{
-					destTree.setRoot(clipTree.getRoot());
+					destTree.setRoot(root);
 				} else
 				{
-					destTree.addEdge(p1, clipTree.getRoot());
+					destTree.addEdge(p1, root);
 				}
 			}
 		}
@@ -172,25 +199,24 @@ public class TreeClipboard extends AbstractUIObject
 
 	public synchronized void paste(CachedRootedTree destTree, PhyloNode destNode)
 	{
-		// Translate the newick string into a RooteTree.
-		PhyloTree tree = loadClip();
-		// Add the clone's vertices and edges to the destination tree.
+		SubtreeCopy c = loadClip();
 		
 		synchronized (destTree)
 		{
 			destTree.setHoldCalculations(true);
-			Graphs.addGraph(destTree, tree);
+			// Add a copy of the clipboard's subtree to the destination tree.
+			PhyloNode root = graftClip(c, destTree, (origTree != null) ? origVertex : null);
 			// Insert the clone's root vertex into the midpoint above destNode.
 			if (destTree.getParentOf(destNode) == null)
 			{
-				destTree.addEdge(destNode, tree.getRoot());
+				destTree.addEdge(destNode, root);
 			} else
 			{
 				DefaultVertex internalVertex = destTree.createAndAddVertex();
 				((PhyloNode) internalVertex).setPosition(origVertex);
 				destTree.insertNodeBetween(destTree.getParentOf(destNode),
 						destNode, internalVertex);
-				destTree.addEdge(internalVertex, tree.getRoot());
+				destTree.addEdge(internalVertex, root);
 			}
 			destTree.setHoldCalculations(false);
 			destTree.modPlus();
@@ -210,6 +236,7 @@ public class TreeClipboard extends AbstractUIObject
 				setStateRecursive(origTree, (PhyloNode) origTree.getRoot(),
 						PhyloNode.NONE);
 				origVertex.found = false;
+				PhyloNode.marked();
 				origVertex = null;
 				origTree.modPlus();
 			}